@@ -65,7 +65,7 @@ public class StoreAudit extends AuditMessage {
 
     private String remoteAET;
     private Participant source;
-    private Attributes attributes;
+    private StoreAuditAggregate aggregate;
     private String eventOutcomeIndicator;
     private AuditLogger logger;
 
@@ -73,11 +73,17 @@ public class StoreAudit extends AuditMessage {
      */
     public StoreAudit(String remoteAET, Participant source, Attributes attributes,
             String eventOutcomeIndicator, AuditLogger logger) {
+        this(new StoreAuditAggregate(remoteAET, source, attributes,
+                eventOutcomeIndicator, logger.isIncludeInstanceUID(),
+                logger.timeStamp()), logger);
+    }
+
+    StoreAudit(StoreAuditAggregate aggregate, AuditLogger logger) {
         super();
-        this.remoteAET = remoteAET;
-        this.source= source; 
-        this.attributes = attributes;
-        this.eventOutcomeIndicator = eventOutcomeIndicator;
+        this.remoteAET = aggregate.getRemoteAET();
+        this.source = aggregate.getSource();
+        this.aggregate = aggregate;
+        this.eventOutcomeIndicator = aggregate.getEventOutcomeIndicator();
         this.logger = logger;
         init();
     }
@@ -87,7 +93,7 @@ public class StoreAudit extends AuditMessage {
         // Event
         this.setEventIdentification(AuditMessages.createEventIdentification(
                 EventID.DICOMInstancesTransferred, EventActionCode.Create,
-                logger.timeStamp(), eventOutcomeIndicator, null));
+                aggregate.getEventDateTime(), eventOutcomeIndicator, null));
 
         // Active Participant 1: The requestor
         this.getActiveParticipant().add(
@@ -104,19 +110,19 @@ public class StoreAudit extends AuditMessage {
         // Participating Object: Studies being transferred
         this.getParticipantObjectIdentification()
                 .add(AuditMessages.createParticipantObjectIdentification(
-                        attributes.getString(Tag.StudyInstanceUID),
+                        aggregate.getStudyInstanceUID(),
                         AuditMessages.ParticipantObjectIDTypeCode.StudyInstanceUID,
                         "Study being transferred", null,
                         AuditMessages.ParticipantObjectTypeCode.SystemObject,
                         AuditMessages.ParticipantObjectTypeCodeRole.Report,
                         null, null,
-                        createPODescription(createSOPClass(attributes))));
+                        createPODescription()));
 
         // Participating Object: Patient
         this.getParticipantObjectIdentification()
                 .add(AuditMessages
                         .createParticipantObjectIdentification(
-                                getPatientID(attributes),
+                                aggregate.getPatientID(),
                                 AuditMessages.ParticipantObjectIDTypeCode.PatientNumber,
                                 null,
                                 null,
@@ -128,21 +134,23 @@ public class StoreAudit extends AuditMessage {
                 logger.createAuditSourceIdentification());
     }
 
-    private String getPatientID(Attributes attrs) {
-        String patID = attrs.getString(Tag.PatientID);
-        if (patID == null)
-            return "UNKNOWN";
-        String issuer = attrs.getString(Tag.IssuerOfPatientID);
-        return (issuer == null || issuer.length() == 0) ? patID : patID + "^^^"
-                + issuer;
-    }
-
-    private ParticipantObjectDescription createPODescription(SOPClass sop) {
+    private ParticipantObjectDescription createPODescription() {
         ParticipantObjectDescription desc = new ParticipantObjectDescription();
-        desc.getSOPClass().add(sop);
+        for (StoreAuditAggregate.SOPClassRefs refs : aggregate.getSOPClasses()) {
+            SOPClass sop = new SOPClass();
+            sop.setUID(refs.cuid);
+            sop.setNumberOfInstances(refs.numberOfInstances);
+            if (refs.iuids != null)
+                for (String iuid : refs.iuids) {
+                    Instance instance = new Instance();
+                    instance.setUID(iuid);
+                    sop.getInstance().add(instance);
+                }
+            desc.getSOPClass().add(sop);
+        }
         return desc;
     }
-    
+
     private ParticipantObjectDetail createPODetail(String studyuid) {
         ParticipantObjectDetail det = new ParticipantObjectDetail();
         det.setType("StudyInstanceUID");
@@ -0,0 +1,175 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4che.archive.audit.message;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.archive.dto.Participant;
+
+/**
+ * Objects of one study received from one source, from which a
+ * {@link StoreAudit} is created. Only keeps the identifiers included in
+ * the audit message, but no references to the received attributes.
+ * The audit message carries the time stamp of the first object.
+ */
+public class StoreAuditAggregate {
+
+    private final String remoteAET;
+    private final Participant source;
+    private final String studyInstanceUID;
+    private final String patientID;
+    private final String eventOutcomeIndicator;
+    private final boolean includeInstanceUID;
+    private final Calendar eventDateTime;
+    private final LinkedHashMap<String, SOPClassRefs> sopClasses =
+            new LinkedHashMap<String, SOPClassRefs>(4);
+    private int numberOfInstances;
+    private ScheduledFuture<?> flushTask;
+
+    static final class SOPClassRefs {
+        final String cuid;
+        int numberOfInstances;
+        final List<String> iuids;
+
+        SOPClassRefs(String cuid, boolean includeInstanceUID) {
+            this.cuid = cuid;
+            this.iuids = includeInstanceUID ? new ArrayList<String>() : null;
+        }
+    }
+
+    public StoreAuditAggregate(String remoteAET, Participant source,
+            Attributes attributes, String eventOutcomeIndicator,
+            boolean includeInstanceUID, Calendar eventDateTime) {
+        this.remoteAET = remoteAET;
+        this.source = source;
+        this.studyInstanceUID = attributes.getString(Tag.StudyInstanceUID);
+        this.patientID = patientIDOf(attributes);
+        this.eventOutcomeIndicator = eventOutcomeIndicator;
+        this.includeInstanceUID = includeInstanceUID;
+        this.eventDateTime = eventDateTime;
+        addInstance(attributes);
+    }
+
+    private static String patientIDOf(Attributes attrs) {
+        String patID = attrs.getString(Tag.PatientID);
+        if (patID == null)
+            return "UNKNOWN";
+        String issuer = attrs.getString(Tag.IssuerOfPatientID);
+        return (issuer == null || issuer.length() == 0) ? patID : patID + "^^^"
+                + issuer;
+    }
+
+    public void addInstance(Attributes attributes) {
+        String cuid = attributes.getString(Tag.SOPClassUID);
+        SOPClassRefs refs = sopClasses.get(cuid);
+        if (refs == null)
+            sopClasses.put(cuid, refs = new SOPClassRefs(cuid, includeInstanceUID));
+        refs.numberOfInstances++;
+        if (refs.iuids != null)
+            refs.iuids.add(attributes.getString(Tag.SOPInstanceUID));
+        numberOfInstances++;
+    }
+
+    public String getRemoteAET() {
+        return remoteAET;
+    }
+
+    public Participant getSource() {
+        return source;
+    }
+
+    public String getStudyInstanceUID() {
+        return studyInstanceUID;
+    }
+
+    public String getPatientID() {
+        return patientID;
+    }
+
+    public String getEventOutcomeIndicator() {
+        return eventOutcomeIndicator;
+    }
+
+    /**
+     * Returns the number of objects added to this aggregate.
+     */
+    public int getNumberOfInstances() {
+        return numberOfInstances;
+    }
+
+    /**
+     * Returns the time stamp of the first object, used as Event Date Time
+     * of the audit message.
+     */
+    public Calendar getEventDateTime() {
+        return eventDateTime;
+    }
+
+    /**
+     * Sets the task flushing this aggregate after the max age, which is
+     * cancelled by {@link #cancelFlushTask()} if it is flushed before.
+     */
+    public void setFlushTask(ScheduledFuture<?> flushTask) {
+        this.flushTask = flushTask;
+    }
+
+    public void cancelFlushTask() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    Collection<SOPClassRefs> getSOPClasses() {
+        return sopClasses.values();
+    }
+
+    public StoreAudit createAuditMessage(AuditLogger logger) {
+        return new StoreAudit(this, logger);
+    }
+}
@@ -40,7 +40,6 @@ package org.dcm4chee.archive.audit;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -53,12 +52,9 @@ import org.dcm4che.archive.audit.message.QueryAudit;
 import org.dcm4che.archive.audit.message.RetrieveAudit;
 import org.dcm4che.archive.audit.message.SecurityAlertAudit;
 import org.dcm4che.archive.audit.message.StartStopAudit;
-import org.dcm4che.archive.audit.message.StoreAudit;
 import org.dcm4che3.audit.AuditMessages;
 import org.dcm4che3.audit.AuditMessages.*;
 import org.dcm4che3.audit.AuditMessage;
-import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.audit.AuditLogger;
 import org.dcm4che3.net.service.InstanceLocator;
@@ -94,46 +90,30 @@ public class AuditObserver {
     protected static final Logger LOG = LoggerFactory
             .getLogger(AuditObserver.class);
 
+    @Inject
+    private AuditPipeline auditPipeline;
+
     public void receiveStoreContext(@Observes StoreContext context) {
 
         StoreSession session = context.getStoreSession();
-        AuditLogger logger = getLogger(session.getDevice());
-        String studyID = context.getAttributes()
-                .getString(Tag.StudyInstanceUID);
-
-        HashMap<String, StoreAudit> auditMap = getOrCreateAuditsMap(session,
-                context.isFail());
-
-        if (auditMap.get(studyID) == null)
-            auditMap.put(
-                    studyID,
-                    new StoreAudit(session.getRemoteAET(), session.getSource(), 
-                            context.getAttributes(), context
-                            .isFail() ? EventOutcomeIndicator.SeriousFailure
-                            : EventOutcomeIndicator.Success, logger));
-        else {
-            StoreAudit existingAudit = auditMap.get(studyID);
-            existingAudit.addInstance(context.getAttributes());
-        }
+        getOrCreateAudits(session, context.isFail()).add(
+                session.getRemoteAET(), session.getSource(),
+                context.getAttributes());
     }
 
     public void receiveStoreSessionClosed(
             @Observes @StoreSessionClosed StoreSession session) {
 
-        AuditLogger logger = getLogger(session.getDevice());
-        
-        // send all the audits at once
-        HashMap<String, StoreAudit> success = (HashMap<String, StoreAudit>) session
+        // send all remaining audits at once
+        StoreAuditAggregates success = (StoreAuditAggregates) session
                 .getProperty(AUDIT_MESSAGES_SUCCESS);
         if (success != null)
-            for (String studyUID : success.keySet())
-                sendAuditMessage(success.get(studyUID), logger);
+            success.flushAll();
 
-        HashMap<String, StoreAudit> failures = (HashMap<String, StoreAudit>) session
+        StoreAuditAggregates failures = (StoreAuditAggregates) session
                 .getProperty(AUDIT_MESSAGES_FAILURE);
         if (failures != null)
-            for (String studyUID : failures.keySet())
-                sendAuditMessage(failures.get(studyUID), logger);
+            failures.flushAll();
     }
     
     public void receiveArchiveServiceStarted(
@@ -223,15 +203,20 @@ public class AuditObserver {
                 event.getQuery(), logger), logger);
     }
     
-    private HashMap<String, StoreAudit> getOrCreateAuditsMap(
-            StoreSession session, boolean fail) {
+    private StoreAuditAggregates getOrCreateAudits(StoreSession session,
+            boolean fail) {
         String mapType = fail ? AUDIT_MESSAGES_FAILURE : AUDIT_MESSAGES_SUCCESS;
 
-        // if not existing, create a new map for audits (failed or success)
-        if (session.getProperty(mapType) == null)
-            session.setProperty(mapType, new HashMap<String, StoreAudit>());
+        // if not existing, create new audits (failed or success)
+        StoreAuditAggregates audits =
+                (StoreAuditAggregates) session.getProperty(mapType);
+        if (audits == null)
+            session.setProperty(mapType, audits = new StoreAuditAggregates(
+                    session.getDevice(), getLogger(session.getDevice()),
+                    auditPipeline, fail ? EventOutcomeIndicator.SeriousFailure
+                            : EventOutcomeIndicator.Success));
 
-        return (HashMap<String, StoreAudit>) session.getProperty(mapType);
+        return audits;
     }
 
     private AuditLogger getLogger(Device device) {
@@ -252,14 +237,7 @@ public class AuditObserver {
         if (logger == null || !logger.isInstalled())
             return;
 
-        try {
-            logger.write(logger.timeStamp(), msg);
-
-        } catch (Exception e) {
-            
-            LOG.error("Failed to write audit log message: {}", e.getMessage());
-            LOG.debug(e.getMessage(), e);
-        }
+        auditPipeline.send(msg, logger);
     }
 
 }
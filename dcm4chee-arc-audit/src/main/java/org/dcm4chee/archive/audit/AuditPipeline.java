@@ -0,0 +1,586 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.audit;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4che3.util.StringUtils;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends audit messages asynchronously to the Audit Record Repository.
+ * Request threads only enqueue messages in a queue bounded by
+ * {@link ArchiveDeviceExtension#getAuditQueueSize()} at first use. If the
+ * queue is full, messages are spooled to
+ * {@link ArchiveDeviceExtension#getAuditSpoolDirectory()}, or dropped if
+ * no spool directory is configured.
+ * <p>
+ * A sender task on the device executor drains the queue, and the spool
+ * directory once the queue is empty, in batches. It ends if there is
+ * nothing left to send. A failed message is retried after
+ * {@link ArchiveDeviceExtension#getAuditRetryInterval()} up to
+ * {@link ArchiveDeviceExtension#getAuditMaxRetries()} times, without
+ * occupying a thread in between. Then it is spooled or dropped, and the
+ * sender continues with the next message. Spooled messages are kept until
+ * they are sent.
+ */
+@ApplicationScoped
+public class AuditPipeline {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(AuditPipeline.class);
+
+    static final int BATCH_SIZE = 100;
+    static final String SPOOL_FILE_EXT = ".xml";
+    private static final String TMP_FILE_EXT = ".tmp";
+    private static final QName AUDIT_MESSAGE = new QName("AuditMessage");
+    private static final long SHUTDOWN_TIMEOUT = 5000L;
+
+    private static JAXBContext jaxbContext;
+
+    @Inject
+    Device device;
+
+    private final Sender sender = new Sender();
+
+    // guarded by this
+    private BlockingQueue<Pending> queue;
+    private boolean senderActive;
+    private ScheduledFuture<?> retry;
+
+    private volatile boolean stopped;
+    private volatile AuditLogger spoolLogger;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong spoolSeq = new AtomicLong();
+
+    private static final class Pending {
+        final AuditLogger logger;
+        final Calendar timeStamp;
+        final AuditMessage msg;
+        final Path spoolFile;
+        int failures;
+
+        Pending(AuditLogger logger, Calendar timeStamp, AuditMessage msg,
+                Path spoolFile) {
+            this.logger = logger;
+            this.timeStamp = timeStamp;
+            this.msg = msg;
+            this.spoolFile = spoolFile;
+        }
+    }
+
+    /**
+     * Enqueues {@code msg} for sending by {@code logger}. Sends the message
+     * synchronously, if {@link ArchiveDeviceExtension#getAuditQueueSize()}
+     * is 0.
+     */
+    public void send(AuditMessage msg, AuditLogger logger) {
+        Calendar timeStamp = logger.timeStamp();
+        ArchiveDeviceExtension arcDev = arcDev();
+        int queueSize = arcDev != null ? arcDev.getAuditQueueSize() : 0;
+        if (queueSize <= 0) {
+            try {
+                logger.write(timeStamp, msg);
+                sent.incrementAndGet();
+            } catch (Exception e) {
+                LOG.error("Failed to write audit log message: {}", e.getMessage());
+                LOG.debug(e.getMessage(), e);
+            }
+            return;
+        }
+        enqueued.incrementAndGet();
+        spoolLogger = logger;
+        Pending pending = new Pending(logger, timeStamp, msg, null);
+        if (queue(queueSize).offer(pending)) {
+            startSender();
+            return;
+        }
+        LOG.debug("Audit queue full - {}", this);
+        spoolOrDrop(pending, "Audit queue full");
+    }
+
+    private synchronized BlockingQueue<Pending> queue(int queueSize) {
+        if (queue == null)
+            queue = new ArrayBlockingQueue<Pending>(queueSize);
+        return queue;
+    }
+
+    private synchronized BlockingQueue<Pending> queue() {
+        return queue;
+    }
+
+    private synchronized void startSender() {
+        if (senderActive || stopped)
+            return;
+
+        senderActive = true;
+        try {
+            device.execute(sender);
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            // retried by the next message
+            senderActive = false;
+            LOG.warn("Failed to start sending of queued audit messages:", e);
+        }
+    }
+
+    /**
+     * Ends the sender, if there are no more queued messages.
+     */
+    private synchronized boolean senderIdle() {
+        if (!stopped && !queue.isEmpty())
+            return false;
+
+        senderActive = false;
+        notifyAll();
+        return true;
+    }
+
+    private synchronized boolean scheduleRetry(long delay) {
+        if (stopped)
+            return false;
+
+        try {
+            retry = device.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resumeSender();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            LOG.warn("Failed to schedule retry of sending audit messages:", e);
+            return false;
+        }
+    }
+
+    private synchronized void resumeSender() {
+        retry = null;
+        if (!stopped)
+            try {
+                device.execute(sender);
+                return;
+            } catch (RejectedExecutionException | IllegalStateException e) {
+                // the sender resumes its batch with the next message
+                LOG.warn("Failed to resume sending of audit messages:", e);
+            }
+        senderActive = false;
+        notifyAll();
+    }
+
+    private ArchiveDeviceExtension arcDev() {
+        return device.getDeviceExtension(ArchiveDeviceExtension.class);
+    }
+
+    private Path spoolDirectory() {
+        ArchiveDeviceExtension arcDev = arcDev();
+        String dir = arcDev != null ? arcDev.getAuditSpoolDirectory() : null;
+        return dir != null
+                ? Paths.get(StringUtils.replaceSystemProperties(dir))
+                : null;
+    }
+
+    private void spoolOrDrop(Pending pending, String reason) {
+        Path dir = spoolDirectory();
+        if (dir == null) {
+            dropped.incrementAndGet();
+            LOG.warn("{} and no spool directory configured - drop audit message - {}",
+                    reason, this);
+            return;
+        }
+        try {
+            spool(pending, dir, jaxbContext().createMarshaller());
+        } catch (JAXBException | IOException e) {
+            dropped.incrementAndGet();
+            LOG.error("{} and spooling to {} failed - drop audit message - {}:",
+                    reason, dir, this, e);
+        }
+    }
+
+    private void spool(Pending pending, Path dir, Marshaller marshaller)
+            throws JAXBException, IOException {
+        Path file = dir.resolve(pending.timeStamp.getTimeInMillis() + "-"
+                + spoolSeq.incrementAndGet() + SPOOL_FILE_EXT);
+        Path tmp = file.resolveSibling(file.getFileName() + TMP_FILE_EXT);
+        try {
+            Files.createDirectories(dir);
+            marshaller.marshal(
+                    new JAXBElement<AuditMessage>(AUDIT_MESSAGE,
+                            AuditMessage.class, copyOf(pending.msg)),
+                    tmp.toFile());
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            spooled.incrementAndGet();
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Spools messages, which were not spooled yet, with one marshaller.
+     */
+    private void spoolAll(List<Pending> pendings, String reason) {
+        Path dir = spoolDirectory();
+        Marshaller marshaller = null;
+        for (Pending pending : pendings) {
+            if (pending.spoolFile != null)
+                continue;
+
+            if (dir == null) {
+                dropped.incrementAndGet();
+                LOG.warn("{} and no spool directory configured - drop audit message - {}",
+                        reason, this);
+                continue;
+            }
+            try {
+                if (marshaller == null)
+                    marshaller = jaxbContext().createMarshaller();
+                spool(pending, dir, marshaller);
+            } catch (JAXBException | IOException e) {
+                dropped.incrementAndGet();
+                LOG.error("{} and spooling to {} failed - drop audit message - {}:",
+                        reason, dir, this, e);
+            }
+        }
+    }
+
+    private static AuditMessage copyOf(AuditMessage msg) {
+        AuditMessage copy = new AuditMessage();
+        copy.setEventIdentification(msg.getEventIdentification());
+        copy.getActiveParticipant().addAll(msg.getActiveParticipant());
+        copy.getAuditSourceIdentification().addAll(
+                msg.getAuditSourceIdentification());
+        copy.getParticipantObjectIdentification().addAll(
+                msg.getParticipantObjectIdentification());
+        return copy;
+    }
+
+    private static synchronized JAXBContext jaxbContext() throws JAXBException {
+        if (jaxbContext == null)
+            jaxbContext = JAXBContext.newInstance(AuditMessage.class);
+        return jaxbContext;
+    }
+
+    /**
+     * Sends the messages of the current batch one after the other over the
+     * connection of the audit logger. Only one sender task is active at a
+     * time; its state is kept between tasks, so a batch interrupted by a
+     * scheduled retry is resumed with the failed message.
+     */
+    private final class Sender implements Runnable {
+
+        private final List<Pending> batch = new ArrayList<Pending>(BATCH_SIZE);
+        private int next;
+        private long spoolRetryTime;
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    if (stopped) {
+                        spoolUnsent();
+                        senderIdle();
+                        return;
+                    }
+                    if (next == batch.size()) {
+                        batch.clear();
+                        next = 0;
+                        nextBatch();
+                        if (batch.isEmpty()) {
+                            long delay = spoolRetryTime - System.currentTimeMillis();
+                            if (delay > 0 && scheduleRetry(delay) || senderIdle())
+                                return;
+                        }
+                        continue;
+                    }
+                    Pending pending = batch.get(next);
+                    if (write(pending)) {
+                        next++;
+                        continue;
+                    }
+                    ArchiveDeviceExtension arcDev = arcDev();
+                    int retryInterval = arcDev != null
+                            ? Math.max(1, arcDev.getAuditRetryInterval())
+                            : 60;
+                    int maxRetries = arcDev != null
+                            ? arcDev.getAuditMaxRetries()
+                            : 3;
+                    if (++pending.failures <= maxRetries) {
+                        retries.incrementAndGet();
+                        LOG.info("Retry to write audit log message in {}s", retryInterval);
+                        if (scheduleRetry(retryInterval * 1000L))
+                            return;
+                    }
+                    giveUp(pending, retryInterval);
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected exception sending audit messages:", e);
+                senderIdle();
+            }
+        }
+
+        private boolean write(Pending pending) {
+            try {
+                pending.logger.write(pending.timeStamp, pending.msg);
+            } catch (Exception e) {
+                LOG.warn("Failed to write audit log message: {}", e.getMessage());
+                LOG.debug(e.getMessage(), e);
+                return false;
+            }
+            if (pending.spoolFile != null)
+                try {
+                    Files.deleteIfExists(pending.spoolFile);
+                } catch (IOException e) {
+                    LOG.warn("Failed to delete spooled audit message {}:",
+                            pending.spoolFile, e);
+                }
+            sent.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Spools or drops a failed message from the queue. Keeps the rest of
+         * a batch of spooled messages in the spool directory, and loads them
+         * again not before {@code retryInterval}.
+         */
+        private void giveUp(Pending pending, int retryInterval) {
+            if (pending.spoolFile != null) {
+                LOG.warn("Failed to write spooled audit message {} {} times - retry in {}s",
+                        pending.spoolFile, pending.failures, retryInterval);
+                spoolRetryTime = System.currentTimeMillis() + retryInterval * 1000L;
+                next = batch.size();
+                return;
+            }
+            spoolAll(Collections.singletonList(pending),
+                    "Failed to write audit log message " + pending.failures
+                    + " times");
+            next++;
+        }
+
+        private void nextBatch() {
+            queue().drainTo(batch, BATCH_SIZE);
+            if (batch.isEmpty()
+                    && spoolRetryTime <= System.currentTimeMillis()) {
+                spoolRetryTime = 0;
+                loadSpooled(batch);
+            }
+        }
+
+        void spoolUnsent() {
+            spoolAll(batch.subList(next, batch.size()), "Audit sender stopped");
+            batch.clear();
+            next = 0;
+        }
+    }
+
+    private void loadSpooled(List<Pending> batch) {
+        Path dir = spoolDirectory();
+        if (dir == null || !Files.isDirectory(dir))
+            return;
+
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds =
+                Files.newDirectoryStream(dir, "*" + SPOOL_FILE_EXT)) {
+            for (Path file : ds)
+                files.add(file);
+        } catch (IOException e) {
+            LOG.warn("Failed to list spooled audit messages in {}:", dir, e);
+            return;
+        }
+        if (files.isEmpty())
+            return;
+
+        // spooled messages are sent by the logger of the last queued message
+        AuditLogger logger = spoolLogger;
+        if (logger == null)
+            logger = device.getDeviceExtension(AuditLogger.class);
+        if (logger == null || !logger.isInstalled())
+            return;
+
+        Collections.sort(files);
+        Unmarshaller unmarshaller;
+        try {
+            unmarshaller = jaxbContext().createUnmarshaller();
+        } catch (JAXBException e) {
+            LOG.warn("Failed to load spooled audit messages:", e);
+            return;
+        }
+        for (Path file : files.subList(0, Math.min(files.size(), BATCH_SIZE))) {
+            try {
+                AuditMessage msg = unmarshaller
+                        .unmarshal(new StreamSource(file.toFile()),
+                                AuditMessage.class).getValue();
+                batch.add(new Pending(logger, timeStampOf(file), msg, file));
+            } catch (JAXBException e) {
+                LOG.warn("Failed to read spooled audit message {} - delete it:",
+                        file, e);
+                file.toFile().delete();
+            }
+        }
+    }
+
+    private static Calendar timeStampOf(Path file) {
+        Calendar cal = Calendar.getInstance();
+        String name = file.getFileName().toString();
+        try {
+            cal.setTimeInMillis(Long.parseLong(name.substring(0, name.indexOf('-'))));
+        } catch (RuntimeException e) {
+            cal.setTimeInMillis(file.toFile().lastModified());
+        }
+        return cal;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        BlockingQueue<Pending> q;
+        synchronized (this) {
+            stopped = true;
+            if (retry != null && retry.cancel(false)) {
+                retry = null;
+                senderActive = false;
+            }
+            long end = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+            long remaining;
+            while (senderActive
+                    && (remaining = end - System.currentTimeMillis()) > 0)
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            if (senderActive)
+                LOG.warn("Audit sender still active on shutdown");
+            else
+                sender.spoolUnsent();
+            q = queue;
+        }
+        if (q != null) {
+            List<Pending> pending = new ArrayList<Pending>(q.size());
+            q.drainTo(pending);
+            spoolAll(pending, "Audit pipeline stopped");
+        }
+        LOG.info("Stopped {}", this);
+    }
+
+    /**
+     * Returns the number of messages accepted for asynchronous sending.
+     */
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the number of messages spooled to disk, because the queue was
+     * full.
+     */
+    public long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * Returns the number of messages dropped, because the queue was full or
+     * they failed to be sent {@link ArchiveDeviceExtension#getAuditMaxRetries()}
+     * times, and they could not be spooled.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of scheduled retries to send a failed message.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public int getQueueSize() {
+        BlockingQueue<Pending> q = queue();
+        return q != null ? q.size() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditPipeline[queued=" + getQueueSize()
+                + ", enqueued=" + getEnqueued()
+                + ", sent=" + getSent()
+                + ", spooled=" + getSpooled()
+                + ", dropped=" + getDropped()
+                + ", retries=" + getRetries()
+                + "]";
+    }
+}
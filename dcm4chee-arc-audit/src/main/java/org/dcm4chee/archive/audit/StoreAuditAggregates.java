@@ -0,0 +1,175 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.audit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.archive.audit.message.StoreAuditAggregate;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.dto.Participant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store audit aggregates of one Store Session with one event outcome, per
+ * study. To audit long lasting associations before they are closed, the
+ * aggregate of a study is sent once it reaches
+ * {@link ArchiveDeviceExtension#getAuditStoreMaxInstances()} objects, or by
+ * a timer on the device scheduled executor
+ * {@link ArchiveDeviceExtension#getAuditStoreMaxAge()} seconds after its
+ * first object, even if no further object is received. Remaining aggregates
+ * are sent by {@link #flushAll()} when the Store Session is closed.
+ */
+class StoreAuditAggregates {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StoreAuditAggregates.class);
+
+    private final Device device;
+    private final AuditLogger logger;
+    private final AuditPipeline auditPipeline;
+    private final String eventOutcomeIndicator;
+
+    // guarded by this
+    private final HashMap<String, StoreAuditAggregate> aggregates =
+            new HashMap<String, StoreAuditAggregate>();
+
+    StoreAuditAggregates(Device device, AuditLogger logger,
+            AuditPipeline auditPipeline, String eventOutcomeIndicator) {
+        this.device = device;
+        this.logger = logger;
+        this.auditPipeline = auditPipeline;
+        this.eventOutcomeIndicator = eventOutcomeIndicator;
+    }
+
+    void add(String remoteAET, Participant source, Attributes attrs) {
+        String studyIUID = attrs.getString(Tag.StudyInstanceUID);
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        int maxInstances = arcDev != null ? arcDev.getAuditStoreMaxInstances() : 0;
+        int maxAge = arcDev != null ? arcDev.getAuditStoreMaxAge() : 0;
+        StoreAuditAggregate flush = null;
+        synchronized (this) {
+            StoreAuditAggregate aggregate = aggregates.get(studyIUID);
+            if (aggregate == null) {
+                aggregate = new StoreAuditAggregate(remoteAET, source, attrs,
+                        eventOutcomeIndicator, logger.isIncludeInstanceUID(),
+                        logger.timeStamp());
+                aggregates.put(studyIUID, aggregate);
+                if (maxAge > 0)
+                    aggregate.setFlushTask(
+                            scheduleFlush(studyIUID, aggregate, maxAge));
+            } else
+                aggregate.addInstance(attrs);
+
+            if (maxInstances > 0
+                    && aggregate.getNumberOfInstances() >= maxInstances) {
+                aggregates.remove(studyIUID);
+                aggregate.cancelFlushTask();
+                flush = aggregate;
+            }
+        }
+        if (flush != null)
+            send(flush);
+    }
+
+    private ScheduledFuture<?> scheduleFlush(final String studyIUID,
+            final StoreAuditAggregate aggregate, int maxAge) {
+        try {
+            return device.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(studyIUID, aggregate);
+                }
+            }, maxAge, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            // sent by flushAll() or after maxInstances
+            LOG.warn("Failed to schedule store audit of study {}:",
+                    studyIUID, e);
+            return null;
+        }
+    }
+
+    private void flush(String studyIUID, StoreAuditAggregate aggregate) {
+        synchronized (this) {
+            if (aggregates.get(studyIUID) != aggregate)
+                return;
+
+            aggregates.remove(studyIUID);
+        }
+        try {
+            send(aggregate);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to send store audit of study {}:", studyIUID, e);
+        }
+    }
+
+    /**
+     * Sends all remaining aggregates and cancels their timers.
+     */
+    void flushAll() {
+        List<StoreAuditAggregate> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<StoreAuditAggregate>(aggregates.values());
+            aggregates.clear();
+        }
+        for (StoreAuditAggregate aggregate : remaining) {
+            aggregate.cancelFlushTask();
+            send(aggregate);
+        }
+    }
+
+    synchronized int size() {
+        return aggregates.size();
+    }
+
+    private void send(StoreAuditAggregate aggregate) {
+        if (logger.isInstalled())
+            auditPipeline.send(aggregate.createAuditMessage(logger), logger);
+    }
+}
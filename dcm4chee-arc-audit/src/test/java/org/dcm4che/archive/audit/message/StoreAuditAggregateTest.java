@@ -0,0 +1,150 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.archive.audit.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.List;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.audit.AuditMessages.EventOutcomeIndicator;
+import org.dcm4che3.audit.ParticipantObjectIdentification;
+import org.dcm4che3.audit.SOPClass;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.archive.event.LocalSource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreAuditAggregateTest {
+
+    private static final String STUDY_IUID = "1.2.3";
+
+    private AuditLogger logger;
+
+    @Before
+    public void setUp() {
+        logger = new AuditLogger();
+        new Device("test").addDeviceExtension(logger);
+    }
+
+    @Test
+    public void testKeepsEventDateTimeOfFirstObject() {
+        Calendar first = logger.timeStamp();
+        first.add(Calendar.MINUTE, -5);
+        StoreAuditAggregate aggregate = aggregate(false, first);
+        aggregate.addInstance(instance(UID.CTImageStorage, "1.2.3.1.2"));
+
+        AuditMessage msg = aggregate.createAuditMessage(logger);
+        assertSame(first, aggregate.getEventDateTime());
+        assertEquals(first.getTimeInMillis(), msg.getEventIdentification()
+                .getEventDateTime().getTimeInMillis());
+    }
+
+    @Test
+    public void testCountsInstancesPerSOPClass() {
+        StoreAuditAggregate aggregate = aggregate(false, logger.timeStamp());
+        aggregate.addInstance(instance(UID.CTImageStorage, "1.2.3.1.2"));
+        aggregate.addInstance(instance(UID.MRImageStorage, "1.2.3.1.3"));
+        assertEquals(3, aggregate.getNumberOfInstances());
+
+        List<SOPClass> sopClasses = sopClassesOf(
+                aggregate.createAuditMessage(logger));
+        assertEquals(2, sopClasses.size());
+        assertEquals(UID.CTImageStorage, sopClasses.get(0).getUID());
+        assertEquals(Integer.valueOf(2), sopClasses.get(0).getNumberOfInstances());
+        assertTrue(sopClasses.get(0).getInstance().isEmpty());
+        assertEquals(Integer.valueOf(1), sopClasses.get(1).getNumberOfInstances());
+    }
+
+    @Test
+    public void testIncludesInstanceUIDs() {
+        StoreAuditAggregate aggregate = aggregate(true, logger.timeStamp());
+        aggregate.addInstance(instance(UID.CTImageStorage, "1.2.3.1.2"));
+
+        SOPClass sopClass = sopClassesOf(
+                aggregate.createAuditMessage(logger)).get(0);
+        assertEquals(2, sopClass.getInstance().size());
+        assertEquals("1.2.3.1.1", sopClass.getInstance().get(0).getUID());
+        assertEquals("1.2.3.1.2", sopClass.getInstance().get(1).getUID());
+    }
+
+    @Test
+    public void testPatientIDWithIssuer() {
+        StoreAuditAggregate aggregate = aggregate(false, logger.timeStamp());
+        assertEquals(STUDY_IUID, aggregate.getStudyInstanceUID());
+        assertEquals("PID1^^^DCM4CHEE", aggregate.getPatientID());
+
+        List<ParticipantObjectIdentification> pois =
+                aggregate.createAuditMessage(logger)
+                        .getParticipantObjectIdentification();
+        assertEquals(STUDY_IUID, pois.get(0).getParticipantObjectID());
+        assertEquals("PID1^^^DCM4CHEE", pois.get(1).getParticipantObjectID());
+    }
+
+    private StoreAuditAggregate aggregate(boolean includeInstanceUID,
+            Calendar eventDateTime) {
+        Attributes attrs = instance(UID.CTImageStorage, "1.2.3.1.1");
+        attrs.setString(Tag.PatientID, VR.LO, "PID1");
+        attrs.setString(Tag.IssuerOfPatientID, VR.LO, "DCM4CHEE");
+        return new StoreAuditAggregate("STORESCU", new LocalSource(), attrs,
+                EventOutcomeIndicator.Success, includeInstanceUID,
+                eventDateTime);
+    }
+
+    private static Attributes instance(String cuid, String iuid) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_IUID);
+        attrs.setString(Tag.SOPClassUID, VR.UI, cuid);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        return attrs;
+    }
+
+    private static List<SOPClass> sopClassesOf(AuditMessage msg) {
+        return msg.getParticipantObjectIdentification().get(0)
+                .getParticipantObjectDescription().getSOPClass();
+    }
+}
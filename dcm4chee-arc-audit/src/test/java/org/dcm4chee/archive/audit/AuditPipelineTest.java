@@ -0,0 +1,311 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.audit.AuditMessages;
+import org.dcm4che3.audit.AuditMessages.EventActionCode;
+import org.dcm4che3.audit.AuditMessages.EventID;
+import org.dcm4che3.audit.AuditMessages.EventOutcomeIndicator;
+import org.dcm4che3.audit.AuditMessages.EventTypeCode;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AuditPipelineTest {
+
+    private static final long TIMEOUT = 10000L;
+
+    private Path spoolDir;
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduledExecutor;
+    private ArchiveDeviceExtension arcDev;
+    private TestAuditLogger logger;
+    private AuditPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        spoolDir = Files.createTempDirectory("audit-spool");
+        executor = Executors.newCachedThreadPool();
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setAuditQueueSize(10);
+        arcDev.setAuditRetryInterval(1);
+        arcDev.setAuditMaxRetries(0);
+        logger = new TestAuditLogger();
+        Device device = new Device("test");
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        device.addDeviceExtension(arcDev);
+        device.addDeviceExtension(logger);
+        pipeline = new AuditPipeline();
+        pipeline.device = device;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logger.release();
+        pipeline.shutdown();
+        executor.shutdownNow();
+        scheduledExecutor.shutdownNow();
+        for (Path file : spoolFiles("*"))
+            Files.delete(file);
+        Files.delete(spoolDir);
+    }
+
+    @Test
+    public void testSendsQueuedMessagesInOrder() throws Exception {
+        List<AuditMessage> msgs = send(5);
+        await(Counter.SENT, 5);
+        assertEquals(msgs, logger.written);
+        assertEquals(5, pipeline.getEnqueued());
+        assertEquals(0, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void testSendsSynchronouslyIfQueueSizeIsZero() throws Exception {
+        arcDev.setAuditQueueSize(0);
+        List<AuditMessage> msgs = send(2);
+        assertEquals(msgs, logger.written);
+        assertEquals(0, pipeline.getEnqueued());
+        assertEquals(2, pipeline.getSent());
+    }
+
+    @Test
+    public void testRetriesFailedMessage() throws Exception {
+        arcDev.setAuditMaxRetries(2);
+        logger.failures.set(2);
+        List<AuditMessage> msgs = send(1);
+        await(Counter.SENT, 1);
+        assertEquals(msgs, logger.written);
+        assertEquals(2, pipeline.getRetries());
+        assertEquals(0, pipeline.getDropped());
+    }
+
+    @Test
+    public void testDropsAfterMaxRetriesWithoutSpoolDirectory()
+            throws Exception {
+        arcDev.setAuditMaxRetries(1);
+        logger.failures.set(Integer.MAX_VALUE);
+        send(2);
+        await(Counter.DROPPED, 2);
+        assertEquals(2, pipeline.getRetries());
+        assertEquals(0, pipeline.getSent());
+
+        logger.failures.set(0);
+        List<AuditMessage> msgs = send(1);
+        await(Counter.SENT, 1);
+        assertEquals(msgs, logger.written);
+    }
+
+    @Test
+    public void testSpoolsAfterMaxRetriesAndSendsSpooledLater()
+            throws Exception {
+        arcDev.setAuditSpoolDirectory(spoolDir.toString());
+        logger.failures.set(Integer.MAX_VALUE);
+        send(1);
+        await(Counter.SPOOLED, 1);
+        assertEquals(1, spoolFiles("*" + AuditPipeline.SPOOL_FILE_EXT).size());
+        assertEquals(0, pipeline.getDropped());
+
+        logger.failures.set(0);
+        send(1);
+        await(Counter.SENT, 2);
+        assertTrue(spoolFiles("*").isEmpty());
+    }
+
+    @Test
+    public void testDropsIfQueueFullWithoutSpoolDirectory() throws Exception {
+        arcDev.setAuditQueueSize(1);
+        logger.block();
+        send(1);
+        logger.awaitBlocked();
+        send(2);
+        assertEquals(1, pipeline.getDropped());
+        assertEquals(1, pipeline.getQueueSize());
+
+        logger.release();
+        await(Counter.SENT, 2);
+    }
+
+    @Test
+    public void testSpoolsIfQueueFull() throws Exception {
+        arcDev.setAuditSpoolDirectory(spoolDir.toString());
+        arcDev.setAuditQueueSize(1);
+        logger.block();
+        send(1);
+        logger.awaitBlocked();
+        send(3);
+        assertEquals(2, pipeline.getSpooled());
+        assertEquals(2, spoolFiles("*" + AuditPipeline.SPOOL_FILE_EXT).size());
+
+        logger.release();
+        await(Counter.SENT, 4);
+        assertTrue(spoolFiles("*").isEmpty());
+        assertEquals(0, pipeline.getDropped());
+    }
+
+    @Test
+    public void testShutdownSpoolsPendingMessages() throws Exception {
+        arcDev.setAuditSpoolDirectory(spoolDir.toString());
+        arcDev.setAuditRetryInterval(60);
+        arcDev.setAuditMaxRetries(3);
+        logger.failures.set(Integer.MAX_VALUE);
+        send(1);
+        await(Counter.RETRIES, 1);
+        send(2);
+        pipeline.shutdown();
+        assertEquals(3, pipeline.getSpooled());
+        assertEquals(3, spoolFiles("*" + AuditPipeline.SPOOL_FILE_EXT).size());
+        assertEquals(0, pipeline.getDropped());
+    }
+
+    private List<AuditMessage> send(int n) {
+        List<AuditMessage> msgs = new ArrayList<AuditMessage>(n);
+        for (int i = 0; i < n; i++) {
+            AuditMessage msg = new AuditMessage();
+            msg.setEventIdentification(AuditMessages.createEventIdentification(
+                    EventID.SecurityAlert, EventActionCode.Execute,
+                    logger.timeStamp(), EventOutcomeIndicator.Success, null,
+                    EventTypeCode.NodeAuthentication));
+            pipeline.send(msg, logger);
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+
+    private void await(Counter counter, long expected)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (counter.of(pipeline) < expected) {
+            if (System.currentTimeMillis() > end)
+                fail(counter + "=" + counter.of(pipeline) + ", expected "
+                        + expected);
+            Thread.sleep(10);
+        }
+    }
+
+    private List<Path> spoolFiles(String glob) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(spoolDir, glob)) {
+            for (Path file : ds)
+                files.add(file);
+        }
+        return files;
+    }
+
+    private enum Counter {
+        SENT, SPOOLED, DROPPED, RETRIES;
+
+        long of(AuditPipeline pipeline) {
+            switch (this) {
+            case SENT:
+                return pipeline.getSent();
+            case SPOOLED:
+                return pipeline.getSpooled();
+            case DROPPED:
+                return pipeline.getDropped();
+            default:
+                return pipeline.getRetries();
+            }
+        }
+    }
+
+    private static class TestAuditLogger extends AuditLogger {
+
+        final List<AuditMessage> written =
+                Collections.synchronizedList(new ArrayList<AuditMessage>());
+        final AtomicInteger failures = new AtomicInteger();
+        private volatile CountDownLatch gate;
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        void block() {
+            gate = new CountDownLatch(1);
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void release() {
+            CountDownLatch g = gate;
+            if (g != null)
+                g.countDown();
+        }
+
+        @Override
+        public void write(Calendar timeStamp, AuditMessage message)
+                throws IOException {
+            CountDownLatch g = gate;
+            if (g != null) {
+                blocked.countDown();
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (failures.getAndDecrement() > 0)
+                throw new IOException("Audit Record Repository unavailable");
+            written.add(message);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.audit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.audit.AuditMessages.EventOutcomeIndicator;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.event.LocalSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreAuditAggregatesTest {
+
+    private static final long TIMEOUT = 10000L;
+
+    private ScheduledExecutorService scheduledExecutor;
+    private ArchiveDeviceExtension arcDev;
+    private AuditLogger logger;
+    private final List<AuditMessage> sent =
+            Collections.synchronizedList(new ArrayList<AuditMessage>());
+    private StoreAuditAggregates audits;
+
+    @Before
+    public void setUp() {
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setAuditStoreMaxInstances(0);
+        arcDev.setAuditStoreMaxAge(0);
+        logger = new AuditLogger();
+        Device device = new Device("test");
+        device.setScheduledExecutor(scheduledExecutor);
+        device.addDeviceExtension(arcDev);
+        device.addDeviceExtension(logger);
+        AuditPipeline pipeline = new AuditPipeline() {
+            @Override
+            public void send(AuditMessage msg, AuditLogger logger) {
+                sent.add(msg);
+            }
+        };
+        audits = new StoreAuditAggregates(device, logger, pipeline,
+                EventOutcomeIndicator.Success);
+    }
+
+    @After
+    public void tearDown() {
+        scheduledExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testFlushesAllOnClose() {
+        add("1.2.3", 3);
+        add("1.2.4", 2);
+        assertTrue(sent.isEmpty());
+        assertEquals(2, audits.size());
+
+        audits.flushAll();
+        assertEquals(2, sent.size());
+        assertEquals(0, audits.size());
+    }
+
+    @Test
+    public void testFlushesStudyAfterMaxInstances() {
+        arcDev.setAuditStoreMaxInstances(3);
+        add("1.2.3", 2);
+        add("1.2.4", 1);
+        assertTrue(sent.isEmpty());
+
+        add("1.2.3", 1);
+        assertEquals(1, sent.size());
+        assertEquals(1, audits.size());
+
+        add("1.2.3", 1);
+        audits.flushAll();
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void testFlushesOnTimerWithoutFurtherObjects() throws Exception {
+        arcDev.setAuditStoreMaxAge(1);
+        long first = System.currentTimeMillis();
+        add("1.2.3", 2);
+        awaitSent(1);
+        assertEquals(0, audits.size());
+        long eventDateTime = sent.get(0).getEventIdentification()
+                .getEventDateTime().getTimeInMillis();
+        assertTrue(eventDateTime - first < 1000L);
+
+        add("1.2.3", 1);
+        assertEquals(1, audits.size());
+    }
+
+    @Test
+    public void testCancelsTimerOnFlush() throws Exception {
+        arcDev.setAuditStoreMaxAge(1);
+        arcDev.setAuditStoreMaxInstances(2);
+        add("1.2.3", 2);
+        add("1.2.4", 1);
+        audits.flushAll();
+        assertEquals(2, sent.size());
+
+        Thread.sleep(1500L);
+        assertEquals(2, sent.size());
+    }
+
+    private void add(String studyIUID, int n) {
+        for (int i = 0; i < n; i++) {
+            Attributes attrs = new Attributes();
+            attrs.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+            attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+            attrs.setString(Tag.SOPInstanceUID, VR.UI,
+                    studyIUID + "." + System.nanoTime());
+            attrs.setString(Tag.PatientID, VR.LO, "PID1");
+            audits.add("STORESCU", new LocalSource(), attrs);
+        }
+    }
+
+    private void awaitSent(int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (sent.size() < expected) {
+            if (System.currentTimeMillis() > end)
+                fail("sent=" + sent.size() + ", expected " + expected);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.code.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+import org.dcm4chee.archive.entity.Code;
+
+/**
+ * Caches committed codes by code value, coding scheme designator and
+ * version. Codes are never modified or deleted once committed, so the
+ * cached primary keys stay valid on all archive nodes; codes created by
+ * other nodes are just looked up on the first miss.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CodeCache {
+
+    static final int MAX_SIZE = 10000;
+
+    private final LinkedHashMap<String, Code> codes =
+            new LinkedHashMap<String, Code>(256, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Code> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    static String keyOf(org.dcm4che3.data.Code code) {
+        return code.getCodeValue() + '|' + code.getCodingSchemeDesignator()
+                + '|' + code.getCodingSchemeVersion();
+    }
+
+    /**
+     * Returns a detached copy of the cached code or {@code null}.
+     */
+    public Code get(org.dcm4che3.data.Code code) {
+        Code cached;
+        synchronized (codes) {
+            cached = codes.get(keyOf(code));
+        }
+        return cached != null ? new Code(cached.getPk(), cached) : null;
+    }
+
+    public void put(Code code) {
+        Code copy = new Code(code.getPk(), code);
+        synchronized (codes) {
+            codes.put(keyOf(copy), copy);
+        }
+    }
+
+    public void clear() {
+        synchronized (codes) {
+            codes.clear();
+        }
+    }
+}
@@ -38,11 +38,16 @@
 
 package org.dcm4chee.archive.code.impl;
 
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4chee.archive.code.CodeService;
 import org.dcm4chee.archive.entity.Code;
@@ -55,23 +60,72 @@ import org.dcm4chee.archive.entity.Code;
 public class CodeServiceEJB implements CodeService {
 
     @PersistenceContext(unitName="dcm4chee-arc")
-    private EntityManager em;
+    EntityManager em;
+
+    @Resource
+    TransactionSynchronizationRegistry tsr;
+
+    @EJB
+    CodeCache cache;
+
+    @EJB
+    CodeCreatorEJB creator;
 
     @Override
     public Code findOrCreate(org.dcm4che3.data.Code code) {
         if (code == null)
             return null;
+
+        Code cached = cache.get(code);
+        if (cached != null)
+            return cached;
+
+        Code found = find(em, code);
+        if (found != null) {
+            cacheAfterCommit(found);
+            return found;
+        }
+
         try {
-            return find(code);
-        } catch (NoResultException e) {
-            if (!(code instanceof Code))
-                code = new Code(code);
-            em.persist(code);
-            return (Code) code;
+            found = creator.create(code);
+        } catch (EJBException e) {
+            // inserted by a concurrent transaction in the meantime
+            found = creator.find(code);
+            if (found == null)
+                throw e;
         }
+        cache.put(found);
+        return found;
+    }
+
+    /**
+     * Caches a code found by the transaction of the caller only after it
+     * committed, so a code persisted - e.g. by cascade - by a transaction
+     * which is rolled back is never cached. Codes inserted by
+     * {@link CodeCreatorEJB} are already committed and cached at once.
+     */
+    private void cacheAfterCommit(final Code code) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.put(code);
+            }
+        });
     }
 
-    private Code find(org.dcm4che3.data.Code code) {
+    /**
+     * Returns the code with the lowest primary key, if concurrent
+     * transactions - possibly on different archive nodes - created it
+     * more than once. The unique code index does not prevent that for codes
+     * without Coding Scheme Version on most databases.
+     */
+    static Code find(EntityManager em, org.dcm4che3.data.Code code) {
         String codingSchemeVersion = code.getCodingSchemeVersion();
         TypedQuery<Code> query = em.createNamedQuery(
                 codingSchemeVersion == null
@@ -82,7 +136,11 @@ public class CodeServiceEJB implements CodeService {
                 .setParameter(2, code.getCodingSchemeDesignator());
         if (codingSchemeVersion != null)
             query.setParameter(3, codingSchemeVersion);
-        return query.getSingleResult();
+        Code found = null;
+        for (Code result : query.getResultList())
+            if (found == null || result.getPk() < found.getPk())
+                found = result;
+        return found;
     }
 
 }
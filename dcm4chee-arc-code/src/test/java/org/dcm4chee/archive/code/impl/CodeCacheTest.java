@@ -0,0 +1,98 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.code.impl;
+
+import static org.junit.Assert.*;
+
+import org.dcm4chee.archive.entity.Code;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CodeCacheTest {
+
+    private CodeCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new CodeCache();
+    }
+
+    private static Code code(long pk, String value) {
+        return new Code(pk, new org.dcm4che3.data.Code(value, "DCM", null, "Meaning"));
+    }
+
+    @Test
+    public void testGetReturnsDetachedCopy() {
+        Code code = code(7, "113001");
+        cache.put(code);
+        Code cached = cache.get(code);
+        assertNotNull(cached);
+        assertNotSame(code, cached);
+        assertEquals(7, cached.getPk());
+        assertEquals("113001", cached.getCodeValue());
+        assertNotSame(cached, cache.get(code));
+    }
+
+    @Test
+    public void testKeyIncludesCodingSchemeVersion() {
+        cache.put(code(7, "113001"));
+        assertNull(cache.get(new org.dcm4che3.data.Code("113001", "DCM", "01", "Meaning")));
+        assertNull(cache.get(new org.dcm4che3.data.Code("113001", "99DCM", null, "Meaning")));
+        assertNotNull(cache.get(new org.dcm4che3.data.Code("113001", "DCM", null, "Other")));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        for (int i = 0; i < CodeCache.MAX_SIZE; i++)
+            cache.put(code(i, "V" + i));
+        assertNotNull(cache.get(code(0, "V0")));
+        cache.put(code(CodeCache.MAX_SIZE, "V" + CodeCache.MAX_SIZE));
+        assertNotNull(cache.get(code(0, "V0")));
+        assertNull(cache.get(code(1, "V1")));
+        assertNotNull(cache.get(code(CodeCache.MAX_SIZE, "V" + CodeCache.MAX_SIZE)));
+    }
+
+    @Test
+    public void testClear() {
+        Code code = code(7, "113001");
+        cache.put(code);
+        cache.clear();
+        assertNull(cache.get(code));
+    }
+}
@@ -0,0 +1,285 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.code.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJBException;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4chee.archive.entity.Code;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CodeServiceEJBTest {
+
+    private static final org.dcm4che3.data.Code CODE =
+            new org.dcm4che3.data.Code("113001", "DCM", null, "Rejected for Quality Reasons");
+
+    private CodeCache cache;
+    private TestCodeCreator creator;
+
+    @Before
+    public void setUp() {
+        cache = new CodeCache();
+        creator = new TestCodeCreator();
+    }
+
+    private CodeServiceEJB service(EntityManager em,
+            TransactionSynchronizationRegistry tsr) {
+        CodeServiceEJB service = new CodeServiceEJB();
+        service.em = em;
+        service.tsr = tsr;
+        service.cache = cache;
+        service.creator = creator;
+        return service;
+    }
+
+    /**
+     * Returns an entity manager, which query returns the specified codes,
+     * emulating the snapshot visible to the transaction of the caller.
+     */
+    @SuppressWarnings("unchecked")
+    private static EntityManager entityManager(Code... visible) {
+        TypedQuery<Code> query = createNiceMock(TypedQuery.class);
+        expect(query.setParameter(anyInt(), anyObject())).andStubReturn(query);
+        expect(query.getResultList()).andStubReturn(Arrays.asList(visible));
+        EntityManager em = createNiceMock(EntityManager.class);
+        expect(em.createNamedQuery(
+                Code.FIND_BY_CODE_VALUE_WITHOUT_SCHEME_VERSION, Code.class))
+                .andStubReturn(query);
+        replay(query, em);
+        return em;
+    }
+
+    @Test
+    public void testReturnsCachedCodeWithoutQuery() {
+        cache.put(new Code(7, CODE));
+        EntityManager em = createMock(EntityManager.class);
+        replay(em);
+        Code code = service(em, new TestTransactionSynchronizationRegistry())
+                .findOrCreate(CODE);
+        assertEquals(7, code.getPk());
+        assertEquals(0, creator.inserts.get());
+    }
+
+    @Test
+    public void testCachesFoundCodeAfterCommit() {
+        TestTransactionSynchronizationRegistry tsr =
+                new TestTransactionSynchronizationRegistry();
+        Code code = service(entityManager(new Code(3, CODE)), tsr)
+                .findOrCreate(CODE);
+        assertEquals(3, code.getPk());
+        assertNull(cache.get(CODE));
+        tsr.complete(Status.STATUS_COMMITTED);
+        assertEquals(3, cache.get(CODE).getPk());
+    }
+
+    @Test
+    public void testDoesNotCacheFoundCodeOnRollback() {
+        TestTransactionSynchronizationRegistry tsr =
+                new TestTransactionSynchronizationRegistry();
+        service(entityManager(new Code(3, CODE)), tsr).findOrCreate(CODE);
+        tsr.complete(Status.STATUS_ROLLEDBACK);
+        assertNull(cache.get(CODE));
+    }
+
+    @Test
+    public void testReturnsCodeWithLowestPk() {
+        Code code = service(entityManager(new Code(5, CODE), new Code(2, CODE)),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(CODE);
+        assertEquals(2, code.getPk());
+    }
+
+    @Test
+    public void testCachesCreatedCodeAtOnce() {
+        Code code = service(entityManager(),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(CODE);
+        assertEquals(1, creator.inserts.get());
+        assertEquals(code.getPk(), cache.get(CODE).getPk());
+    }
+
+    @Test
+    public void testReselectsCodeInsertedByConcurrentTransaction() {
+        Code concurrent = creator.create(CODE);
+        Code code = service(entityManager(),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(CODE);
+        assertEquals(concurrent.getPk(), code.getPk());
+        assertEquals(1, creator.inserts.get());
+        assertEquals(1, creator.violations.get());
+        assertEquals(concurrent.getPk(), cache.get(CODE).getPk());
+    }
+
+    @Test(expected = EJBException.class)
+    public void testRethrowsIfReselectFindsNothing() {
+        creator.failing = true;
+        service(entityManager(), new TestTransactionSynchronizationRegistry())
+                .findOrCreate(CODE);
+    }
+
+    @Test
+    public void testConcurrentFindOrCreateReturnsSameCode() throws Exception {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Code> results =
+                Collections.synchronizedList(new ArrayList<Code>());
+        final List<Throwable> errors =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final CodeServiceEJB service = service(entityManager(),
+                    new TestTransactionSynchronizationRegistry());
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(service.findOrCreate(CODE));
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join(10000);
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(threads, results.size());
+        assertEquals(1, creator.inserts.get());
+        for (Code code : results)
+            assertEquals(results.get(0).getPk(), code.getPk());
+    }
+
+    /**
+     * Emulates the unique code index by committed codes.
+     */
+    static class TestCodeCreator extends CodeCreatorEJB {
+
+        final ConcurrentMap<String, Code> committed =
+                new ConcurrentHashMap<String, Code>();
+        final AtomicLong nextPk = new AtomicLong(1);
+        final AtomicInteger inserts = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        volatile boolean failing;
+
+        @Override
+        public Code create(org.dcm4che3.data.Code code) {
+            if (failing)
+                throw new EJBException("Database unavailable");
+            Code created = new Code(nextPk.getAndIncrement(), code);
+            if (committed.putIfAbsent(CodeCache.keyOf(code), created) != null) {
+                violations.incrementAndGet();
+                throw new EJBException("Unique constraint violated");
+            }
+            inserts.incrementAndGet();
+            return created;
+        }
+
+        @Override
+        public Code find(org.dcm4che3.data.Code code) {
+            return committed.get(CodeCache.keyOf(code));
+        }
+    }
+
+    static class TestTransactionSynchronizationRegistry
+            implements TransactionSynchronizationRegistry {
+
+        final List<Synchronization> syncs = new ArrayList<Synchronization>();
+
+        void complete(int status) {
+            for (Synchronization sync : syncs)
+                sync.afterCompletion(status);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization sync) {
+            syncs.add(sync);
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return this;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+}
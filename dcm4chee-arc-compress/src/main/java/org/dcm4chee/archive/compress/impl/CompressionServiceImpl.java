@@ -46,16 +46,19 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.imageio.codec.CompressionRule;
-import org.dcm4che3.imageio.codec.Compressor;
 import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Device;
 import org.dcm4che3.util.SafeClose;
 import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.util.BoundedExecutor;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -64,11 +67,20 @@ import org.dcm4chee.archive.compress.CompressionService;
 @ApplicationScoped
 public class CompressionServiceImpl implements CompressionService {
 
+    @Inject
+    private Device device;
+
+    private BoundedExecutor frameExecutor;
+
     @Override
     public void compress(CompressionRule rule, Path src, OutputStream out,
             MessageDigest digest, String tsuid, Attributes attrs)
             throws IOException {
-        Compressor compressor = new Compressor(attrs, tsuid);
+        int threads = attrs.getInt(Tag.NumberOfFrames, 1) > 1
+                ? compressionThreads() : 0;
+        FrameParallelCompressor compressor = new FrameParallelCompressor(
+                attrs, tsuid, threads > 1 ? frameExecutor(threads) : null,
+                threads);
         try {
             if (digest != null) {
                 digest.reset();
@@ -89,4 +101,20 @@ public class CompressionServiceImpl implements CompressionService {
         }
     }
 
+    private int compressionThreads() {
+        ArchiveDeviceExtension arcDev = device != null
+                ? device.getDeviceExtension(ArchiveDeviceExtension.class)
+                : null;
+        return arcDev != null ? arcDev.getCompressionThreads() : 0;
+    }
+
+    private synchronized BoundedExecutor frameExecutor(int threads) {
+        if (frameExecutor == null) {
+            if (device.getExecutor() == null)
+                return null; // compress frames serially
+            frameExecutor = new BoundedExecutor(device.getExecutor(), threads);
+        } else if (frameExecutor.getMaxConcurrent() != threads)
+            frameExecutor.setMaxConcurrent(threads);
+        return frameExecutor;
+    }
 }
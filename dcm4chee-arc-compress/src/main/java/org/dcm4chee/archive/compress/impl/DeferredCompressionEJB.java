@@ -0,0 +1,115 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.compress.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.entity.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Stateless
+public class DeferredCompressionEJB {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(DeferredCompressionEJB.class);
+
+    @PersistenceContext(unitName = "dcm4chee-arc")
+    private EntityManager em;
+
+    public Location findLocation(long pk) {
+        return em.find(Location.class, pk);
+    }
+
+    /**
+     * Returns {@code true} if all Instances referencing the Location with the
+     * specified pk also have a Location in each of the specified Storage
+     * System Groups.
+     */
+    public boolean isArchived(long pk, String[] storageSystemGroupIDs) {
+        if (storageSystemGroupIDs.length == 0)
+            return true;
+
+        Location location = em.find(Location.class, pk);
+        if (location == null)
+            return true;
+
+        for (Instance inst : location.getInstances()) {
+            Set<String> groupIDs = new HashSet<String>();
+            for (Location l : inst.getLocations())
+                groupIDs.add(l.getStorageSystemGroupID());
+            if (!groupIDs.containsAll(Arrays.asList(storageSystemGroupIDs)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the Location with the specified pk by the passed Location of
+     * the compressed object in all Instances referencing it.
+     *
+     * @return {@code false} if the Location was deleted, changed its status
+     *         or is no longer referenced by any Instance meanwhile
+     */
+    public boolean replaceLocation(long pk, Location compressed) {
+        Location location = em.find(Location.class, pk,
+                LockModeType.PESSIMISTIC_WRITE);
+        if (location == null || location.getStatus() != Location.Status.OK
+                || location.getInstances().isEmpty()) {
+            LOG.info("Skip replacement of {} by {}", location, compressed);
+            return false;
+        }
+        em.persist(compressed);
+        for (Instance inst : location.getInstances()) {
+            inst.getLocations().remove(location);
+            inst.getLocations().add(compressed);
+        }
+        LOG.info("Replaced {} by {}", location, compressed);
+        return true;
+    }
+}
@@ -0,0 +1,446 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.compress.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.codec.CompressionRule;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.StringUtils;
+import org.dcm4che3.util.TagUtils;
+import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.compress.DeferredCompressionService;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.ArchivingRule;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.entity.Location;
+import org.dcm4chee.archive.filemgmt.FileMgmt;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.storage.ObjectAlreadyExistsException;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.dcm4chee.storage.service.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses objects stored uncompressed by {@link StoreServiceCompressDecorator}
+ * for AEs configured for deferred compression. The compression of each
+ * stored object is queued on {@code queue/compress} and performed within
+ * the configured time of day window, by at most the configured number of
+ * concurrent compressions, reading the stored objects at most with the
+ * configured rate. Objects matching an Archiving Rule are compressed after
+ * they were archived. Compressions which cannot be performed immediately
+ * are rescheduled, so no MDB thread is blocked waiting.
+ */
+@ApplicationScoped
+public class DeferredCompressionServiceImpl implements DeferredCompressionService {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(DeferredCompressionServiceImpl.class);
+
+    static final long BUSY_RETRY_DELAY = 10000L;
+    static final long NOT_ARCHIVED_RETRY_DELAY = 300000L;
+
+    @Resource(mappedName = "java:/ConnectionFactory")
+    private ConnectionFactory connFactory;
+
+    @Resource(mappedName = "java:/queue/compress")
+    private Queue compressQueue;
+
+    @Inject
+    private Device device;
+
+    @Inject
+    private StorageService storageService;
+
+    @Inject
+    private RetrieveService storageRetrieveService;
+
+    @Inject
+    private CompressionService compressionService;
+
+    @Inject
+    private FileMgmt fileMgmt;
+
+    @Inject
+    private DeferredCompressionEJB ejb;
+
+    private int activeCompressions;
+
+    private long readRateAvailable;
+
+    public void onStoreInstance(@Observes StoreContext context) {
+        StoreAction action = context.getStoreAction();
+        if (action != StoreAction.STORE && action != StoreAction.REPLACE)
+            return;
+
+        String compressionRule =
+                (String) context.getProperty(COMPRESSION_RULE);
+        Location fileRef = context.getFileRef();
+        if (compressionRule == null || fileRef == null)
+            return;
+
+        StoreSession session = context.getStoreSession();
+        scheduleCompression(fileRef.getPk(), session.getLocalAET(),
+                compressionRule, archivingTargets(context), 0);
+    }
+
+    private static String[] archivingTargets(StoreContext context) {
+        StoreSession session = context.getStoreSession();
+        List<ArchivingRule> rules = session.getArchiveAEExtension()
+                .getArchivingRules().findArchivingRule(
+                        session.getSourceDeviceName(),
+                        session.getRemoteAET(),
+                        context.getAttributes());
+        Set<String> groupIDs = new LinkedHashSet<String>();
+        for (ArchivingRule rule : rules)
+            Collections.addAll(groupIDs, rule.getStorageSystemGroupIDs());
+        return groupIDs.toArray(new String[groupIDs.size()]);
+    }
+
+    @Override
+    public void scheduleCompression(long locationPk, String localAET,
+            String compressionRule, String[] archivingTargets, long delay) {
+        try {
+            Connection conn = connFactory.createConnection();
+            try {
+                Session session = conn.createSession(false,
+                        Session.AUTO_ACKNOWLEDGE);
+                MessageProducer producer = session.createProducer(compressQueue);
+                Message msg = session.createMessage();
+                msg.setLongProperty("LocationPk", locationPk);
+                msg.setStringProperty("LocalAET", localAET);
+                msg.setStringProperty("CompressionRule", compressionRule);
+                if (archivingTargets.length > 0)
+                    msg.setStringProperty("ArchivingTargets",
+                            StringUtils.concat(archivingTargets, '\\'));
+                if (delay > 0)
+                    msg.setLongProperty("_HQ_SCHED_DELIVERY",
+                            System.currentTimeMillis() + delay);
+                producer.send(msg);
+            } finally {
+                conn.close();
+            }
+        } catch (JMSException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean compress(long locationPk, String localAET,
+            String compressionRule, String[] archivingTargets)
+            throws IOException {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        long delay = delayUntilTimeWindow(
+                arcDev.getDeferredCompressionTimeWindow(),
+                Calendar.getInstance());
+        if (delay > 0) {
+            LOG.debug("Postpone compression of Location[pk={}] by {} ms",
+                    locationPk, delay);
+            scheduleCompression(locationPk, localAET, compressionRule,
+                    archivingTargets, delay);
+            return false;
+        }
+
+        CompressionRule rule = findCompressionRule(localAET, compressionRule);
+        if (rule == null) {
+            LOG.warn("Skip compression of Location[pk={}] - no Compression Rule {} configured for AE {}",
+                    locationPk, compressionRule, localAET);
+            return false;
+        }
+
+        Location location = ejb.findLocation(locationPk);
+        if (location == null || location.getEntryName() != null
+                || location.isWithoutBulkData()
+                || location.getStatus() != Location.Status.OK
+                || TransferSyntaxType.forUID(location.getTransferSyntaxUID())
+                        != TransferSyntaxType.NATIVE) {
+            LOG.info("Skip compression of {}", location);
+            return false;
+        }
+
+        // archiving reads the uncompressed object, which is deleted after
+        // its compression
+        if (!ejb.isArchived(locationPk, archivingTargets)) {
+            LOG.debug("Postpone compression of {} until archived to {}",
+                    location, Arrays.toString(archivingTargets));
+            scheduleCompression(locationPk, localAET, compressionRule,
+                    archivingTargets, NOT_ARCHIVED_RETRY_DELAY);
+            return false;
+        }
+
+        StorageSystem storageSystem = device
+                .getDeviceExtensionNotNull(StorageDeviceExtension.class)
+                .getStorageSystem(location.getStorageSystemGroupID(),
+                        location.getStorageSystemID());
+        if (!tryAcquireCompression(arcDev.getDeferredCompressionThreads())) {
+            LOG.debug("Postpone compression of {} - {} compressions active",
+                    location, arcDev.getDeferredCompressionThreads());
+            scheduleCompression(locationPk, localAET, compressionRule,
+                    archivingTargets, BUSY_RETRY_DELAY);
+            return false;
+        }
+        try {
+            delay = reserveReadRate(location.getSize(),
+                    arcDev.getDeferredCompressionMaxReadRate(),
+                    System.currentTimeMillis());
+            if (delay > 0) {
+                LOG.debug("Postpone compression of {} by {} ms to limit read rate",
+                        location, delay);
+                scheduleCompression(locationPk, localAET, compressionRule,
+                        archivingTargets, delay);
+                return false;
+            }
+            return compress(location, rule, storageSystem);
+        } finally {
+            releaseCompression();
+        }
+    }
+
+    private boolean compress(Location location, CompressionRule rule,
+            StorageSystem storageSystem) throws IOException {
+        Path src = getFile(storageSystem, location.getStoragePath());
+        Attributes attrs;
+        try (DicomInputStream din = new DicomInputStream(src.toFile())) {
+            din.setIncludeBulkData(IncludeBulkData.URI);
+            attrs = din.readDataset(-1, -1);
+        }
+        if (!(attrs.getValue(Tag.PixelData) instanceof BulkData)) {
+            LOG.info("Skip compression of {} - no Pixel Data", location);
+            return false;
+        }
+
+        MessageDigest digest = messageDigest(storageSystem);
+        StorageContext storageContext =
+                storageService.createStorageContext(storageSystem);
+        String storagePath;
+        OutputStream out;
+        for (int copies = 1;; copies++) {
+            storagePath = location.getStoragePath() + '.' + copies;
+            try {
+                out = storageService.openOutputStream(storageContext,
+                        storagePath);
+                break;
+            } catch (ObjectAlreadyExistsException e) {
+            }
+        }
+        Location compressed;
+        try {
+            try {
+                compressionService.compress(rule, src, out, digest,
+                        location.getTransferSyntaxUID(), attrs);
+            } finally {
+                out.close();
+            }
+            compressed = new Location.Builder()
+                    .storageSystemGroupID(location.getStorageSystemGroupID())
+                    .storageSystemID(location.getStorageSystemID())
+                    .storagePath(storagePath)
+                    .digest(digest != null
+                            ? TagUtils.toHexString(digest.digest())
+                            : null)
+                    .otherAttsDigest(location.getOtherAttsDigest())
+                    .size(storageContext.getFileSize())
+                    .transferSyntaxUID(rule.getTransferSyntax())
+                    .timeZone(location.getTimeZone())
+                    .build();
+            if (!ejb.replaceLocation(location.getPk(), compressed)) {
+                deleteObject(storageContext, storagePath);
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteObject(storageContext, storagePath);
+            throw e;
+        }
+        try {
+            fileMgmt.scheduleDeleteByPks(
+                    Collections.singleton(location.getPk()), 0);
+        } catch (Exception e) {
+            LOG.warn("Failed to schedule deletion of {}", location, e);
+        }
+        return true;
+    }
+
+    private CompressionRule findCompressionRule(String localAET,
+            String commonName) {
+        ApplicationEntity ae = device.getApplicationEntity(localAET);
+        ArchiveAEExtension arcAE = ae != null
+                ? ae.getAEExtension(ArchiveAEExtension.class)
+                : null;
+        if (arcAE != null)
+            for (CompressionRule rule : arcAE.getCompressionRules())
+                if (rule.getCommonName().equals(commonName))
+                    return rule;
+        return null;
+    }
+
+    private Path getFile(StorageSystem storageSystem, String storagePath)
+            throws IOException {
+        RetrieveContext ctx =
+                storageRetrieveService.createRetrieveContext(storageSystem);
+        try {
+            return storageRetrieveService.getFile(ctx, storagePath);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static MessageDigest messageDigest(StorageSystem storageSystem) {
+        String algorithm =
+                storageSystem.getStorageSystemGroup().getDigestAlgorithm();
+        try {
+            return algorithm != null
+                    ? MessageDigest.getInstance(algorithm)
+                    : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void deleteObject(StorageContext storageContext,
+            String storagePath) {
+        try {
+            storageService.deleteObject(storageContext, storagePath);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete compressed file - {}", storagePath, e);
+        }
+    }
+
+    synchronized boolean tryAcquireCompression(int maxCompressions) {
+        if (activeCompressions >= maxCompressions && activeCompressions > 0)
+            return false;
+
+        activeCompressions++;
+        return true;
+    }
+
+    synchronized void releaseCompression() {
+        activeCompressions--;
+    }
+
+    /**
+     * Reserves reading {@code size} bytes with {@code maxReadRate} KB/s, if
+     * the previous reservation has already expired.
+     *
+     * @return 0 if reserved, otherwise the time in ms until the previous
+     *         reservation expires
+     */
+    synchronized long reserveReadRate(long size, int maxReadRate, long now) {
+        if (maxReadRate <= 0)
+            return 0;
+
+        if (readRateAvailable > now)
+            return readRateAvailable - now;
+
+        readRateAvailable = now + size * 1000 / (maxReadRate * 1024L);
+        return 0;
+    }
+
+    static long delayUntilTimeWindow(String timeWindow, Calendar now) {
+        if (timeWindow == null)
+            return 0;
+
+        int start, end;
+        try {
+            String[] ss = timeWindow.split("-");
+            start = minuteOfDay(ss[0]);
+            end = minuteOfDay(ss[1]);
+        } catch (RuntimeException e) {
+            LOG.warn("Ignore invalid time window: {}", timeWindow);
+            return 0;
+        }
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60
+                + now.get(Calendar.MINUTE);
+        if (start <= end
+                ? minute >= start && minute < end
+                : minute >= start || minute < end)
+            return 0;
+
+        int minutes = (start - minute + 1440) % 1440;
+        return minutes * 60000L - now.get(Calendar.SECOND) * 1000L
+                - now.get(Calendar.MILLISECOND);
+    }
+
+    private static int minuteOfDay(String hhmm) {
+        String[] ss = hhmm.trim().split(":");
+        int h = Integer.parseInt(ss[0]);
+        int m = ss.length > 1 ? Integer.parseInt(ss[1]) : 0;
+        if (h < 0 || h > 24 || m < 0 || m > 59)
+            throw new IllegalArgumentException(hhmm);
+        return h * 60 + m;
+    }
+}
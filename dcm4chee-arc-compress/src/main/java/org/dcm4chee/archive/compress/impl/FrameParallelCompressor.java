@@ -0,0 +1,313 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.compress.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.data.Value;
+import org.dcm4che3.image.Overlays;
+import org.dcm4che3.imageio.codec.Compressor;
+import org.dcm4che3.io.DicomEncodingOptions;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.Property;
+import org.dcm4che3.util.SafeClose;
+
+/**
+ * Compresses the frames of multi-frame objects concurrently by tasks
+ * executed by the passed {@link Executor}, each using its own
+ * {@link Compressor} instance. The compressed frames are written in order
+ * by the thread writing the data set; at most {@code 2 * parallelism}
+ * frames are compressed ahead of the writer. Single-frame objects and
+ * objects with overlays embedded in the pixel data are compressed
+ * serially by the writing thread as by {@link Compressor}.
+ */
+public class FrameParallelCompressor implements Closeable {
+
+    private final Attributes dataset;
+    private final String from;
+    private final Executor executor;
+    private final int parallelism;
+    private final Compressor compressor;
+    private final Attributes source;
+    private final ArrayDeque<Worker> idleWorkers = new ArrayDeque<Worker>();
+    private String tsuid;
+    private Property[] params;
+    private FutureTask<byte[]>[] frames;
+    private int submitted;
+    private boolean closed;
+
+    public FrameParallelCompressor(Attributes dataset, String from,
+            Executor executor, int parallelism) {
+        this.dataset = dataset;
+        this.from = from;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.source = isParallel(dataset, executor, parallelism)
+                ? new Attributes(dataset)
+                : null;
+        this.compressor = new Compressor(dataset, from);
+    }
+
+    private static boolean isParallel(Attributes dataset, Executor executor,
+            int parallelism) {
+        return executor != null && parallelism > 1
+                && dataset.getInt(Tag.NumberOfFrames, 1) > 1
+                && Overlays.getEmbeddedOverlayGroupOffsets(dataset).length == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void compress(String tsuid, Property... params) throws IOException {
+        this.tsuid = tsuid;
+        this.params = params;
+        compressor.compress(tsuid, params);
+        if (source == null)
+            return;
+
+        Object pixelData = dataset.getValue(Tag.PixelData);
+        int numberOfFrames = dataset.getInt(Tag.NumberOfFrames, 1);
+        if (!(pixelData instanceof Fragments)
+                || ((Fragments) pixelData).size() != numberOfFrames + 1)
+            return;
+
+        Fragments fragments = (Fragments) pixelData;
+        frames = new FutureTask[numberOfFrames];
+        for (int i = 0; i < numberOfFrames; i++)
+            fragments.set(i + 1, new ParallelFrame(i));
+        for (int i = Math.min(2 * parallelism, numberOfFrames); i > 0; i--)
+            submitNext();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (frames != null)
+            for (FutureTask<byte[]> frame : frames)
+                if (frame != null)
+                    frame.cancel(false);
+        Worker worker;
+        while ((worker = pollIdleWorker()) != null)
+            worker.close();
+        SafeClose.close(compressor);
+    }
+
+    private synchronized Worker pollIdleWorker() {
+        return idleWorkers.poll();
+    }
+
+    private void submitNext() {
+        if (submitted >= frames.length)
+            return;
+
+        final int frameIndex = submitted++;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(
+                new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return compressFrame(frameIndex);
+                    }
+                });
+        frames[frameIndex] = task;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private byte[] compressFrame(int frameIndex) throws IOException {
+        Worker worker = acquireWorker();
+        try {
+            return worker.compressFrame(frameIndex);
+        } finally {
+            releaseWorker(worker);
+        }
+    }
+
+    private Worker acquireWorker() throws IOException {
+        Worker worker;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Compressor closed");
+            worker = idleWorkers.poll();
+        }
+        return worker != null ? worker : new Worker();
+    }
+
+    private void releaseWorker(Worker worker) {
+        synchronized (this) {
+            if (!closed) {
+                idleWorkers.add(worker);
+                return;
+            }
+        }
+        worker.close();
+    }
+
+    private byte[] awaitFrame(int frameIndex) throws IOException {
+        FutureTask<byte[]> task = frames[frameIndex];
+        frames[frameIndex] = null;
+        submitNext();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private class Worker {
+
+        final Compressor compressor;
+        final Fragments fragments;
+
+        Worker() throws IOException {
+            Attributes attrs = new Attributes(source);
+            compressor = new Compressor(attrs, from);
+            boolean initialized = false;
+            try {
+                compressor.compress(tsuid, params);
+                initialized = true;
+            } finally {
+                if (!initialized)
+                    SafeClose.close(compressor);
+            }
+            fragments = (Fragments) attrs.getValue(Tag.PixelData);
+        }
+
+        byte[] compressFrame(int frameIndex) throws IOException {
+            // release the compressed frame after it was encoded
+            Value frame = (Value) fragments.set(frameIndex + 1, null);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DicomOutputStream dout =
+                    new DicomOutputStream(bout, UID.ExplicitVRLittleEndian);
+            frame.writeTo(dout, VR.OB);
+            dout.flush();
+            if ((bout.size() & 1) != 0)
+                bout.write(0);
+            return bout.toByteArray();
+        }
+
+        void close() {
+            SafeClose.close(compressor);
+        }
+    }
+
+    private class ParallelFrame implements Value {
+
+        final int frameIndex;
+        byte[] value;
+        IOException failure;
+        boolean written;
+
+        ParallelFrame(int frameIndex) {
+            this.frameIndex = frameIndex;
+        }
+
+        private byte[] value() throws IOException {
+            if (failure != null)
+                throw failure;
+            if (written)
+                throw new IllegalStateException(
+                        "Frame #" + (frameIndex + 1) + " already written");
+            if (value == null)
+                try {
+                    value = awaitFrame(frameIndex);
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
+            return value;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public byte[] toBytes(VR vr, boolean bigEndian) throws IOException {
+            return value();
+        }
+
+        @Override
+        public void writeTo(DicomOutputStream out, VR vr) throws IOException {
+            out.write(value());
+            // do not keep compressed frames referenced by the data set
+            value = null;
+            written = true;
+        }
+
+        @Override
+        public int calcLength(DicomEncodingOptions encOpts,
+                boolean explicitVR, VR vr) {
+            return getEncodedLength(encOpts, explicitVR, vr);
+        }
+
+        @Override
+        public int getEncodedLength(DicomEncodingOptions encOpts,
+                boolean explicitVR, VR vr) {
+            try {
+                return value().length;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -47,6 +47,7 @@ import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.util.TagUtils;
 import org.dcm4chee.archive.compress.CompressionService;
+import org.dcm4chee.archive.compress.DeferredCompressionService;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.store.StoreContext;
 import org.dcm4chee.archive.store.StoreSession;
@@ -105,6 +106,13 @@ public class StoreServiceCompressDecorator extends DelegatingStoreService {
         else
             LOG.info("Compression rule selected:"+rule.getCommonName());
 
+        if (arcAE.isDeferredCompression()) {
+            // store as received and compress by DeferredCompressionService
+            context.setProperty(DeferredCompressionService.COMPRESSION_RULE,
+                    rule.getCommonName());
+            return false;
+        }
+
         MessageDigest digest = session.getMessageDigest();
         StorageContext storageContext =
                 storageService.createStorageContext(session.getStorageSystem());
@@ -143,6 +151,8 @@ public class StoreServiceCompressDecorator extends DelegatingStoreService {
         context.setStoragePath(storagePath);
         context.setFinalFileSize(storageContext.getFileSize());
         context.setTransferSyntax(rule.getTransferSyntax());
+        // digest of the parsed spool file does not match the stored object
+        context.setNoDBAttsDigest(null);
         if (digest != null) {
             context.setFinalFileDigest(
                     TagUtils.toHexString(digest.digest()));
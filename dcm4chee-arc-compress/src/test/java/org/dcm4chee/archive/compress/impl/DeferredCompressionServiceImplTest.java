@@ -0,0 +1,144 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.compress.impl;
+
+import static org.dcm4chee.archive.compress.impl.DeferredCompressionServiceImpl.delayUntilTimeWindow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class DeferredCompressionServiceImplTest {
+
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Test
+    public void testNoTimeWindow() {
+        assertEquals(0, delayUntilTimeWindow(null, time(12, 0, 0, 0)));
+    }
+
+    @Test
+    public void testWithinTimeWindow() {
+        assertEquals(0, delayUntilTimeWindow("02:00-06:00", time(2, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("02:00-06:00", time(3, 30, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("02:00-06:00", time(5, 59, 59, 999)));
+    }
+
+    @Test
+    public void testBeforeTimeWindow() {
+        assertEquals(30 * MINUTE,
+                delayUntilTimeWindow("02:00-06:00", time(1, 30, 0, 0)));
+        assertEquals(29 * MINUTE + 44500,
+                delayUntilTimeWindow("02:00-06:00", time(1, 30, 15, 500)));
+    }
+
+    @Test
+    public void testAfterTimeWindow() {
+        assertEquals(20 * HOUR,
+                delayUntilTimeWindow("02:00-06:00", time(6, 0, 0, 0)));
+        assertEquals(2 * HOUR + 30 * MINUTE,
+                delayUntilTimeWindow("02:00-06:00", time(23, 30, 0, 0)));
+    }
+
+    @Test
+    public void testTimeWindowOverMidnight() {
+        assertEquals(0, delayUntilTimeWindow("22:00-06:00", time(22, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("22:00-06:00", time(0, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("22:00-06:00", time(5, 59, 0, 0)));
+        assertEquals(16 * HOUR,
+                delayUntilTimeWindow("22:00-06:00", time(6, 0, 0, 0)));
+        assertEquals(MINUTE,
+                delayUntilTimeWindow("22:00-06:00", time(21, 59, 0, 0)));
+    }
+
+    @Test
+    public void testHoursOnly() {
+        assertEquals(0, delayUntilTimeWindow("22-24", time(23, 59, 0, 0)));
+        assertEquals(HOUR, delayUntilTimeWindow("22-24", time(21, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow(" 1 - 3 ", time(2, 0, 0, 0)));
+    }
+
+    @Test
+    public void testInvalidTimeWindowIsIgnored() {
+        assertEquals(0, delayUntilTimeWindow("02:00", time(12, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("02:00-xx", time(12, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("25:00-06:00", time(12, 0, 0, 0)));
+        assertEquals(0, delayUntilTimeWindow("02:60-06:00", time(12, 0, 0, 0)));
+    }
+
+    @Test
+    public void testTryAcquireCompression() {
+        DeferredCompressionServiceImpl service = new DeferredCompressionServiceImpl();
+        assertTrue(service.tryAcquireCompression(2));
+        assertTrue(service.tryAcquireCompression(2));
+        assertFalse(service.tryAcquireCompression(2));
+        service.releaseCompression();
+        assertTrue(service.tryAcquireCompression(2));
+    }
+
+    @Test
+    public void testTryAcquireAtLeastOneCompression() {
+        DeferredCompressionServiceImpl service = new DeferredCompressionServiceImpl();
+        assertTrue(service.tryAcquireCompression(0));
+        assertFalse(service.tryAcquireCompression(0));
+    }
+
+    @Test
+    public void testReserveReadRate() {
+        DeferredCompressionServiceImpl service = new DeferredCompressionServiceImpl();
+        // 2 MB with 1024 KB/s reserves 2 s
+        assertEquals(0, service.reserveReadRate(2 * 1024 * 1024, 1024, 10000L));
+        assertEquals(1500, service.reserveReadRate(1024, 1024, 10500L));
+        assertEquals(0, service.reserveReadRate(1024 * 1024, 1024, 12000L));
+        assertEquals(500, service.reserveReadRate(1024, 1024, 12500L));
+        assertEquals(0, service.reserveReadRate(1024, 0, 12500L));
+    }
+
+    private static Calendar time(int hour, int minute, int second, int millis) {
+        Calendar cal = new GregorianCalendar(2014, Calendar.OCTOBER, 1,
+                hour, minute, second);
+        cal.set(Calendar.MILLISECOND, millis);
+        return cal;
+    }
+}
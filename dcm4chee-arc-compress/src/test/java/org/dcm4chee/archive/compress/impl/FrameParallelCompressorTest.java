@@ -0,0 +1,192 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.compress.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.SafeClose;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameParallelCompressorTest {
+
+    private static final int ROWS = 16;
+    private static final int COLUMNS = 16;
+    private static final int FRAMES = 7;
+    // encoded by the JDK JPEG writer, which does not require native codecs
+    private static final String TSUID = UID.JPEGBaseline1;
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        assertArrayEquals(compress(null, 1), compress(pool, 3));
+    }
+
+    @Test
+    public void testParallelismExceedingFrames() throws Exception {
+        assertArrayEquals(compress(null, 1), compress(pool, FRAMES * 2));
+    }
+
+    @Test
+    public void testRejectedTasksRunInline() throws Exception {
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+        assertArrayEquals(compress(null, 1), compress(rejecting, 3));
+    }
+
+    @Test
+    public void testSubmitsAtMostTwiceParallelismAhead() throws Exception {
+        RecordingExecutor executor = new RecordingExecutor();
+        FrameParallelCompressor compressor = new FrameParallelCompressor(
+                multiframe(FRAMES), UID.ExplicitVRLittleEndian, executor, 2);
+        try {
+            compressor.compress(TSUID);
+            assertEquals(4, executor.tasks.size());
+        } finally {
+            compressor.close();
+        }
+    }
+
+    @Test
+    public void testSingleFrameCompressedSerially() throws Exception {
+        RecordingExecutor executor = new RecordingExecutor();
+        FrameParallelCompressor compressor = new FrameParallelCompressor(
+                multiframe(1), UID.ExplicitVRLittleEndian, executor, 4);
+        try {
+            compressor.compress(TSUID);
+            assertTrue(executor.tasks.isEmpty());
+        } finally {
+            compressor.close();
+        }
+    }
+
+    @Test
+    public void testCloseCancelsPendingFrames() throws Exception {
+        RecordingExecutor executor = new RecordingExecutor();
+        FrameParallelCompressor compressor = new FrameParallelCompressor(
+                multiframe(FRAMES), UID.ExplicitVRLittleEndian, executor, 2);
+        compressor.compress(TSUID);
+        compressor.close();
+        assertEquals(4, executor.tasks.size());
+        for (Runnable task : executor.tasks)
+            assertTrue(((Future<?>) task).isCancelled());
+    }
+
+    private static byte[] compress(Executor executor, int parallelism)
+            throws IOException {
+        Attributes attrs = multiframe(FRAMES);
+        FrameParallelCompressor compressor = new FrameParallelCompressor(
+                attrs, UID.ExplicitVRLittleEndian, executor, parallelism);
+        try {
+            compressor.compress(TSUID);
+            return write(attrs);
+        } finally {
+            SafeClose.close(compressor);
+        }
+    }
+
+    private static byte[] write(Attributes attrs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DicomOutputStream dout = new DicomOutputStream(out,
+                UID.ExplicitVRLittleEndian);
+        dout.writeDataset(null, attrs);
+        dout.flush();
+        return out.toByteArray();
+    }
+
+    private static Attributes multiframe(int frames) {
+        Attributes attrs = new Attributes();
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        attrs.setInt(Tag.Rows, VR.US, ROWS);
+        attrs.setInt(Tag.Columns, VR.US, COLUMNS);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 8);
+        attrs.setInt(Tag.BitsStored, VR.US, 8);
+        attrs.setInt(Tag.HighBit, VR.US, 7);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        byte[] pixels = new byte[frames * ROWS * COLUMNS];
+        for (int i = 0; i < pixels.length; i++)
+            // runs of equal values, different per frame
+            pixels[i] = (byte) ((i / 5) * (i / (ROWS * COLUMNS) + 1));
+        attrs.setBytes(Tag.PixelData, VR.OB, pixels);
+        return attrs;
+    }
+
+    private static class RecordingExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    }
+}
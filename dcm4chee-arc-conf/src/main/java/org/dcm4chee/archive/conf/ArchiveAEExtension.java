@@ -111,6 +111,9 @@ public class ArchiveAEExtension extends AEExtension {
     @ConfigurableProperty(name = "dcmPreserveSpoolFileOnFailure", defaultValue = "false")
     private boolean preserveSpoolFileOnFailure;
 
+    @ConfigurableProperty(name = "dcmStreamingStore", defaultValue = "false")
+    private boolean streamingStore;
+
     @ConfigurableProperty(name = "dcmPersonNameComponentOrderInsensitiveMatching", defaultValue = "false")
     private boolean personNameComponentOrderInsensitiveMatching;
 
@@ -126,6 +129,15 @@ public class ArchiveAEExtension extends AEExtension {
     @ConfigurableProperty(name = "dcmSendPendingCMoveInterval", defaultValue = "0")
     private int sendPendingCMoveInterval;
 
+    @ConfigurableProperty(name = "dcmStoreSCUReadAhead", defaultValue = "0")
+    private int storeSCUReadAhead = 0;
+
+    @ConfigurableProperty(name = "dcmStoreSCUMaxParallelAssociations", defaultValue = "1")
+    private int storeSCUMaxParallelAssociations = 1;
+
+    @ConfigurableProperty(name = "dcmStoreSCUMinObjectsPerAssociation", defaultValue = "100")
+    private int storeSCUMinObjectsPerAssociation = 100;
+
     @ConfigurableProperty(name = "dcmStgCmtDelay", defaultValue = "0")
     private int storageCommitmentDelay;
 
@@ -162,6 +174,9 @@ public class ArchiveAEExtension extends AEExtension {
     @ConfigurableProperty(name = "dcmCompressionRules")
     private CompressionRules compressionRules = new CompressionRules();
 
+    @ConfigurableProperty(name = "dcmDeferredCompression", defaultValue = "false")
+    private boolean deferredCompression;
+
     @ConfigurableProperty(name = "dcmReturnOtherPatientIDs", defaultValue = "false")
     private boolean returnOtherPatientIDs;
 
@@ -177,6 +192,12 @@ public class ArchiveAEExtension extends AEExtension {
     @ConfigurableProperty(name = "dcmQidoMaxNumberOfResults", defaultValue = "0")
     private int QIDOMaxNumberOfResults;
 
+    @ConfigurableProperty(name = "dcmQidoCountCacheTimeout", defaultValue = "60")
+    private int QIDOCountCacheTimeout = 60;
+
+    @ConfigurableProperty(name = "dcmWadoRSFetchSize", defaultValue = "0")
+    private int wadoRSFetchSize = 0;
+
     @ConfigurableProperty(name = "dcmWadoSRTemplateURI")
     private String wadoSRTemplateURI;
 
@@ -286,6 +307,19 @@ public class ArchiveAEExtension extends AEExtension {
         return compressionRules.remove(ac);
     }
 
+    /**
+     * Returns if received objects matching a compression rule are stored
+     * as received and compressed later by a background worker, instead of
+     * being compressed before the C-STORE response is returned.
+     */
+    public boolean isDeferredCompression() {
+        return deferredCompression;
+    }
+
+    public void setDeferredCompression(boolean deferredCompression) {
+        this.deferredCompression = deferredCompression;
+    }
+
     public String getModifyingSystem() {
         return modifyingSystem;
     }
@@ -331,6 +365,14 @@ public class ArchiveAEExtension extends AEExtension {
                 StringUtils.replaceSystemProperties(ac.getURI())) : null;
     }
 
+    public AttributesCoercion getAttributesCoercion(String cuid, Dimse dimse,
+            TransferCapability.Role role, String aet)
+            throws TransformerConfigurationException {
+        AttributeCoercion ac = getAttributeCoercion(cuid, dimse, role, aet);
+        return ac != null ? AttributesCoercionCache.getDefault().get(
+                StringUtils.replaceSystemProperties(ac.getURI())) : null;
+    }
+
     public boolean isSuppressWarningCoercionOfDataElements() {
         return suppressWarningCoercionOfDataElements;
     }
@@ -365,6 +407,14 @@ public class ArchiveAEExtension extends AEExtension {
         this.preserveSpoolFileOnFailure = preserveSpoolFileOnFailure;
     }
 
+    public boolean isStreamingStore() {
+        return streamingStore;
+    }
+
+    public void setStreamingStore(boolean streamingStore) {
+        this.streamingStore = streamingStore;
+    }
+
     public boolean isPersonNameComponentOrderInsensitiveMatching() {
         return personNameComponentOrderInsensitiveMatching;
     }
@@ -406,6 +456,32 @@ public class ArchiveAEExtension extends AEExtension {
         this.sendPendingCMoveInterval = sendPendingCMoveInterval;
     }
 
+    public int getStoreSCUReadAhead() {
+        return storeSCUReadAhead;
+    }
+
+    public void setStoreSCUReadAhead(int storeSCUReadAhead) {
+        this.storeSCUReadAhead = storeSCUReadAhead;
+    }
+
+    public int getStoreSCUMaxParallelAssociations() {
+        return storeSCUMaxParallelAssociations;
+    }
+
+    public void setStoreSCUMaxParallelAssociations(
+            int storeSCUMaxParallelAssociations) {
+        this.storeSCUMaxParallelAssociations = storeSCUMaxParallelAssociations;
+    }
+
+    public int getStoreSCUMinObjectsPerAssociation() {
+        return storeSCUMinObjectsPerAssociation;
+    }
+
+    public void setStoreSCUMinObjectsPerAssociation(
+            int storeSCUMinObjectsPerAssociation) {
+        this.storeSCUMinObjectsPerAssociation = storeSCUMinObjectsPerAssociation;
+    }
+
     public final int getStorageCommitmentDelay() {
         return storageCommitmentDelay;
     }
@@ -525,6 +601,22 @@ public class ArchiveAEExtension extends AEExtension {
         this.QIDOMaxNumberOfResults = qidoMaxNumberOfResults;
     }
 
+    public int getQIDOCountCacheTimeout() {
+        return QIDOCountCacheTimeout;
+    }
+
+    public void setQIDOCountCacheTimeout(int qidoCountCacheTimeout) {
+        this.QIDOCountCacheTimeout = qidoCountCacheTimeout;
+    }
+
+    public int getWadoRSFetchSize() {
+        return wadoRSFetchSize;
+    }
+
+    public void setWadoRSFetchSize(int wadoRSFetchSize) {
+        this.wadoRSFetchSize = wadoRSFetchSize;
+    }
+
     public ArchivingRules getArchivingRules() {
         return archivingRules;
     }
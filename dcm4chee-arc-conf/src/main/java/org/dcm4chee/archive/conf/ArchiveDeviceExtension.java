@@ -94,6 +94,60 @@ public class ArchiveDeviceExtension extends DeviceExtension {
     @ConfigurableProperty(name = "dcmUpdateDbRetries", defaultValue = "1")
     private int updateDbRetries = 1;
 
+    @ConfigurableProperty(name = "dcmUpdateDbGroupCommitSize", defaultValue = "0")
+    private int updateDbGroupCommitSize;
+
+    @ConfigurableProperty(name = "dcmUpdateDbGroupCommitDelay", defaultValue = "20")
+    private int updateDbGroupCommitDelay = 20;
+
+    @ConfigurableProperty(name = "dcmAttributesCacheSize", defaultValue = "1000")
+    private int attributesCacheSize = 1000;
+
+    @ConfigurableProperty(name = "dcmCompressionThreads", defaultValue = "0")
+    private int compressionThreads;
+
+    @ConfigurableProperty(name = "dcmDeferredCompressionThreads", defaultValue = "1")
+    private int deferredCompressionThreads = 1;
+
+    @ConfigurableProperty(name = "dcmDeferredCompressionMaxReadRate", defaultValue = "0")
+    private int deferredCompressionMaxReadRate;
+
+    @ConfigurableProperty(name = "dcmDeferredCompressionTimeWindow")
+    private String deferredCompressionTimeWindow;
+
+    @ConfigurableProperty(name = "dcmWadoRenderedImageCacheDirectory")
+    private String wadoRenderedImageCacheDirectory;
+
+    @ConfigurableProperty(name = "dcmWadoRenderedImageCacheMaxSize", defaultValue = "1024")
+    private int wadoRenderedImageCacheMaxSize = 1024;
+
+    @ConfigurableProperty(name = "dcmStgCmtVerifyThreads", defaultValue = "4")
+    private int stgCmtVerifyThreads = 4;
+
+    @ConfigurableProperty(name = "dcmStgCmtVerifyThreadsPerStorageSystem", defaultValue = "2")
+    private int stgCmtVerifyThreadsPerStorageSystem = 2;
+
+    @ConfigurableProperty(name = "dcmStgCmtVerifiedCacheSize", defaultValue = "10000")
+    private int stgCmtVerifiedCacheSize = 10000;
+
+    @ConfigurableProperty(name = "dcmAuditQueueSize", defaultValue = "1000")
+    private int auditQueueSize = 1000;
+
+    @ConfigurableProperty(name = "dcmAuditSpoolDirectory")
+    private String auditSpoolDirectory;
+
+    @ConfigurableProperty(name = "dcmAuditRetryInterval", defaultValue = "60")
+    private int auditRetryInterval = 60;
+
+    @ConfigurableProperty(name = "dcmAuditMaxRetries", defaultValue = "3")
+    private int auditMaxRetries = 3;
+
+    @ConfigurableProperty(name = "dcmAuditStoreMaxInstances", defaultValue = "1000")
+    private int auditStoreMaxInstances = 1000;
+
+    @ConfigurableProperty(name = "dcmAuditStoreMaxAge", defaultValue = "300")
+    private int auditStoreMaxAge = 300;
+
     @LDAP(
             distinguishingField = "dicomHostName",
             mapValueAttribute = "dicomAETitle",
@@ -130,6 +184,15 @@ public class ArchiveDeviceExtension extends DeviceExtension {
     @ConfigurableProperty(name = "dcmArchivingSchedulerPollInterval", defaultValue = "0")
     private int archivingSchedulerPollInterval;
 
+    @ConfigurableProperty(name = "dcmArchivingSchedulerBatchSize", defaultValue = "100")
+    private int archivingSchedulerBatchSize = 100;
+
+    @ConfigurableProperty(name = "dcmArchivingSchedulerThreads", defaultValue = "4")
+    private int archivingSchedulerThreads = 4;
+
+    @ConfigurableProperty(name = "dcmArchivingSchedulerClaimTimeout", defaultValue = "600")
+    private int archivingSchedulerClaimTimeout = 600;
+
     @ConfigurableProperty(name = "dcmIocmConfig")
     private IOCMConfig iocmConfig;
 
@@ -152,6 +215,27 @@ public class ArchiveDeviceExtension extends DeviceExtension {
     @ConfigurableProperty(name = "dcmFetchAETitle")
     private String fetchAETitle = "DCM4CHEE_FETCH";
 
+    @ConfigurableProperty(name = "dcmFetchThreads", defaultValue = "4")
+    private int fetchThreads = 4;
+
+    @ConfigurableProperty(name = "dcmFetchThreadsPerRemoteAE", defaultValue = "2")
+    private int fetchThreadsPerRemoteAE = 2;
+
+    @ConfigurableProperty(name = "dcmPIXQueryCacheSize", defaultValue = "1000")
+    private int pixQueryCacheSize = 1000;
+
+    @ConfigurableProperty(name = "dcmPIXQueryCacheTTL", defaultValue = "60")
+    private int pixQueryCacheTTL = 60;
+
+    @ConfigurableProperty(name = "dcmPIXQueryCacheNegativeTTL", defaultValue = "10")
+    private int pixQueryCacheNegativeTTL = 10;
+
+    @ConfigurableProperty(name = "dcmPatientCacheSize", defaultValue = "10000")
+    private int patientCacheSize = 10000;
+
+    @ConfigurableProperty(name = "dcmPatientCacheTTL", defaultValue = "60")
+    private int patientCacheTTL = 60;
+
     private transient FuzzyStr fuzzyStr;
     private transient TemplatesCache templatesCache;
 
@@ -224,6 +308,236 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         this.updateDbRetries = updateDbRetries;
     }
 
+    /**
+     * Returns the maximal number of received objects persisted in one
+     * database transaction. Values &lt; 2 disable group commit.
+     */
+    public int getUpdateDbGroupCommitSize() {
+        return updateDbGroupCommitSize;
+    }
+
+    public void setUpdateDbGroupCommitSize(int updateDbGroupCommitSize) {
+        this.updateDbGroupCommitSize = updateDbGroupCommitSize;
+    }
+
+    /**
+     * Returns the maximal time in ms a received object waits for further
+     * objects to be persisted in the same database transaction.
+     */
+    public int getUpdateDbGroupCommitDelay() {
+        return updateDbGroupCommitDelay;
+    }
+
+    public void setUpdateDbGroupCommitDelay(int updateDbGroupCommitDelay) {
+        this.updateDbGroupCommitDelay = updateDbGroupCommitDelay;
+    }
+
+    /**
+     * Returns the maximal number of cached decoded and merged Patient, Study
+     * and Series attributes used by query and retrieve services.
+     * 0 disables the cache.
+     */
+    public int getAttributesCacheSize() {
+        return attributesCacheSize;
+    }
+
+    public void setAttributesCacheSize(int attributesCacheSize) {
+        this.attributesCacheSize = attributesCacheSize;
+    }
+
+    /**
+     * Returns the number of threads shared by all compressions of received
+     * multi-frame objects for compressing their frames concurrently.
+     * Values &lt; 2 compress frames serially by the receiving thread.
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Returns the maximal number of objects compressed concurrently by
+     * deferred compression.
+     */
+    public int getDeferredCompressionThreads() {
+        return deferredCompressionThreads;
+    }
+
+    public void setDeferredCompressionThreads(int deferredCompressionThreads) {
+        this.deferredCompressionThreads = deferredCompressionThreads;
+    }
+
+    /**
+     * Returns the maximal rate in KB/s at which deferred compression reads
+     * stored objects. 0 does not limit the rate.
+     */
+    public int getDeferredCompressionMaxReadRate() {
+        return deferredCompressionMaxReadRate;
+    }
+
+    public void setDeferredCompressionMaxReadRate(
+            int deferredCompressionMaxReadRate) {
+        this.deferredCompressionMaxReadRate = deferredCompressionMaxReadRate;
+    }
+
+    /**
+     * Returns the time of day window in format {@code HH:mm-HH:mm} in which
+     * deferred compression is performed, e.g. {@code 20:00-06:00}. If
+     * {@code null}, deferred compression is performed at any time.
+     */
+    public String getDeferredCompressionTimeWindow() {
+        return deferredCompressionTimeWindow;
+    }
+
+    public void setDeferredCompressionTimeWindow(
+            String deferredCompressionTimeWindow) {
+        this.deferredCompressionTimeWindow = deferredCompressionTimeWindow;
+    }
+
+    /**
+     * Returns the directory in which JPEG, PNG and GIF images rendered by
+     * WADO-URI are cached. If {@code null}, rendered images are not cached.
+     */
+    public String getWadoRenderedImageCacheDirectory() {
+        return wadoRenderedImageCacheDirectory;
+    }
+
+    public void setWadoRenderedImageCacheDirectory(
+            String wadoRenderedImageCacheDirectory) {
+        this.wadoRenderedImageCacheDirectory = wadoRenderedImageCacheDirectory;
+    }
+
+    /**
+     * Returns the maximal size in MB of the cached rendered images. The
+     * least recently used images are evicted, if the size is exceeded.
+     */
+    public int getWadoRenderedImageCacheMaxSize() {
+        return wadoRenderedImageCacheMaxSize;
+    }
+
+    public void setWadoRenderedImageCacheMaxSize(
+            int wadoRenderedImageCacheMaxSize) {
+        this.wadoRenderedImageCacheMaxSize = wadoRenderedImageCacheMaxSize;
+    }
+
+    /**
+     * Returns the maximal number of files whose digests are verified
+     * concurrently on Storage Commitment requests.
+     */
+    public int getStgCmtVerifyThreads() {
+        return stgCmtVerifyThreads;
+    }
+
+    public void setStgCmtVerifyThreads(int stgCmtVerifyThreads) {
+        this.stgCmtVerifyThreads = stgCmtVerifyThreads;
+    }
+
+    /**
+     * Returns the maximal number of files of one Storage System whose
+     * digests are verified concurrently on Storage Commitment requests.
+     */
+    public int getStgCmtVerifyThreadsPerStorageSystem() {
+        return stgCmtVerifyThreadsPerStorageSystem;
+    }
+
+    public void setStgCmtVerifyThreadsPerStorageSystem(
+            int stgCmtVerifyThreadsPerStorageSystem) {
+        this.stgCmtVerifyThreadsPerStorageSystem = stgCmtVerifyThreadsPerStorageSystem;
+    }
+
+    /**
+     * Returns the maximal number of recently verified files, which are not
+     * verified again on subsequent Storage Commitment requests. 0 disables
+     * the cache.
+     */
+    public int getStgCmtVerifiedCacheSize() {
+        return stgCmtVerifiedCacheSize;
+    }
+
+    public void setStgCmtVerifiedCacheSize(int stgCmtVerifiedCacheSize) {
+        this.stgCmtVerifiedCacheSize = stgCmtVerifiedCacheSize;
+    }
+
+    /**
+     * Returns the maximal number of audit messages queued in memory for
+     * sending to the Audit Record Repository. 0 sends audit messages
+     * synchronously.
+     */
+    public int getAuditQueueSize() {
+        return auditQueueSize;
+    }
+
+    public void setAuditQueueSize(int auditQueueSize) {
+        this.auditQueueSize = auditQueueSize;
+    }
+
+    /**
+     * Returns the directory to which audit messages are spooled if the
+     * queue is full. If {@code null}, such audit messages are dropped.
+     */
+    public String getAuditSpoolDirectory() {
+        return auditSpoolDirectory;
+    }
+
+    public void setAuditSpoolDirectory(String auditSpoolDirectory) {
+        this.auditSpoolDirectory = auditSpoolDirectory;
+    }
+
+    /**
+     * Returns the interval in s between attempts to send an audit message
+     * to an unavailable Audit Record Repository.
+     */
+    public int getAuditRetryInterval() {
+        return auditRetryInterval;
+    }
+
+    public void setAuditRetryInterval(int auditRetryInterval) {
+        this.auditRetryInterval = auditRetryInterval;
+    }
+
+    /**
+     * Returns the maximal number of attempts to send an audit message to the
+     * Audit Record Repository, after which the message is spooled, or
+     * dropped if no spool directory is configured.
+     */
+    public int getAuditMaxRetries() {
+        return auditMaxRetries;
+    }
+
+    public void setAuditMaxRetries(int auditMaxRetries) {
+        this.auditMaxRetries = auditMaxRetries;
+    }
+
+    /**
+     * Returns the maximal number of objects of one study received on one
+     * association, after which an Instances Transferred audit message is
+     * emitted before the association is closed. 0 = no limit.
+     */
+    public int getAuditStoreMaxInstances() {
+        return auditStoreMaxInstances;
+    }
+
+    public void setAuditStoreMaxInstances(int auditStoreMaxInstances) {
+        this.auditStoreMaxInstances = auditStoreMaxInstances;
+    }
+
+    /**
+     * Returns the maximal time in s since the first object of one study was
+     * received on one association, after which an Instances Transferred
+     * audit message is emitted before the association is closed.
+     * 0 = no limit.
+     */
+    public int getAuditStoreMaxAge() {
+        return auditStoreMaxAge;
+    }
+
+    public void setAuditStoreMaxAge(int auditStoreMaxAge) {
+        this.auditStoreMaxAge = auditStoreMaxAge;
+    }
+
     public FuzzyStr getFuzzyStr() {
         if (fuzzyStr == null)
             if (fuzzyAlgorithmClass == null)
@@ -292,6 +606,41 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         this.archivingSchedulerPollInterval = archivingPollInterval;
     }
 
+    /**
+     * Returns the maximal number of ready archiving tasks claimed by one
+     * poll of the archiving scheduler.
+     */
+    public int getArchivingSchedulerBatchSize() {
+        return archivingSchedulerBatchSize;
+    }
+
+    public void setArchivingSchedulerBatchSize(int archivingSchedulerBatchSize) {
+        this.archivingSchedulerBatchSize = archivingSchedulerBatchSize;
+    }
+
+    /**
+     * Returns the number of threads processing claimed archiving tasks.
+     */
+    public int getArchivingSchedulerThreads() {
+        return archivingSchedulerThreads;
+    }
+
+    public void setArchivingSchedulerThreads(int archivingSchedulerThreads) {
+        this.archivingSchedulerThreads = archivingSchedulerThreads;
+    }
+
+    /**
+     * Returns the time in s after which an archiving task claimed, but not
+     * processed, by an archive node may be claimed again.
+     */
+    public int getArchivingSchedulerClaimTimeout() {
+        return archivingSchedulerClaimTimeout;
+    }
+
+    public void setArchivingSchedulerClaimTimeout(int archivingSchedulerClaimTimeout) {
+        this.archivingSchedulerClaimTimeout = archivingSchedulerClaimTimeout;
+    }
+
     public int getSyncLocationStatusPollInterval() {
         return syncLocationStatusPollInterval;
     }
@@ -408,6 +757,8 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         storeParam.setFuzzyStr(getFuzzyStr());
         storeParam.setAttributeFilters(attributeFilters);
         storeParam.setDeIdentifyLogs(isDeIdentifyLogs());
+        storeParam.setPatientCacheSize(patientCacheSize);
+        storeParam.setPatientCacheTTL(patientCacheTTL);
         return storeParam;
         
     }
@@ -428,4 +779,87 @@ public class ArchiveDeviceExtension extends DeviceExtension {
         this.fetchAETitle = fetchAETitle;
     }
 
+    /**
+     * Returns the number of threads fetching instances from external
+     * archives by WADO-RS.
+     */
+    public int getFetchThreads() {
+        return fetchThreads;
+    }
+
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    /**
+     * Returns the maximal number of instances fetched concurrently from one
+     * external archive AE by WADO-RS.
+     */
+    public int getFetchThreadsPerRemoteAE() {
+        return fetchThreadsPerRemoteAE;
+    }
+
+    public void setFetchThreadsPerRemoteAE(int fetchThreadsPerRemoteAE) {
+        this.fetchThreadsPerRemoteAE = fetchThreadsPerRemoteAE;
+    }
+
+    /**
+     * Returns the maximal number of cached PIX Query results.
+     * 0 = do not cache PIX Query results.
+     */
+    public int getPIXQueryCacheSize() {
+        return pixQueryCacheSize;
+    }
+
+    public void setPIXQueryCacheSize(int pixQueryCacheSize) {
+        this.pixQueryCacheSize = pixQueryCacheSize;
+    }
+
+    /**
+     * Returns the time in s a PIX Query result with other Patient IDs is
+     * cached.
+     */
+    public int getPIXQueryCacheTTL() {
+        return pixQueryCacheTTL;
+    }
+
+    public void setPIXQueryCacheTTL(int pixQueryCacheTTL) {
+        this.pixQueryCacheTTL = pixQueryCacheTTL;
+    }
+
+    /**
+     * Returns the time in s a PIX Query which returned no other Patient IDs
+     * or failed is cached.
+     */
+    public int getPIXQueryCacheNegativeTTL() {
+        return pixQueryCacheNegativeTTL;
+    }
+
+    public void setPIXQueryCacheNegativeTTL(int pixQueryCacheNegativeTTL) {
+        this.pixQueryCacheNegativeTTL = pixQueryCacheNegativeTTL;
+    }
+
+    /**
+     * Returns the maximal number of cached Patient ID resolutions.
+     * 0 = do not cache Patient ID resolutions.
+     */
+    public int getPatientCacheSize() {
+        return patientCacheSize;
+    }
+
+    public void setPatientCacheSize(int patientCacheSize) {
+        this.patientCacheSize = patientCacheSize;
+    }
+
+    /**
+     * Returns the time in s a Patient ID resolution is cached.
+     */
+    public int getPatientCacheTTL() {
+        return patientCacheTTL;
+    }
+
+    public void setPatientCacheTTL(int patientCacheTTL) {
+        this.patientCacheTTL = patientCacheTTL;
+    }
+
 }
@@ -0,0 +1,91 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.conf;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+
+import org.dcm4che3.io.TemplatesCache;
+
+/**
+ * Caches {@link AttributesCoercion}s by the URI of their XSL stylesheet.
+ * Stylesheets which only set or copy a few attributes are compiled to a
+ * direct mapping of the data set; others are applied by a
+ * {@link javax.xml.transform.Transformer} per thread.
+ */
+public class AttributesCoercionCache {
+
+    private static final AttributesCoercionCache DEFAULT =
+            new AttributesCoercionCache();
+
+    private final ConcurrentHashMap<String, AttributesCoercion> map =
+            new ConcurrentHashMap<String, AttributesCoercion>();
+
+    public static AttributesCoercionCache getDefault() {
+        return DEFAULT;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public AttributesCoercion get(String uri)
+            throws TransformerConfigurationException {
+        AttributesCoercion coercion = map.get(uri);
+        if (coercion == null) {
+            coercion = create(uri);
+            AttributesCoercion prev = map.putIfAbsent(uri, coercion);
+            if (prev != null)
+                coercion = prev;
+        }
+        return coercion;
+    }
+
+    private static AttributesCoercion create(String uri)
+            throws TransformerConfigurationException {
+        Templates templates = TemplatesCache.getDefault().get(uri);
+        XSLTAttributesCoercion xslt = new XSLTAttributesCoercion(templates);
+        CompiledAttributesCoercion compiled =
+                CompiledAttributesCoercion.compile(uri, xslt);
+        return compiled != null ? compiled : xslt;
+    }
+}
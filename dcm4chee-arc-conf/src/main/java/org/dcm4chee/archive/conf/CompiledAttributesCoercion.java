@@ -0,0 +1,426 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.conf;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.StringUtils;
+import org.dcm4che3.util.TagUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Applies XSL stylesheets, which only set attributes to constant values or
+ * stylesheet parameters or copy values of other attributes - optionally
+ * only if an attribute has no value - directly on the data set, without
+ * serializing it to SAX events, running the XSL transformation and parsing
+ * its result. E.g.:
+ *
+ * <pre>
+ * &lt;xsl:template match="/NativeDicomModel"&gt;
+ *   &lt;NativeDicomModel&gt;
+ *     &lt;xsl:if test="not(DicomAttribute[@tag='00100020']/Value)"&gt;
+ *       &lt;DicomAttribute tag="00100020" vr="LO"&gt;
+ *         &lt;xsl:copy-of select="DicomAttribute[@tag='0020000D']/Value"/&gt;
+ *       &lt;/DicomAttribute&gt;
+ *       &lt;DicomAttribute tag="00100021" vr="LO"&gt;
+ *         &lt;Value number="1"&gt;DCM4CHEE-ARC&lt;/Value&gt;
+ *       &lt;/DicomAttribute&gt;
+ *     &lt;/xsl:if&gt;
+ *   &lt;/NativeDicomModel&gt;
+ * &lt;/xsl:template&gt;
+ * </pre>
+ *
+ * Data sets for which the result may differ from the XSL transformation,
+ * because a referenced attribute is not serialized as {@code Value}
+ * elements or a value is empty, are passed to the XSL transformation.
+ */
+class CompiledAttributesCoercion implements AttributesCoercion {
+
+    private static final String DISALLOW_DOCTYPE_DECL =
+            "http://apache.org/xml/features/disallow-doctype-decl";
+    private static final String EXTERNAL_GENERAL_ENTITIES =
+            "http://xml.org/sax/features/external-general-entities";
+    private static final String EXTERNAL_PARAMETER_ENTITIES =
+            "http://xml.org/sax/features/external-parameter-entities";
+
+    private static final String XSL_NS =
+            "http://www.w3.org/1999/XSL/Transform";
+    private static final String NATIVE_DICOM_MODEL = "NativeDicomModel";
+    private static final String DICOM_ATTRIBUTE = "DicomAttribute";
+    private static final String VALUE = "Value";
+
+    // tags are serialized in upper case, so XPath only matches those
+    private static final Pattern VALUE_OF_TAG = Pattern.compile(
+            "DicomAttribute\\[@tag=['\"]([0-9A-F]{8})['\"]\\]/Value");
+    private static final Pattern NO_VALUE_OF_TAG = Pattern.compile(
+            "not\\(DicomAttribute\\[@tag=['\"]([0-9A-F]{8})['\"]\\]/Value\\)");
+    private static final Pattern PARAM = Pattern.compile(
+            "\\$([A-Za-z_][\\w.-]*)");
+
+    private static final int NONE = -1;
+
+    private final Rule[] rules;
+    private final AttributesCoercion fallback;
+
+    private CompiledAttributesCoercion(List<Rule> rules,
+            AttributesCoercion fallback) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+        this.fallback = fallback;
+    }
+
+    private static final class Rule {
+        final int ifNoValueOf;
+        final int tag;
+        final VR vr;
+        final int copyOf;
+        final String[] values;
+        final boolean[] params;
+
+        Rule(int ifNoValueOf, int tag, VR vr, int copyOf, String[] values,
+                boolean[] params) {
+            this.ifNoValueOf = ifNoValueOf;
+            this.tag = tag;
+            this.vr = vr;
+            this.copyOf = copyOf;
+            this.values = values;
+            this.params = params;
+        }
+    }
+
+    private static final class NotCompilableException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        NotCompilableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Returns the compiled XSL stylesheet with the specified URI or
+     * {@code null}, if the stylesheet is not supported.
+     *
+     * @param uri URI of the XSL stylesheet
+     * @param fallback applied on data sets for which the result of the
+     *        compiled stylesheet may differ from the XSL transformation
+     */
+    static CompiledAttributesCoercion compile(String uri,
+            AttributesCoercion fallback) {
+        Document doc;
+        try {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            // stylesheets with DTDs or entities are left to the XSLT path
+            dbf.setFeature(DISALLOW_DOCTYPE_DECL, true);
+            dbf.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+            dbf.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+            dbf.setExpandEntityReferences(false);
+            dbf.setXIncludeAware(false);
+            doc = dbf.newDocumentBuilder().parse(uri);
+        } catch (Exception e) {
+            return null;
+        }
+        try {
+            return new CompiledAttributesCoercion(
+                    compileStylesheet(doc.getDocumentElement()), fallback);
+        } catch (NotCompilableException e) {
+            return null;
+        }
+    }
+
+    private static List<Rule> compileStylesheet(Element stylesheet)
+            throws NotCompilableException {
+        if (!isXSL(stylesheet, "stylesheet") && !isXSL(stylesheet, "transform"))
+            throw new NotCompilableException("no stylesheet");
+
+        HashSet<String> params = new HashSet<String>();
+        Element template = null;
+        for (Element child : children(stylesheet)) {
+            if (isXSL(child, "output"))
+                continue;
+
+            if (isXSL(child, "param")
+                    && !child.hasAttribute("select")
+                    && children(child).isEmpty()
+                    && !hasText(child)) {
+                params.add(child.getAttribute("name"));
+            } else if (isXSL(child, "template") && template == null
+                    && child.getAttributes().getLength() == 1
+                    && ("/" + NATIVE_DICOM_MODEL).equals(
+                            child.getAttribute("match"))) {
+                template = child;
+            } else
+                throw new NotCompilableException(child.getTagName());
+        }
+        if (template == null || hasText(template))
+            throw new NotCompilableException("no template");
+
+        List<Element> body = children(template);
+        if (body.size() != 1)
+            throw new NotCompilableException("no single result element");
+
+        Element root = body.get(0);
+        if (!isLiteral(root, NATIVE_DICOM_MODEL) || hasAttributes(root)
+                || hasText(root))
+            throw new NotCompilableException(root.getTagName());
+
+        List<Rule> rules = new ArrayList<Rule>();
+        for (Element child : children(root)) {
+            if (isXSL(child, "if")) {
+                int ifNoValueOf = parseTag(NO_VALUE_OF_TAG,
+                        child.getAttribute("test"));
+                if (child.getAttributes().getLength() != 1 || hasText(child))
+                    throw new NotCompilableException("xsl:if");
+                for (Element child2 : children(child))
+                    rules.add(compileDicomAttribute(child2, ifNoValueOf,
+                            params));
+            } else
+                rules.add(compileDicomAttribute(child, NONE, params));
+        }
+        return rules;
+    }
+
+    private static Rule compileDicomAttribute(Element el, int ifNoValueOf,
+            HashSet<String> params) throws NotCompilableException {
+        if (!isLiteral(el, DICOM_ATTRIBUTE) || hasText(el))
+            throw new NotCompilableException(el.getTagName());
+
+        NamedNodeMap attrs = el.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            String name = attrs.item(i).getNodeName();
+            if (!name.equals("tag") && !name.equals("vr")
+                    && !name.equals("keyword"))
+                throw new NotCompilableException(DICOM_ATTRIBUTE + '@' + name);
+        }
+        int tag;
+        VR vr;
+        try {
+            tag = (int) Long.parseLong(el.getAttribute("tag"), 16);
+            vr = VR.valueOf(el.getAttribute("vr"));
+        } catch (IllegalArgumentException e) {
+            throw new NotCompilableException(DICOM_ATTRIBUTE);
+        }
+        if (!vr.isStringType() || vr == VR.PN)
+            throw new NotCompilableException("vr=" + vr);
+
+        List<Element> children = children(el);
+        if (children.size() == 1 && isXSL(children.get(0), "copy-of")) {
+            Element copyOf = children.get(0);
+            if (copyOf.getAttributes().getLength() != 1)
+                throw new NotCompilableException("xsl:copy-of");
+            return new Rule(ifNoValueOf, tag, vr,
+                    parseTag(VALUE_OF_TAG, copyOf.getAttribute("select")),
+                    null, null);
+        }
+
+        String[] values = new String[children.size()];
+        boolean[] isParam = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Element value = children.get(i);
+            if (!isLiteral(value, VALUE)
+                    || value.getAttributes().getLength() != 1
+                    || !Integer.toString(i + 1).equals(
+                            value.getAttribute("number")))
+                throw new NotCompilableException(value.getTagName());
+
+            List<Element> valueOf = children(value);
+            if (valueOf.isEmpty()) {
+                String text = value.getTextContent();
+                if (text.isEmpty() || !text.equals(text.trim()))
+                    throw new NotCompilableException(VALUE);
+                values[i] = text;
+            } else {
+                Element el2 = valueOf.get(0);
+                if (valueOf.size() != 1 || hasText(value)
+                        || !isXSL(el2, "value-of")
+                        || el2.getAttributes().getLength() != 1)
+                    throw new NotCompilableException(VALUE);
+                Matcher m = PARAM.matcher(el2.getAttribute("select"));
+                if (!m.matches() || !params.contains(m.group(1)))
+                    throw new NotCompilableException("xsl:value-of");
+                values[i] = m.group(1);
+                isParam[i] = true;
+            }
+        }
+        return new Rule(ifNoValueOf, tag, vr, NONE, values, isParam);
+    }
+
+    private static int parseTag(Pattern pattern, String expr)
+            throws NotCompilableException {
+        Matcher m = pattern.matcher(expr.replaceAll("\\s", ""));
+        if (!m.matches())
+            throw new NotCompilableException(expr);
+        return (int) Long.parseLong(m.group(1), 16);
+    }
+
+    private static boolean isXSL(Element el, String localName) {
+        return XSL_NS.equals(el.getNamespaceURI())
+                && localName.equals(el.getLocalName());
+    }
+
+    private static boolean isLiteral(Element el, String localName) {
+        return el.getNamespaceURI() == null
+                && localName.equals(el.getLocalName());
+    }
+
+    private static boolean hasAttributes(Element el) {
+        NamedNodeMap attrs = el.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++)
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(
+                    attrs.item(i).getNamespaceURI()))
+                return true;
+        return false;
+    }
+
+    private static boolean hasText(Element el) {
+        for (Node node = el.getFirstChild(); node != null;
+                node = node.getNextSibling())
+            if (node.getNodeType() == Node.TEXT_NODE
+                    && !node.getNodeValue().trim().isEmpty())
+                return true;
+            else if (node.getNodeType() == Node.CDATA_SECTION_NODE)
+                return true;
+        return false;
+    }
+
+    private static List<Element> children(Element el) {
+        List<Element> list = new ArrayList<Element>();
+        for (Node node = el.getFirstChild(); node != null;
+                node = node.getNextSibling())
+            if (node.getNodeType() == Node.ELEMENT_NODE)
+                list.add((Element) node);
+        return list;
+    }
+
+    @Override
+    public Attributes coerce(Attributes attrs, Map<String, ?> params)
+            throws TransformerException {
+        Attributes result = new Attributes(rules.length);
+        for (Rule rule : rules) {
+            if (rule.ifNoValueOf != NONE) {
+                if (!isValueElement(attrs, rule.ifNoValueOf))
+                    return fallback.coerce(attrs, params);
+                if (hasValue(attrs, rule.ifNoValueOf))
+                    continue;
+            }
+            String[] values;
+            if (rule.copyOf != NONE) {
+                if (!isValueElement(attrs, rule.copyOf))
+                    return fallback.coerce(attrs, params);
+                values = hasValue(attrs, rule.copyOf)
+                        ? attrs.getStrings(rule.copyOf)
+                        : StringUtils.EMPTY_STRING;
+            } else {
+                values = new String[rule.values.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rule.params[i]
+                            ? toString(params.get(rule.values[i]))
+                            : rule.values[i];
+                }
+            }
+            for (String value : values)
+                if (value == null || value.isEmpty())
+                    return fallback.coerce(attrs, params);
+            result.setString(rule.tag, rule.vr, values);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true}, if the attribute with the specified tag is
+     * absent or its values are serialized as {@code Value} elements.
+     */
+    private static boolean isValueElement(Attributes attrs, int tag) {
+        VR vr = attrs.getVR(tag);
+        if (vr == null)
+            return true;
+
+        if (vr == VR.SQ || vr == VR.PN || vr.isInlineBinary())
+            return false;
+
+        Object value = attrs.getValue(tag);
+        return !(value instanceof BulkData || value instanceof Fragments);
+    }
+
+    private static boolean hasValue(Attributes attrs, int tag) {
+        return attrs.containsValue(tag);
+    }
+
+    private static String toString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CompiledAttributesCoercion[");
+        for (Rule rule : rules) {
+            if (rule.ifNoValueOf != NONE)
+                sb.append("if no ").append(TagUtils.toString(rule.ifNoValueOf))
+                    .append(": ");
+            sb.append(TagUtils.toString(rule.tag)).append(' ').append(rule.vr)
+                .append(" = ");
+            if (rule.copyOf != NONE)
+                sb.append(TagUtils.toString(rule.copyOf));
+            else
+                for (int i = 0; i < rule.values.length; i++)
+                    sb.append(i > 0 ? "\\" : "")
+                        .append(rule.params[i] ? "$" : "")
+                        .append(rule.values[i]);
+            sb.append("; ");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -54,6 +54,8 @@ public class StoreParam {
     private String modifyingSystem;
     private PatientSelectorConfig patientSelectorConfig;
     private boolean deIdentifyLogs = false;
+    private int patientCacheSize;
+    private int patientCacheTTL;
 
     public final boolean isStoreOriginalAttributes() {
         return storeOriginalAttributes;
@@ -102,4 +104,20 @@ public class StoreParam {
     public void setDeIdentifyLogs(boolean deIdentifyLogs) {
         this.deIdentifyLogs = deIdentifyLogs;
     }
+
+    public int getPatientCacheSize() {
+        return patientCacheSize;
+    }
+
+    public void setPatientCacheSize(int patientCacheSize) {
+        this.patientCacheSize = patientCacheSize;
+    }
+
+    public int getPatientCacheTTL() {
+        return patientCacheTTL;
+    }
+
+    public void setPatientCacheTTL(int patientCacheTTL) {
+        this.patientCacheTTL = patientCacheTTL;
+    }
 }
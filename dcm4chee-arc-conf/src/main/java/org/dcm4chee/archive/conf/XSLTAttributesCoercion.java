@@ -0,0 +1,104 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.conf;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.ContentHandlerAdapter;
+import org.xml.sax.InputSource;
+
+/**
+ * Applies the XSL stylesheet by {@link Transformer}s created from the
+ * compiled {@link Templates} and reused for further data sets, instead of
+ * creating one per data set by {@link org.dcm4che3.io.SAXTransformer#transform}.
+ * Idle Transformers are pooled by this instance, not by the calling
+ * threads, so they do not outlive it on container threads and do not pin
+ * the class loader of a redeployed application.
+ */
+class XSLTAttributesCoercion implements AttributesCoercion {
+
+    static final int DEFAULT_MAX_IDLE =
+            Runtime.getRuntime().availableProcessors();
+
+    private final Templates templates;
+
+    private final ArrayBlockingQueue<Transformer> idle;
+
+    XSLTAttributesCoercion(Templates templates) {
+        this(templates, DEFAULT_MAX_IDLE);
+    }
+
+    XSLTAttributesCoercion(Templates templates, int maxIdle) {
+        this.templates = templates;
+        this.idle = new ArrayBlockingQueue<Transformer>(maxIdle);
+    }
+
+    int idleTransformers() {
+        return idle.size();
+    }
+
+    @Override
+    public Attributes coerce(Attributes attrs, Map<String, ?> params)
+            throws TransformerException {
+        Transformer tr = idle.poll();
+        if (tr == null)
+            tr = templates.newTransformer();
+
+        tr.clearParameters();
+        for (Map.Entry<String, ?> param : params.entrySet())
+            if (param.getValue() != null)
+                tr.setParameter(param.getKey(), param.getValue());
+        Attributes result = new Attributes();
+        tr.transform(
+                new SAXSource(new AttributesXMLReader(attrs), new InputSource()),
+                new SAXResult(new ContentHandlerAdapter(result)));
+        // only reuse Transformer after successful transformation
+        idle.offer(tr);
+        return result;
+    }
+}
@@ -0,0 +1,167 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of tasks concurrently running on a shared executor -
+ * typically the cached thread pool of the {@code Device} - instead of
+ * maintaining a dedicated thread pool per service.
+ * <p>
+ * A permit is taken before a task is handed to the underlying executor and
+ * released after the task completed, so a caller never occupies a pooled
+ * thread while waiting for a permit. Bounded executors can be stacked, e.g.
+ * a per-remote-system limit in front of a global limit.
+ */
+public class BoundedExecutor implements Executor {
+
+    private final Executor executor;
+    private final Permits permits;
+    private int maxConcurrent;
+
+    public BoundedExecutor(Executor executor, int maxConcurrent) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("maxConcurrent: " + maxConcurrent);
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Permits(maxConcurrent);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Changes the concurrency limit. Lowering the limit does not interrupt
+     * running tasks, it only delays the start of further tasks until the
+     * number of running tasks dropped below the new limit.
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("maxConcurrent: " + maxConcurrent);
+        int delta = maxConcurrent - this.maxConcurrent;
+        if (delta > 0)
+            permits.release(delta);
+        else if (delta < 0)
+            permits.reducePermits(-delta);
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public int getAvailablePermits() {
+        return Math.max(0, permits.availablePermits());
+    }
+
+    /**
+     * Waits for a permit and passes the task to the underlying executor.
+     *
+     * @throws RejectedExecutionException
+     *             if the calling thread was interrupted while waiting for a
+     *             permit or the underlying executor rejected the task
+     */
+    @Override
+    public void execute(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        submitAcquired(task);
+    }
+
+    /**
+     * Passes the task to the underlying executor if a permit is available
+     * without waiting.
+     *
+     * @return {@code false} if the limit is reached
+     * @throws RejectedExecutionException
+     *             if the underlying executor rejected the task
+     */
+    public boolean tryExecute(Runnable task) {
+        if (!permits.tryAcquire())
+            return false;
+        submitAcquired(task);
+        return true;
+    }
+
+    public <T> FutureTask<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        execute(task);
+        return task;
+    }
+
+    private void submitAcquired(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private static final class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
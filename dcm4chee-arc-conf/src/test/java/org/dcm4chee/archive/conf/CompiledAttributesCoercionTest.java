@@ -0,0 +1,340 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.conf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Compares the result of compiled stylesheets with the XSL transformation
+ * of the same stylesheet, and checks that data sets, for which they could
+ * differ, are passed to the XSL transformation.
+ */
+public class CompiledAttributesCoercionTest {
+
+    private static final String ISSUER =
+            "<DicomAttribute tag=\"00100021\" vr=\"LO\">"
+            + "<Value number=\"1\">ISSUER</Value></DicomAttribute>";
+
+    private static final String PID_FROM_STUDY_IUID =
+            "<DicomAttribute tag=\"00100020\" vr=\"LO\">"
+            + "<xsl:copy-of select=\"DicomAttribute[@tag='0020000D']/Value\"/>"
+            + "</DicomAttribute>";
+
+    private static final String PID_FROM_PATIENT_NAME =
+            "<DicomAttribute tag=\"00100020\" vr=\"LO\">"
+            + "<xsl:copy-of select=\"DicomAttribute[@tag='00100010']/Value\"/>"
+            + "</DicomAttribute>";
+
+    private static final String CALLING_PARAM =
+            "<xsl:param name=\"calling\"/>";
+
+    private static final String ISSUER_FROM_CALLING =
+            "<DicomAttribute tag=\"00100021\" vr=\"LO\">"
+            + "<Value number=\"1\"><xsl:value-of select=\"$calling\"/></Value>"
+            + "</DicomAttribute>";
+
+    private final List<Path> files = new ArrayList<Path>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Path file : files)
+            Files.delete(file);
+    }
+
+    @Test
+    public void testConstantValue() throws Exception {
+        assertCompiledEqualsXSLT(stylesheet("", ISSUER), studyIUID());
+    }
+
+    @Test
+    public void testMultipleConstantValues() throws Exception {
+        assertCompiledEqualsXSLT(stylesheet("",
+                "<DicomAttribute tag=\"00080060\" vr=\"CS\">"
+                + "<Value number=\"1\">CT</Value>"
+                + "<Value number=\"2\">PT</Value></DicomAttribute>"),
+                studyIUID());
+    }
+
+    @Test
+    public void testParameterValue() throws Exception {
+        assertCompiledEqualsXSLT(
+                stylesheet(CALLING_PARAM, ISSUER_FROM_CALLING),
+                studyIUID(), Collections.singletonMap("calling", "AE1"));
+    }
+
+    @Test
+    public void testCopyOf() throws Exception {
+        Attributes attrs = studyIUID();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "4.5.6");
+        assertCompiledEqualsXSLT(stylesheet("", PID_FROM_STUDY_IUID), attrs);
+    }
+
+    @Test
+    public void testCopyOfAbsentAttribute() throws Exception {
+        assertCompiledEqualsXSLT(stylesheet("", PID_FROM_STUDY_IUID),
+                new Attributes());
+    }
+
+    @Test
+    public void testCopyOfEmptyAttribute() throws Exception {
+        Attributes attrs = new Attributes();
+        attrs.setNull(Tag.StudyInstanceUID, VR.UI);
+        assertCompiledEqualsXSLT(stylesheet("", PID_FROM_STUDY_IUID), attrs);
+    }
+
+    @Test
+    public void testIfNoValueOfAbsentAttribute() throws Exception {
+        assertCompiledEqualsXSLT(ifNoPatientID(PID_FROM_STUDY_IUID + ISSUER),
+                studyIUID());
+    }
+
+    @Test
+    public void testIfNoValueOfEmptyAttribute() throws Exception {
+        Attributes attrs = studyIUID();
+        attrs.setNull(Tag.PatientID, VR.LO);
+        assertCompiledEqualsXSLT(ifNoPatientID(PID_FROM_STUDY_IUID + ISSUER),
+                attrs);
+    }
+
+    @Test
+    public void testIfNoValueOfPresentAttribute() throws Exception {
+        Attributes attrs = studyIUID();
+        attrs.setString(Tag.PatientID, VR.LO, "PID");
+        assertCompiledEqualsXSLT(ifNoPatientID(PID_FROM_STUDY_IUID + ISSUER),
+                attrs);
+    }
+
+    @Test
+    public void testFallbackOnPersonNameSource() throws Exception {
+        Attributes attrs = studyIUID();
+        attrs.setString(Tag.PatientName, VR.PN, "Doe^John");
+        assertFallback(stylesheet("", PID_FROM_PATIENT_NAME), attrs);
+    }
+
+    @Test
+    public void testFallbackOnSequenceCondition() throws Exception {
+        Attributes attrs = studyIUID();
+        Sequence seq = attrs.newSequence(Tag.PatientID, 1);
+        seq.add(new Attributes());
+        assertFallback(ifNoPatientID(ISSUER), attrs);
+    }
+
+    @Test
+    public void testFallbackOnBulkDataSource() throws Exception {
+        Attributes attrs = new Attributes();
+        attrs.setValue(Tag.StudyInstanceUID, VR.UI,
+                new BulkData(null, "file:/bulkdata#offset=0&length=6", false));
+        assertFallback(stylesheet("", PID_FROM_STUDY_IUID), attrs);
+    }
+
+    @Test
+    public void testFallbackOnEmptyValue() throws Exception {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3", "", "4.5.6");
+        assertFallback(stylesheet("", PID_FROM_STUDY_IUID), attrs);
+    }
+
+    @Test
+    public void testFallbackOnEmptyParameter() throws Exception {
+        assertFallback(stylesheet(CALLING_PARAM, ISSUER_FROM_CALLING),
+                studyIUID(), Collections.singletonMap("calling", ""));
+    }
+
+    @Test
+    public void testFallbackOnMissingParameter() throws Exception {
+        assertFallback(stylesheet(CALLING_PARAM, ISSUER_FROM_CALLING),
+                studyIUID(), Collections.<String, Object> emptyMap());
+    }
+
+    @Test
+    public void testNotCompiledForPersonNameTarget() throws Exception {
+        assertNotCompiled(stylesheet("",
+                "<DicomAttribute tag=\"00100010\" vr=\"PN\">"
+                + "<Value number=\"1\">Doe^John</Value></DicomAttribute>"));
+    }
+
+    @Test
+    public void testNotCompiledForUnsupportedInstruction() throws Exception {
+        assertNotCompiled(stylesheet("",
+                "<xsl:choose><xsl:when test=\"DicomAttribute[@tag='00100020']\">"
+                + ISSUER + "</xsl:when></xsl:choose>"));
+    }
+
+    @Test
+    public void testNotCompiledForUndeclaredParameter() throws Exception {
+        assertNotCompiled(stylesheet("", ISSUER_FROM_CALLING));
+    }
+
+    @Test
+    public void testNotCompiledForLowerCaseTag() throws Exception {
+        assertNotCompiled(stylesheet("",
+                "<DicomAttribute tag=\"00100020\" vr=\"LO\">"
+                + "<xsl:copy-of select=\"DicomAttribute[@tag='0020000d']/Value\"/>"
+                + "</DicomAttribute>"));
+    }
+
+    @Test
+    public void testNotCompiledForDoctype() throws Exception {
+        Path secret = createFile("secret", ".txt", "SECRET");
+        assertNotCompiled("<!DOCTYPE xsl:stylesheet ["
+                + "<!ENTITY secret SYSTEM \"" + secret.toUri() + "\">]>"
+                + stylesheet("",
+                        "<DicomAttribute tag=\"00100021\" vr=\"LO\">"
+                        + "<Value number=\"1\">&secret;</Value></DicomAttribute>"));
+    }
+
+    private static Attributes studyIUID() {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        return attrs;
+    }
+
+    private static String ifNoPatientID(String body) {
+        return stylesheet("",
+                "<xsl:if test=\"not(DicomAttribute[@tag='00100020']/Value)\">"
+                + body + "</xsl:if>");
+    }
+
+    private static String stylesheet(String params, String body) {
+        return "<xsl:stylesheet version=\"1.0\""
+                + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:output method=\"xml\"/>"
+                + params
+                + "<xsl:template match=\"/NativeDicomModel\">"
+                + "<NativeDicomModel>" + body + "</NativeDicomModel>"
+                + "</xsl:template>"
+                + "</xsl:stylesheet>";
+    }
+
+    private void assertCompiledEqualsXSLT(String xsl, Attributes attrs)
+            throws Exception {
+        assertCompiledEqualsXSLT(xsl, attrs,
+                Collections.<String, Object> emptyMap());
+    }
+
+    private void assertCompiledEqualsXSLT(String xsl, Attributes attrs,
+            Map<String, ?> params) throws Exception {
+        String uri = createStylesheet(xsl);
+        CountingCoercion fallback = new CountingCoercion(xslt(uri));
+        CompiledAttributesCoercion compiled =
+                CompiledAttributesCoercion.compile(uri, fallback);
+        assertNotNull(compiled);
+        assertEquals(xslt(uri).coerce(attrs, params),
+                compiled.coerce(attrs, params));
+        assertEquals(0, fallback.count);
+    }
+
+    private void assertFallback(String xsl, Attributes attrs)
+            throws Exception {
+        assertFallback(xsl, attrs, Collections.<String, Object> emptyMap());
+    }
+
+    private void assertFallback(String xsl, Attributes attrs,
+            Map<String, ?> params) throws Exception {
+        String uri = createStylesheet(xsl);
+        CountingCoercion fallback = new CountingCoercion(xslt(uri));
+        CompiledAttributesCoercion compiled =
+                CompiledAttributesCoercion.compile(uri, fallback);
+        assertNotNull(compiled);
+        assertEquals(xslt(uri).coerce(attrs, params),
+                compiled.coerce(attrs, params));
+        assertEquals(1, fallback.count);
+    }
+
+    private void assertNotCompiled(String xsl) throws Exception {
+        assertNull(CompiledAttributesCoercion.compile(createStylesheet(xsl),
+                null));
+    }
+
+    private static XSLTAttributesCoercion xslt(String uri) throws Exception {
+        return new XSLTAttributesCoercion(TransformerFactory.newInstance()
+                .newTemplates(new StreamSource(uri)));
+    }
+
+    private String createStylesheet(String xsl) throws Exception {
+        return createFile("coercion", ".xsl", xsl).toUri().toString();
+    }
+
+    private Path createFile(String prefix, String suffix, String content)
+            throws Exception {
+        Path file = Files.createTempFile(prefix, suffix);
+        files.add(file);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static class CountingCoercion implements AttributesCoercion {
+
+        final AttributesCoercion delegate;
+        int count;
+
+        CountingCoercion(AttributesCoercion delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Attributes coerce(Attributes attrs, Map<String, ?> params)
+                throws TransformerException {
+            count++;
+            return delegate.coerce(attrs, params);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.conf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XSLTAttributesCoercionTest {
+
+    private static final String XSL =
+            "<xsl:stylesheet version=\"1.0\""
+            + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:param name=\"calling\"/>"
+            + "<xsl:param name=\"fail\"/>"
+            + "<xsl:template match=\"/NativeDicomModel\">"
+            + "<xsl:if test=\"$fail\">"
+            + "<xsl:message terminate=\"yes\">failed</xsl:message>"
+            + "</xsl:if>"
+            + "<NativeDicomModel>"
+            + "<xsl:if test=\"$calling\">"
+            + "<DicomAttribute tag=\"00100021\" vr=\"LO\">"
+            + "<Value number=\"1\"><xsl:value-of select=\"$calling\"/></Value>"
+            + "</DicomAttribute>"
+            + "</xsl:if>"
+            + "</NativeDicomModel>"
+            + "</xsl:template>"
+            + "</xsl:stylesheet>";
+
+    private Templates templates;
+
+    @Before
+    public void setUp() throws Exception {
+        templates = TransformerFactory.newInstance().newTemplates(
+                new StreamSource(new StringReader(XSL)));
+    }
+
+    @Test
+    public void testParametersAreReset() throws Exception {
+        XSLTAttributesCoercion coercion = new XSLTAttributesCoercion(templates);
+        assertEquals("AE1", coercion.coerce(new Attributes(),
+                Collections.singletonMap("calling", "AE1"))
+                .getString(Tag.IssuerOfPatientID));
+        assertFalse(coercion.coerce(new Attributes(),
+                Collections.<String, Object> emptyMap())
+                .contains(Tag.IssuerOfPatientID));
+    }
+
+    @Test
+    public void testReusesTransformers() throws Exception {
+        XSLTAttributesCoercion coercion =
+                new XSLTAttributesCoercion(templates, 1);
+        Map<String, Object> params = Collections.<String, Object> emptyMap();
+        coercion.coerce(new Attributes(), params);
+        assertEquals(1, coercion.idleTransformers());
+        coercion.coerce(new Attributes(), params);
+        assertEquals(1, coercion.idleTransformers());
+    }
+
+    @Test
+    public void testBoundsIdleTransformers() throws Exception {
+        final XSLTAttributesCoercion coercion =
+                new XSLTAttributesCoercion(templates, 2);
+        Thread[] threads = new Thread[8];
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++)
+                            coercion.coerce(new Attributes(),
+                                    Collections.singletonMap("calling", "AE"));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(coercion.idleTransformers() <= 2);
+    }
+
+    @Test
+    public void testDiscardsTransformerAfterFailure() throws Exception {
+        XSLTAttributesCoercion coercion = new XSLTAttributesCoercion(templates);
+        try {
+            coercion.coerce(new Attributes(),
+                    Collections.singletonMap("fail", "yes"));
+            fail("TransformerException expected");
+        } catch (TransformerException e) {
+            assertEquals(0, coercion.idleTransformers());
+        }
+    }
+}
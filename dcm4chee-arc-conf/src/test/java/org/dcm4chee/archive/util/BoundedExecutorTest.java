@@ -0,0 +1,237 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedExecutorTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testLimitsConcurrentTasks() throws Exception {
+        final BoundedExecutor executor = new BoundedExecutor(pool, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int n = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        if (n > maxRunning.get())
+                            maxRunning.set(n);
+                    }
+                    sleep(20);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testTryExecute() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(executor.tryExecute(await(release)));
+        assertFalse(executor.tryExecute(await(release)));
+        release.countDown();
+        awaitPermits(executor, 1);
+        assertTrue(executor.tryExecute(await(release)));
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        FutureTask<String> task = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        assertEquals("done", task.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReleasesPermitOnRejection() {
+        BoundedExecutor executor = new BoundedExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, 1);
+        try {
+            executor.execute(noop());
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.getAvailablePermits());
+    }
+
+    @Test
+    public void testReleasesPermitOnTaskFailure() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        });
+        awaitPermits(executor, 1);
+    }
+
+    @Test
+    public void testSetMaxConcurrent() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(executor.tryExecute(await(release)));
+        assertTrue(executor.tryExecute(await(release)));
+        executor.setMaxConcurrent(1);
+        release.countDown();
+        awaitPermits(executor, 1);
+        CountDownLatch release2 = new CountDownLatch(1);
+        assertTrue(executor.tryExecute(await(release2)));
+        assertFalse(executor.tryExecute(noop()));
+        executor.setMaxConcurrent(3);
+        assertTrue(executor.tryExecute(await(release2)));
+        assertTrue(executor.tryExecute(await(release2)));
+        assertFalse(executor.tryExecute(noop()));
+        release2.countDown();
+        awaitPermits(executor, 3);
+    }
+
+    @Test
+    public void testInterruptWhileWaiting() throws Exception {
+        BoundedExecutor executor = new BoundedExecutor(pool, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        Thread.currentThread().interrupt();
+        try {
+            executor.execute(noop());
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException expected) {
+            assertTrue(Thread.interrupted());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testStacked() throws Exception {
+        BoundedExecutor global = new BoundedExecutor(pool, 1);
+        List<BoundedExecutor> perKey = new ArrayList<BoundedExecutor>();
+        perKey.add(new BoundedExecutor(global, 2));
+        perKey.add(new BoundedExecutor(global, 2));
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(perKey.get(0).tryExecute(await(release)));
+        assertFalse(global.tryExecute(noop()));
+        assertEquals(1, perKey.get(0).getAvailablePermits());
+        assertEquals(2, perKey.get(1).getAvailablePermits());
+        release.countDown();
+        awaitPermits(global, 1);
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static void awaitPermits(BoundedExecutor executor, int permits) {
+        long end = System.currentTimeMillis() + 10000L;
+        while (executor.getAvailablePermits() < permits) {
+            assertTrue("timeout", System.currentTimeMillis() < end);
+            sleep(5);
+        }
+        assertEquals(permits, executor.getAvailablePermits());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -68,7 +68,27 @@ import javax.persistence.TemporalType;
     name=ArchivingTask.FIND_READY_TO_ARCHIVE,
     query="SELECT a FROM ArchivingTask a "
         + "WHERE a.archivingTime <= CURRENT_TIMESTAMP AND a.delayReasonCode IS NULL "
-        + "ORDER BY a.archivingTime")
+        + "ORDER BY a.archivingTime"),
+@NamedQuery(
+    name=ArchivingTask.FIND_PK_READY_TO_CLAIM,
+    query="SELECT a.pk FROM ArchivingTask a "
+        + "WHERE a.archivingTime <= CURRENT_TIMESTAMP AND a.delayReasonCode IS NULL "
+        + "AND (a.claimedBy IS NULL OR a.claimTime < :expired) "
+        + "ORDER BY a.archivingTime"),
+@NamedQuery(
+    name=ArchivingTask.COUNT_READY_TO_ARCHIVE,
+    query="SELECT COUNT(a) FROM ArchivingTask a "
+        + "WHERE a.archivingTime <= CURRENT_TIMESTAMP AND a.delayReasonCode IS NULL"),
+@NamedQuery(
+    name=ArchivingTask.CLAIM,
+    query="UPDATE ArchivingTask a "
+        + "SET a.claimedBy = :claimedBy, a.claimTime = :claimTime "
+        + "WHERE a.pk IN :pks "
+        + "AND (a.claimedBy IS NULL OR a.claimTime < :expired)"),
+@NamedQuery(
+    name=ArchivingTask.FIND_PK_CLAIMED_BY,
+    query="SELECT a.pk FROM ArchivingTask a "
+        + "WHERE a.pk IN :pks AND a.claimedBy = :claimedBy")
 })
 @Entity
 @Table(name = "archiving_task")
@@ -82,6 +102,18 @@ public class ArchivingTask implements Serializable {
     public static final String FIND_READY_TO_ARCHIVE =
             "ArchivingTask.findReadyToArchive";
 
+    public static final String FIND_PK_READY_TO_CLAIM =
+            "ArchivingTask.findPkReadyToClaim";
+
+    public static final String COUNT_READY_TO_ARCHIVE =
+            "ArchivingTask.countReadyToArchive";
+
+    public static final String CLAIM =
+            "ArchivingTask.claim";
+
+    public static final String FIND_PK_CLAIMED_BY =
+            "ArchivingTask.findPkClaimedBy";
+
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
     @Column(name = "pk")
@@ -112,6 +144,13 @@ public class ArchivingTask implements Serializable {
     @JoinColumn(name = "delay_reason_code_fk")
     private Code delayReasonCode;
 
+    @Column(name = "claimed_by")
+    private String claimedBy;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "claim_time")
+    private Date claimTime;
+
     public final long getPk() {
         return pk;
     }
@@ -140,6 +179,26 @@ public class ArchivingTask implements Serializable {
         this.delayReasonCode = delayReasonCode;
     }
 
+    /**
+     * Returns the identifier of the poll of the archiving scheduler which
+     * claimed this task, or {@code null} if the task was not yet claimed.
+     */
+    public String getClaimedBy() {
+        return claimedBy;
+    }
+
+    public void setClaimedBy(String claimedBy) {
+        this.claimedBy = claimedBy;
+    }
+
+    public Date getClaimTime() {
+        return claimTime;
+    }
+
+    public void setClaimTime(Date claimTime) {
+        this.claimTime = claimTime;
+    }
+
     public String getTargetStorageSystemGroupID() {
         return targetStorageSystemGroupID;
     }
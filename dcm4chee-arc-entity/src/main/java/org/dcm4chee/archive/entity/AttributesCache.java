@@ -0,0 +1,210 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.Attributes;
+
+/**
+ * Bounded LRU cache of decoded and merged attributes of Patient, Study and
+ * Series, keyed by the encoded attributes of their {@link AttributesBlob}s.
+ * <p>
+ * Keying by content instead of by primary key requires no version column on
+ * the blobs: updated attributes are encoded differently and so never hit
+ * entries cached for their previous content, which are evicted as least
+ * recently used. A lookup only hashes and compares the encoded bytes, which
+ * is considerably cheaper than decoding and merging them.
+ * <p>
+ * The default instance is exposed by JMX as {@value #OBJECT_NAME}.
+ */
+public class AttributesCache implements AttributesCacheMXBean {
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    public static final String OBJECT_NAME =
+            "org.dcm4chee.archive:type=AttributesCache";
+
+    private static final AttributesCache DEFAULT =
+            new AttributesCache(DEFAULT_MAX_SIZE);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile int maxSize;
+
+    private final LinkedHashMap<Key, Attributes> cache =
+            new LinkedHashMap<Key, Attributes>(64, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Key, Attributes> eldest) {
+                    if (size() <= maxSize)
+                        return false;
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            };
+
+    public AttributesCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    public static AttributesCache getDefault() {
+        return DEFAULT;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximal number of cached attributes; 0 disables caching.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.maxSize = maxSize;
+        if (maxSize == 0)
+            clear();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the merged and normalized attributes of the specified encoded
+     * attributes. Decodes and merges the encoded attributes only if they are
+     * not already cached.
+     *
+     * @param encodedAttributes encoded attributes of the
+     *        {@link AttributesBlob}s in the order of the merge
+     * @return a copy of the cached attributes, which may be modified by the
+     *         caller
+     */
+    public Attributes mergeAndNormalize(byte[]... encodedAttributes) {
+        Key key = new Key(encodedAttributes);
+        Attributes cached = get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            Attributes[] attrsList = new Attributes[encodedAttributes.length];
+            for (int i = 0; i < attrsList.length; i++) {
+                attrsList[i] = new Attributes();
+                Utils.decodeAttributes(attrsList[i], encodedAttributes[i]);
+            }
+            cached = Utils.mergeAndNormalize(attrsList);
+            put(key, cached);
+        } else {
+            hits.incrementAndGet();
+        }
+        synchronized (cached) {
+            return new Attributes(cached);
+        }
+    }
+
+    private synchronized Attributes get(Key key) {
+        return cache.get(key);
+    }
+
+    private synchronized void put(Key key, Attributes attrs) {
+        if (maxSize > 0)
+            cache.put(key, attrs);
+    }
+
+    private static final class Key {
+        private final byte[][] encodedAttributes;
+        private final int hash;
+
+        Key(byte[][] encodedAttributes) {
+            this.encodedAttributes = encodedAttributes;
+            this.hash = Arrays.deepHashCode(encodedAttributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key
+                    && Arrays.deepEquals(encodedAttributes,
+                            ((Key) obj).encodedAttributes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AttributesCache[size=" + getSize()
+                + ", maxSize=" + maxSize
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions()
+                + "]";
+    }
+}
@@ -46,6 +46,7 @@ import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.dcm4che3.data.Attributes;
 
@@ -70,7 +71,9 @@ import org.dcm4che3.data.Attributes;
             "AND c.codingSchemeVersion = ?3")
 })
 @Entity
-@Table(name = "code")
+@Table(name = "code", uniqueConstraints =
+    @UniqueConstraint(columnNames = {
+        "code_value", "code_designator", "code_version" }))
 public class Code extends org.dcm4che3.data.Code {
 
     private static final long serialVersionUID = -130090842318534124L;
@@ -101,6 +104,15 @@ public class Code extends org.dcm4che3.data.Code {
         super(item);
     }
 
+    /**
+     * Creates a detached instance of the persistent code with the specified
+     * primary key.
+     */
+    public Code(long pk, org.dcm4che3.data.Code code) {
+        this(code);
+        this.pk = pk;
+    }
+
     public long getPk() {
         return pk;
     }
@@ -0,0 +1,104 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import java.io.Serializable;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+/**
+ * Encoded offsets and lengths of the frames of the Pixel Data in the file
+ * referenced by a {@link Location}. Kept in its own table, so loading a
+ * Location never fetches the index. The foreign key to the Location deletes
+ * the index together with the Location.
+ */
+@Entity
+@Table(name = "frame_offsets")
+public class FrameOffsets implements Serializable {
+
+    private static final long serialVersionUID = 4250960384537411802L;
+
+    @Id
+    @Column(name = "location_fk")
+    private long locationPk;
+
+    @OneToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "location_fk", insertable = false, updatable = false)
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Location location;
+
+    @Basic(optional = false)
+    @Column(name = "offsets")
+    private byte[] encodedOffsets;
+
+    protected FrameOffsets() {
+    }
+
+    public FrameOffsets(long locationPk, byte[] encodedOffsets) {
+        this.locationPk = locationPk;
+        this.encodedOffsets = encodedOffsets;
+    }
+
+    public long getLocationPk() {
+        return locationPk;
+    }
+
+    public byte[] getEncodedOffsets() {
+        return encodedOffsets;
+    }
+
+    public void setEncodedOffsets(byte[] encodedOffsets) {
+        this.encodedOffsets = encodedOffsets;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameOffsets[location_fk=" + locationPk + "]";
+    }
+}
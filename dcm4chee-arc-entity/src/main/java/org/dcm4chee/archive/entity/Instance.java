@@ -111,7 +111,11 @@ import org.dcm4chee.storage.conf.Availability;
 @NamedQuery(
     name=Instance.FIND_BY_SERIES_INSTANCE_UID,
     query="SELECT i FROM Instance i "
-            + "WHERE i.series.seriesInstanceUID = ?1")})
+            + "WHERE i.series.seriesInstanceUID = ?1"),
+@NamedQuery(
+    name=Instance.COUNT_NOT_REJECTED_OF_SERIES,
+    query="SELECT COUNT(i) FROM Instance i "
+            + "WHERE i.series = ?1 AND i.rejectionNoteCode IS NULL")})
 @Entity
 @Table(name = "instance")
 public class Instance implements Serializable {
@@ -124,6 +128,8 @@ public class Instance implements Serializable {
             "Instance.findBySOPInstanceUIDMany.eager";
     public static final String FIND_BY_SERIES_INSTANCE_UID =
             "Instance.findBySeriesInstanceUID";
+    public static final String COUNT_NOT_REJECTED_OF_SERIES =
+            "Instance.countNotRejectedOfSeries";
 
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
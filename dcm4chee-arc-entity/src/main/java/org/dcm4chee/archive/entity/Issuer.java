@@ -46,6 +46,7 @@ import javax.persistence.Id;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.dcm4che3.data.Attributes;
 
@@ -69,7 +70,9 @@ import org.dcm4che3.data.Attributes;
           "OR (i.universalEntityID = ?2 AND i.universalEntityIDType = ?3)")
 })
 @Entity
-@Table(name = "id_issuer")
+@Table(name = "id_issuer", uniqueConstraints = {
+    @UniqueConstraint(columnNames = { "entity_id" }),
+    @UniqueConstraint(columnNames = { "entity_uid", "entity_uid_type" }) })
 public class Issuer extends org.dcm4che3.data.Issuer {
 
     private static final long serialVersionUID = -3985937520970392728L;
@@ -103,6 +106,15 @@ public class Issuer extends org.dcm4che3.data.Issuer {
         super(other);
     }
 
+    /**
+     * Creates a detached instance of the persistent issuer with the
+     * specified primary key.
+     */
+    public Issuer(long pk, org.dcm4che3.data.Issuer other) {
+        super(other);
+        this.pk = pk;
+    }
+
     public long getPk() {
         return pk;
     }
@@ -67,7 +67,14 @@ import javax.persistence.Table;
     query = "SELECT l FROM Location l "
             + "WHERE l.status = ?1 "
             + "AND l.createdTime < ?2 "
-            + "AND l.storageSystemGroupID IN (?3)")
+            + "AND l.storageSystemGroupID IN (?3)"),
+@NamedQuery(
+    name=Location.FIND_PK_BY_SOP_IUID_AND_STORAGE_PATH,
+    query = "SELECT l.pk, l.entryName FROM Instance i JOIN i.locations l "
+            + "WHERE i.sopInstanceUID = ?1 "
+            + "AND l.storageSystemGroupID = ?2 "
+            + "AND l.storageSystemID = ?3 "
+            + "AND l.storagePath = ?4")
 })
 @Entity
 @Table(name = "location")
@@ -78,6 +85,9 @@ public class Location implements Serializable {
     public static final String FIND_BY_STATUS_AND_STORAGE_GROUP_IDS =
             "Location.findByStatusAndStorageGroupIDS";
 
+    public static final String FIND_PK_BY_SOP_IUID_AND_STORAGE_PATH =
+            "Location.findPkBySOPInstanceUIDAndStoragePath";
+
     public enum Status {
         OK, DELETE_FAILED, TO_ARCHIVE, ARCHIVED, ARCHIVE_FAILED, QUERY_FAILED, VERIFY_FAILED
     };
@@ -60,13 +60,8 @@ public class PatientStudySeriesAttributes {
     }
 
     public Attributes getAttributes() {
-        Attributes patientAttrs = new Attributes();
-        Attributes studyAttrs = new Attributes();
-        Attributes seriesAttrs = new Attributes();
-        Utils.decodeAttributes(patientAttrs, patientBytes);
-        Utils.decodeAttributes(studyAttrs, studyBytes);
-        Utils.decodeAttributes(seriesAttrs, seriesBytes);
-        return Utils.mergeAndNormalize(patientAttrs, studyAttrs, seriesAttrs);
+        return AttributesCache.getDefault().mergeAndNormalize(
+                patientBytes, studyBytes, seriesBytes);
     }
 
 }
@@ -46,6 +46,7 @@ import javax.persistence.Basic;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -111,7 +112,11 @@ import org.dcm4chee.archive.conf.AttributeFilter;
             + "s.attributesBlob.encodedAttributes, "
             + "s.study.attributesBlob.encodedAttributes, "
             + "s.study.patient.attributesBlob.encodedAttributes) "
-            + "FROM Series s WHERE s.pk = ?1")
+            + "FROM Series s WHERE s.pk = ?1"),
+@NamedQuery(
+    name=Series.COUNT_NOT_REJECTED_OF_STUDY,
+    query="SELECT COUNT(se) FROM Series se "
+            + "WHERE se.study = ?1 AND se.rejected = false")
 })
 @Entity
 @Table(name = "series")
@@ -124,6 +129,7 @@ public class Series implements Serializable {
     public static final String PATIENT_STUDY_SERIES_ATTRIBUTES = "Series.patientStudySeriesAttributes";
     public static final String FIND_BY_STUDY_INSTANCE_UID_AND_SOURCE_AET = "Series.findByStudyInstanceUIDAndSourceAET";
     public static final String FIND_BY_SERIES_INSTANCE_UID_FETCH_REQ_ATTRS = "Series.findBySeriesInstanceUIDFetchReqAttrs";
+    public static final String COUNT_NOT_REJECTED_OF_STUDY = "Series.countNotRejectedOfStudy";
 
     @Id
     @GeneratedValue(strategy=GenerationType.IDENTITY)
@@ -209,6 +215,10 @@ public class Series implements Serializable {
     @Column(name = "src_aet")
     private String sourceAET;
 
+    @Basic(optional = false)
+    @Column(name = "rejected")
+    private boolean rejected = true;
+
     @OneToOne(fetch=FetchType.LAZY, cascade=CascadeType.ALL, orphanRemoval = true, optional = false)
     @JoinColumn(name = "dicomattrs_fk")
     private AttributesBlob attributesBlob;
@@ -412,6 +422,35 @@ public class Series implements Serializable {
             queryAttributes.clear();
     }
 
+    /**
+     * Returns <code>true</code> if the Series does not contain any not
+     * rejected Instance - in particular, if all its Instances are rejected or
+     * deleted. Maintained on rejection, restore and deletion of Instances by
+     * {@link #updateRejected(EntityManager)} and on storage of Instances by
+     * {@link #setRejected(boolean)}, so it can be checked without loading
+     * the Instances of the Series. A new Series is rejected until its first
+     * Instance is stored.
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public void setRejected(boolean rejected) {
+        this.rejected = rejected;
+    }
+
+    /**
+     * Sets the rejected state of this Series by counting its not rejected
+     * Instances in the database, without loading them. Only invoke it after
+     * rejection or deletion of Instances.
+     */
+    public void updateRejected(EntityManager em) {
+        rejected = em.createNamedQuery(
+                Instance.COUNT_NOT_REJECTED_OF_SERIES, Long.class)
+                .setParameter(1, this)
+                .getSingleResult() == 0L;
+    }
+
     public void setAttributes(Attributes attrs, AttributeFilter filter, FuzzyStr fuzzyStr) {
         seriesInstanceUID = attrs.getString(Tag.SeriesInstanceUID);
         seriesNumber = attrs.getString(Tag.SeriesNumber, "*");
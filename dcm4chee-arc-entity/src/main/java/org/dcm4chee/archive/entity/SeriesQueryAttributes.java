@@ -119,6 +119,36 @@ public class SeriesQueryAttributes {
         this.availability = availability;
     }
 
+    /**
+     * Adds a received Instance to the Number of Series Related Instances,
+     * the Retrieve AE Titles common to all Instances and the worst
+     * Availability of the Series.
+     */
+    public void addInstance(Instance inst) {
+        if (numberOfInstances++ == 0) {
+            setRetrieveAETs(inst.getRetrieveAETs());
+            availability = inst.getAvailability();
+        } else {
+            setRetrieveAETs(Utils.intersection(
+                    getRetrieveAETs(), inst.getRetrieveAETs()));
+            if (availability.compareTo(inst.getAvailability()) < 0)
+                availability = inst.getAvailability();
+        }
+    }
+
+    /**
+     * Removes a rejected or deleted Instance from the Number of Series
+     * Related Instances. The Retrieve AE Titles and the Availability are
+     * only reset, if no Instance remains; otherwise the caller has to check
+     * if they are still determined by the remaining Instances.
+     */
+    public void removeInstance() {
+        if (--numberOfInstances == 0) {
+            retrieveAETs = null;
+            availability = null;
+        }
+    }
+
     public Series getSeries() {
         return series;
     }
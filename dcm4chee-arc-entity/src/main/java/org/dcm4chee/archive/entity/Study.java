@@ -46,6 +46,7 @@ import javax.persistence.Basic;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityManager;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -155,6 +156,10 @@ public class Study implements Serializable {
     @Column(name = "access_control_id")
     private String accessControlID;
 
+    @Basic(optional = false)
+    @Column(name = "rejected")
+    private boolean rejected = true;
+
     @OneToOne(fetch=FetchType.LAZY, cascade=CascadeType.ALL, orphanRemoval = true, optional = false)
     @JoinColumn(name = "dicomattrs_fk")
     private AttributesBlob attributesBlob;
@@ -307,6 +312,32 @@ public class Study implements Serializable {
         if (queryAttributes != null)
             queryAttributes.clear();
     }
+
+    /**
+     * Returns <code>true</code> if all Series of this Study are rejected or
+     * if the Study does not contain any Series.
+     *
+     * @see Series#isRejected()
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public void setRejected(boolean rejected) {
+        this.rejected = rejected;
+    }
+
+    /**
+     * Sets the rejected state of this Study by counting its not rejected
+     * Series in the database, without loading them. Only invoke it after
+     * the rejected state of a Series changed or a Series was deleted.
+     */
+    public void updateRejected(EntityManager em) {
+        rejected = em.createNamedQuery(
+                Series.COUNT_NOT_REJECTED_OF_STUDY, Long.class)
+                .setParameter(1, this)
+                .getSingleResult() == 0L;
+    }
     
     public long getVersion() {
         return version;
@@ -38,6 +38,8 @@
 
 package org.dcm4chee.archive.entity;
 
+import java.util.Arrays;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
@@ -129,7 +131,7 @@ public class StudyQueryAttributes {
     }
 
     public String getRawSOPClassesInStudy() {
-        return retrieveAETs;
+        return sopClassesInStudy;
     }
 
     public String[] getSOPClassesInStudy() {
@@ -160,6 +162,92 @@ public class StudyQueryAttributes {
         this.availability = availability;
     }
 
+    /**
+     * Adds a received Instance to the Number of Study Related Instances and
+     * Series, the Modalities and SOP Classes in Study, the Retrieve AE Titles
+     * common to all Instances and the worst Availability of the Study.
+     *
+     * @param inst received Instance
+     * @param firstOfSeries <code>true</code> if <code>inst</code> is the
+     *        first Instance of its Series in this view
+     */
+    public void addInstance(Instance inst, boolean firstOfSeries) {
+        if (numberOfInstances++ == 0) {
+            setRetrieveAETs(inst.getRetrieveAETs());
+            availability = inst.getAvailability();
+        } else {
+            setRetrieveAETs(Utils.intersection(
+                    getRetrieveAETs(), inst.getRetrieveAETs()));
+            if (availability.compareTo(inst.getAvailability()) < 0)
+                availability = inst.getAvailability();
+        }
+        if (firstOfSeries) {
+            numberOfSeries++;
+            modalitiesInStudy = add(modalitiesInStudy,
+                    inst.getSeries().getModality());
+        }
+        sopClassesInStudy = add(sopClassesInStudy, inst.getSopClassUID());
+    }
+
+    /**
+     * Removes a rejected or deleted Instance from the Number of Study Related
+     * Instances and Series and from the Modalities and SOP Classes in Study.
+     * The Retrieve AE Titles and the Availability are only reset, if no
+     * Instance remains; otherwise the caller has to check if they are still
+     * determined by the remaining Instances.
+     *
+     * @param inst removed Instance
+     * @param lastOfSeries <code>true</code> if <code>inst</code> was the
+     *        last Instance of its Series in this view
+     * @param lastOfModality <code>true</code> if no other Series with the
+     *        Modality of the Series of <code>inst</code> remains in this view
+     * @param lastOfSOPClass <code>true</code> if no other Instance of the
+     *        SOP Class of <code>inst</code> remains in this view
+     */
+    public void removeInstance(Instance inst, boolean lastOfSeries,
+            boolean lastOfModality, boolean lastOfSOPClass) {
+        if (--numberOfInstances == 0) {
+            numberOfSeries = 0;
+            modalitiesInStudy = null;
+            sopClassesInStudy = null;
+            retrieveAETs = null;
+            availability = null;
+            return;
+        }
+        if (lastOfSeries) {
+            numberOfSeries--;
+            if (lastOfModality)
+                modalitiesInStudy = remove(modalitiesInStudy,
+                        inst.getSeries().getModality());
+        }
+        if (lastOfSOPClass)
+            sopClassesInStudy = remove(sopClassesInStudy, inst.getSopClassUID());
+    }
+
+    private static String remove(String values, String value) {
+        if (value == null || values == null)
+            return values;
+        String[] ss = StringUtils.split(values, '\\');
+        String[] remaining = new String[ss.length];
+        int n = 0;
+        for (String s : ss)
+            if (!value.equals(s))
+                remaining[n++] = s;
+        return n == ss.length
+                ? values
+                : StringUtils.concat(Arrays.copyOf(remaining, n), '\\');
+    }
+
+    private static String add(String values, String value) {
+        if (value == null)
+            return values;
+        if (values == null || values.isEmpty())
+            return value;
+        return Utils.contains(StringUtils.split(values, '\\'), value)
+                ? values
+                : values + '\\' + value;
+    }
+
     public Study getStudy() {
         return study;
     }
@@ -0,0 +1,125 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+public class AttributesCacheTest {
+
+    private static byte[] encode(int tag, VR vr, String value) {
+        Attributes attrs = new Attributes();
+        attrs.setString(tag, vr, value);
+        return Utils.encodeAttributes(attrs);
+    }
+
+    @Test
+    public void testHitOnSameContent() {
+        AttributesCache cache = new AttributesCache(10);
+        byte[] patient = encode(Tag.PatientID, VR.LO, "PID");
+        byte[] study = encode(Tag.StudyID, VR.SH, "1");
+        Attributes attrs1 = cache.mergeAndNormalize(patient, study);
+        Attributes attrs2 = cache.mergeAndNormalize(patient.clone(),
+                study.clone());
+        assertEquals("PID", attrs2.getString(Tag.PatientID));
+        assertEquals("1", attrs2.getString(Tag.StudyID));
+        assertEquals(attrs1, attrs2);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testMissOnUpdatedContent() {
+        AttributesCache cache = new AttributesCache(10);
+        byte[] patient = encode(Tag.PatientID, VR.LO, "PID");
+        cache.mergeAndNormalize(patient, encode(Tag.StudyID, VR.SH, "1"));
+        Attributes attrs = cache.mergeAndNormalize(patient,
+                encode(Tag.StudyID, VR.SH, "2"));
+        assertEquals("2", attrs.getString(Tag.StudyID));
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testReturnsCopy() {
+        AttributesCache cache = new AttributesCache(10);
+        byte[] patient = encode(Tag.PatientID, VR.LO, "PID");
+        cache.mergeAndNormalize(patient).setNull(Tag.PatientID, VR.LO);
+        assertEquals("PID",
+                cache.mergeAndNormalize(patient).getString(Tag.PatientID));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        AttributesCache cache = new AttributesCache(2);
+        byte[] a = encode(Tag.PatientID, VR.LO, "A");
+        byte[] b = encode(Tag.PatientID, VR.LO, "B");
+        byte[] c = encode(Tag.PatientID, VR.LO, "C");
+        cache.mergeAndNormalize(a);
+        cache.mergeAndNormalize(b);
+        cache.mergeAndNormalize(a);
+        cache.mergeAndNormalize(c);
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        cache.mergeAndNormalize(a);
+        assertEquals(2, cache.getHits());
+        cache.mergeAndNormalize(b);
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testDisabled() {
+        AttributesCache cache = new AttributesCache(10);
+        byte[] patient = encode(Tag.PatientID, VR.LO, "PID");
+        cache.mergeAndNormalize(patient);
+        cache.setMaxSize(0);
+        assertEquals(0, cache.getSize());
+        assertEquals("PID",
+                cache.mergeAndNormalize(patient).getString(Tag.PatientID));
+        assertEquals(0, cache.getSize());
+        assertNull(cache.mergeAndNormalize(
+                encode(Tag.StudyID, VR.SH, "1")).getString(Tag.PatientID));
+    }
+}
@@ -116,4 +116,20 @@ public class StudyIT {
 
         assertThat(study.getPk(), is(2L));
     }
+
+    @Test
+    public void updateRejected_shouldRejectStudy_whenAllSeriesAreRejected() {
+        Study study = entityManager.find(Study.class, 1L);
+        study.updateRejected(entityManager);
+
+        assertThat(study.isRejected(), is(true));
+    }
+
+    @Test
+    public void updateRejected_shouldNotRejectStudy_whenOneSeriesIsNotRejected() {
+        Study study = entityManager.find(Study.class, 2L);
+        study.updateRejected(entityManager);
+
+        assertThat(study.isRejected(), is(false));
+    }
 }
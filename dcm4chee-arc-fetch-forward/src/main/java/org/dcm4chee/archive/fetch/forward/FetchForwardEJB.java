@@ -40,6 +40,10 @@ package org.dcm4chee.archive.fetch.forward;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Stateless;
 import javax.inject.Inject;
@@ -62,6 +66,8 @@ import org.dcm4chee.storage.conf.StorageDeviceExtension;
 @Stateless
 public class FetchForwardEJB {
 
+    private static final int MAX_UIDS_PER_QUERY = 500;
+
     @Inject
     private Device device;
 
@@ -69,19 +75,17 @@ public class FetchForwardEJB {
     private EntityManager em;
 
     @SuppressWarnings("unchecked")
-    private ArchiveInstanceLocator relocateandBuild(ArchiveInstanceLocator loc) {
-        ArrayList<Instance> list = new ArrayList<Instance>();
-        ArrayList<String> uids = new ArrayList<String>();
-        uids.add(loc.iuid);
+    private void relocateandBuild(List<String> uids,
+            Map<String, ArchiveInstanceLocator> newLocators) {
         Query query = em
                 .createNamedQuery(Instance.FIND_BY_SOP_INSTANCE_UID_EAGER_MANY);
         query.setParameter("uids", uids);
-        list = (ArrayList<Instance>) query.getResultList();
-        Instance inst = list.get(0);
-        Location location = withBulkData(inst.getLocations());
-        if (location == null)
-            return null;
-        return createArchiveInstanceLocator(inst, location);
+        for (Instance inst : (List<Instance>) query.getResultList()) {
+            Location location = withBulkData(inst.getLocations());
+            if (location != null)
+                newLocators.put(inst.getSopInstanceUID(),
+                        createArchiveInstanceLocator(inst, location));
+        }
     }
 
     private Location withBulkData(Collection<Location> locations) {
@@ -118,6 +122,30 @@ public class FetchForwardEJB {
     }
 
     public ArchiveInstanceLocator updateLocator(ArchiveInstanceLocator locator) {
-        return relocateandBuild(locator);
+        return updateLocators(Collections.singleton(locator)).get(locator.iuid);
+    }
+
+    /**
+     * Returns locators of the local copies of the specified instances by
+     * SOP Instance UID, selecting up to {@value #MAX_UIDS_PER_QUERY}
+     * instances by one query. Instances not (yet) stored locally are
+     * omitted.
+     */
+    public Map<String, ArchiveInstanceLocator> updateLocators(
+            Collection<ArchiveInstanceLocator> locators) {
+        HashMap<String, ArchiveInstanceLocator> newLocators =
+                new HashMap<String, ArchiveInstanceLocator>(locators.size() * 4 / 3 + 1);
+        ArrayList<String> uids = new ArrayList<String>(
+                Math.min(locators.size(), MAX_UIDS_PER_QUERY));
+        for (ArchiveInstanceLocator locator : locators) {
+            uids.add(locator.iuid);
+            if (uids.size() == MAX_UIDS_PER_QUERY) {
+                relocateandBuild(uids, newLocators);
+                uids.clear();
+            }
+        }
+        if (!uids.isEmpty())
+            relocateandBuild(uids, newLocators);
+        return newLocators;
     }
 }
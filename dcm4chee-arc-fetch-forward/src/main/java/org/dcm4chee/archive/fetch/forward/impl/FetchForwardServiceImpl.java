@@ -41,11 +41,14 @@ package org.dcm4chee.archive.fetch.forward.impl;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -71,8 +74,6 @@ import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
 import org.dcm4chee.archive.fetch.forward.FetchForwardEJB;
 import org.dcm4chee.archive.fetch.forward.FetchForwardService;
 import org.dcm4chee.archive.retrieve.scu.CMoveSCUService;
-import org.dcm4chee.archive.wado.client.InstanceAvailableCallback;
-import org.dcm4chee.archive.wado.client.WadoClientService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -94,7 +95,7 @@ public class FetchForwardServiceImpl implements FetchForwardService {
     private FetchForwardEJB ejb;
 
     @Inject
-    private WadoClientService wadoClientService;
+    private WadoFetchEngine fetchEngine;
 
     @Inject
     private DicomConfiguration config;
@@ -139,15 +140,8 @@ public class FetchForwardServiceImpl implements FetchForwardService {
                             getPreferedStudyLocationsList(instanceRetrieveMap,
                                     studyUID), fetchAE.getAETitle());
         }
-        ArrayList<ArchiveInstanceLocator> updatedLocators = new ArrayList<ArchiveInstanceLocator>(); 
-        for(Iterator<ArchiveInstanceLocator> iter = externallyAvailable.iterator(); iter.hasNext();) {
-            ArchiveInstanceLocator current = iter.next();
-            ArchiveInstanceLocator newLocator = ejb.updateLocator(current);
-            if(newLocator != null)
-                updatedLocators.add(newLocator);
-            else 
-                failedInstances.add(current);
-        }
+        ArrayList<ArchiveInstanceLocator> updatedLocators =
+                updateLocators(externallyAvailable, failedInstances);
         //send fetched instances
         callBack.onFetch(updatedLocators, null);
         return failedInstances;
@@ -189,12 +183,8 @@ public class FetchForwardServiceImpl implements FetchForwardService {
                             getPreferedStudyLocationsList(instanceRetrieveMap,
                                     studyUID), fetchAE.getAETitle());
         }
-        ArrayList<ArchiveInstanceLocator> updatedLocators = new ArrayList<ArchiveInstanceLocator>(); 
-        for(Iterator<ArchiveInstanceLocator> iter = externallyAvailable.iterator(); iter.hasNext();) {
-            ArchiveInstanceLocator newLocator = ejb.updateLocator(iter.next());
-            if(newLocator != null)
-                updatedLocators.add(newLocator);
-        }
+        ArrayList<ArchiveInstanceLocator> updatedLocators =
+                updateLocators(externallyAvailable, null);
         //send fetched instances
         callBack.onFetch(updatedLocators, finalResponse);
         
@@ -206,94 +196,55 @@ public class FetchForwardServiceImpl implements FetchForwardService {
             List<ArchiveInstanceLocator> externallyAvailable, 
             final FetchForwardCallBack wadoFetchCallBack, 
             final FetchForwardCallBack moveFetchCallBack) {
-        ArrayList<String> sentInstances = new ArrayList<String>();
         final ArrayList<ArchiveInstanceLocator> failedInstances = new ArrayList<ArchiveInstanceLocator>();
-        ApplicationEntity localAE = device.getApplicationEntity(localAETitle);
-        final HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap = new HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
         final ArrayList<ArchiveInstanceLocator> updatedLocators = new ArrayList<ArchiveInstanceLocator>();
-        for (int current = 0; current < externallyAvailable.size(); current++) {
-            final ArchiveInstanceLocator externalLoc = externallyAvailable
-                    .get(current);
-            
-            if(sentInstances.contains(externalLoc.iuid))
-                continue;
-            
-            ArrayList<ApplicationEntity> remoteArchiveAEs = listBestExternalLocation(externalLoc, localAE);
-            if (remoteArchiveAEs.isEmpty())
-                continue;
-            // collect retrieveMap
-            instanceRetrieveMap.put(externalLoc, remoteArchiveAEs);
-            for (int i = 0; i < remoteArchiveAEs.size(); i++) {
-                //pick protocol
-                WebServiceAEExtension webAEExt = remoteArchiveAEs.get(i).getAEExtension(WebServiceAEExtension.class);
-                if(webAEExt != null && webAEExt.getWadoRSBaseURL()!=null) {
-                if (wadoClientService.fetchInstance(
-                        localAE,
-                        remoteArchiveAEs.get(i),
-                        externalLoc.getStudyInstanceUID(),
-                        externalLoc.getSeriesInstanceUID(), 
-                        externalLoc.iuid,
-                        new InstanceAvailableCallback() {
-
-                            @Override
-                            public void onInstanceAvailable(
-                                    ArchiveInstanceLocator inst) {
-                                ArrayList<ArchiveInstanceLocator> matches
-                                = new ArrayList<ArchiveInstanceLocator>();
-                                matches.add(inst);
-                                if(wadoFetchCallBack != null)
-                                wadoFetchCallBack.onFetch(matches, null);
-                                updatedLocators.add(inst);
-                            }
-                        }) != null)
-                    break;
-            }
-                else {
-                    ApplicationEntity fetchAE;
-                    try {
-                        fetchAE = getFetchAE(localAE);
-                    } catch (ConfigurationException e) {
-                        LOG.error("Unable to get fetchAE from configuration for device {}",
-                                device);
-                        
-                        for(ArchiveInstanceLocator loc : externallyAvailable)
-                        failedInstances.add(loc);
-                        
-                        return failedInstances;
-                    }
-                    HashMap<String, Integer> studyUIDs = toStudyUIDs(instanceRetrieveMap
-                            .keySet());
-                    for (String studyUID : studyUIDs.keySet()) {
-                        cmoveSCUService
-                                .moveStudy(
-                                        fetchAE,
-                                        studyUID,
-                                        studyUIDs.get(studyUID),
-                                        null,
-                                        getPreferedStudyLocationsList(instanceRetrieveMap,
-                                                studyUID), fetchAE.getAETitle());
-                    }
-                    for(Iterator<ArchiveInstanceLocator> iter = externallyAvailable.iterator(); iter.hasNext();) {
-                        ArchiveInstanceLocator currentLocation = iter.next();
-                        ArchiveInstanceLocator newLocator = ejb.updateLocator(currentLocation);
-                        if(newLocator != null)
-                            updatedLocators.add(newLocator);
-                        else 
-                            failedInstances.add(currentLocation);
+        ApplicationEntity localAE = device.getApplicationEntity(localAETitle);
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap =
+                toInstanceRetrieveMap(externallyAvailable, localAE);
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> moveRetrieveMap =
+                new LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> wadoRetrieveMap =
+                splitByProtocol(instanceRetrieveMap, moveRetrieveMap);
+
+        List<ArchiveInstanceLocator> wadoFailed = fetchEngine.fetch(localAE,
+                wadoRetrieveMap, new FetchForwardCallBack() {
+
+                    @Override
+                    public void onFetch(
+                            Collection<ArchiveInstanceLocator> instances,
+                            BasicCStoreSCUResp resp) {
+                        updatedLocators.addAll(instances);
+                        if (wadoFetchCallBack != null)
+                            wadoFetchCallBack.onFetch(instances, resp);
                     }
-                    //send fetched instances
-                    if(moveFetchCallBack != null)
-                    moveFetchCallBack.onFetch(updatedLocators, null);
-                    for(ArchiveInstanceLocator loc : updatedLocators)
-                    sentInstances.add(loc.iuid);
-                    break;
-                }
+                }, null, null);
+        addMoveFallback(wadoFailed, instanceRetrieveMap, moveRetrieveMap,
+                failedInstances);
+
+        if (!moveRetrieveMap.isEmpty()) {
+            ApplicationEntity fetchAE;
+            try {
+                fetchAE = getFetchAE(localAE);
+            } catch (ConfigurationException e) {
+                LOG.error("Unable to get fetchAE from configuration for device {}",
+                        device);
+                failedInstances.addAll(moveRetrieveMap.keySet());
+                fetchAE = null;
+            }
+            if (fetchAE != null) {
+                moveStudies(fetchAE, moveRetrieveMap);
+                ArrayList<ArchiveInstanceLocator> movedLocators =
+                        updateLocators(moveRetrieveMap.keySet(), failedInstances);
+                //send fetched instances
+                if (moveFetchCallBack != null)
+                    moveFetchCallBack.onFetch(movedLocators, null);
+                updatedLocators.addAll(movedLocators);
             }
         }
         externallyAvailable.clear();
-         externallyAvailable.addAll(updatedLocators);
+        externallyAvailable.addAll(updatedLocators);
         return failedInstances;
-        }
+    }
 
 
     @Override
@@ -301,40 +252,10 @@ public class FetchForwardServiceImpl implements FetchForwardService {
             String localAETitle,
             List<ArchiveInstanceLocator> externallyAvailable,
             final FetchForwardCallBack callBack) {
-        final ArrayList<ArchiveInstanceLocator> failedInstances = new ArrayList<ArchiveInstanceLocator>();
         ApplicationEntity localAE = device.getApplicationEntity(localAETitle);
-        for(int current = 0; current < externallyAvailable.size(); current++) {
-            final ArchiveInstanceLocator externalLoc = externallyAvailable
-                    .get(current);
-            ArrayList<ApplicationEntity> remoteArchiveAETitles = 
-                    listBestExternalLocation(externalLoc, localAE);
-            if(remoteArchiveAETitles.isEmpty())
-                continue;
-            for (int i = 0; i < remoteArchiveAETitles.size(); i++) {
-                if (wadoClientService.fetchInstance(
-                        localAE,
-                        remoteArchiveAETitles.get(i),
-                        externalLoc.getStudyInstanceUID(),
-                        externalLoc.getSeriesInstanceUID(), 
-                        externalLoc.iuid,
-                        new InstanceAvailableCallback() {
-
-                            @Override
-                            public void onInstanceAvailable(
-                                    ArchiveInstanceLocator inst) {
-                                ArrayList<ArchiveInstanceLocator> matches
-                                = new ArrayList<ArchiveInstanceLocator>();
-                                matches.add(inst);
-                                if(inst.getStorageSystem() != null)
-                                    callBack.onFetch(matches, null);
-                                else
-                                    failedInstances.add(inst);
-                            }
-                        }) != null)
-                    break;
-            }
-    }
-        return failedInstances;
+        return new ArrayList<ArchiveInstanceLocator>(fetchEngine.fetch(localAE,
+                toInstanceRetrieveMap(externallyAvailable, localAE),
+                callBack, null, null));
     }
 
 
@@ -343,37 +264,9 @@ public class FetchForwardServiceImpl implements FetchForwardService {
             final int allInstances, final BasicCStoreSCUResp finalResponse, final List<ArchiveInstanceLocator> externallyAvailable,
             final Association storeas, final int priority, final FetchForwardCallBack callBack) {
         ApplicationEntity localAE = device.getApplicationEntity(storeas.getLocalAET());
-        for(int current = 0; current < externallyAvailable.size(); current++) {
-            if(storeas.isReadyForDataTransfer()) {
-            final ArchiveInstanceLocator externalLoc = externallyAvailable
-                    .get(current);
-            ArrayList<ApplicationEntity> remoteArchiveAETitles = 
-                    listBestExternalLocation(externalLoc, localAE);
-            if(remoteArchiveAETitles.isEmpty())
-                continue;
-            for (int i = 0; i < remoteArchiveAETitles.size(); i++) {
-                if (wadoClientService.fetchInstance(
-                        localAE,
-                        remoteArchiveAETitles.get(i),
-                        externalLoc.getStudyInstanceUID(),
-                        externalLoc.getSeriesInstanceUID(), 
-                        externalLoc.iuid,
-                        new InstanceAvailableCallback() {
-
-                            @Override
-                            public void onInstanceAvailable(
-                                    ArchiveInstanceLocator inst) {
-                                ArrayList<ArchiveInstanceLocator> matches
-                                = new ArrayList<ArchiveInstanceLocator>();
-                                matches.add(inst);
-                                callBack.onFetch(matches, finalResponse);
-                            }
-                        }) != null)
-                    break;
-            }
-        }
-        }
-
+        fetchEngine.fetch(localAE,
+                toInstanceRetrieveMap(externallyAvailable, localAE),
+                callBack, finalResponse, storeas);
         return finalResponse;
     }
 
@@ -382,87 +275,137 @@ public class FetchForwardServiceImpl implements FetchForwardService {
             final int allInstances, final BasicCStoreSCUResp finalResponse, final List<ArchiveInstanceLocator> externallyAvailable,
             final Association storeas, final int priority, final FetchForwardCallBack wadoFetchCallBack, 
             final FetchForwardCallBack moveFetchCallBack) {
-        final HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap = new HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
-        ArrayList<String> sentInstances = new ArrayList<String>();
         ApplicationEntity localAE = device.getApplicationEntity(storeas.getLocalAET());
-        for(int current = 0; current < externallyAvailable.size(); current++) {
-            if(storeas.isReadyForDataTransfer()) {
-            final ArchiveInstanceLocator externalLoc = externallyAvailable
-                    .get(current);
-            
-            if(sentInstances.contains(externalLoc.iuid))
-                continue;
-            
-            ArrayList<ApplicationEntity> remoteArchiveAEs = 
-                    listBestExternalLocation(externalLoc, localAE);
-            if(remoteArchiveAEs.isEmpty())
-                continue;
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap =
+                toInstanceRetrieveMap(externallyAvailable, localAE);
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> moveRetrieveMap =
+                new LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> wadoRetrieveMap =
+                splitByProtocol(instanceRetrieveMap, moveRetrieveMap);
+
+        List<ArchiveInstanceLocator> wadoFailed = fetchEngine.fetch(localAE,
+                wadoRetrieveMap, wadoFetchCallBack, finalResponse, storeas);
+        addMoveFallback(wadoFailed, instanceRetrieveMap, moveRetrieveMap,
+                new ArrayList<ArchiveInstanceLocator>());
+
+        if (moveRetrieveMap.isEmpty() || !storeas.isReadyForDataTransfer())
+            return finalResponse;
 
-            instanceRetrieveMap.put(externalLoc, remoteArchiveAEs);
-            for (int i = 0; i < remoteArchiveAEs.size(); i++) {
-                //pick protocol
-                WebServiceAEExtension webAEExt = remoteArchiveAEs.get(i).getAEExtension(WebServiceAEExtension.class);
-                if(webAEExt != null && webAEExt.getWadoRSBaseURL()!=null) {
-                if (wadoClientService.fetchInstance(
-                        localAE,
-                        remoteArchiveAEs.get(i),
-                        externalLoc.getStudyInstanceUID(),
-                        externalLoc.getSeriesInstanceUID(), 
-                        externalLoc.iuid,
-                        new InstanceAvailableCallback() {
-
-                            @Override
-                            public void onInstanceAvailable(
-                                    ArchiveInstanceLocator inst) {
-                                ArrayList<ArchiveInstanceLocator> matches
-                                = new ArrayList<ArchiveInstanceLocator>();
-                                matches.add(inst);
-                                wadoFetchCallBack.onFetch(matches, finalResponse);
-                            }
-                        }) != null)
-                    break;
-            }
-                else {
-                    ApplicationEntity fetchAE;
-                    try {
-                        fetchAE = getFetchAE(localAE);
-                    } catch (ConfigurationException e) {
-                        LOG.error("Unable to get fetchAE from configuration for device {}",
-                                device);
-                        return finalResponse;
-                    }
-                    HashMap<String, Integer> studyUIDs = toStudyUIDs(instanceRetrieveMap
-                            .keySet());
-                    for (String studyUID : studyUIDs.keySet()) {
-                        cmoveSCUService
-                                .moveStudy(
-                                        fetchAE,
-                                        studyUID,
-                                        studyUIDs.get(studyUID),
-                                        null,
-                                        getPreferedStudyLocationsList(instanceRetrieveMap,
-                                                studyUID), fetchAE.getAETitle());
-                    }
-                    ArrayList<ArchiveInstanceLocator> updatedLocators = new ArrayList<ArchiveInstanceLocator>(); 
-                    for(Iterator<ArchiveInstanceLocator> iter = externallyAvailable.iterator(); iter.hasNext();) {
-                        ArchiveInstanceLocator newLocator = ejb.updateLocator(iter.next());
-                        if(newLocator != null)
-                            updatedLocators.add(newLocator);
-                    }
-                    //send fetched instances
-                    moveFetchCallBack.onFetch(updatedLocators, finalResponse);
-                    
-                    for(ArchiveInstanceLocator loc : updatedLocators)
-                    sentInstances.add(loc.iuid);
-                    break;
-                }
-            }
+        ApplicationEntity fetchAE;
+        try {
+            fetchAE = getFetchAE(localAE);
+        } catch (ConfigurationException e) {
+            LOG.error("Unable to get fetchAE from configuration for device {}",
+                    device);
+            return finalResponse;
         }
+        moveStudies(fetchAE, moveRetrieveMap);
+        ArrayList<ArchiveInstanceLocator> updatedLocators =
+                updateLocators(moveRetrieveMap.keySet(), null);
+        //send fetched instances
+        moveFetchCallBack.onFetch(updatedLocators, finalResponse);
+        return finalResponse;
+    }
+
+    /**
+     * Returns the locators of the local copies of moved instances, selected
+     * in batches, and adds instances not stored locally to
+     * {@code failedInstances}, if not {@code null}.
+     */
+    private ArrayList<ArchiveInstanceLocator> updateLocators(
+            Collection<ArchiveInstanceLocator> locators,
+            List<ArchiveInstanceLocator> failedInstances) {
+        Map<String, ArchiveInstanceLocator> newLocators =
+                ejb.updateLocators(locators);
+        ArrayList<ArchiveInstanceLocator> updatedLocators =
+                new ArrayList<ArchiveInstanceLocator>(newLocators.size());
+        for (ArchiveInstanceLocator locator : locators) {
+            ArchiveInstanceLocator newLocator = newLocators.get(locator.iuid);
+            if (newLocator != null)
+                updatedLocators.add(newLocator);
+            else if (failedInstances != null)
+                failedInstances.add(locator);
         }
+        return updatedLocators;
+    }
 
-        return finalResponse;
+    /**
+     * Returns the external archive AEs from which each instance may be
+     * fetched, skipping duplicate instances and instances without
+     * configured external archive.
+     */
+    private LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> toInstanceRetrieveMap(
+            List<ArchiveInstanceLocator> externallyAvailable,
+            ApplicationEntity localAE) {
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap =
+                new LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
+        HashSet<String> iuids = new HashSet<String>(externallyAvailable.size() * 4 / 3 + 1);
+        for (ArchiveInstanceLocator externalLoc : externallyAvailable) {
+            if (!iuids.add(externalLoc.iuid))
+                continue;
+            ArrayList<ApplicationEntity> remoteArchiveAEs = listBestExternalLocation(externalLoc, localAE);
+            if (!remoteArchiveAEs.isEmpty())
+                instanceRetrieveMap.put(externalLoc, remoteArchiveAEs);
+        }
+        return instanceRetrieveMap;
+    }
+
+    /**
+     * Returns instances whose preferred external archive AE supports
+     * WADO-RS, and adds all other instances to {@code moveRetrieveMap}.
+     */
+    private LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> splitByProtocol(
+            LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap,
+            LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> moveRetrieveMap) {
+        LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> wadoRetrieveMap =
+                new LinkedHashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>>();
+        for (Map.Entry<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> entry
+                : instanceRetrieveMap.entrySet()) {
+            if (WadoFetchEngine.supportsWadoRS(entry.getValue().get(0)))
+                wadoRetrieveMap.put(entry.getKey(), entry.getValue());
+            else
+                moveRetrieveMap.put(entry.getKey(), entry.getValue());
+        }
+        return wadoRetrieveMap;
+    }
+
+    /**
+     * Adds instances which failed to be fetched by WADO-RS to
+     * {@code moveRetrieveMap}, if they are also available at an external
+     * archive AE not supporting WADO-RS, otherwise to {@code failedInstances}.
+     */
+    private void addMoveFallback(List<ArchiveInstanceLocator> wadoFailed,
+            HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> instanceRetrieveMap,
+            HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> moveRetrieveMap,
+            List<ArchiveInstanceLocator> failedInstances) {
+        for (ArchiveInstanceLocator failed : wadoFailed) {
+            ArrayList<ApplicationEntity> remoteArchiveAEs = instanceRetrieveMap.get(failed);
+            boolean moveSCP = false;
+            for (ApplicationEntity ae : remoteArchiveAEs)
+                if (!WadoFetchEngine.supportsWadoRS(ae))
+                    moveSCP = true;
+            if (moveSCP)
+                moveRetrieveMap.put(failed, remoteArchiveAEs);
+            else
+                failedInstances.add(failed);
+        }
     }
 
+    private void moveStudies(ApplicationEntity fetchAE,
+            HashMap<ArchiveInstanceLocator, ArrayList<ApplicationEntity>> moveRetrieveMap) {
+        HashMap<String, Integer> studyUIDs = toStudyUIDs(moveRetrieveMap
+                .keySet());
+        for (String studyUID : studyUIDs.keySet()) {
+            cmoveSCUService
+                    .moveStudy(
+                            fetchAE,
+                            studyUID,
+                            studyUIDs.get(studyUID),
+                            null,
+                            getPreferedStudyLocationsList(moveRetrieveMap,
+                                    studyUID), fetchAE.getAETitle());
+        }
+    }
 
     private ApplicationEntity getFetchAE(ApplicationEntity localAE) throws ConfigurationException {
         return localAE
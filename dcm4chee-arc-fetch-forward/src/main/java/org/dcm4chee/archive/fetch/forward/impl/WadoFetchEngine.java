@@ -0,0 +1,390 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.fetch.forward.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4che3.net.web.WebServiceAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.wado.client.InstanceAvailableCallback;
+import org.dcm4chee.archive.wado.client.WadoClientService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches instances from external archives by WADO-RS in parallel.
+ * Concurrent requests for the same instances - e.g. by two viewers opening
+ * the same study - are coalesced into one in-flight fetch per instance.
+ * The number of threads and of concurrent fetches from one external archive
+ * AE are limited by {@link ArchiveDeviceExtension#getFetchThreads()} and
+ * {@link ArchiveDeviceExtension#getFetchThreadsPerRemoteAE()}.
+ * <p>
+ * Pending fetches are queued per external archive AE. A worker draining a
+ * queue is only passed to the device executor if neither limit is reached,
+ * so fetches from a busy external archive AE do not occupy threads which
+ * could fetch from other AEs.
+ */
+@ApplicationScoped
+public class WadoFetchEngine {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(WadoFetchEngine.class);
+
+    @Inject
+    Device device;
+
+    @Inject
+    WadoClientService wadoClientService;
+
+    private final ConcurrentMap<String, InstanceFetch> inFlight =
+            new ConcurrentHashMap<String, InstanceFetch>();
+
+    private final LinkedHashMap<String, RemoteAEQueue> queues =
+            new LinkedHashMap<String, RemoteAEQueue>();
+
+    private int maxThreads = 1;
+    private int maxPerRemoteAE = 1;
+    private int workers;
+
+    /**
+     * Fetches the specified instances and passes each fetched instance to
+     * {@code callBack} as soon as it is available, in the calling thread.
+     *
+     * @param remoteAEs
+     *            external archive AEs by instance, in order of preference
+     * @param storeas
+     *            association on which fetched instances are forwarded or
+     *            {@code null}. If it is no longer ready for data transfer,
+     *            waiting for further fetched instances is stopped.
+     * @return instances which could not be fetched
+     */
+    public List<ArchiveInstanceLocator> fetch(ApplicationEntity localAE,
+            Map<ArchiveInstanceLocator, ? extends List<ApplicationEntity>> remoteAEs,
+            FetchForwardCallBack callBack, BasicCStoreSCUResp response,
+            Association storeas) {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        setLimits(Math.max(1, arcDev.getFetchThreads()),
+                Math.max(1, arcDev.getFetchThreadsPerRemoteAE()));
+        BlockingQueue<InstanceFetch> landed =
+                new LinkedBlockingQueue<InstanceFetch>();
+        HashMap<String, ArchiveInstanceLocator> pending =
+                new HashMap<String, ArchiveInstanceLocator>(remoteAEs.size() * 4 / 3 + 1);
+        int coalesced = 0;
+        long start = System.currentTimeMillis();
+        for (Map.Entry<ArchiveInstanceLocator, ? extends List<ApplicationEntity>> entry
+                : remoteAEs.entrySet()) {
+            ArchiveInstanceLocator externalLoc = entry.getKey();
+            if (pending.containsKey(externalLoc.iuid))
+                continue;
+
+            pending.put(externalLoc.iuid, externalLoc);
+
+            InstanceFetch fetch = new InstanceFetch(localAE, externalLoc,
+                    entry.getValue());
+            InstanceFetch prev = inFlight.putIfAbsent(externalLoc.iuid, fetch);
+            if (prev != null) {
+                fetch = prev;
+                coalesced++;
+            } else {
+                schedule(fetch);
+            }
+            fetch.addWaiter(landed);
+        }
+
+        int fetched = 0;
+        ArrayList<ArchiveInstanceLocator> failed =
+                new ArrayList<ArchiveInstanceLocator>();
+        try {
+            while (!pending.isEmpty()) {
+                if (storeas != null && !storeas.isReadyForDataTransfer()) {
+                    LOG.info("{}: stop waiting for {} fetched instances",
+                            storeas, pending.size());
+                    break;
+                }
+                InstanceFetch fetch = storeas != null
+                        ? landed.poll(1, TimeUnit.SECONDS)
+                        : landed.take();
+                if (fetch == null)
+                    continue;
+
+                ArchiveInstanceLocator externalLoc = pending.remove(fetch.iuid);
+                ArchiveInstanceLocator inst = fetch.getResult();
+                if (inst == null) {
+                    failed.add(externalLoc);
+                    continue;
+                }
+                ArrayList<ArchiveInstanceLocator> matches =
+                        new ArrayList<ArchiveInstanceLocator>(1);
+                matches.add(inst);
+                callBack.onFetch(matches, response);
+                fetched++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted waiting for {} fetched instances",
+                    pending.size());
+        }
+        failed.addAll(pending.values());
+        LOG.info("Fetched {} of {} instances ({} coalesced with in-flight fetches) in {} ms",
+                new Object[] { fetched, fetched + failed.size(), coalesced,
+                        System.currentTimeMillis() - start });
+        return failed;
+    }
+
+    static boolean supportsWadoRS(ApplicationEntity ae) {
+        WebServiceAEExtension webAEExt =
+                ae.getAEExtension(WebServiceAEExtension.class);
+        return webAEExt != null && webAEExt.getWadoRSBaseURL() != null;
+    }
+
+    private synchronized void setLimits(int maxThreads, int maxPerRemoteAE) {
+        if (this.maxThreads == maxThreads
+                && this.maxPerRemoteAE == maxPerRemoteAE)
+            return;
+
+        this.maxThreads = maxThreads;
+        this.maxPerRemoteAE = maxPerRemoteAE;
+        dispatch();
+    }
+
+    /**
+     * Queues the fetch from the next external archive AE supporting WADO-RS
+     * or completes it as failed if there is none left.
+     */
+    private void schedule(InstanceFetch fetch) {
+        ApplicationEntity remoteAE = fetch.nextRemoteAE();
+        if (remoteAE == null) {
+            fetch.complete(null);
+            return;
+        }
+        synchronized (this) {
+            String aet = remoteAE.getAETitle();
+            RemoteAEQueue queue = queues.get(aet);
+            if (queue == null)
+                queues.put(aet, queue = new RemoteAEQueue(aet));
+            queue.pending.add(new FetchAttempt(fetch, remoteAE));
+            dispatch();
+        }
+    }
+
+    /**
+     * Starts workers for queues with pending fetches while the number of
+     * workers - in total and per external archive AE - is below its limit.
+     */
+    private synchronized void dispatch() {
+        for (Iterator<RemoteAEQueue> iter = queues.values().iterator();
+                iter.hasNext() && workers < maxThreads;) {
+            RemoteAEQueue queue = iter.next();
+            while (workers < maxThreads && queue.workers < maxPerRemoteAE
+                    && queue.workers < queue.pending.size()) {
+                workers++;
+                queue.workers++;
+                try {
+                    device.execute(new Worker(queue));
+                } catch (RejectedExecutionException | IllegalStateException e) {
+                    workers--;
+                    queue.workers--;
+                    LOG.warn("Failed to start fetch from {}", queue.aet, e);
+                    failPending(queue);
+                }
+            }
+        }
+    }
+
+    private void failPending(RemoteAEQueue queue) {
+        FetchAttempt attempt;
+        while ((attempt = queue.pending.poll()) != null)
+            attempt.fetch.complete(null);
+        if (queue.workers == 0)
+            queues.remove(queue.aet);
+    }
+
+    private synchronized FetchAttempt next(RemoteAEQueue queue) {
+        FetchAttempt attempt = queue.pending.poll();
+        if (attempt == null) {
+            workers--;
+            if (--queue.workers == 0)
+                queues.remove(queue.aet);
+            dispatch();
+        }
+        return attempt;
+    }
+
+    private static final class RemoteAEQueue {
+        final String aet;
+        final ArrayDeque<FetchAttempt> pending = new ArrayDeque<FetchAttempt>();
+        int workers;
+
+        RemoteAEQueue(String aet) {
+            this.aet = aet;
+        }
+    }
+
+    private static final class FetchAttempt {
+        final InstanceFetch fetch;
+        final ApplicationEntity remoteAE;
+
+        FetchAttempt(InstanceFetch fetch, ApplicationEntity remoteAE) {
+            this.fetch = fetch;
+            this.remoteAE = remoteAE;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        final RemoteAEQueue queue;
+
+        Worker(RemoteAEQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            FetchAttempt attempt;
+            while ((attempt = next(queue)) != null) {
+                ArchiveInstanceLocator inst = null;
+                try {
+                    inst = attempt.fetch.fetchFrom(attempt.remoteAE);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to fetch instance " + attempt.fetch.iuid
+                            + " from " + queue.aet, e);
+                }
+                if (inst != null)
+                    attempt.fetch.complete(inst);
+                else
+                    schedule(attempt.fetch);
+            }
+        }
+    }
+
+    private final class InstanceFetch {
+
+        final String iuid;
+        final ApplicationEntity localAE;
+        final ArchiveInstanceLocator externalLoc;
+        final List<ApplicationEntity> remoteAEs;
+        private final ArrayList<BlockingQueue<InstanceFetch>> waiters =
+                new ArrayList<BlockingQueue<InstanceFetch>>(1);
+        private int nextRemoteAE;
+        private boolean done;
+        private ArchiveInstanceLocator result;
+
+        InstanceFetch(ApplicationEntity localAE,
+                ArchiveInstanceLocator externalLoc,
+                List<ApplicationEntity> remoteAEs) {
+            this.iuid = externalLoc.iuid;
+            this.localAE = localAE;
+            this.externalLoc = externalLoc;
+            this.remoteAEs = remoteAEs;
+        }
+
+        synchronized void addWaiter(BlockingQueue<InstanceFetch> waiter) {
+            if (done)
+                waiter.add(this);
+            else
+                waiters.add(waiter);
+        }
+
+        synchronized ArchiveInstanceLocator getResult() {
+            return result;
+        }
+
+        synchronized ApplicationEntity nextRemoteAE() {
+            while (nextRemoteAE < remoteAEs.size()) {
+                ApplicationEntity remoteAE = remoteAEs.get(nextRemoteAE++);
+                if (supportsWadoRS(remoteAE))
+                    return remoteAE;
+            }
+            return null;
+        }
+
+        ArchiveInstanceLocator fetchFrom(ApplicationEntity remoteAE) {
+            final ArchiveInstanceLocator[] landed = new ArchiveInstanceLocator[1];
+            wadoClientService.fetchInstance(localAE, remoteAE,
+                    externalLoc.getStudyInstanceUID(),
+                    externalLoc.getSeriesInstanceUID(), iuid,
+                    new InstanceAvailableCallback() {
+
+                        @Override
+                        public void onInstanceAvailable(
+                                ArchiveInstanceLocator inst) {
+                            landed[0] = inst;
+                        }
+                    });
+            ArchiveInstanceLocator inst = landed[0];
+            return inst != null && inst.getStorageSystem() != null ? inst : null;
+        }
+
+        void complete(ArchiveInstanceLocator inst) {
+            ArrayList<BlockingQueue<InstanceFetch>> notify;
+            synchronized (this) {
+                result = inst;
+                done = true;
+                notify = new ArrayList<BlockingQueue<InstanceFetch>>(waiters);
+                waiters.clear();
+            }
+            inFlight.remove(iuid, this);
+            for (BlockingQueue<InstanceFetch> waiter : notify)
+                waiter.add(this);
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.fetch.forward.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4che3.net.web.WebServiceAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.fetch.forward.FetchForwardCallBack;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.wado.client.InstanceAvailableCallback;
+import org.dcm4chee.archive.wado.client.WadoClientResponse;
+import org.dcm4chee.archive.wado.client.WadoClientService;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WadoFetchEngineTest {
+
+    private static final String STUDY_IUID = "1.2.3";
+    private static final String SERIES_IUID = "1.2.3.4";
+
+    private ExecutorService pool;
+    private ArchiveDeviceExtension arcDev;
+    private ApplicationEntity localAE;
+    private StubWadoClientService wadoClient;
+    private WadoFetchEngine engine;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newCachedThreadPool();
+        Device device = new Device("test");
+        device.setExecutor(pool);
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setFetchThreads(4);
+        arcDev.setFetchThreadsPerRemoteAE(2);
+        device.addDeviceExtension(arcDev);
+        localAE = new ApplicationEntity("LOCAL");
+        device.addApplicationEntity(localAE);
+        wadoClient = new StubWadoClientService();
+        engine = new WadoFetchEngine();
+        engine.device = device;
+        engine.wadoClientService = wadoClient;
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testFetchesAllInstances() {
+        ApplicationEntity remoteAE = remoteAE("REMOTE", true);
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> remoteAEs =
+                remoteAEs(10, remoteAE);
+        RecordingCallBack callBack = new RecordingCallBack();
+        List<ArchiveInstanceLocator> failed =
+                engine.fetch(localAE, remoteAEs, callBack, null, null);
+        assertTrue(failed.isEmpty());
+        assertEquals(iuids(remoteAEs.keySet()), callBack.iuids);
+    }
+
+    @Test
+    public void testReturnsFailedInstances() {
+        ApplicationEntity remoteAE = remoteAE("REMOTE", true);
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> remoteAEs =
+                remoteAEs(4, remoteAE);
+        wadoClient.unavailable.add("REMOTE/1.2.3.4.2");
+        RecordingCallBack callBack = new RecordingCallBack();
+        List<ArchiveInstanceLocator> failed =
+                engine.fetch(localAE, remoteAEs, callBack, null, null);
+        assertEquals(1, failed.size());
+        assertEquals("1.2.3.4.2", failed.get(0).iuid);
+        assertEquals(3, callBack.iuids.size());
+    }
+
+    @Test
+    public void testFallsBackToNextRemoteAE() {
+        ApplicationEntity first = remoteAE("FIRST", true);
+        ApplicationEntity noWado = remoteAE("NOWADO", false);
+        ApplicationEntity second = remoteAE("SECOND", true);
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> remoteAEs =
+                remoteAEs(3, first, noWado, second);
+        wadoClient.unavailable.add("FIRST/1.2.3.4.1");
+        RecordingCallBack callBack = new RecordingCallBack();
+        List<ArchiveInstanceLocator> failed =
+                engine.fetch(localAE, remoteAEs, callBack, null, null);
+        assertTrue(failed.isEmpty());
+        assertEquals(3, callBack.iuids.size());
+        assertEquals(1, wadoClient.fetchesFrom("SECOND"));
+        assertEquals(0, wadoClient.fetchesFrom("NOWADO"));
+    }
+
+    @Test
+    public void testLimitsFetchesPerRemoteAE() {
+        arcDev.setFetchThreads(4);
+        arcDev.setFetchThreadsPerRemoteAE(1);
+        ApplicationEntity remoteA = remoteAE("A", true);
+        ApplicationEntity remoteB = remoteAE("B", true);
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> remoteAEs =
+                remoteAEs(6, remoteA);
+        remoteAEs.putAll(remoteAEs(6, "1.2.3.5.", remoteB));
+        wadoClient.delay = 20;
+        List<ArchiveInstanceLocator> failed = engine.fetch(localAE,
+                remoteAEs, new RecordingCallBack(), null, null);
+        assertTrue(failed.isEmpty());
+        assertEquals(1, wadoClient.maxRunning("A"));
+        assertEquals(1, wadoClient.maxRunning("B"));
+        assertEquals(2, wadoClient.maxRunning.get());
+    }
+
+    @Test
+    public void testLimitsTotalFetches() {
+        arcDev.setFetchThreads(3);
+        arcDev.setFetchThreadsPerRemoteAE(2);
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> remoteAEs =
+                remoteAEs(6, remoteAE("A", true));
+        remoteAEs.putAll(remoteAEs(6, "1.2.3.5.", remoteAE("B", true)));
+        wadoClient.delay = 20;
+        List<ArchiveInstanceLocator> failed = engine.fetch(localAE,
+                remoteAEs, new RecordingCallBack(), null, null);
+        assertTrue(failed.isEmpty());
+        assertTrue(wadoClient.maxRunning("A") <= 2);
+        assertTrue(wadoClient.maxRunning("B") <= 2);
+        assertEquals(3, wadoClient.maxRunning.get());
+    }
+
+    @Test
+    public void testBusyRemoteAEDoesNotBlockOthers() throws Exception {
+        arcDev.setFetchThreads(2);
+        arcDev.setFetchThreadsPerRemoteAE(2);
+        final ApplicationEntity slow = remoteAE("SLOW", true);
+        wadoClient.block("SLOW");
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                engine.fetch(localAE, remoteAEs(4, slow),
+                        new RecordingCallBack(), null, null);
+            }
+        };
+        t.start();
+        wadoClient.awaitRunning("SLOW", 2);
+        // SLOW is at its limit, so the additional thread has to fetch from
+        // FAST although fetches from SLOW are still pending
+        arcDev.setFetchThreads(3);
+        List<ArchiveInstanceLocator> failed = engine.fetch(localAE,
+                remoteAEs(1, "1.2.3.5.", remoteAE("FAST", true)),
+                new RecordingCallBack(), null, null);
+        assertTrue(failed.isEmpty());
+        assertEquals(2, wadoClient.maxRunning("SLOW"));
+        wadoClient.unblock("SLOW");
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void testCoalescesConcurrentFetches() throws Exception {
+        final ApplicationEntity remoteAE = remoteAE("REMOTE", true);
+        wadoClient.block("REMOTE");
+        final RecordingCallBack callBack1 = new RecordingCallBack();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                engine.fetch(localAE, remoteAEs(4, remoteAE), callBack1,
+                        null, null);
+            }
+        };
+        t.start();
+        wadoClient.awaitRunning("REMOTE", 2);
+        final RecordingCallBack callBack2 = new RecordingCallBack();
+        Thread t2 = new Thread() {
+            @Override
+            public void run() {
+                engine.fetch(localAE, remoteAEs(4, remoteAE), callBack2,
+                        null, null);
+            }
+        };
+        t2.start();
+        // wait until all fetches were coalesced with the in-flight ones
+        long end = System.currentTimeMillis() + 10000L;
+        while (t2.getState() != Thread.State.WAITING) {
+            assertTrue("timeout", System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+        wadoClient.unblock("REMOTE");
+        t.join(10000);
+        t2.join(10000);
+        assertFalse(t.isAlive());
+        assertFalse(t2.isAlive());
+        assertEquals(4, callBack1.iuids.size());
+        assertEquals(4, callBack2.iuids.size());
+        assertEquals(4, wadoClient.fetchesFrom("REMOTE"));
+    }
+
+    private static ApplicationEntity remoteAE(String aet, boolean wadoRS) {
+        ApplicationEntity ae = new ApplicationEntity(aet);
+        if (wadoRS) {
+            WebServiceAEExtension ext = new WebServiceAEExtension();
+            ext.setWadoRSBaseURL("http://localhost:8080/" + aet + "/rs");
+            ae.addAEExtension(ext);
+        }
+        return ae;
+    }
+
+    private static Map<ArchiveInstanceLocator, List<ApplicationEntity>>
+            remoteAEs(int n, ApplicationEntity... aes) {
+        return remoteAEs(n, SERIES_IUID + '.', aes);
+    }
+
+    private static Map<ArchiveInstanceLocator, List<ApplicationEntity>>
+            remoteAEs(int n, String iuidPrefix, ApplicationEntity... aes) {
+        Map<ArchiveInstanceLocator, List<ApplicationEntity>> map =
+                new LinkedHashMap<ArchiveInstanceLocator, List<ApplicationEntity>>();
+        for (int i = 1; i <= n; i++)
+            map.put(locator(iuidPrefix + i, null), Arrays.asList(aes));
+        return map;
+    }
+
+    private static ArchiveInstanceLocator locator(String iuid,
+            StorageSystem storageSystem) {
+        return new ArchiveInstanceLocator.Builder(UID.CTImageStorage, iuid,
+                UID.ExplicitVRLittleEndian)
+                .storageSystem(storageSystem)
+                .storagePath(iuid)
+                .seriesInstanceUID(SERIES_IUID)
+                .studyInstanceUID(STUDY_IUID)
+                .build();
+    }
+
+    private static Set<String> iuids(Collection<ArchiveInstanceLocator> locs) {
+        Set<String> iuids = new HashSet<String>();
+        for (ArchiveInstanceLocator loc : locs)
+            iuids.add(loc.iuid);
+        return iuids;
+    }
+
+    private static class RecordingCallBack implements FetchForwardCallBack {
+
+        final Set<String> iuids =
+                Collections.synchronizedSet(new HashSet<String>());
+
+        @Override
+        public void onFetch(Collection<ArchiveInstanceLocator> instances,
+                BasicCStoreSCUResp resp) {
+            for (ArchiveInstanceLocator inst : instances)
+                assertTrue("duplicate " + inst.iuid, iuids.add(inst.iuid));
+        }
+    }
+
+    private static class StubWadoClientService implements WadoClientService {
+
+        final Set<String> unavailable =
+                Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> runningByAE =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentHashMap<String, AtomicInteger> maxRunningByAE =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentHashMap<String, AtomicInteger> fetchesByAE =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentHashMap<String, CountDownLatch> blocked =
+                new ConcurrentHashMap<String, CountDownLatch>();
+        final StorageSystem storageSystem = new StorageSystem();
+        volatile long delay;
+
+        StubWadoClientService() {
+            storageSystem.setStorageSystemPath("/var/local/dcm4chee-arc/fs1");
+        }
+
+        void block(String aet) {
+            blocked.put(aet, new CountDownLatch(1));
+        }
+
+        void unblock(String aet) {
+            blocked.remove(aet).countDown();
+        }
+
+        void awaitRunning(String aet, int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000L;
+            while (counter(runningByAE, aet).get() < n) {
+                assertTrue("timeout", System.currentTimeMillis() < end);
+                Thread.sleep(5);
+            }
+        }
+
+        int maxRunning(String aet) {
+            return counter(maxRunningByAE, aet).get();
+        }
+
+        int fetchesFrom(String aet) {
+            return counter(fetchesByAE, aet).get();
+        }
+
+        @Override
+        public WadoClientResponse fetchInstance(ApplicationEntity localAE,
+                ApplicationEntity remoteAE, String studyInstanceUID,
+                String seriesInstanceUID, String sopInstanceUID,
+                InstanceAvailableCallback callback) {
+            String aet = remoteAE.getAETitle();
+            counter(fetchesByAE, aet).incrementAndGet();
+            AtomicInteger aeRunning = counter(runningByAE, aet);
+            max(maxRunningByAE, aet, aeRunning.incrementAndGet());
+            int total = running.incrementAndGet();
+            synchronized (maxRunning) {
+                if (maxRunning.get() < total)
+                    maxRunning.set(total);
+            }
+            try {
+                CountDownLatch latch = blocked.get(aet);
+                if (latch != null)
+                    latch.await(10, TimeUnit.SECONDS);
+                if (delay > 0)
+                    Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                aeRunning.decrementAndGet();
+            }
+            if (!unavailable.contains(aet + '/' + sopInstanceUID))
+                callback.onInstanceAvailable(
+                        locator(sopInstanceUID, storageSystem));
+            return null;
+        }
+
+        private static AtomicInteger counter(
+                ConcurrentHashMap<String, AtomicInteger> map, String aet) {
+            AtomicInteger counter = map.get(aet);
+            if (counter == null) {
+                map.putIfAbsent(aet, new AtomicInteger());
+                counter = map.get(aet);
+            }
+            return counter;
+        }
+
+        private static void max(ConcurrentHashMap<String, AtomicInteger> map,
+                String aet, int value) {
+            AtomicInteger max = counter(map, aet);
+            int prev;
+            while ((prev = max.get()) < value && !max.compareAndSet(prev, value))
+                ;
+        }
+
+        @Override
+        public WadoClientResponse fetchStudy(ApplicationEntity localAE,
+                ApplicationEntity remoteAE, String studyInstanceUID,
+                InstanceAvailableCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public WadoClientResponse fetchSeries(ApplicationEntity localAE,
+                ApplicationEntity remoteAE, String studyInstanceUID,
+                String seriesInstanceUID, InstanceAvailableCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public StoreContext spool(String localAETitle, String remoteAETitle,
+                InputStream in, InstanceAvailableCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean store(StoreContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InstanceAvailableCallback getCallBack() {
+            return null;
+        }
+    }
+}
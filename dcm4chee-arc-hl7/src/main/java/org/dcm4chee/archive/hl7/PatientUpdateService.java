@@ -41,10 +41,12 @@ package org.dcm4chee.archive.hl7;
 import java.net.Socket;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.hl7.HL7Exception;
 import org.dcm4che3.hl7.HL7Segment;
@@ -56,6 +58,7 @@ import org.dcm4che3.net.hl7.service.HL7Service;
 import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveHL7ApplicationExtension;
 import org.dcm4chee.archive.conf.StoreParam;
+import org.dcm4chee.archive.patient.PatientMergeEvent;
 import org.dcm4chee.archive.patient.PatientService;
 
 /**
@@ -68,6 +71,9 @@ public class PatientUpdateService extends DefaultHL7Service {
     @Inject
     private PatientService patientService;
 
+    @Inject
+    private Event<PatientMergeEvent> patientMergeEvent;
+
     public PatientUpdateService() {
         super("ADT^A02", "ADT^A03", "ADT^A06", "ADT^A07", "ADT^A08", "ADT^A40");
     }
@@ -91,6 +97,8 @@ public class PatientUpdateService extends DefaultHL7Service {
                 patientService.updateOrCreatePatientByHL7(attrs, storeParam);
             } else {
                 patientService.mergePatientByHL7(attrs, mrg, storeParam);
+                patientMergeEvent.fire(new PatientMergeEvent(
+                        IDWithIssuer.pidOf(attrs), IDWithIssuer.pidOf(mrg)));
             }
             return super.onMessage(hl7App, conn, s, msh, msg, off, len, mshlen);
         } catch (Exception e) {
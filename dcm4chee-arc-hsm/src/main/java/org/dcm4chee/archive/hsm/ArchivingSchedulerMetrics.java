@@ -0,0 +1,121 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.hsm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Counters of the archiving tasks claimed and scheduled by the
+ * {@link ArchivingScheduler} of this archive node.
+ */
+@ApplicationScoped
+public class ArchivingSchedulerMetrics {
+
+    private final AtomicLong claimedTasks = new AtomicLong();
+    private final AtomicLong scheduledTasks = new AtomicLong();
+    private final AtomicLong failedTasks = new AtomicLong();
+    private final AtomicLong processTime = new AtomicLong();
+    private volatile long readyTasks;
+
+    public void onClaim(int tasks) {
+        claimedTasks.addAndGet(tasks);
+    }
+
+    public void onScheduled() {
+        scheduledTasks.incrementAndGet();
+    }
+
+    public void onFailure() {
+        failedTasks.incrementAndGet();
+    }
+
+    public void onBatchProcessed(long nanos) {
+        processTime.addAndGet(nanos);
+    }
+
+    public void setReadyTasks(long readyTasks) {
+        this.readyTasks = readyTasks;
+    }
+
+    public long getClaimedTasks() {
+        return claimedTasks.get();
+    }
+
+    public long getScheduledTasks() {
+        return scheduledTasks.get();
+    }
+
+    /**
+     * Returns the number of claimed archiving tasks, which failed to be
+     * scheduled and will be claimed again after the claim timeout.
+     */
+    public long getFailedTasks() {
+        return failedTasks.get();
+    }
+
+    /**
+     * Returns the number of ready archiving tasks of all archive nodes
+     * remaining after the last poll.
+     */
+    public long getReadyTasks() {
+        return readyTasks;
+    }
+
+    /**
+     * Returns the number of scheduled archiving tasks per s of processing
+     * time of claimed batches.
+     */
+    public double getThroughput() {
+        long nanos = processTime.get();
+        return nanos > 0 ? scheduledTasks.get() * 1000000000. / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchivingSchedulerMetrics[claimed=" + getClaimedTasks()
+                + ", scheduled=" + getScheduledTasks()
+                + ", failed=" + getFailedTasks()
+                + ", throughput=" + getThroughput()
+                + "/s, ready=" + getReadyTasks()
+                + "]";
+    }
+}
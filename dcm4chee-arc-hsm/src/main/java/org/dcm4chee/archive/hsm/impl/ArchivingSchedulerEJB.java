@@ -47,6 +47,7 @@ import java.util.List;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 
 import org.dcm4che3.data.Attributes;
@@ -141,21 +142,73 @@ public class ArchivingSchedulerEJB {
         }
     }
 
-    public ArchivingTask scheduleNextArchivingTask() throws IOException {
-        List<ArchivingTask> results = em.createNamedQuery(
-                ArchivingTask.FIND_READY_TO_ARCHIVE, ArchivingTask.class)
-                .setMaxResults(1)
+    /**
+     * Claims up to {@code maxTasks} ready archiving tasks, which are not
+     * claimed by another poll or whose claim is older than
+     * {@code claimTimeout} s.
+     *
+     * @return primary keys of the claimed archiving tasks
+     */
+    public List<Long> claimReadyArchivingTasks(String claimedBy, int maxTasks,
+            int claimTimeout) {
+        Date now = new Date();
+        Date expired = new Date(now.getTime() - claimTimeout * 1000L);
+        List<Long> pks = em.createNamedQuery(
+                ArchivingTask.FIND_PK_READY_TO_CLAIM, Long.class)
+                .setParameter("expired", expired)
+                .setMaxResults(maxTasks)
                 .getResultList();
+        if (pks.isEmpty())
+            return pks;
 
-        if (results.isEmpty())
+        // rows claimed concurrently by another node are skipped by the
+        // condition of the update, once the other transaction committed
+        int claimed = em.createNamedQuery(ArchivingTask.CLAIM)
+                .setParameter("claimedBy", claimedBy)
+                .setParameter("claimTime", now)
+                .setParameter("pks", pks)
+                .setParameter("expired", expired)
+                .executeUpdate();
+        if (claimed < pks.size()) {
+            LOG.debug("{} of {} ready archiving tasks claimed concurrently",
+                    pks.size() - claimed, pks.size());
+            pks = em.createNamedQuery(
+                    ArchivingTask.FIND_PK_CLAIMED_BY, Long.class)
+                    .setParameter("pks", pks)
+                    .setParameter("claimedBy", claimedBy)
+                    .getResultList();
+        }
+        return pks;
+    }
+
+    /**
+     * Schedules and removes the archiving task with the specified primary
+     * key, if it is still claimed by {@code claimedBy}.
+     *
+     * @return the scheduled archiving task or {@code null}, if the task was
+     *         already processed or claimed by another poll
+     */
+    public ArchivingTask scheduleClaimedArchivingTask(long pk, String claimedBy)
+            throws IOException {
+        ArchivingTask task = em.find(ArchivingTask.class, pk,
+                LockModeType.PESSIMISTIC_WRITE);
+        if (task == null || !claimedBy.equals(task.getClaimedBy())) {
+            LOG.info("Archiving task[pk={}] no longer claimed by {} - skip",
+                    pk, claimedBy);
             return null;
+        }
 
-        ArchivingTask task = results.get(0);
         scheduleArchivingTask(task);
         em.remove(task);
         return task;
     }
 
+    public long countReadyArchivingTasks() {
+        return em.createNamedQuery(
+                ArchivingTask.COUNT_READY_TO_ARCHIVE, Long.class)
+                .getSingleResult();
+    }
+
     public void scheduleArchivingTask(ArchivingTask task) throws IOException {
         LOG.info("Scheduling {}", task);
         List<Instance> insts = em
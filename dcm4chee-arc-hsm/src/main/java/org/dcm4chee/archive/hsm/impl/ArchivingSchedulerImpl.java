@@ -39,9 +39,16 @@
 package org.dcm4chee.archive.hsm.impl;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
@@ -57,8 +64,10 @@ import org.dcm4chee.archive.conf.ArchivingRule;
 import org.dcm4chee.archive.entity.ArchivingTask;
 import org.dcm4chee.archive.event.StartStopReloadEvent;
 import org.dcm4chee.archive.hsm.ArchivingScheduler;
+import org.dcm4chee.archive.hsm.ArchivingSchedulerMetrics;
 import org.dcm4chee.archive.store.StoreContext;
 import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.archive.util.BoundedExecutor;
 import org.dcm4chee.storage.archiver.service.ArchiverContext;
 import org.dcm4chee.storage.archiver.service.ContainerEntriesStored;
 import org.slf4j.Logger;
@@ -73,12 +82,22 @@ public class ArchivingSchedulerImpl implements ArchivingScheduler {
 
     private static final Logger LOG = LoggerFactory.getLogger(ArchivingSchedulerImpl.class);
 
+    private static final String NODE_ID =
+            ManagementFactory.getRuntimeMXBean().getName();
+
     @Inject
     private Device device;
 
     @Inject
     private ArchivingSchedulerEJB ejb;
 
+    @Inject
+    private ArchivingSchedulerMetrics metrics;
+
+    private final AtomicLong claimSeq = new AtomicLong();
+
+    private BoundedExecutor executor;
+
     private int currentPollInterval;
     private ScheduledFuture<?> polling;
 
@@ -111,22 +130,96 @@ public class ArchivingSchedulerImpl implements ArchivingScheduler {
 
     @Override
     public int scheduleReadyArchivingTasks() {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        int batchSize = Math.max(1, arcDev.getArchivingSchedulerBatchSize());
+        int claimTimeout = arcDev.getArchivingSchedulerClaimTimeout();
+        BoundedExecutor executor =
+                executor(Math.max(1, arcDev.getArchivingSchedulerThreads()));
         int count = 0;
         for (;;) {
+            final String claimedBy = nextClaimID();
+            List<Long> pks;
             try {
-                if (scheduleNextArchivingTask() == null)
+                pks = ejb.claimReadyArchivingTasks(claimedBy, batchSize,
+                        claimTimeout);
+            } catch (RuntimeException e) {
+                LOG.error("Failed to claim archiving tasks", e);
+                break;
+            }
+            if (pks.isEmpty())
+                break;
+
+            metrics.onClaim(pks.size());
+            long start = System.nanoTime();
+            List<Future<ArchivingTask>> futures =
+                    new ArrayList<Future<ArchivingTask>>(pks.size());
+            for (final Long pk : pks)
+                try {
+                    futures.add(executor.submit(new Callable<ArchivingTask>() {
+                        @Override
+                        public ArchivingTask call() throws Exception {
+                            return ejb.scheduleClaimedArchivingTask(pk, claimedBy);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // remaining claims expire after the claim timeout
+                    LOG.warn("Failed to submit scheduling of claimed archiving tasks", e);
                     break;
-                count++;
-            } catch (IOException e) {
-                LOG.error("Failed to schedule archiving task", e);
+                }
+            int scheduled = 0;
+            for (Future<ArchivingTask> future : futures) {
+                try {
+                    if (future.get() != null) {
+                        metrics.onScheduled();
+                        scheduled++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return count + scheduled;
+                } catch (ExecutionException e) {
+                    metrics.onFailure();
+                    LOG.error("Failed to schedule archiving task", e.getCause());
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            metrics.onBatchProcessed(nanos);
+            count += scheduled;
+            LOG.info("Archiving Scheduler: scheduled {} of {} claimed archiving tasks in {} ms",
+                    new Object[] { scheduled, pks.size(), nanos / 1000000 });
+        }
+        if (count > 0) {
+            try {
+                metrics.setReadyTasks(ejb.countReadyArchivingTasks());
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to count ready archiving tasks", e);
             }
+            LOG.info("Archiving Scheduler: {}", metrics);
         }
         return count;
     }
 
     @Override
     public ArchivingTask scheduleNextArchivingTask() throws IOException {
-        return ejb.scheduleNextArchivingTask();
+        String claimedBy = nextClaimID();
+        List<Long> pks = ejb.claimReadyArchivingTasks(claimedBy, 1,
+                device.getDeviceExtension(ArchiveDeviceExtension.class)
+                        .getArchivingSchedulerClaimTimeout());
+        return pks.isEmpty() ? null
+                : ejb.scheduleClaimedArchivingTask(pks.get(0), claimedBy);
+    }
+
+    private String nextClaimID() {
+        return device.getDeviceName() + '@' + NODE_ID + '#'
+                + claimSeq.incrementAndGet();
+    }
+
+    private synchronized BoundedExecutor executor(int threads) {
+        if (executor == null)
+            executor = new BoundedExecutor(device.getExecutor(), threads);
+        else if (executor.getMaxConcurrent() != threads)
+            executor.setMaxConcurrent(threads);
+        return executor;
     }
 
     public void onArchiveServiceStarted(
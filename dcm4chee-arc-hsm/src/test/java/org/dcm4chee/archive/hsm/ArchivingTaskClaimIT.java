@@ -0,0 +1,217 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.hsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.dto.GenericParticipant;
+import org.dcm4chee.archive.entity.ArchivingTask;
+import org.dcm4chee.archive.event.StartStopReloadEvent;
+import org.dcm4chee.archive.hsm.impl.ArchivingSchedulerEJB;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests claiming of ready archiving tasks by the conditional update of
+ * {@link ArchivingSchedulerEJB#claimReadyArchivingTasks}.
+ */
+@RunWith(Arquillian.class)
+public class ArchivingTaskClaimIT extends HsmITBase {
+
+    private static final String SERIES_INSTANCE_UID = BASE_UID + "3.1.";
+    private static final int NUM_TASKS = 20;
+    private static final int ALL = 1000;
+    private static final int CLAIM_TIMEOUT = 60;
+
+    @Inject
+    private ArchivingSchedulerEJB ejb;
+
+    private Set<Long> createdPks;
+
+    @Deployment
+    public static WebArchive createDeployment() {
+        return createDeployment(ArchivingTaskClaimIT.class);
+    }
+
+    @Before
+    public void stopPolling() throws Exception {
+        device.getDeviceExtension(ArchiveDeviceExtension.class)
+                .setArchivingSchedulerPollInterval(0);
+        archiveServiceReloaded.fire(new StartStopReloadEvent(device,
+                new GenericParticipant("", "hsmTest")));
+        createdPks = createReadyArchivingTasks(NUM_TASKS);
+    }
+
+    @Test
+    public void testClaimSetsClaimant() throws Exception {
+        List<Long> pks = claim("A", CLAIM_TIMEOUT);
+        assertEquals(createdPks, new HashSet<Long>(pks));
+        for (Long pk : pks) {
+            ArchivingTask task = em.find(ArchivingTask.class, pk);
+            assertEquals("A", task.getClaimedBy());
+            assertTrue(task.getClaimTime() != null);
+        }
+    }
+
+    @Test
+    public void testUnexpiredClaimIsNotClaimedAgain() throws Exception {
+        assertEquals(NUM_TASKS, claim("A", CLAIM_TIMEOUT).size());
+        assertEquals(0, claim("B", CLAIM_TIMEOUT).size());
+    }
+
+    @Test
+    public void testExpiredClaimIsClaimedAgain() throws Exception {
+        assertEquals(NUM_TASKS, claim("A", CLAIM_TIMEOUT).size());
+        // claim time may be stored with a precision of seconds
+        Thread.sleep(1100);
+        assertEquals(NUM_TASKS, claim("B", 0).size());
+        for (Long pk : createdPks)
+            assertEquals("B", em.find(ArchivingTask.class, pk).getClaimedBy());
+    }
+
+    @Test
+    public void testMaxTasks() throws Exception {
+        int maxTasks = NUM_TASKS / 4;
+        Set<Long> claimed = new HashSet<Long>();
+        List<Long> pks;
+        while (!(pks = claim("A", CLAIM_TIMEOUT, maxTasks)).isEmpty()) {
+            assertTrue(pks.size() <= maxTasks);
+            claimed.addAll(pks);
+        }
+        assertEquals(createdPks, claimed);
+    }
+
+    @Test
+    public void testScheduleTaskClaimedByOther() throws Exception {
+        List<Long> pks = claim("A", CLAIM_TIMEOUT);
+        assertNull(ejb.scheduleClaimedArchivingTask(pks.get(0), "B"));
+        assertEquals("A",
+                em.find(ArchivingTask.class, pks.get(0)).getClaimedBy());
+    }
+
+    @Test
+    public void testConcurrentClaimsAreDisjoint() throws Exception {
+        final int numClaimants = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numClaimants);
+        try {
+            List<Future<List<Long>>> results =
+                    new ArrayList<Future<List<Long>>>(numClaimants);
+            for (int i = 0; i < numClaimants; i++) {
+                final String claimedBy = "C" + i;
+                results.add(executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws Exception {
+                        start.await();
+                        return claim(claimedBy, CLAIM_TIMEOUT, NUM_TASKS / 2);
+                    }
+                }));
+            }
+            start.countDown();
+            Set<Long> claimed = new HashSet<Long>();
+            int count = 0;
+            for (Future<List<Long>> result : results) {
+                List<Long> pks = result.get();
+                count += pks.size();
+                claimed.addAll(pks);
+            }
+            assertEquals("#Tasks claimed twice", claimed.size(), count);
+            // claimants, which lost the race, skip the rows of the winner
+            while (claimed.size() < NUM_TASKS)
+                claimed.addAll(claim("D", CLAIM_TIMEOUT));
+            assertEquals(createdPks, claimed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Long> claim(String claimedBy, int claimTimeout) {
+        return claim(claimedBy, claimTimeout, ALL);
+    }
+
+    private List<Long> claim(String claimedBy, int claimTimeout, int maxTasks) {
+        List<Long> pks = new ArrayList<Long>(
+                ejb.claimReadyArchivingTasks(claimedBy, maxTasks, claimTimeout));
+        // ignore ready archiving tasks not created by this test
+        pks.retainAll(createdPks);
+        return pks;
+    }
+
+    private Set<Long> createReadyArchivingTasks(int n) throws Exception {
+        Date archivingTime = new Date(System.currentTimeMillis() - 60000L);
+        List<ArchivingTask> tasks = new ArrayList<ArchivingTask>(n);
+        utx.begin();
+        for (int i = 0; i < n; i++) {
+            ArchivingTask task = new ArchivingTask();
+            task.setSeriesInstanceUID(SERIES_INSTANCE_UID + i);
+            task.setSourceStorageSystemGroupID(TEST_ONLINE);
+            task.setTargetStorageSystemGroupID(TEST_NEARLINE_ZIP);
+            task.setTargetName(TEST_NEARLINE_ZIP);
+            task.setArchivingTime(archivingTime);
+            em.persist(task);
+            tasks.add(task);
+        }
+        utx.commit();
+        Set<Long> pks = new HashSet<Long>();
+        for (ArchivingTask task : tasks)
+            pks.add(task.getPk());
+        return Collections.unmodifiableSet(pks);
+    }
+}
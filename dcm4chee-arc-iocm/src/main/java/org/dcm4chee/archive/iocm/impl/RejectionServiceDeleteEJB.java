@@ -44,17 +44,24 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.ejb.EJBException;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.entity.Code;
 import org.dcm4chee.archive.entity.Location;
 import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.iocm.RejectionServiceDeleteBean;
+import org.dcm4chee.archive.store.QueryAttributesUpdater;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,21 +75,32 @@ public class RejectionServiceDeleteEJB implements RejectionServiceDeleteBean {
 
     @PersistenceContext(unitName = "dcm4chee-arc")
     public EntityManager em;
+
+    @Inject
+    private Device device;
     
     @Override
     public Collection<Location> deleteRejected(Object source, Collection<Instance> instances) {
         try {
         Collection<Location> toBeDeleted = new HashSet<Location>();
+        Set<Series> affectedSeries = new LinkedHashSet<Series>();
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
         for(Instance inst: instances) {
             inst = em.find(Instance.class,inst.getPk());
               if(isRejected(inst)){
-                inst.getSeries().clearQueryAttributes();
-                inst.getSeries().getStudy().clearQueryAttributes();
+                QueryAttributesUpdater.removeInstance(em, arcDev, inst);
                 toBeDeleted.addAll(detachReferences(inst));
+                affectedSeries.add(inst.getSeries());
                 em.remove(inst);
                 LOG.info("Removing {} and Scheduling delete for associated file references" , inst);
             }
         }
+        em.flush();
+        for (Series series : affectedSeries) {
+            series.updateRejected(em);
+            series.getStudy().updateRejected(em);
+        }
 
            return toBeDeleted;
         }
@@ -39,15 +39,22 @@
 package org.dcm4chee.archive.iocm.impl;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.entity.Code;
 import org.dcm4chee.archive.entity.Instance;
 import org.dcm4chee.archive.entity.Series;
-import org.dcm4chee.archive.entity.Study;
 import org.dcm4chee.archive.iocm.InstanceAlreadyRejectedException;
 import org.dcm4chee.archive.iocm.RejectionService;
+import org.dcm4chee.archive.store.QueryAttributesUpdater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,10 +67,17 @@ public class RejectionServiceImpl implements RejectionService {
 
     private static Logger LOG = LoggerFactory.getLogger(RejectionServiceImpl.class);
 
+    @PersistenceContext(unitName = "dcm4chee-arc")
+    private EntityManager em;
+
+    @Inject
+    private Device device;
+
     @Override
     public int reject(Object source, Collection<Instance> instances,
             Code rejectionCode, org.dcm4che3.data.Code[] prevRejectionCodes) {
         int count = 0;
+        Set<Series> affectedSeries = new LinkedHashSet<Series>();
         for (Instance inst : instances) {
             Code prevRejectionCode = inst.getRejectionNoteCode();
             if (rejectionCode.equals(prevRejectionCode))
@@ -74,8 +88,13 @@ public class RejectionServiceImpl implements RejectionService {
 
             LOG.debug("{}: Apply rejection {} to {}", source, rejectionCode, inst);
             updateInstance(inst, rejectionCode);
+            affectedSeries.add(inst.getSeries());
             count++;
         }
+        for (Series series : affectedSeries) {
+            series.updateRejected(em);
+            series.getStudy().updateRejected(em);
+        }
         return count;
     }
 
@@ -93,6 +112,9 @@ public class RejectionServiceImpl implements RejectionService {
 
             LOG.debug("{}: Revoke rejection {} of {}", source, prevRejectionCode, inst);
             updateInstance(inst, null);
+            Series series = inst.getSeries();
+            series.setRejected(false);
+            series.getStudy().setRejected(false);
             count++;
         }
         return count;
@@ -113,11 +135,9 @@ public class RejectionServiceImpl implements RejectionService {
     }
 
     private void updateInstance(Instance inst, Code rejectionCode) {
-        inst.setRejectionNoteCode(rejectionCode);
-        Series series = inst.getSeries();
-        Study study = series.getStudy();
-        series.clearQueryAttributes();
-        study.clearQueryAttributes();
+        QueryAttributesUpdater.rejectInstance(em,
+                device.getDeviceExtension(ArchiveDeviceExtension.class),
+                inst, rejectionCode);
     }
     
 }
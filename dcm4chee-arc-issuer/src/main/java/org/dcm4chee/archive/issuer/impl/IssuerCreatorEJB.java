@@ -0,0 +1,84 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.issuer.impl;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.dcm4chee.archive.entity.Issuer;
+
+/**
+ * Inserts and re-selects issuers in their own transactions, so a violation
+ * of the unique issuer indexes, caused by a concurrent transaction -
+ * possibly on a different archive node - inserting the same issuer, does
+ * not roll back the transaction of the caller, and the issuer inserted by
+ * the concurrent transaction is visible to the re-select even with
+ * REPEATABLE READ isolation.
+ */
+@Stateless
+public class IssuerCreatorEJB {
+
+    @PersistenceContext(unitName="dcm4chee-arc")
+    private EntityManager em;
+
+    /**
+     * Inserts and commits the issuer.
+     *
+     * @throws javax.ejb.EJBException if the issuer violates one of the
+     *         unique issuer indexes
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Issuer create(org.dcm4che3.data.Issuer issuer) {
+        Issuer created = new Issuer(issuer);
+        em.persist(created);
+        em.flush();
+        return created;
+    }
+
+    /**
+     * Returns the committed issuer or {@code null}.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Issuer find(org.dcm4che3.data.Issuer issuer) {
+        return IssuerServiceEJB.find(em, issuer);
+    }
+}
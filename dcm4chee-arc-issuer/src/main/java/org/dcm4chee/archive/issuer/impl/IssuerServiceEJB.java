@@ -38,11 +38,16 @@
 
 package org.dcm4chee.archive.issuer.impl;
 
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4chee.archive.entity.Issuer;
 import org.dcm4chee.archive.issuer.IssuerService;
@@ -55,19 +60,69 @@ import org.dcm4chee.archive.issuer.IssuerService;
 public class IssuerServiceEJB implements IssuerService {
 
     @PersistenceContext(unitName="dcm4chee-arc")
-    private EntityManager em;
+    EntityManager em;
+
+    @Resource
+    TransactionSynchronizationRegistry tsr;
+
+    @EJB
+    IssuerCache cache;
+
+    @EJB
+    IssuerCreatorEJB creator;
 
     @Override
     public Issuer findOrCreate(Issuer issuer) {
+        Issuer cached = cache.get(issuer);
+        if (cached != null)
+            return cached;
+
+        String key = IssuerCache.keyOf(issuer);
+        Issuer found = find(em, issuer);
+        if (found != null) {
+            cacheAfterCommit(key, found);
+            return found;
+        }
+
         try {
-            return find(issuer);
-        } catch (NoResultException e) {
-            em.persist(issuer);
-            return issuer;
+            found = creator.create(issuer);
+        } catch (EJBException e) {
+            // inserted by a concurrent transaction in the meantime
+            found = creator.find(issuer);
+            if (found == null)
+                throw e;
         }
+        cache.put(key, found);
+        return found;
+    }
+
+    /**
+     * Caches an issuer found by the transaction of the caller only after it
+     * committed, so an issuer persisted - e.g. by cascade - by a transaction
+     * which is rolled back is never cached. Issuers inserted by
+     * {@link IssuerCreatorEJB} are already committed and cached at once.
+     */
+    private void cacheAfterCommit(final String key, final Issuer issuer) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.put(key, issuer);
+            }
+        });
     }
 
-    private Issuer find(Issuer issuer) {
+    /**
+     * Returns the matching issuer with the lowest primary key, if concurrent
+     * transactions - possibly on different archive nodes - created it
+     * more than once.
+     */
+    static Issuer find(EntityManager em, org.dcm4che3.data.Issuer issuer) {
         String entityID = issuer.getLocalNamespaceEntityID();
         String entityUID = issuer.getUniversalEntityID();
         String entityUIDType = issuer.getUniversalEntityIDType();
@@ -85,7 +140,11 @@ public class IssuerServiceEJB implements IssuerService {
                 .setParameter(2, entityUID)
                 .setParameter(3, entityUIDType);
         }
-        return query.getSingleResult();
+        Issuer found = null;
+        for (Issuer result : query.getResultList())
+            if (found == null || result.getPk() < found.getPk())
+                found = result;
+        return found;
     }
 
 }
@@ -0,0 +1,97 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.issuer.impl;
+
+import static org.junit.Assert.*;
+
+import org.dcm4chee.archive.entity.Issuer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IssuerCacheTest {
+
+    private IssuerCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new IssuerCache();
+    }
+
+    private void put(long pk, Issuer issuer) {
+        cache.put(IssuerCache.keyOf(issuer), new Issuer(pk, issuer));
+    }
+
+    @Test
+    public void testGetReturnsDetachedCopy() {
+        Issuer issuer = new Issuer("DCM4CHEE", null, null);
+        put(7, issuer);
+        Issuer cached = cache.get(issuer);
+        assertNotNull(cached);
+        assertEquals(7, cached.getPk());
+        assertEquals("DCM4CHEE", cached.getLocalNamespaceEntityID());
+        assertNotSame(cached, cache.get(issuer));
+    }
+
+    @Test
+    public void testKeyIncludesAllComponents() {
+        put(7, new Issuer("DCM4CHEE", "1.2.40.0.13.1", "ISO"));
+        assertNotNull(cache.get(new Issuer("DCM4CHEE", "1.2.40.0.13.1", "ISO")));
+        assertNull(cache.get(new Issuer("DCM4CHEE", null, null)));
+        assertNull(cache.get(new Issuer(null, "1.2.40.0.13.1", "ISO")));
+        assertNull(cache.get(new Issuer("DCM4CHEE", "1.2.40.0.13.1", "DNS")));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        for (int i = 0; i < IssuerCache.MAX_SIZE; i++)
+            put(i, new Issuer("E" + i, null, null));
+        assertNotNull(cache.get(new Issuer("E0", null, null)));
+        put(IssuerCache.MAX_SIZE, new Issuer("E" + IssuerCache.MAX_SIZE, null, null));
+        assertNotNull(cache.get(new Issuer("E0", null, null)));
+        assertNull(cache.get(new Issuer("E1", null, null)));
+    }
+
+    @Test
+    public void testClear() {
+        Issuer issuer = new Issuer("DCM4CHEE", null, null);
+        put(7, issuer);
+        cache.clear();
+        assertNull(cache.get(issuer));
+    }
+}
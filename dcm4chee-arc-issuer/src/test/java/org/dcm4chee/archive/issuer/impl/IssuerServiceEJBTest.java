@@ -0,0 +1,304 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.issuer.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.EJBException;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.dcm4chee.archive.entity.Issuer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IssuerServiceEJBTest {
+
+    private static final Issuer ISSUER = new Issuer("DCM4CHEE", null, null);
+
+    private IssuerCache cache;
+    private TestIssuerCreator creator;
+
+    @Before
+    public void setUp() {
+        cache = new IssuerCache();
+        creator = new TestIssuerCreator();
+    }
+
+    private IssuerServiceEJB service(EntityManager em,
+            TransactionSynchronizationRegistry tsr) {
+        IssuerServiceEJB service = new IssuerServiceEJB();
+        service.em = em;
+        service.tsr = tsr;
+        service.cache = cache;
+        service.creator = creator;
+        return service;
+    }
+
+    /**
+     * Returns an entity manager, which specified named query returns the
+     * specified issuers, emulating the snapshot visible to the transaction
+     * of the caller.
+     */
+    @SuppressWarnings("unchecked")
+    private static EntityManager entityManager(String queryName,
+            Issuer... visible) {
+        TypedQuery<Issuer> query = createNiceMock(TypedQuery.class);
+        expect(query.setParameter(anyInt(), anyObject())).andStubReturn(query);
+        expect(query.getResultList()).andStubReturn(Arrays.asList(visible));
+        EntityManager em = createMock(EntityManager.class);
+        expect(em.createNamedQuery(queryName, Issuer.class)).andStubReturn(query);
+        replay(query, em);
+        return em;
+    }
+
+    private static EntityManager entityManager(Issuer... visible) {
+        return entityManager(Issuer.FIND_BY_ENTITY_ID, visible);
+    }
+
+    @Test
+    public void testReturnsCachedIssuerWithoutQuery() {
+        cache.put(IssuerCache.keyOf(ISSUER), new Issuer(7, ISSUER));
+        EntityManager em = createMock(EntityManager.class);
+        replay(em);
+        Issuer issuer = service(em, new TestTransactionSynchronizationRegistry())
+                .findOrCreate(ISSUER);
+        assertEquals(7, issuer.getPk());
+        assertEquals(0, creator.inserts.get());
+    }
+
+    @Test
+    public void testSelectsQueryByIssuerComponents() {
+        Issuer byUID = new Issuer(null, "1.2.40.0.13.1", "ISO");
+        Issuer byIDorUID = new Issuer("DCM4CHEE", "1.2.40.0.13.1", "ISO");
+        assertEquals(1, service(
+                entityManager(Issuer.FIND_BY_ENTITY_UID, new Issuer(1, byUID)),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(byUID).getPk());
+        assertEquals(2, service(
+                entityManager(Issuer.FIND_BY_ENTITY_ID_OR_UID, new Issuer(2, byIDorUID)),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(byIDorUID).getPk());
+        assertEquals(0, creator.inserts.get());
+    }
+
+    @Test
+    public void testCachesFoundIssuerAfterCommit() {
+        TestTransactionSynchronizationRegistry tsr =
+                new TestTransactionSynchronizationRegistry();
+        Issuer issuer = service(entityManager(new Issuer(3, ISSUER)), tsr)
+                .findOrCreate(ISSUER);
+        assertEquals(3, issuer.getPk());
+        assertNull(cache.get(ISSUER));
+        tsr.complete(Status.STATUS_COMMITTED);
+        assertEquals(3, cache.get(ISSUER).getPk());
+    }
+
+    @Test
+    public void testDoesNotCacheFoundIssuerOnRollback() {
+        TestTransactionSynchronizationRegistry tsr =
+                new TestTransactionSynchronizationRegistry();
+        service(entityManager(new Issuer(3, ISSUER)), tsr).findOrCreate(ISSUER);
+        tsr.complete(Status.STATUS_ROLLEDBACK);
+        assertNull(cache.get(ISSUER));
+    }
+
+    @Test
+    public void testReturnsIssuerWithLowestPk() {
+        Issuer issuer = service(
+                entityManager(new Issuer(5, ISSUER), new Issuer(2, ISSUER)),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(ISSUER);
+        assertEquals(2, issuer.getPk());
+    }
+
+    @Test
+    public void testCachesCreatedIssuerAtOnce() {
+        Issuer issuer = service(entityManager(),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(ISSUER);
+        assertEquals(1, creator.inserts.get());
+        assertEquals(issuer.getPk(), cache.get(ISSUER).getPk());
+    }
+
+    @Test
+    public void testReselectsIssuerInsertedByConcurrentTransaction() {
+        Issuer concurrent = creator.create(ISSUER);
+        Issuer issuer = service(entityManager(),
+                new TestTransactionSynchronizationRegistry())
+                .findOrCreate(ISSUER);
+        assertEquals(concurrent.getPk(), issuer.getPk());
+        assertEquals(1, creator.inserts.get());
+        assertEquals(1, creator.violations.get());
+        assertEquals(concurrent.getPk(), cache.get(ISSUER).getPk());
+    }
+
+    @Test(expected = EJBException.class)
+    public void testRethrowsIfReselectFindsNothing() {
+        creator.failing = true;
+        service(entityManager(), new TestTransactionSynchronizationRegistry())
+                .findOrCreate(ISSUER);
+    }
+
+    @Test
+    public void testConcurrentFindOrCreateReturnsSameIssuer() throws Exception {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Issuer> results =
+                Collections.synchronizedList(new ArrayList<Issuer>());
+        final List<Throwable> errors =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final IssuerServiceEJB service = service(entityManager(),
+                    new TestTransactionSynchronizationRegistry());
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(service.findOrCreate(new Issuer(ISSUER)));
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join(10000);
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(threads, results.size());
+        assertEquals(1, creator.inserts.get());
+        for (Issuer issuer : results)
+            assertEquals(results.get(0).getPk(), issuer.getPk());
+    }
+
+    /**
+     * Emulates the unique issuer indexes by committed issuers.
+     */
+    static class TestIssuerCreator extends IssuerCreatorEJB {
+
+        final ConcurrentMap<String, Issuer> committed =
+                new ConcurrentHashMap<String, Issuer>();
+        final AtomicLong nextPk = new AtomicLong(1);
+        final AtomicInteger inserts = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        volatile boolean failing;
+
+        @Override
+        public Issuer create(org.dcm4che3.data.Issuer issuer) {
+            if (failing)
+                throw new EJBException("Database unavailable");
+            Issuer created = new Issuer(nextPk.getAndIncrement(), issuer);
+            if (committed.putIfAbsent(IssuerCache.keyOf(issuer), created) != null) {
+                violations.incrementAndGet();
+                throw new EJBException("Unique constraint violated");
+            }
+            inserts.incrementAndGet();
+            return created;
+        }
+
+        @Override
+        public Issuer find(org.dcm4che3.data.Issuer issuer) {
+            return committed.get(IssuerCache.keyOf(issuer));
+        }
+    }
+
+    static class TestTransactionSynchronizationRegistry
+            implements TransactionSynchronizationRegistry {
+
+        final List<Synchronization> syncs = new ArrayList<Synchronization>();
+
+        void complete(int status) {
+            for (Synchronization sync : syncs)
+                sync.afterCompletion(status);
+        }
+
+        @Override
+        public void registerInterposedSynchronization(Synchronization sync) {
+            syncs.add(sync);
+        }
+
+        @Override
+        public Object getTransactionKey() {
+            return this;
+        }
+
+        @Override
+        public void putResource(Object key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object getResource(Object key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getTransactionStatus() {
+            return Status.STATUS_ACTIVE;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return false;
+        }
+    }
+}
@@ -41,9 +41,9 @@ package org.dcm4chee.archive.mima.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.dcm4che3.data.IDWithIssuer;
 import org.dcm4che3.data.Issuer;
@@ -59,7 +59,7 @@ class MIMAInfo {
     private Issuer requestedIssuerOfPatientID;
     private Issuer requestedIssuerOfAccessionNumber;
     private final Hashtable<Set<IDWithIssuer>,String[]> patientNamesCache = new Hashtable<Set<IDWithIssuer>,String[]> ();
-    private final Set<IDWithIssuer[]> pixResponseCache = new HashSet<IDWithIssuer[]>();
+    private final Set<IDWithIssuer[]> pixResponseCache = new CopyOnWriteArraySet<IDWithIssuer[]>();
 
     public boolean isReturnOtherPatientIDs() {
         return returnOtherPatientIDs;
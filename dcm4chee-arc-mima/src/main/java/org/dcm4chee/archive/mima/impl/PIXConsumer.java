@@ -44,6 +44,7 @@ import java.util.ArrayList;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 
 import org.dcm4che3.conf.core.api.ConfigurationException;
@@ -59,7 +60,9 @@ import org.dcm4che3.net.IncompatibleConnectionException;
 import org.dcm4che3.net.hl7.HL7Application;
 import org.dcm4che3.net.hl7.HL7DeviceExtension;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.dto.GenericParticipant;
+import org.dcm4chee.archive.patient.PatientMergeEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,10 +75,12 @@ public class PIXConsumer {
     private static Logger LOG = LoggerFactory.getLogger(PIXConsumer.class);
     
     @Inject
-    private IHL7ApplicationCache hl7ApplicationCache; 
-    
+    IHL7ApplicationCache hl7ApplicationCache;
+
     @Inject
-    private Event<PixQueryEvent> pixQueryEvent;
+    Event<PixQueryEvent> pixQueryEvent;
+
+    private final PIXQueryCache cache = new PIXQueryCache();
     
     public IDWithIssuer[] pixQuery(ArchiveAEExtension aeExt, IDWithIssuer pid) {
         if (pid == null)
@@ -87,10 +92,33 @@ public class PIXConsumer {
                 || containsWildcard(pid.getID()) || pid.getIssuer() == null)
             return new IDWithIssuer[] { pid };
         
+        Device dev = aeExt.getApplicationEntity().getDevice();
+        ArchiveDeviceExtension arcDev =
+                dev.getDeviceExtension(ArchiveDeviceExtension.class);
+        String key = pixManager + '|' + pid;
+        IDWithIssuer[] cached = cache.get(key);
+        if (cached != null) {
+            LOG.debug("Use cached PIX Query result for PID: {}", pid);
+            return cached;
+        }
+
+        IDWithIssuer[] pids = pixQuery(dev, pixConsumer, pixManager, pid);
+        if (arcDev != null)
+            cache.put(key, pids, pids.length > 1
+                    ? arcDev.getPIXQueryCacheTTL()
+                    : arcDev.getPIXQueryCacheNegativeTTL(),
+                    arcDev.getPIXQueryCacheSize());
+        if ((cache.getMisses() % 1000) == 0)
+            LOG.info("{}", cache);
+        return pids;
+    }
+
+    private IDWithIssuer[] pixQuery(Device dev, String pixConsumer,
+            String pixManager, IDWithIssuer pid) {
         ArrayList<IDWithIssuer> pids = new ArrayList<IDWithIssuer>();
         pids.add(pid);
+        long start = System.nanoTime();
         try {
-            Device dev = aeExt.getApplicationEntity().getDevice();
             HL7DeviceExtension hl7 = dev.getDeviceExtension(HL7DeviceExtension.class);
             HL7Application pixConsumerApp = hl7.getHL7Application(pixConsumer);
             if (pixConsumerApp == null)
@@ -120,11 +148,29 @@ public class PIXConsumer {
             }
         } catch (Exception e) {
             LOG.info("PIX Query failed: ", e);
+        } finally {
+            cache.onQuery(System.nanoTime() - start);
         }
         
         return pids.toArray(new IDWithIssuer[pids.size()]);
     }
 
+    public void onPatientMerge(@Observes PatientMergeEvent event) {
+        int count = cache.invalidate(event.getPatientID(),
+                event.getPriorPatientID());
+        if (count > 0)
+            LOG.info("Invalidated {} cached PIX Query results on {}",
+                    count, event);
+    }
+
+    /**
+     * Returns the cache of PIX Query results, providing its hit/miss and
+     * PIX Query latency metrics.
+     */
+    public PIXQueryCache getCache() {
+        return cache;
+    }
+
     private boolean containsWildcard(String s) {
         return s.indexOf('*') >= 0 || s.indexOf('?') >= 0;
     }
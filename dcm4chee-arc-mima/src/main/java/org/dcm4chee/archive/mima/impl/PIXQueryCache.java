@@ -0,0 +1,213 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.mima.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.IDWithIssuer;
+
+/**
+ * Bounded cache of PIX Query results with time-to-live. Also caches PIX
+ * Queries which returned no other Patient IDs or failed, typically with a
+ * shorter time-to-live.
+ */
+public class PIXQueryCache {
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryTime = new AtomicLong();
+
+    private static final class Entry {
+        final IDWithIssuer[] pids;
+        final long expires;
+
+        Entry(IDWithIssuer[] pids, long expires) {
+            this.pids = pids;
+            this.expires = expires;
+        }
+
+        boolean contains(String id) {
+            for (IDWithIssuer pid : pids)
+                if (pid.getID().equals(id))
+                    return true;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the cached Patient IDs for the specified key or {@code null},
+     * if there is no cached result or it is expired.
+     */
+    public IDWithIssuer[] get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires <= System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.pids.length > 1)
+            hits.incrementAndGet();
+        else
+            negativeHits.incrementAndGet();
+        return entry.pids.clone();
+    }
+
+    public void put(String key, IDWithIssuer[] pids, int ttl, int maxSize) {
+        if (ttl <= 0 || maxSize <= 0)
+            return;
+
+        Entry entry = new Entry(pids.clone(),
+                System.currentTimeMillis() + ttl * 1000L);
+        synchronized (this) {
+            entries.put(key, entry);
+            for (Iterator<Entry> iter = entries.values().iterator();
+                    entries.size() > maxSize && iter.hasNext();) {
+                iter.next();
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached results containing one of the specified Patient
+     * IDs, ignoring their Issuer.
+     *
+     * @return number of removed results
+     */
+    public int invalidate(IDWithIssuer... pids) {
+        int count = 0;
+        synchronized (this) {
+            for (Iterator<Entry> iter = entries.values().iterator();
+                    iter.hasNext();) {
+                Entry entry = iter.next();
+                for (IDWithIssuer pid : pids) {
+                    if (pid != null && entry.contains(pid.getID())) {
+                        iter.remove();
+                        count++;
+                        break;
+                    }
+                }
+            }
+        }
+        invalidations.addAndGet(count);
+        return count;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public void onQuery(long nanos) {
+        queries.incrementAndGet();
+        queryTime.addAndGet(nanos);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cache hits of PIX Queries which returned no
+     * other Patient IDs or failed.
+     */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Returns the number of PIX Queries sent to the PIX Manager.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Returns the average duration of a PIX Query round trip in ms.
+     */
+    public double getAverageQueryTime() {
+        long n = queries.get();
+        return n > 0 ? queryTime.get() / (n * 1000000.) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PIXQueryCache[size=" + size()
+                + ", hits=" + getHits()
+                + ", negativeHits=" + getNegativeHits()
+                + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations()
+                + ", queries=" + getQueries()
+                + ", avgQueryTime=" + getAverageQueryTime()
+                + "ms]";
+    }
+}
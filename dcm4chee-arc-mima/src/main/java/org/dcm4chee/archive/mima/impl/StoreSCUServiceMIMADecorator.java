@@ -77,12 +77,15 @@ public abstract class StoreSCUServiceMIMADecorator
     @Override
     public void coerceAttributes(Attributes attrs, CStoreSCUContext context)
             throws DicomServiceException {
-        MIMAInfo info = (MIMAInfo) context
-                .getProperty(MIMAInfo.class.getName());
-        if (info == null) {
-            info = new MIMAInfo();
-            init(context, info);
-            context.setProperty(MIMAInfo.class.getName(), info);
+        MIMAInfo info;
+        // coerceAttributes is invoked concurrently by read ahead threads
+        synchronized (context) {
+            info = (MIMAInfo) context.getProperty(MIMAInfo.class.getName());
+            if (info == null) {
+                info = new MIMAInfo();
+                init(context, info);
+                context.setProperty(MIMAInfo.class.getName(), info);
+            }
         }
         coercion.coerce(context.getArchiveAEExtension(), info, attrs);
         storescuService.coerceAttributes(attrs, context);
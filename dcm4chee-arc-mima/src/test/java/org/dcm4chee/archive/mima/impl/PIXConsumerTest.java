@@ -0,0 +1,270 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.mima.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.event.Event;
+
+import org.dcm4che3.conf.api.hl7.IHL7ApplicationCache;
+import org.dcm4che3.data.IDWithIssuer;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.hl7.HL7Application;
+import org.dcm4che3.net.hl7.HL7DeviceExtension;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.patient.PatientMergeEvent;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests caching of PIX Query results against a local PIX Manager stub.
+ */
+public class PIXConsumerTest {
+
+    private static final String PIX_CONSUMER = "DCM4CHEE^DCM4CHEE";
+    private static final String PIX_MANAGER = "PIXMGR^STUB";
+    private static final IDWithIssuer PID = new IDWithIssuer("PID1^^^ISSUER1");
+    private static final IDWithIssuer OTHER_PID =
+            new IDWithIssuer("PID2^^^ISSUER2");
+
+    private PIXManagerStub stub;
+    private PIXConsumer pixConsumer;
+    private ArchiveAEExtension arcAE;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() throws Exception {
+        stub = new PIXManagerStub();
+
+        Device device = new Device("arc");
+        Connection conn = new Connection("hl7", "localhost");
+        conn.setProtocol(Connection.Protocol.HL7);
+        device.addConnection(conn);
+        HL7DeviceExtension hl7Ext = new HL7DeviceExtension();
+        device.addDeviceExtension(hl7Ext);
+        HL7Application consumerApp = new HL7Application(PIX_CONSUMER);
+        hl7Ext.addHL7Application(consumerApp);
+        consumerApp.addConnection(conn);
+        device.addDeviceExtension(new ArchiveDeviceExtension());
+        ApplicationEntity ae = new ApplicationEntity("DCM4CHEE");
+        device.addApplicationEntity(ae);
+        arcAE = new ArchiveAEExtension();
+        ae.addAEExtension(arcAE);
+        arcAE.setLocalPIXConsumerApplication(PIX_CONSUMER);
+        arcAE.setRemotePIXManagerApplication(PIX_MANAGER);
+
+        Device stubDevice = new Device("pixmgr");
+        Connection stubConn = new Connection("hl7", "localhost",
+                stub.getPort());
+        stubConn.setProtocol(Connection.Protocol.HL7);
+        stubDevice.addConnection(stubConn);
+        HL7DeviceExtension stubHL7Ext = new HL7DeviceExtension();
+        stubDevice.addDeviceExtension(stubHL7Ext);
+        HL7Application managerApp = new HL7Application(PIX_MANAGER);
+        stubHL7Ext.addHL7Application(managerApp);
+        managerApp.addConnection(stubConn);
+
+        IHL7ApplicationCache hl7AppCache =
+                EasyMock.createMock(IHL7ApplicationCache.class);
+        EasyMock.expect(hl7AppCache.findHL7Application(PIX_MANAGER))
+                .andStubReturn(managerApp);
+        EasyMock.replay(hl7AppCache);
+
+        pixConsumer = new PIXConsumer();
+        pixConsumer.hl7ApplicationCache = hl7AppCache;
+        pixConsumer.pixQueryEvent = EasyMock.createNiceMock(Event.class);
+        EasyMock.replay(pixConsumer.pixQueryEvent);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stub.close();
+    }
+
+    @Test
+    public void testCachePIXQueryResult() throws Exception {
+        stub.setOtherPIDs(OTHER_PID.toString());
+        IDWithIssuer[] expected = { PID, OTHER_PID };
+        assertArrayEquals(expected, pixConsumer.pixQuery(arcAE, PID));
+        assertArrayEquals(expected, pixConsumer.pixQuery(arcAE, PID));
+        assertEquals(1, stub.getQueries());
+        assertEquals(1, pixConsumer.getCache().getHits());
+        assertEquals(1, pixConsumer.getCache().getMisses());
+        assertEquals(1, pixConsumer.getCache().getQueries());
+    }
+
+    @Test
+    public void testCacheNoOtherPIDs() throws Exception {
+        stub.setOtherPIDs(null);
+        IDWithIssuer[] expected = { PID };
+        assertArrayEquals(expected, pixConsumer.pixQuery(arcAE, PID));
+        assertArrayEquals(expected, pixConsumer.pixQuery(arcAE, PID));
+        assertEquals(1, stub.getQueries());
+        assertEquals(1, pixConsumer.getCache().getNegativeHits());
+    }
+
+    @Test
+    public void testInvalidateOnPatientMerge() throws Exception {
+        stub.setOtherPIDs(OTHER_PID.toString());
+        pixConsumer.pixQuery(arcAE, PID);
+        pixConsumer.onPatientMerge(new PatientMergeEvent(
+                new IDWithIssuer("PID3^^^ISSUER2"), OTHER_PID));
+        pixConsumer.pixQuery(arcAE, PID);
+        assertEquals(2, stub.getQueries());
+        assertEquals(1, pixConsumer.getCache().getInvalidations());
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        arcAE.getApplicationEntity().getDevice()
+                .getDeviceExtension(ArchiveDeviceExtension.class)
+                .setPIXQueryCacheSize(0);
+        stub.setOtherPIDs(OTHER_PID.toString());
+        pixConsumer.pixQuery(arcAE, PID);
+        pixConsumer.pixQuery(arcAE, PID);
+        assertEquals(2, stub.getQueries());
+    }
+
+    /**
+     * Minimal MLLP server answering each QBP^Q23 with a RSP^K23 containing
+     * the configured other Patient IDs.
+     */
+    private static class PIXManagerStub implements Runnable {
+
+        private static final int VT = 0x0b;
+        private static final int FS = 0x1c;
+        private static final int CR = 0x0d;
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile String otherPIDs;
+
+        PIXManagerStub() throws IOException {
+            Thread t = new Thread(this, "pix-manager-stub");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getQueries() {
+            return queries.get();
+        }
+
+        void setOtherPIDs(String otherPIDs) {
+            this.otherPIDs = otherPIDs;
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    Socket s = serverSocket.accept();
+                    try {
+                        readMessage(s.getInputStream());
+                        queries.incrementAndGet();
+                        writeMessage(s.getOutputStream(), response());
+                    } finally {
+                        s.close();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private String response() {
+            StringBuilder sb = new StringBuilder()
+                .append("MSH|^~\\&|PIXMGR|STUB|DCM4CHEE|DCM4CHEE|20150101000000||RSP^K23^RSP_K23|1|P|2.5\r")
+                .append("MSA|AA|1\r");
+            String pids = otherPIDs;
+            if (pids != null) {
+                sb.append("QAK|1|OK\r")
+                  .append("PID|||").append(pids).append("\r");
+            } else {
+                sb.append("QAK|1|NF\r");
+            }
+            return sb.toString();
+        }
+
+        private static byte[] readMessage(InputStream in) throws IOException {
+            if (in.read() != VT)
+                throw new IOException("Missing <VT>");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != FS) {
+                if (b < 0)
+                    throw new IOException("Missing <FS>");
+                out.write(b);
+            }
+            in.read(); // <CR>
+            return out.toByteArray();
+        }
+
+        private static void writeMessage(OutputStream out, String msg)
+                throws IOException {
+            out.write(VT);
+            out.write(msg.getBytes("US-ASCII"));
+            out.write(FS);
+            out.write(CR);
+            out.flush();
+        }
+    }
+}
@@ -55,6 +55,7 @@ import org.dcm4che3.data.UID;
 import org.dcm4che3.io.SAXTransformer;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.TransferCapability;
@@ -62,6 +63,7 @@ import org.dcm4che3.net.service.BasicMPPSSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4chee.archive.code.CodeService;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.conf.StoreParam;
 import org.dcm4chee.archive.entity.Code;
@@ -77,6 +79,7 @@ import org.dcm4chee.archive.mpps.event.MPPSFinal;
 import org.dcm4chee.archive.mpps.event.MPPSUpdate;
 import org.dcm4chee.archive.patient.PatientSelectorFactory;
 import org.dcm4chee.archive.patient.PatientService;
+import org.dcm4chee.archive.store.QueryAttributesUpdater;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -163,16 +166,19 @@ public class MPPSServiceImpl implements MPPSService {
             if (codeItem != null) {
                 Code code = codeService.findOrCreate(new Code(codeItem));
                 pps.setDiscontinuationReasonCode(code);
-                if (Utils.isIncorrectWorklistEntrySelected(pps, 
-                        arcAE.getApplicationEntity().getDevice())) {
-                    rejectIncorrectWorklistEntrySelected(pps);
+                Device device = arcAE.getApplicationEntity().getDevice();
+                if (Utils.isIncorrectWorklistEntrySelected(pps, device)) {
+                    rejectIncorrectWorklistEntrySelected(pps,
+                            device.getDeviceExtension(
+                                    ArchiveDeviceExtension.class));
                 }
             }
         }
         return pps;
     }
 
-    private void rejectIncorrectWorklistEntrySelected(MPPS pps) {
+    private void rejectIncorrectWorklistEntrySelected(MPPS pps,
+            ArchiveDeviceExtension arcDev) {
         HashMap<String,Attributes> map = new HashMap<String,Attributes>();
         for (Attributes seriesRef : pps.getAttributes()
                 .getSequence(Tag.PerformedSeriesSequence)) {
@@ -189,6 +195,7 @@ public class MPPSServiceImpl implements MPPSService {
                             Instance.class)
                     .setParameter(1, seriesRef.getString(Tag.SeriesInstanceUID))
                     .getResultList();
+            Series rejectedSeries = null;
             for (Instance inst : insts) {
                 String iuid = inst.getSopInstanceUID();
                 Attributes ref = map.get(iuid);
@@ -205,14 +212,18 @@ public class MPPSServiceImpl implements MPPSService {
                                 study.getStudyInstanceUID(), cuidInPPS,
                                 pps.getSopInstanceUID());
                     }
-                    inst.setRejectionNoteCode(pps.getDiscontinuationReasonCode());
-                    series.clearQueryAttributes();
-                    study.clearQueryAttributes();
+                    QueryAttributesUpdater.rejectInstance(em, arcDev, inst,
+                            pps.getDiscontinuationReasonCode());
+                    rejectedSeries = series;
                     LOG.info("Reject Instance[pk={},iuid={}] by MPPS Discontinuation Reason - {}",
                             inst.getPk(), iuid,
                             pps.getDiscontinuationReasonCode());
                 }
             }
+            if (rejectedSeries != null) {
+                rejectedSeries.updateRejected(em);
+                rejectedSeries.getStudy().updateRejected(em);
+            }
             map.clear();
         }
     }
@@ -77,6 +77,9 @@ public class StoreServiceMPPSDecorator extends DelegatingStoreService {
             MPPS mpps = findMPPS(em, session, inst);
             if (Utils.isIncorrectWorklistEntrySelected(mpps, session.getDevice())) {
                 inst.setRejectionNoteCode(mpps.getDiscontinuationReasonCode());
+                Series series = inst.getSeries();
+                series.updateRejected(em);
+                series.getStudy().updateRejected(em);
                 LOG.info("{}: Reject {} by MPPS Discontinuation Reason - {}",
                         context.getStoreSession(), inst,
                         mpps.getDiscontinuationReasonCode());
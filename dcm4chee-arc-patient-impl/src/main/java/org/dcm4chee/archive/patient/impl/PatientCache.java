@@ -0,0 +1,341 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.patient.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
+
+/**
+ * Caches the primary keys and versions of patients matching a set of
+ * Patient IDs, and the Patient IDs and patient attributes last merged into
+ * a patient by a received DICOM object.
+ *
+ * Cached entries are only used as long as the version of the patients is
+ * unchanged, so updates of patients by other archive nodes are detected.
+ * Patients created by other archive nodes are detected after the
+ * time-to-live of the entries.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PatientCache {
+
+    private final LinkedHashMap<String, Resolution> resolutions =
+            new LinkedHashMap<String, Resolution>(256, 0.75f, true);
+
+    private final LinkedHashMap<Long, Digest> digests =
+            new LinkedHashMap<Long, Digest>(256, 0.75f, true);
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong skippedUpdates = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Primary keys and versions of the patients matching a set of Patient
+     * IDs.
+     */
+    public static final class Resolution {
+        final String[] ids;
+        final long[] pks;
+        final long[] versions;
+        final long expires;
+
+        Resolution(String[] ids, long[] pks, long[] versions, long expires) {
+            this.ids = ids;
+            this.pks = pks;
+            this.versions = versions;
+            this.expires = expires;
+        }
+
+        public int size() {
+            return pks.length;
+        }
+
+        public long getPk(int index) {
+            return pks[index];
+        }
+
+        public long getVersion(int index) {
+            return versions[index];
+        }
+
+        boolean containsID(String id) {
+            for (String id1 : ids)
+                if (id1.equals(id))
+                    return true;
+            return false;
+        }
+
+        boolean containsPk(long pk) {
+            for (long pk1 : pks)
+                if (pk1 == pk)
+                    return true;
+            return false;
+        }
+    }
+
+    private static final class Digest {
+        final long version;
+        final String pidsKey;
+        final Attributes attrs;
+
+        Digest(long version, String pidsKey, Attributes attrs) {
+            this.version = version;
+            this.pidsKey = pidsKey;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * Returns a key for the specified Patient IDs, independent of their
+     * order.
+     */
+    public static String keyOf(Collection<IDWithIssuer> pids) {
+        String[] ss = new String[pids.size()];
+        int i = 0;
+        for (IDWithIssuer pid : pids)
+            ss[i++] = pid.toString();
+        Arrays.sort(ss);
+        StringBuilder sb = new StringBuilder();
+        for (String s : ss)
+            sb.append(s).append('\\');
+        return sb.toString();
+    }
+
+    private static String[] idsOf(Collection<IDWithIssuer> pids) {
+        String[] ids = new String[pids.size()];
+        int i = 0;
+        for (IDWithIssuer pid : pids)
+            ids[i++] = pid.getID();
+        return ids;
+    }
+
+    /**
+     * Returns the current generation of the cache, which is incremented on
+     * each invalidation. Pass it to {@link #put} to ignore resolutions
+     * which may be outdated by invalidations after they were queried.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the cached patients matching the Patient IDs with the
+     * specified key or {@code null}, if there is no cached entry or it is
+     * expired.
+     */
+    public Resolution get(String key) {
+        Resolution resolution;
+        synchronized (this) {
+            resolution = resolutions.get(key);
+            if (resolution != null
+                    && resolution.expires <= System.currentTimeMillis()) {
+                resolutions.remove(key);
+                resolution = null;
+            }
+        }
+        if (resolution == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return resolution;
+    }
+
+    public void put(String key, Collection<IDWithIssuer> pids, long[] pks,
+            long[] versions, long generation, int ttl, int maxSize) {
+        if (ttl <= 0 || maxSize <= 0)
+            return;
+
+        Resolution resolution = new Resolution(idsOf(pids), pks.clone(),
+                versions.clone(), System.currentTimeMillis() + ttl * 1000L);
+        synchronized (this) {
+            if (this.generation.get() != generation)
+                return;
+
+            resolutions.put(key, resolution);
+            evict(resolutions, maxSize);
+        }
+    }
+
+    /**
+     * Removes the cached entry for the Patient IDs with the specified key,
+     * e.g. if the version of one of the cached patients has changed.
+     */
+    public synchronized void remove(String key) {
+        generation.incrementAndGet();
+        if (resolutions.remove(key) != null)
+            invalidations.incrementAndGet();
+    }
+
+    /**
+     * Returns {@code true}, if the specified Patient IDs and patient
+     * attributes were already merged into the patient with the specified
+     * primary key, and the patient was not updated since then.
+     */
+    public boolean isMerged(long pk, long version, String pidsKey,
+            Attributes attrs) {
+        Digest digest;
+        synchronized (this) {
+            digest = digests.get(pk);
+        }
+        if (digest == null
+                || digest.version != version
+                || !digest.pidsKey.equals(pidsKey)
+                || !digest.attrs.equals(attrs))
+            return false;
+
+        skippedUpdates.incrementAndGet();
+        return true;
+    }
+
+    public void putMerged(long pk, long version, String pidsKey,
+            Attributes attrs, int maxSize) {
+        if (maxSize <= 0)
+            return;
+
+        Digest digest = new Digest(version, pidsKey, attrs);
+        synchronized (this) {
+            digests.put(pk, digest);
+            evict(digests, maxSize);
+        }
+    }
+
+    private static void evict(LinkedHashMap<?, ?> map, int maxSize) {
+        for (Iterator<?> iter = map.values().iterator();
+                map.size() > maxSize && iter.hasNext();) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Removes all cached entries for Patient IDs containing one of the
+     * specified Patient IDs, ignoring their Issuer.
+     */
+    public void invalidate(Collection<IDWithIssuer> pids) {
+        int count = 0;
+        synchronized (this) {
+            generation.incrementAndGet();
+            for (Iterator<Resolution> iter = resolutions.values().iterator();
+                    iter.hasNext();) {
+                Resolution resolution = iter.next();
+                for (IDWithIssuer pid : pids) {
+                    if (resolution.containsID(pid.getID())) {
+                        iter.remove();
+                        count++;
+                        break;
+                    }
+                }
+            }
+        }
+        invalidations.addAndGet(count);
+    }
+
+    /**
+     * Removes all cached entries referring the patient with the specified
+     * primary key.
+     */
+    public void invalidate(long pk) {
+        int count = 0;
+        synchronized (this) {
+            generation.incrementAndGet();
+            if (digests.remove(pk) != null)
+                count++;
+            for (Iterator<Resolution> iter = resolutions.values().iterator();
+                    iter.hasNext();) {
+                if (iter.next().containsPk(pk)) {
+                    iter.remove();
+                    count++;
+                }
+            }
+        }
+        invalidations.addAndGet(count);
+    }
+
+    public synchronized void clear() {
+        resolutions.clear();
+        digests.clear();
+    }
+
+    public synchronized int size() {
+        return resolutions.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of updates of patients by received DICOM objects
+     * which were skipped, because they would not have modified the patient.
+     */
+    public long getSkippedUpdates() {
+        return skippedUpdates.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PatientCache[size=" + size()
+                + ", hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", skippedUpdates=" + getSkippedUpdates()
+                + ", invalidations=" + getInvalidations()
+                + "]";
+    }
+}
@@ -44,10 +44,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.IDWithIssuer;
@@ -100,6 +105,12 @@ public class PatientServiceEJB implements PatientService {
     @Inject
     private IssuerService issuerService;
 
+    @EJB
+    private PatientCache cache;
+
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+
     @Override
     public Patient updateOrCreatePatientOnCStore(Attributes attrs,
             PatientSelector selector, StoreParam storeParam)
@@ -120,7 +131,7 @@ public class PatientServiceEJB implements PatientService {
         Collection<IDWithIssuer> pids = IDWithIssuer.pidsOf(attrs);
         Patient patient = null;
         try {
-            patient = findPatientByDICOM(pids, attrs, selector);
+            patient = findPatientByDICOM(pids, attrs, selector, storeParam);
         } catch (NonUniquePatientException e) {
             LOG.info("Could not associate unique Patient Record to "
                     + "received DICOM object - create new Patient Record:", e);
@@ -134,11 +145,11 @@ public class PatientServiceEJB implements PatientService {
     }
 
     private Patient findPatientByDICOM(Collection<IDWithIssuer> pids,
-            Attributes attrs, PatientSelector selector)
+            Attributes attrs, PatientSelector selector, StoreParam storeParam)
             throws NonUniquePatientException {
         List<Patient> candidates;
         if (!pids.isEmpty()) {
-            candidates = findPatientByIDs(pids);
+            candidates = findPatientByIDs(pids, storeParam);
         } else {
             String familyName = new PersonName(attrs.getString(Tag.PatientName))
                     .get(PersonName.Component.FamilyName);
@@ -212,6 +223,88 @@ public class PatientServiceEJB implements PatientService {
                 .list(QPatient.patient);
     }
 
+    private List<Patient> findPatientByIDs(Collection<IDWithIssuer> pids,
+            StoreParam storeParam) {
+        if (storeParam.getPatientCacheSize() <= 0)
+            return findPatientByIDs(pids);
+
+        String key = PatientCache.keyOf(pids);
+        List<Patient> candidates = findCachedPatients(key);
+        if (candidates == null) {
+            long generation = cache.generation();
+            candidates = findPatientByIDs(pids);
+            // do not cache no match, which will create a new patient
+            if (!candidates.isEmpty())
+                cacheAfterCommit(key, pids, candidates, generation, storeParam);
+        }
+        return candidates;
+    }
+
+    private List<Patient> findCachedPatients(String key) {
+        PatientCache.Resolution resolution = cache.get(key);
+        if (resolution == null)
+            return null;
+
+        List<Patient> candidates = new ArrayList<Patient>(resolution.size());
+        for (int i = 0; i < resolution.size(); i++) {
+            Patient patient = em.find(Patient.class, resolution.getPk(i));
+            if (patient == null
+                    || patient.getVersion() != resolution.getVersion(i)) {
+                cache.remove(key);
+                return null;
+            }
+            candidates.add(patient);
+        }
+        return candidates;
+    }
+
+    private void cacheAfterCommit(final String key,
+            final Collection<IDWithIssuer> pids,
+            final List<Patient> candidates, final long generation,
+            final StoreParam storeParam) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != Status.STATUS_COMMITTED)
+                    return;
+
+                long[] pks = new long[candidates.size()];
+                long[] versions = new long[pks.length];
+                for (int i = 0; i < pks.length; i++) {
+                    Patient patient = candidates.get(i);
+                    pks[i] = patient.getPk();
+                    versions[i] = patient.getVersion();
+                }
+                cache.put(key, pids, pks, versions, generation,
+                        storeParam.getPatientCacheTTL(),
+                        storeParam.getPatientCacheSize());
+            }
+        });
+    }
+
+    private void cacheMergedAfterCommit(final Patient patient,
+            final String pidsKey, final Attributes attrs,
+            final StoreParam storeParam) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED)
+                    cache.putMerged(patient.getPk(), patient.getVersion(),
+                            pidsKey, attrs, storeParam.getPatientCacheSize());
+            }
+        });
+    }
+
     private Predicate eqOrNoIssuer(org.dcm4che3.data.Issuer issuer) {
         String id = issuer.getLocalNamespaceEntityID();
         String uid = issuer.getUniversalEntityID();
@@ -267,6 +360,7 @@ public class PatientServiceEJB implements PatientService {
         patient.setPatientIDs(createPatientIDs(pids, patient,
                 storeParam.isDeIdentifyLogs()));
         em.persist(patient);
+        cache.invalidate(pids);
         LOG.info("Create {}", patient.toString(storeParam.isDeIdentifyLogs()));
         return patient;
     }
@@ -306,15 +400,29 @@ public class PatientServiceEJB implements PatientService {
 
     private void updatePatientByDICOM(Patient patient, Attributes attrs,
             StoreParam storeParam, Collection<IDWithIssuer> pids) {
+        AttributeFilter filter = storeParam.getAttributeFilter(Entity.Patient);
+        int[] selection = filter.getCompleteSelection(attrs);
+        String pidsKey = null;
+        Attributes selected = null;
+        if (storeParam.getPatientCacheSize() > 0) {
+            // skip loading and re-writing the patient attributes, if the
+            // same Patient IDs and attributes were already merged
+            pidsKey = PatientCache.keyOf(pids);
+            selected = new Attributes(attrs, selection);
+            if (cache.isMerged(patient.getPk(), patient.getVersion(),
+                    pidsKey, selected))
+                return;
+        }
         if (mergePatientIDs(patient, pids, storeParam.isDeIdentifyLogs())) {
             patient.updateOtherPatientIDs();
         }
         Attributes patientAttrs = patient.getAttributes();
-        AttributeFilter filter = storeParam.getAttributeFilter(Entity.Patient);
-        if (patientAttrs.mergeSelected(attrs, filter.getCompleteSelection(attrs))) {
+        if (patientAttrs.mergeSelected(attrs, selection)) {
             patient.setAttributes(patientAttrs, filter,
                     storeParam.getFuzzyStr());
         }
+        if (selected != null)
+            cacheMergedAfterCommit(patient, pidsKey, selected, storeParam);
     }
 
     private boolean mergePatientIDs(Patient patient,
@@ -353,6 +461,9 @@ public class PatientServiceEJB implements PatientService {
         for (IDWithIssuer pid : add)
             patientIDs.add(createPatientID(pid, patient, deidentify));
 
+        if (!add.isEmpty())
+            cache.invalidate(add);
+
         patient.setNoPatientID(patientIDs.isEmpty());
         return modified || !add.isEmpty();
     }
@@ -371,6 +482,7 @@ public class PatientServiceEJB implements PatientService {
 
     private void updatePatientByHL7(Patient patient, Attributes attrs,
             Collection<IDWithIssuer> pids, StoreParam storeParam) {
+        cache.invalidate(patient.getPk());
         if (mergePatientIDs(patient, pids, storeParam.isDeIdentifyLogs())) {
             patient.updateOtherPatientIDs();
         }
@@ -430,6 +542,8 @@ public class PatientServiceEJB implements PatientService {
                     + " with itself");
 
         LOG.info("Merge {} with {}", prior, pat);
+        cache.invalidate(pat.getPk());
+        cache.invalidate(prior.getPk());
         moveStudies(pat, prior);
         moveModalityWorklistItems(pat, prior);
         moveModalityPerformedProcedureSteps(pat, prior);
@@ -465,6 +579,8 @@ public class PatientServiceEJB implements PatientService {
                     + " with itself");
 
         LOG.info("Link {} with {}", other, pat);
+        cache.invalidate(pat.getPk());
+        cache.invalidate(other.getPk());
         linkPatientIDs(pat, other, deidentify);
         linkPatientIDs(other, pat, deidentify);
         pat.updateOtherPatientIDs();
@@ -522,6 +638,8 @@ public class PatientServiceEJB implements PatientService {
                     + " with itself");
 
         LOG.info("Unlink {} from {}", other, pat);
+        cache.invalidate(pat.getPk());
+        cache.invalidate(other.getPk());
         mergePatientIDs(pat, pids, storeParam.isDeIdentifyLogs());
         mergePatientIDs(other, otherPIDs, storeParam.isDeIdentifyLogs());
         unlinkPatientIDs(pat, other, storeParam.isDeIdentifyLogs());
@@ -638,6 +756,8 @@ public class PatientServiceEJB implements PatientService {
                     "More than one patient found for source attributes - expected 1 match");
 
         Patient patient = srcPatient.get(0);
+        cache.invalidate(patient.getPk());
+        cache.invalidate(pids);
         otherPatient = findPatientByIDs(otherPids);
         if (!otherPatient.isEmpty())
             throw new IllegalArgumentException(
@@ -660,6 +780,7 @@ public class PatientServiceEJB implements PatientService {
 
             Collection<PatientID> newPatientIDs = createPatientIDs(otherPids,
                     patient, storeParam.isDeIdentifyLogs());
+            cache.invalidate(otherPids);
             for (PatientID id : newPatientIDs) {
                 patient.getPatientIDs().add(id);
             }
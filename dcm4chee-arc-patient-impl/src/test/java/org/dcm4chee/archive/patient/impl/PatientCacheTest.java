@@ -0,0 +1,155 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.patient.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
+import org.dcm4che3.data.Issuer;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PatientCacheTest {
+
+    private static final IDWithIssuer PID1 =
+            new IDWithIssuer("PID1", new Issuer("ISSUER1", null, null));
+    private static final IDWithIssuer PID2 =
+            new IDWithIssuer("PID2", new Issuer("ISSUER2", null, null));
+    private static final Collection<IDWithIssuer> PIDS =
+            Arrays.asList(PID1, PID2);
+
+    private PatientCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new PatientCache();
+    }
+
+    @Test
+    public void testKeyOfIgnoresOrder() {
+        assertEquals(PatientCache.keyOf(PIDS),
+                PatientCache.keyOf(Arrays.asList(PID2, PID1)));
+    }
+
+    @Test
+    public void testPutAndGet() {
+        String key = PatientCache.keyOf(PIDS);
+        cache.put(key, PIDS, new long[] { 1L }, new long[] { 3L },
+                cache.generation(), 60, 10);
+        PatientCache.Resolution resolution = cache.get(key);
+        assertNotNull(resolution);
+        assertEquals(1, resolution.size());
+        assertEquals(1L, resolution.getPk(0));
+        assertEquals(3L, resolution.getVersion(0));
+    }
+
+    @Test
+    public void testPutIgnoredAfterInvalidation() {
+        String key = PatientCache.keyOf(PIDS);
+        long generation = cache.generation();
+        cache.invalidate(Collections.singleton(PID1));
+        cache.put(key, PIDS, new long[] { 1L }, new long[] { 3L },
+                generation, 60, 10);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testInvalidateByID() {
+        String key = PatientCache.keyOf(PIDS);
+        cache.put(key, PIDS, new long[] { 1L }, new long[] { 3L },
+                cache.generation(), 60, 10);
+        cache.invalidate(Collections.singleton(new IDWithIssuer("PID2", null)));
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testInvalidateByPk() {
+        String key = PatientCache.keyOf(PIDS);
+        cache.put(key, PIDS, new long[] { 1L, 2L }, new long[] { 3L, 4L },
+                cache.generation(), 60, 10);
+        cache.putMerged(2L, 4L, key, patientAttrs(), 10);
+        cache.invalidate(2L);
+        assertNull(cache.get(key));
+        assertFalse(cache.isMerged(2L, 4L, key, patientAttrs()));
+    }
+
+    @Test
+    public void testEvictEldest() {
+        for (long pk = 1; pk <= 3; pk++)
+            cache.put("key" + pk, PIDS, new long[] { pk }, new long[] { 0L },
+                    cache.generation(), 60, 2);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("key1"));
+    }
+
+    @Test
+    public void testIsMerged() {
+        String key = PatientCache.keyOf(PIDS);
+        cache.putMerged(1L, 3L, key, patientAttrs(), 10);
+        assertTrue(cache.isMerged(1L, 3L, key, patientAttrs()));
+        assertFalse(cache.isMerged(1L, 4L, key, patientAttrs()));
+        assertFalse(cache.isMerged(1L, 3L,
+                PatientCache.keyOf(Collections.singleton(PID1)),
+                patientAttrs()));
+        Attributes modified = patientAttrs();
+        modified.setString(Tag.PatientSex, VR.CS, "F");
+        assertFalse(cache.isMerged(1L, 3L, key, modified));
+        assertEquals(1, cache.getSkippedUpdates());
+    }
+
+    private static Attributes patientAttrs() {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientID, VR.LO, "PID1");
+        attrs.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        attrs.setString(Tag.PatientSex, VR.CS, "M");
+        return attrs;
+    }
+}
@@ -0,0 +1,144 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+
+/**
+ * Synthetic data sets used by the benchmarks.
+ */
+public class SyntheticDatasets {
+
+    private static final Random RANDOM = new Random(42);
+
+    private SyntheticDatasets() {
+    }
+
+    public static Attributes patient(int i) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attrs.setString(Tag.PatientName, VR.PN, "Doe" + i + "^John^^Dr.");
+        attrs.setString(Tag.PatientID, VR.LO, "PID" + i);
+        attrs.setString(Tag.IssuerOfPatientID, VR.LO, "DCM4CHEE");
+        attrs.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+        attrs.setString(Tag.PatientSex, VR.CS, "M");
+        return attrs;
+    }
+
+    public static Attributes study(int i) {
+        Attributes attrs = patient(i);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, UIDUtils.createUID());
+        attrs.setString(Tag.StudyDate, VR.DA, "20150101");
+        attrs.setString(Tag.StudyTime, VR.TM, "120000");
+        attrs.setString(Tag.AccessionNumber, VR.SH, "ACC" + i);
+        attrs.setString(Tag.ReferringPhysicianName, VR.PN, "Smith^Jane");
+        attrs.setString(Tag.StudyDescription, VR.LO, "CT THORAX");
+        attrs.setString(Tag.StudyID, VR.SH, String.valueOf(i));
+        return attrs;
+    }
+
+    public static Attributes series(Attributes study, int i) {
+        Attributes attrs = new Attributes(study);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, UIDUtils.createUID());
+        attrs.setString(Tag.Modality, VR.CS, "CT");
+        attrs.setInt(Tag.SeriesNumber, VR.IS, i);
+        attrs.setString(Tag.SeriesDescription, VR.LO, "AXIAL 1.0");
+        attrs.setString(Tag.InstitutionName, VR.LO, "General Hospital");
+        attrs.setString(Tag.StationName, VR.SH, "CT01");
+        return attrs;
+    }
+
+    public static Attributes instance(Attributes series, int i) {
+        Attributes attrs = new Attributes(series);
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        attrs.setInt(Tag.InstanceNumber, VR.IS, i);
+        attrs.setString(Tag.ImageType, VR.CS, "ORIGINAL", "PRIMARY", "AXIAL");
+        attrs.setString(Tag.ContentDate, VR.DA, "20150101");
+        attrs.setString(Tag.ContentTime, VR.TM, "120001");
+        return attrs;
+    }
+
+    /**
+     * Returns CT image with native 16 bit Pixel Data of given number of
+     * frames, filled with pseudo-random noise.
+     */
+    public static Attributes image(int rows, int columns, int frames) {
+        Attributes attrs = instance(series(study(0), 1), 1);
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        attrs.setInt(Tag.Rows, VR.US, rows);
+        attrs.setInt(Tag.Columns, VR.US, columns);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 16);
+        attrs.setInt(Tag.BitsStored, VR.US, 12);
+        attrs.setInt(Tag.HighBit, VR.US, 11);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        byte[] pixelData = new byte[rows * columns * frames * 2];
+        for (int i = 0; i < pixelData.length; i += 2) {
+            pixelData[i] = (byte) RANDOM.nextInt(256);
+            pixelData[i + 1] = (byte) RANDOM.nextInt(16);
+        }
+        attrs.setBytes(Tag.PixelData, VR.OW, pixelData);
+        return attrs;
+    }
+
+    /**
+     * Encodes data set without File Meta Information in given Transfer
+     * Syntax, as received in P-DATA-TF PDUs.
+     */
+    public static byte[] encode(Attributes attrs, String tsuid)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (DicomOutputStream out = new DicomOutputStream(bout, tsuid)) {
+            out.writeDataset(null, attrs);
+        }
+        return bout.toByteArray();
+    }
+
+}
@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.conf;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the selection of the attributes stored in the attribute blob of
+ * an entity by its {@link AttributeFilter}, with and without configured
+ * private attributes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AttributeFilterBenchmark {
+
+    private static final String PRIVATE_CREATOR = "DCM4CHEE PERFORMANCE";
+
+    private static final int[] SELECTION = {
+        Tag.SpecificCharacterSet,
+        Tag.ImageType,
+        Tag.SOPClassUID,
+        Tag.SOPInstanceUID,
+        Tag.StudyDate,
+        Tag.ContentDate,
+        Tag.StudyTime,
+        Tag.ContentTime,
+        Tag.AccessionNumber,
+        Tag.Modality,
+        Tag.InstitutionName,
+        Tag.ReferringPhysicianName,
+        Tag.StationName,
+        Tag.StudyDescription,
+        Tag.SeriesDescription,
+        Tag.PatientName,
+        Tag.PatientID,
+        Tag.IssuerOfPatientID,
+        Tag.PatientBirthDate,
+        Tag.PatientSex,
+        Tag.StudyInstanceUID,
+        Tag.SeriesInstanceUID,
+        Tag.StudyID,
+        Tag.SeriesNumber,
+        Tag.InstanceNumber,
+        Tag.NumberOfFrames,
+        Tag.Rows,
+        Tag.Columns,
+        Tag.BitsAllocated,
+        Tag.BitsStored,
+        Tag.PixelRepresentation
+    };
+
+    private static final int[] PRIVATE_TAGS = {
+        0x00191010,
+        0x00191011,
+        0x00191012
+    };
+
+    /** Number of configured private attributes */
+    @Param({ "0", "3" })
+    public int privateAttributes;
+
+    private AttributeFilter filter;
+    private Attributes attrs;
+
+    @Setup
+    public void setup() {
+        attrs = SyntheticDatasets.image(16, 16, 1);
+        for (int tag : PRIVATE_TAGS)
+            attrs.setString(PRIVATE_CREATOR, tag, VR.LO, "PRIVATE");
+        HashMap<Integer, String> privateSelection =
+                new HashMap<Integer, String>();
+        for (int i = 0; i < privateAttributes; i++)
+            privateSelection.put(PRIVATE_TAGS[i], PRIVATE_CREATOR);
+        filter = new AttributeFilter(SELECTION, privateSelection);
+    }
+
+    @Benchmark
+    public Attributes select() {
+        return new Attributes(attrs, filter.getCompleteSelection(attrs));
+    }
+}
@@ -0,0 +1,190 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.performance.conf;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.SAXTransformer;
+import org.dcm4che3.io.SAXTransformer.SetupTransformer;
+import org.dcm4che3.io.TemplatesCache;
+import org.dcm4che3.util.DateUtils;
+import org.dcm4chee.archive.conf.AttributesCoercion;
+import org.dcm4chee.archive.conf.AttributesCoercionCache;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the attribute coercion of a C-FIND response by the
+ * {@code ensure-pid.xsl} stylesheet by {@link SAXTransformer#transform},
+ * as done before, with its application by a {@link Transformer} cached per
+ * thread and by its compiled direct mapping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AttributesCoercionBenchmark {
+
+    private static final String ENSURE_PID =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"1.0\">\n"
+        + "  <xsl:output method=\"xml\"/>\n"
+        + "  <xsl:template match=\"/NativeDicomModel\">\n"
+        + "    <NativeDicomModel>\n"
+        + "      <xsl:if test=\"not(DicomAttribute[@tag='00100020']/Value)\">\n"
+        + "        <DicomAttribute tag=\"00100020\" vr=\"LO\">\n"
+        + "          <xsl:copy-of select=\"DicomAttribute[@tag='0020000D']/Value\"/>\n"
+        + "        </DicomAttribute>\n"
+        + "        <DicomAttribute tag=\"00100021\" vr=\"LO\">\n"
+        + "          <Value number=\"1\">DCM4CHEE-ARC</Value>\n"
+        + "        </DicomAttribute>\n"
+        + "      </xsl:if>\n"
+        + "    </NativeDicomModel>\n"
+        + "  </xsl:template>\n"
+        + "</xsl:stylesheet>\n";
+
+    /** Same transformation by xsl:choose, which is not compiled */
+    private static final String ENSURE_PID_BY_CHOOSE = ENSURE_PID
+        .replace("<xsl:if test=", "<xsl:choose><xsl:when test=")
+        .replace("</xsl:if>", "</xsl:when></xsl:choose>");
+
+    /** If the C-FIND response contains a Patient ID */
+    @Param({ "false", "true" })
+    public boolean withPatientID;
+
+    private Path ensurePid;
+    private Path ensurePidByChoose;
+    private Templates templates;
+    private AttributesCoercion cached;
+    private AttributesCoercion compiled;
+    private Attributes match;
+
+    @Setup
+    public void setup() throws Exception {
+        ensurePid = createTempFile(ENSURE_PID);
+        ensurePidByChoose = createTempFile(ENSURE_PID_BY_CHOOSE);
+        templates = TemplatesCache.getDefault().get(ensurePid.toUri().toString());
+        cached = AttributesCoercionCache.getDefault().get(
+                ensurePidByChoose.toUri().toString());
+        compiled = AttributesCoercionCache.getDefault().get(
+                ensurePid.toUri().toString());
+        if (compiled.getClass() == cached.getClass())
+            throw new IllegalStateException("ensure-pid.xsl not compiled");
+
+        match = SyntheticDatasets.study(1);
+        if (!withPatientID)
+            match.remove(Tag.PatientID);
+
+        Attributes expected = saxTransformer();
+        if (!expected.equals(threadCachedTransformer())
+                || !expected.equals(compiledMapping()))
+            throw new IllegalStateException("different coercion results");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(ensurePid);
+        Files.deleteIfExists(ensurePidByChoose);
+    }
+
+    private static Path createTempFile(String xsl) throws Exception {
+        Path path = Files.createTempFile("coercion", ".xsl");
+        Files.write(path, xsl.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    private static Map<String, Object> params() {
+        Date date = new Date();
+        Map<String, Object> params = new HashMap<String, Object>(8);
+        params.put("date", DateUtils.formatDA(null, date));
+        params.put("time", DateUtils.formatTM(null, date));
+        params.put("calling", "FINDSCU");
+        params.put("called", "DCM4CHEE");
+        return params;
+    }
+
+    @Benchmark
+    public Attributes saxTransformer() throws Exception {
+        final Map<String, Object> params = params();
+        return SAXTransformer.transform(match, templates, false, false,
+                new SetupTransformer() {
+
+                    @Override
+                    public void setup(Transformer transformer) {
+                        for (Map.Entry<String, Object> e : params.entrySet())
+                            transformer.setParameter(e.getKey(), e.getValue());
+                    }
+                });
+    }
+
+    @Benchmark
+    public Attributes threadCachedTransformer() throws Exception {
+        return cached.coerce(match, params());
+    }
+
+    @Benchmark
+    public Attributes compiledMapping() throws Exception {
+        return compiled.coerce(match, params());
+    }
+}
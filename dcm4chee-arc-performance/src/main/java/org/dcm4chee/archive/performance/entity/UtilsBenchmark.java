@@ -0,0 +1,102 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.entity;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4chee.archive.entity.Utils;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding of the attribute blobs and merging of
+ * Patient, Study, Series and Instance attributes by {@link Utils}, as done
+ * for each stored object and for each query or retrieve result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private Attributes patient;
+    private Attributes study;
+    private Attributes series;
+    private Attributes instance;
+    private byte[] encodedInstance;
+
+    @Setup
+    public void setup() {
+        patient = SyntheticDatasets.patient(1);
+        study = SyntheticDatasets.study(1);
+        series = SyntheticDatasets.series(study, 1);
+        instance = SyntheticDatasets.instance(series, 1);
+        encodedInstance = Utils.encodeAttributes(instance);
+    }
+
+    @Benchmark
+    public byte[] encodeAttributes() {
+        return Utils.encodeAttributes(instance);
+    }
+
+    @Benchmark
+    public Attributes decodeAttributes() {
+        return Utils.decodeAttributes(encodedInstance);
+    }
+
+    @Benchmark
+    public Attributes mergeAndNormalize() {
+        // mergeAndNormalize may modify the passed attributes
+        return Utils.mergeAndNormalize(new Attributes(patient),
+                new Attributes(study), new Attributes(series),
+                new Attributes(instance));
+    }
+}
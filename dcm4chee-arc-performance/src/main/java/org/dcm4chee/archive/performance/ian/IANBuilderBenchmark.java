@@ -0,0 +1,136 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.ian;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.UIDUtils;
+import org.dcm4chee.archive.ian.scu.impl.IANBuilder;
+import org.dcm4chee.storage.conf.Availability;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the Instance Availability Notification for all
+ * instances referenced by a MPPS by {@link IANBuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IANBuilderBenchmark {
+
+    private static final int INSTANCES_PER_SERIES = 100;
+
+    /** Number of instances referenced by the MPPS */
+    @Param({ "100", "3000" })
+    public int instances;
+
+    private String ppsiuid;
+    private String studyiuid;
+    private Attributes mpps;
+    private String[] seriesiuids;
+    private String[] iuids;
+
+    @Setup
+    public void setup() {
+        ppsiuid = UIDUtils.createUID();
+        studyiuid = UIDUtils.createUID();
+        mpps = new Attributes();
+        mpps.newSequence(Tag.ScheduledStepAttributesSequence, 1)
+                .add(studyRef(studyiuid));
+        int numSeries = (instances + INSTANCES_PER_SERIES - 1)
+                / INSTANCES_PER_SERIES;
+        Sequence perfSeriesSeq =
+                mpps.newSequence(Tag.PerformedSeriesSequence, numSeries);
+        seriesiuids = new String[instances];
+        iuids = new String[instances];
+        Sequence refImageSeq = null;
+        for (int i = 0; i < instances; i++) {
+            if (i % INSTANCES_PER_SERIES == 0) {
+                Attributes series = new Attributes(2);
+                series.setString(Tag.SeriesInstanceUID, VR.UI,
+                        UIDUtils.createUID());
+                refImageSeq = series.newSequence(Tag.ReferencedImageSequence,
+                        INSTANCES_PER_SERIES);
+                perfSeriesSeq.add(series);
+            }
+            seriesiuids[i] = refImageSeq.getParent()
+                    .getString(Tag.SeriesInstanceUID);
+            iuids[i] = UIDUtils.createUID();
+            Attributes refSOP = new Attributes(2);
+            refSOP.setString(Tag.ReferencedSOPClassUID, VR.UI,
+                    UID.CTImageStorage);
+            refSOP.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuids[i]);
+            refImageSeq.add(refSOP);
+        }
+    }
+
+    private static Attributes studyRef(String studyiuid) {
+        Attributes attrs = new Attributes(1);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, studyiuid);
+        return attrs;
+    }
+
+    @Benchmark
+    public Attributes buildIAN() {
+        IANBuilder builder = new IANBuilder();
+        builder.setReferencedMPPS(ppsiuid, mpps);
+        for (int i = 0; i < instances; i++)
+            builder.addReferencedInstance(studyiuid, seriesiuids[i], iuids[i],
+                    UID.CTImageStorage, Availability.ONLINE, "DCM4CHEE");
+        return builder.getIAN();
+    }
+}
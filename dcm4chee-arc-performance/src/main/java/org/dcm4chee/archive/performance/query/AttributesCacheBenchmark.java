@@ -0,0 +1,125 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.query;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4chee.archive.entity.AttributesCache;
+import org.dcm4chee.archive.entity.Utils;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding and merging the Patient, Study and Series attributes of
+ * each result row, as done by SeriesQuery, QueryServiceEJB and
+ * RetrieveServiceEJB before, with looking them up in the
+ * {@link AttributesCache}.
+ * <p>
+ * Run with {@code -prof gc} to compare the allocation per result
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AttributesCacheBenchmark {
+
+    /** Number of different Series in the result */
+    @Param({ "10", "1000" })
+    public int series;
+
+    private byte[][] patientBlobs;
+    private byte[][] studyBlobs;
+    private byte[][] seriesBlobs;
+    private AttributesCache cache;
+    private int row;
+
+    @Setup
+    public void setup() {
+        patientBlobs = new byte[series][];
+        studyBlobs = new byte[series][];
+        seriesBlobs = new byte[series][];
+        for (int i = 0; i < series; i++) {
+            Attributes study = SyntheticDatasets.study(i);
+            patientBlobs[i] = Utils.encodeAttributes(SyntheticDatasets.patient(i));
+            studyBlobs[i] = Utils.encodeAttributes(study);
+            seriesBlobs[i] = Utils.encodeAttributes(
+                    SyntheticDatasets.series(study, i));
+        }
+        cache = new AttributesCache(AttributesCache.DEFAULT_MAX_SIZE);
+    }
+
+    @Benchmark
+    public Attributes decodeAndMerge() {
+        int i = nextRow();
+        Attributes patientAttrs = new Attributes();
+        Attributes studyAttrs = new Attributes();
+        Attributes seriesAttrs = new Attributes();
+        Utils.decodeAttributes(patientAttrs, patientBlobs[i]);
+        Utils.decodeAttributes(studyAttrs, studyBlobs[i]);
+        Utils.decodeAttributes(seriesAttrs, seriesBlobs[i]);
+        return Utils.mergeAndNormalize(patientAttrs, studyAttrs, seriesAttrs);
+    }
+
+    @Benchmark
+    public Attributes cached() {
+        int i = nextRow();
+        return cache.mergeAndNormalize(
+                patientBlobs[i], studyBlobs[i], seriesBlobs[i]);
+    }
+
+    private int nextRow() {
+        int i = row;
+        row = (i + 1) % series;
+        return i;
+    }
+}
@@ -0,0 +1,125 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.query;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.soundex.FuzzyStr;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.entity.PersonName;
+import org.dcm4chee.archive.query.util.QueryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mysema.query.BooleanBuilder;
+import com.mysema.query.types.Predicate;
+
+/**
+ * Measures fuzzy semantic matching of Person Names for each phonetic
+ * algorithm: the creation of the Soundex Codes of a Person Name on storage
+ * by {@link PersonName#valueOf} and the construction of the Soundex Code
+ * subqueries for a Patient Name matching key by {@link QueryBuilder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FuzzyPersonNameBenchmark {
+
+    private static final String STORED_NAME =
+            "VAN DER BERG-SCHMIDT^ANNA MARIA^ELISABETH^DR.^PHD";
+
+    @Param({ "ESoundex", "Soundex", "KPhonetik", "Metaphone" })
+    public String fuzzyStr;
+
+    @Param({ "MEYER^JOHANN", "MEY*^JOH*" })
+    public String matchingKey;
+
+    private FuzzyStr fuzzy;
+    private QueryParam queryParam;
+    private IDWithIssuer[] pids;
+    private Attributes keys;
+
+    @Setup
+    public void setup() throws Exception {
+        fuzzy = (FuzzyStr) Class.forName("org.dcm4che3.soundex." + fuzzyStr)
+                .newInstance();
+        EnumMap<Entity, AttributeFilter> filters =
+                new EnumMap<Entity, AttributeFilter>(Entity.class);
+        for (Entity entity : Entity.values())
+            filters.put(entity, new AttributeFilter());
+        queryParam = new QueryParam();
+        queryParam.setAttributeFilters(filters);
+        queryParam.setFuzzyStr(fuzzy);
+        queryParam.setFuzzySemanticMatching(true);
+        pids = new IDWithIssuer[0];
+        keys = new Attributes();
+        keys.setString(Tag.PatientName, VR.PN, matchingKey);
+    }
+
+    @Benchmark
+    public PersonName soundexCodesOnStore() {
+        return PersonName.valueOf(STORED_NAME, fuzzy, null);
+    }
+
+    @Benchmark
+    public Predicate fuzzyMatchingPredicate() {
+        BooleanBuilder builder = new BooleanBuilder();
+        QueryBuilder.addPatientLevelPredicates(builder, pids, keys, queryParam);
+        return builder.getValue();
+    }
+}
@@ -0,0 +1,120 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.query;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
+import org.dcm4che3.data.Issuer;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.soundex.ESoundex;
+import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.Entity;
+import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.query.util.QueryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mysema.query.BooleanBuilder;
+import com.mysema.query.types.Predicate;
+
+/**
+ * Measures the construction of the predicates of a Study level query by
+ * {@link QueryBuilder}, including the literal or fuzzy matching of Person
+ * Names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryBuilderBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean fuzzySemanticMatching;
+
+    private QueryParam queryParam;
+    private IDWithIssuer[] pids;
+    private Attributes keys;
+
+    @Setup
+    public void setup() {
+        EnumMap<Entity, AttributeFilter> filters =
+                new EnumMap<Entity, AttributeFilter>(Entity.class);
+        for (Entity entity : Entity.values())
+            filters.put(entity, new AttributeFilter());
+        queryParam = new QueryParam();
+        queryParam.setAttributeFilters(filters);
+        queryParam.setFuzzyStr(new ESoundex());
+        queryParam.setFuzzySemanticMatching(fuzzySemanticMatching);
+        queryParam.setCombinedDatetimeMatching(true);
+        pids = new IDWithIssuer[] {
+                new IDWithIssuer("PID1", new Issuer("DCM4CHEE", null, null)) };
+        keys = new Attributes();
+        keys.setString(Tag.StudyDate, VR.DA, "20150101-20151231");
+        keys.setString(Tag.AccessionNumber, VR.SH, "ACC1");
+        keys.setString(Tag.ModalitiesInStudy, VR.CS, "CT");
+        keys.setString(Tag.ReferringPhysicianName, VR.PN, "SMITH^JANE");
+        keys.setString(Tag.StudyDescription, VR.LO, "CT*");
+        keys.setString(Tag.PatientName, VR.PN, "DOE*^JOHN");
+        keys.setString(Tag.PatientSex, VR.CS, "M");
+        keys.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+    }
+
+    @Benchmark
+    public Predicate studyLevelPredicates() {
+        BooleanBuilder builder = new BooleanBuilder();
+        QueryBuilder.addPatientLevelPredicates(builder, pids, keys, queryParam);
+        QueryBuilder.addStudyLevelPredicates(builder, keys, queryParam);
+        return builder.getValue();
+    }
+}
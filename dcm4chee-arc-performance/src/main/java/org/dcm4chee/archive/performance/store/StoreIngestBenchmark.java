@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.StreamUtils;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.dcm4chee.archive.store.RecordingInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the spool-then-parse C-STORE ingest path
+ * ({@code StoreService.writeSpoolFile}, {@code parseSpoolFile},
+ * {@code processFile}) with the single-pass streaming ingest
+ * ({@code StoreService.writeStorageFile}) on the file system.
+ * <p>
+ * The score is the latency per object; the throughput in MB/s is
+ * {@code 0.5 * frames * 1000 / score}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoreIngestBenchmark {
+
+    /** Number of 512x512x16 bit frames (0.5 MB each) */
+    @Param({ "1", "32", "256" })
+    public int frames;
+
+    private byte[] dataset;
+    private Attributes fmi;
+    private MessageDigest digest;
+    private Path spoolDir;
+    private Path storageDir;
+    private int count;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        Attributes attrs = SyntheticDatasets.image(512, 512, frames);
+        dataset = SyntheticDatasets.encode(attrs, UID.ExplicitVRLittleEndian);
+        fmi = attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+        digest = MessageDigest.getInstance("MD5");
+        storageDir = Files.createTempDirectory("storage");
+        spoolDir = Files.createDirectories(storageDir.resolve("spool"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        deleteDirectory(spoolDir);
+        deleteDirectory(storageDir);
+    }
+
+    @Benchmark
+    public Attributes spoolParseMove() throws IOException {
+        InputStream data = new ByteArrayInputStream(dataset);
+        Path spoolFile = Files.createTempFile(spoolDir, null, ".dcm");
+        try (DicomOutputStream out = new DicomOutputStream(
+                new BufferedOutputStream(new DigestOutputStream(
+                        Files.newOutputStream(spoolFile), reset(digest))),
+                UID.ExplicitVRLittleEndian)) {
+            out.writeFileMetaInformation(fmi);
+            StreamUtils.copy(data, out);
+        }
+        digest.digest();
+        Attributes attrs;
+        try (DicomInputStream in = new DicomInputStream(spoolFile.toFile())) {
+            in.setIncludeBulkData(IncludeBulkData.URI);
+            in.readFileMetaInformation();
+            attrs = in.readDataset(-1, -1);
+        }
+        Files.move(spoolFile, storagePath(attrs));
+        return attrs;
+    }
+
+    @Benchmark
+    public Attributes streaming() throws IOException {
+        InputStream data = new ByteArrayInputStream(dataset);
+        RecordingInputStream in = new RecordingInputStream(data);
+        @SuppressWarnings("resource")
+        DicomInputStream din = new DicomInputStream(in,
+                UID.ExplicitVRLittleEndian);
+        din.setIncludeBulkData(IncludeBulkData.NO);
+        Attributes attrs = din.readDataset(-1, Tag.PixelData);
+        try (DicomOutputStream out = new DicomOutputStream(
+                new BufferedOutputStream(new DigestOutputStream(
+                        Files.newOutputStream(storagePath(attrs)),
+                        reset(digest))), UID.ExplicitVRLittleEndian)) {
+            out.writeFileMetaInformation(fmi);
+            in.writeRecordTo(out);
+            StreamUtils.copy(data, out);
+        }
+        digest.digest();
+        return attrs;
+    }
+
+    private Path storagePath(Attributes attrs) throws IOException {
+        // keep the number of files in the storage directory bounded
+        Path path = storageDir.resolve(
+                attrs.getString(Tag.SOPInstanceUID) + '.' + (count++ & 7));
+        Files.deleteIfExists(path);
+        return path;
+    }
+
+    private static MessageDigest reset(MessageDigest digest) {
+        digest.reset();
+        return digest;
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files)
+                if (!Files.isDirectory(file))
+                    Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,156 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.performance.stow;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.core.MediaType;
+import javax.xml.transform.stream.StreamResult;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXTransformer;
+import org.dcm4che3.json.JSONWriter;
+import org.dcm4chee.archive.performance.SyntheticDatasets;
+import org.dcm4chee.archive.stow.StowMetadata;
+import org.dcm4chee.archive.stow.StowMetadata.BulkdataPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the handling of one spooled metadata part of a STOW-RS request
+ * by {@link StowMetadata}, as done by
+ * {@code StowRS.storeMetadataAndBulkdata}: parsing the DICOM JSON or DICOM
+ * XML metadata, creating the File Meta Information and resolving the bulk
+ * data URI of the Pixel Data to the spooled bulk data part, which is either
+ * native ({@code application/octet-stream}) or compressed
+ * ({@code image/jpeg}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StowMetadataBenchmark {
+
+    private static final String BULKDATA_URI =
+            "http://localhost:8080/stow/bulkdata/1";
+
+    @Param({ "json", "xml" })
+    public String metadata;
+
+    @Param({ "application/octet-stream", "image/jpeg" })
+    public String bulkdataType;
+
+    private Path metadataFile;
+    private Path bulkdataFile;
+    private Map<String, BulkdataPath> bulkdata;
+
+    @Setup
+    public void setup() throws Exception {
+        Attributes attrs = SyntheticDatasets.image(512, 512, 1);
+        byte[] pixelData = attrs.getBytes(Tag.PixelData);
+        attrs.setValue(Tag.PixelData, VR.OW,
+                new BulkData(null, BULKDATA_URI, false));
+        if (metadata.equals("json")) {
+            metadataFile = Files.createTempFile("metadata", ".json");
+            try (OutputStream out = Files.newOutputStream(metadataFile)) {
+                JsonGenerator gen = Json.createGenerator(out);
+                new JSONWriter(gen).write(attrs);
+                gen.flush();
+            }
+        } else {
+            metadataFile = Files.createTempFile("metadata", ".xml");
+            SAXTransformer.getSAXWriter(
+                    new StreamResult(metadataFile.toFile())).write(attrs);
+        }
+        bulkdataFile = Files.createTempFile("bulkdata", ".blk");
+        Files.write(bulkdataFile, pixelData);
+        bulkdata = new HashMap<String, BulkdataPath>();
+        bulkdata.put(BULKDATA_URI,
+                new BulkdataPath(bulkdataFile, mediaType(bulkdataType)));
+    }
+
+    private static MediaType mediaType(String s) {
+        // avoid MediaType.valueOf, which requires a JAX-RS implementation
+        int slash = s.indexOf('/');
+        return new MediaType(s.substring(0, slash), s.substring(slash + 1));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(metadataFile);
+        Files.deleteIfExists(bulkdataFile);
+    }
+
+    @Benchmark
+    public void handleMetadata(Blackhole bh) throws Exception {
+        Attributes ds = metadata.equals("json")
+                ? StowMetadata.parseJSON(metadataFile)
+                : StowMetadata.parseXML(metadataFile);
+        Attributes fmi = ds.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+        if (!StowMetadata.resolveBulkdata("StowMetadataBenchmark", fmi, ds,
+                bulkdata))
+            throw new IllegalStateException("Missing Bulkdata " + BULKDATA_URI);
+        bh.consume(ds);
+        bh.consume(fmi);
+    }
+}
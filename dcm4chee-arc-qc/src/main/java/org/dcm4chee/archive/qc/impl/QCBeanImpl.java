@@ -764,7 +764,9 @@ public class QCBeanImpl  implements QCBean{
                 1, seriesInstanceUID);
         Series series = query.getSingleResult();
         if(series.getInstances().isEmpty()) {
+            Study study = series.getStudy();
             em.remove(series);
+            study.updateRejected(em);
             LOG.info("{}:  QC info[Delete] info - Removed series entity {}", qcSource, seriesInstanceUID);
             return true;
         }
@@ -1663,6 +1665,8 @@ public class QCBeanImpl  implements QCBean{
         Attributes data = new Attributes(oldinstance.getAttributes());
         data.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
         Instance inst = new Instance();
+        series.setRejected(false);
+        series.getStudy().setRejected(false);
         inst.setSeries(series);
         inst.setConceptNameCode(oldinstance.getConceptNameCode());
         if(data.contains(Tag.ContentSequence)) {
@@ -78,8 +78,6 @@ public abstract class StoreSCUServiceQCDecorator implements CStoreSCUService {
     @Delegate
     CStoreSCUService cstorescuService;
 
-    ArrayList<Attributes> modifications = new ArrayList<Attributes>();
-
     @Inject
     private QCRetrieveBean qcRetrieveManager;
 
@@ -131,6 +129,8 @@ public abstract class StoreSCUServiceQCDecorator implements CStoreSCUService {
             // createUIDMapFromHistory(referencesHistory);
             final ElementDictionary dict = ElementDictionary
                     .getStandardElementDictionary();
+            // local, the decorated service is invoked concurrently
+            final ArrayList<Attributes> modifications = new ArrayList<Attributes>();
             try {
                 attrs.accept(new Visitor() {
                     Stack<String> sqStack = new Stack<String>();
@@ -296,7 +296,6 @@ public abstract class StoreSCUServiceQCDecorator implements CStoreSCUService {
                     }
                 }
             }
-            modifications.clear();
         }
 
     }
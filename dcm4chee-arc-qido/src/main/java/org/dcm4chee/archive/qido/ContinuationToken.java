@@ -0,0 +1,158 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.qido;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Opaque continuation token of a paged QIDO-RS query, containing the
+ * number of already returned matches and the values of the
+ * <code>orderby</code> keys and primary key of the last returned match.
+ */
+class ContinuationToken {
+
+    private static final byte STRING = 'S';
+    private static final byte LONG = 'L';
+    private static final byte INTEGER = 'I';
+
+    private final long position;
+    private final Object[] keys;
+
+    /**
+     * @param position number of already returned matches
+     * @param keys keys of the last returned match or <code>null</code>, if
+     *        the query has to be continued by offset
+     */
+    ContinuationToken(long position, Object[] keys) {
+        this.position = position;
+        this.keys = encodable(keys) ? keys : null;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    Object[] getKeys() {
+        return keys;
+    }
+
+    private static boolean encodable(Object[] keys) {
+        if (keys == null)
+            return false;
+        for (Object key : keys)
+            if (!(key instanceof String || key instanceof Long
+                    || key instanceof Integer))
+                return false;
+        return true;
+    }
+
+    String encode() {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeLong(position);
+            out.writeShort(keys != null ? keys.length : -1);
+            if (keys != null)
+                for (Object key : keys) {
+                    if (key instanceof String) {
+                        out.writeByte(STRING);
+                        out.writeUTF((String) key);
+                    } else if (key instanceof Long) {
+                        out.writeByte(LONG);
+                        out.writeLong((Long) key);
+                    } else {
+                        out.writeByte(INTEGER);
+                        out.writeInt((Integer) key);
+                    }
+                }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return DatatypeConverter.printBase64Binary(bout.toByteArray())
+                .replace('+', '-').replace('/', '_');
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>s</code> is not a valid
+     *         continuation token
+     */
+    static ContinuationToken decode(String s) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    DatatypeConverter.parseBase64Binary(
+                            s.replace('-', '+').replace('_', '/'))));
+            long position = in.readLong();
+            if (position < 0)
+                throw new IllegalArgumentException(s);
+            int n = in.readShort();
+            if (n < -1)
+                throw new IllegalArgumentException(s);
+            Object[] keys = null;
+            if (n >= 0) {
+                keys = new Object[n];
+                for (int i = 0; i < n; i++) {
+                    switch (in.readByte()) {
+                    case STRING:
+                        keys[i] = in.readUTF();
+                        break;
+                    case LONG:
+                        keys[i] = in.readLong();
+                        break;
+                    case INTEGER:
+                        keys[i] = in.readInt();
+                        break;
+                    default:
+                        throw new IllegalArgumentException(s);
+                    }
+                }
+            }
+            if (in.available() > 0)
+                throw new IllegalArgumentException(s);
+            return new ContinuationToken(position, keys);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(s);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.qido;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.dcm4chee.archive.query.Query;
+
+/**
+ * Caches the number of matches of QIDO-RS queries for a short time, so
+ * following pages of a query do not have to count all matches again.
+ */
+@ApplicationScoped
+public class QidoCountCache {
+
+    private static final int CLEANUP_THRESHOLD = 1000;
+
+    private final Map<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+
+    private static final class Entry {
+        final long count;
+        final long expires;
+
+        Entry(long count, long expires) {
+            this.count = count;
+            this.expires = expires;
+        }
+    }
+
+    static final class Key {
+        private final String aet;
+        private final String remoteHost;
+        private final QueryRetrieveLevel qrlevel;
+        private final String queryOptions;
+        private final byte[] keys;
+        private final int hash;
+
+        /**
+         * Creates cache key of a query. Return keys without value do not
+         * change the number of matches and are ignored.
+         */
+        Key(String aet, String remoteHost, QueryRetrieveLevel qrlevel,
+                String queryOptions, Attributes keys) {
+            this.aet = aet;
+            this.remoteHost = remoteHost;
+            this.qrlevel = qrlevel;
+            this.queryOptions = queryOptions;
+            this.keys = encode(matchingKeys(keys));
+            this.hash = Arrays.hashCode(new Object[] { aet, remoteHost,
+                    qrlevel, queryOptions }) * 31 + Arrays.hashCode(this.keys);
+        }
+
+        private static Attributes matchingKeys(Attributes keys) {
+            Attributes matching = new Attributes(keys.size());
+            int[] tags = keys.tags();
+            for (int tag : tags)
+                if (keys.containsValue(tag))
+                    matching.addSelected(keys, tag);
+            return matching;
+        }
+
+        private static byte[] encode(Attributes keys) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            try {
+                DicomOutputStream dout = new DicomOutputStream(out,
+                        UID.ExplicitVRLittleEndian);
+                dout.writeDataset(null, keys);
+                dout.flush();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && aet.equals(other.aet)
+                    && String.valueOf(remoteHost).equals(
+                            String.valueOf(other.remoteHost))
+                    && qrlevel == other.qrlevel
+                    && queryOptions.equals(other.queryOptions)
+                    && Arrays.equals(keys, other.keys);
+        }
+    }
+
+    /**
+     * Returns the number of matches of <code>query</code>.
+     *
+     * @param key cache key of the query
+     * @param timeout time in s a counted number is cached; 0 disables caching
+     * @param useCached <code>true</code> to return a cached number if
+     *        available, <code>false</code> to count the matches in any case,
+     *        e.g. on the first page of a query
+     */
+    long count(Query query, Key key, int timeout, boolean useCached) {
+        if (timeout <= 0)
+            return query.count();
+
+        long now = System.currentTimeMillis();
+        if (useCached) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.expires > now)
+                return entry.count;
+        }
+        long count = query.count();
+        if (cache.size() >= CLEANUP_THRESHOLD)
+            removeExpired(now);
+        cache.put(key, new Entry(count, now + timeout * 1000L));
+        return count;
+    }
+
+    private void removeExpired(long now) {
+        for (Iterator<Entry> iter = cache.values().iterator(); iter.hasNext();)
+            if (iter.next().expires <= now)
+                iter.remove();
+    }
+}
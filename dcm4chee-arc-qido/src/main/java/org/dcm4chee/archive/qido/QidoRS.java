@@ -39,6 +39,7 @@ package org.dcm4chee.archive.qido;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -153,6 +154,9 @@ public class QidoRS {
     @Inject
     protected QueryService queryService;
 
+    @Inject
+    private QidoCountCache countCache;
+
     @Context
     private HttpServletRequest request;
 
@@ -177,6 +181,9 @@ public class QidoRS {
     @javax.ws.rs.QueryParam("limit")
     private int limit;
 
+    @javax.ws.rs.QueryParam("continuation")
+    private String continuation;
+
     @javax.ws.rs.QueryParam("includefield")
     private List<String> includefield;
 
@@ -191,6 +198,10 @@ public class QidoRS {
 
     private boolean includeAll;
 
+    private EnumSet<QueryOption> queryOpts;
+
+    private int numberOfFetchedMatches;
+
     private static int[] catAndSort(int[] src1, int[] src2) {
         int[] dest = new int[src1.length + src2.length];
         System.arraycopy(src1, 0, dest, 0, src1.length);
@@ -334,16 +345,32 @@ public class QidoRS {
         init(method, qrlevel, relational, studyInstanceUID, seriesInstanceUID,
                 includetags);
 
+        ContinuationToken token = null;
+        if (continuation != null) {
+            try {
+                token = ContinuationToken.decode(continuation);
+            } catch (IllegalArgumentException e) {
+                throw new WebApplicationException(e, Status.BAD_REQUEST);
+            }
+        }
         Query query = queryService.createQuery(qrlevel, queryContext);
         try {
             query.initQuery();
             int status = STATUS_OK;
             int maxResults = arcAE.getQIDOMaxNumberOfResults();
-            int offset = Math.max(this.offset, 0);
+            long offset = token != null
+                    ? token.getPosition()
+                    : Math.max(this.offset, 0);
             int limit = Math.max(this.limit, 0);
+            long numResults = -1L; // not counted
             if (maxResults > 0 && (limit == 0 || limit >  maxResults)) {
-                int numResults = (int) (query.count() - offset);
-                if (numResults == 0)
+                numResults = countCache.count(query,
+                        new QidoCountCache.Key(aetitle,
+                                queryContext.getRemoteAET(), qrlevel,
+                                queryOpts.toString(), keys),
+                        arcAE.getQIDOCountCacheTimeout(), offset > 0)
+                        - offset;
+                if (numResults <= 0)
                     return Response.ok().build();
     
                 if (numResults > maxResults) {
@@ -351,26 +378,61 @@ public class QidoRS {
                     status = STATUS_PARTIAL_CONTENT;
                 }
             }
-            if (offset > 0)
-                query.offset(offset);
-            
-            if (limit > 0)
+            OrderSpecifier<?>[] orderSpecifiers = this.orderSpecifiers != null
+                    ? this.orderSpecifiers
+                    : new OrderSpecifier<?>[0];
+            // order by primary key too, to continue after the last match,
+            // only if there may be a next page or this page continues one
+            if (limit > 0 && (token != null
+                    || numResults < 0 || numResults > limit)) {
+                query.orderByKeyset(orderSpecifiers);
+                if (token != null && token.getKeys() != null)
+                    seekAfter(query, token.getKeys());
+                else if (offset > 0)
+                    query.offset(offset);
                 query.limit(limit);
-    
-            if (orderSpecifiers != null)
-                query.orderBy(orderSpecifiers);
+            } else {
+                if (offset > 0)
+                    query.offset(offset);
+                if (limit > 0)
+                    query.limit(limit);
+                if (orderSpecifiers.length > 0)
+                    query.orderBy(orderSpecifiers);
+            }
     
             query.executeQuery();
             if (!query.hasMoreMatches())
                 return Response.ok().build();
     
-            return Response.status(status).entity(
-                    output.entity(this, query, qrlevel)).build();
+            Response.ResponseBuilder response = Response.status(status)
+                    .entity(output.entity(this, query, qrlevel));
+            if (numberOfFetchedMatches == limit
+                    && (numResults < 0 || numResults > limit))
+                response.header("Link", "<" + nextPageURI(new ContinuationToken(
+                        offset + numberOfFetchedMatches, query.lastMatchKeys()))
+                        + ">; rel=\"next\"");
+            return response.build();
         } finally {
             query.close();
         }
     }
 
+    private static void seekAfter(Query query, Object[] keys) {
+        try {
+            query.seekAfter(keys);
+        } catch (IllegalArgumentException e) {
+            // continuation token does not match orderby of the query
+            throw new WebApplicationException(e, Status.BAD_REQUEST);
+        }
+    }
+
+    private URI nextPageURI(ContinuationToken token) {
+        return uriInfo.getRequestUriBuilder()
+                .replaceQueryParam("offset")
+                .replaceQueryParam("continuation", token.encode())
+                .build();
+    }
+
     /**
      * Initializes query options and parameters
      */
@@ -384,7 +446,7 @@ public class QidoRS {
         if (tc == null)
             throw new WebApplicationException(Status.FORBIDDEN);
 
-        EnumSet<QueryOption> queryOpts = EnumSet.noneOf(QueryOption.class);
+        queryOpts = EnumSet.noneOf(QueryOption.class);
         if (relational)
             queryOpts.add(QueryOption.RELATIONAL);
         if (datetimematching)
@@ -453,6 +515,8 @@ public class QidoRS {
 
     private static boolean isDicomAttribute(String name) {
         switch (name.charAt(0)) {
+        case 'c':
+            return !name.equals("continuation");
         case 'd':
             return !name.equals("datetimematching");
         case 'f':
@@ -575,6 +639,7 @@ public class QidoRS {
         int count = 0;
         while (query.hasMoreMatches()) {
             Attributes tmp = query.nextMatch();
+            numberOfFetchedMatches++;
             if (tmp == null)
                 continue;
             final Attributes match = filter(addRetrieveURL(tmp, qrlevel));
@@ -601,6 +666,7 @@ public class QidoRS {
         int count = 0;
         while (query.hasMoreMatches()) {
             Attributes tmp = query.nextMatch();
+            numberOfFetchedMatches++;
             if (tmp == null)
                 continue;
             Attributes match = filter(addRetrieveURL(tmp, qrlevel));
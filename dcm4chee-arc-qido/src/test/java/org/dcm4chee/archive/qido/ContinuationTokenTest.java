@@ -0,0 +1,158 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.qido;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+public class ContinuationTokenTest {
+
+    @Test
+    public void testEncodeDecode() {
+        Object[] keys = { "20150101", "Doe^John", 4711L, 42 };
+        ContinuationToken token = ContinuationToken.decode(
+                new ContinuationToken(100L, keys).encode());
+        assertEquals(100L, token.getPosition());
+        assertArrayEquals(keys, token.getKeys());
+    }
+
+    @Test
+    public void testEncodeDecodeWithoutKeys() {
+        ContinuationToken token = ContinuationToken.decode(
+                new ContinuationToken(20L, null).encode());
+        assertEquals(20L, token.getPosition());
+        assertNull(token.getKeys());
+    }
+
+    @Test
+    public void testNullKeyFallsBackToOffset() {
+        ContinuationToken token = ContinuationToken.decode(
+                new ContinuationToken(20L, new Object[] { null, 1L }).encode());
+        assertEquals(20L, token.getPosition());
+        assertNull(token.getKeys());
+    }
+
+    @Test
+    public void testEncodedIsURLSafe() {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0xf0; c < 0x1ff; c++)
+            sb.append(c);
+        String s = new ContinuationToken(Long.MAX_VALUE,
+                new Object[] { sb.toString(), -1L }).encode();
+        assertFalse(s, s.contains("+") || s.contains("/"));
+        assertArrayEquals(new Object[] { sb.toString(), -1L },
+                ContinuationToken.decode(s).getKeys());
+    }
+
+    @Test
+    public void testRejectGarbage() {
+        assertInvalid("not a token");
+        assertInvalid("");
+    }
+
+    @Test
+    public void testRejectTruncated() {
+        String s = new ContinuationToken(100L,
+                new Object[] { "20150101", 4711L }).encode();
+        assertInvalid(s.substring(0, s.length() - 4));
+    }
+
+    @Test
+    public void testRejectNegativePosition() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeLong(-1L);
+        out.writeShort(-1);
+        assertInvalid(toToken(bout));
+    }
+
+    @Test
+    public void testRejectUnknownKeyType() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeLong(10L);
+        out.writeShort(1);
+        out.writeByte('X');
+        out.writeLong(1L);
+        assertInvalid(toToken(bout));
+    }
+
+    @Test
+    public void testRejectInvalidNumberOfKeys() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeLong(10L);
+        out.writeShort(-2);
+        assertInvalid(toToken(bout));
+    }
+
+    @Test
+    public void testRejectTrailingBytes() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeLong(10L);
+        out.writeShort(-1);
+        out.writeByte(0);
+        assertInvalid(toToken(bout));
+    }
+
+    private static String toToken(ByteArrayOutputStream bout) {
+        return DatatypeConverter.printBase64Binary(bout.toByteArray())
+                .replace('+', '-').replace('/', '_');
+    }
+
+    private static void assertInvalid(String s) {
+        try {
+            ContinuationToken.decode(s);
+            fail("IllegalArgumentException expected for " + s);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -60,6 +60,33 @@ public interface Query {
 
     void orderBy(OrderSpecifier<?>... orderSpecifiers);
 
+    /**
+     * Orders matches by the specified order specifiers followed by the
+     * primary key of the entity, so the query can be continued after the
+     * last returned match by {@link #seekAfter(Object[])} with the keys
+     * returned by {@link #lastMatchKeys()}, without skipping previous
+     * matches by {@link #offset(long)}.
+     */
+    void orderByKeyset(OrderSpecifier<?>... orderSpecifiers);
+
+    /**
+     * Restricts matches to those following the match with the specified
+     * keys in the order specified by {@link #orderByKeyset}.
+     *
+     * @param keys values of the order specifiers and primary key as
+     *        returned by {@link #lastMatchKeys()}
+     * @throws IllegalArgumentException if the number or types of the keys
+     *         do not match the order specified by {@link #orderByKeyset}
+     */
+    void seekAfter(Object[] keys);
+
+    /**
+     * Returns the values of the order specifiers and the primary key of the
+     * last match returned by {@link #nextMatch()}, if matches are ordered by
+     * {@link #orderByKeyset}, otherwise <code>null</code>.
+     */
+    Object[] lastMatchKeys();
+
     boolean optionalKeysNotSupported();
 
     boolean hasMoreMatches();
@@ -38,6 +38,7 @@
 
 package org.dcm4chee.archive.query.impl;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import org.dcm4che3.data.Attributes;
@@ -47,11 +48,17 @@ import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.StatelessSession;
 
+import com.mysema.query.BooleanBuilder;
 import com.mysema.query.jpa.hibernate.HibernateQuery;
+import com.mysema.query.types.ConstantImpl;
 import com.mysema.query.types.EntityPath;
 import com.mysema.query.types.Expression;
+import com.mysema.query.types.ExpressionUtils;
+import com.mysema.query.types.Ops;
+import com.mysema.query.types.Order;
 import com.mysema.query.types.OrderSpecifier;
 import com.mysema.query.types.Predicate;
+import com.mysema.query.types.path.PathBuilder;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -73,6 +80,10 @@ public abstract class AbstractQuery<E> implements Query {
 
     private final EntityPath<E> entityPath;
 
+    private OrderSpecifier<?>[] keyset;
+
+    private Object[] lastMatchKeys;
+
     public AbstractQuery(QueryContext context, StatelessSession session,
             EntityPath<E> entityPath) {
         this.context = context;
@@ -102,10 +113,21 @@ public abstract class AbstractQuery<E> implements Query {
 
     @Override
     public void executeQuery() {
-        results = query.scroll(ScrollMode.FORWARD_ONLY, select());
+        results = query.scroll(ScrollMode.FORWARD_ONLY, keyset != null
+                ? selectWithKeyset()
+                : select());
         hasMoreMatches = results.next();
     }
 
+    private Expression<?>[] selectWithKeyset() {
+        Expression<?>[] select = select();
+        Expression<?>[] withKeyset =
+                Arrays.copyOf(select, select.length + keyset.length);
+        for (int i = 0; i < keyset.length; i++)
+            withKeyset[select.length + i] = keyset[i].getTarget();
+        return withKeyset;
+    }
+
     @Override
     public long count() {
         checkQuery();
@@ -130,6 +152,60 @@ public abstract class AbstractQuery<E> implements Query {
         query.orderBy(orderSpecifiers);
     }
 
+    @Override
+    public void orderByKeyset(OrderSpecifier<?>... orderSpecifiers) {
+        checkQuery();
+        keyset = Arrays.copyOf(orderSpecifiers, orderSpecifiers.length + 1);
+        keyset[orderSpecifiers.length] = new PathBuilder<E>(
+                entityPath.getType(), entityPath.getMetadata())
+                .getNumber("pk", Long.class).asc();
+        query.orderBy(keyset);
+    }
+
+    @Override
+    public void seekAfter(Object[] keys) {
+        checkQuery();
+        if (keyset == null || keys.length != keyset.length)
+            throw new IllegalArgumentException("keys: " + Arrays.toString(keys));
+
+        query.where(after(keyset, keys));
+    }
+
+    /**
+     * Returns a predicate matching rows following the row with the specified
+     * keys in the order of the specified keyset: <code>(k0 &gt; v0) OR
+     * (k0 = v0 AND k1 &gt; v1) OR ...</code>, with <code>&lt;</code> for
+     * descending keys.
+     *
+     * @throws IllegalArgumentException if the type of a key does not match
+     *         the type of the corresponding order specifier
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Predicate after(OrderSpecifier<?>[] keyset, Object[] keys) {
+        for (int i = 0; i < keyset.length; i++)
+            if (!keyset[i].getTarget().getType().isInstance(keys[i]))
+                throw new IllegalArgumentException(
+                        "keys: " + Arrays.toString(keys));
+        BooleanBuilder after = new BooleanBuilder();
+        for (int i = 0; i < keyset.length; i++) {
+            BooleanBuilder next = new BooleanBuilder();
+            for (int j = 0; j < i; j++)
+                next.and(ExpressionUtils.eq(
+                        (Expression) keyset[j].getTarget(),
+                        ConstantImpl.create(keys[j])));
+            next.and(ExpressionUtils.predicate(
+                    keyset[i].getOrder() == Order.ASC ? Ops.GT : Ops.LT,
+                    keyset[i].getTarget(), ConstantImpl.create(keys[i])));
+            after.or(next);
+        }
+        return after;
+    }
+
+    @Override
+    public Object[] lastMatchKeys() {
+        return lastMatchKeys;
+    }
+
     @Override
     public boolean optionalKeysNotSupported() {
         return optionalKeyNotSupported;
@@ -145,6 +221,12 @@ public abstract class AbstractQuery<E> implements Query {
         if (!hasMoreMatches)
             throw new NoSuchElementException();
         Attributes attrs = toAttributes(results);
+        if (keyset != null) {
+            int offset = select().length;
+            lastMatchKeys = new Object[keyset.length];
+            for (int i = 0; i < lastMatchKeys.length; i++)
+                lastMatchKeys[i] = results.get(offset + i);
+        }
         hasMoreMatches = results.next();
         return attrs;
     }
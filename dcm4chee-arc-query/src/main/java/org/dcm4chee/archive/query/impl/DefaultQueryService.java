@@ -40,18 +40,16 @@ package org.dcm4chee.archive.query.impl;
 
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.IDWithIssuer;
-import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.io.SAXTransformer.SetupTransformer;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.QueryOption;
 import org.dcm4che3.net.Status;
@@ -60,6 +58,7 @@ import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.QueryRetrieveLevel;
 import org.dcm4che3.util.DateUtils;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.AttributesCoercion;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.entity.SeriesQueryAttributes;
 import org.dcm4chee.archive.entity.StudyQueryAttributes;
@@ -169,20 +168,13 @@ public class DefaultQueryService implements QueryService {
         try {
             ArchiveAEExtension arcAE = context.getArchiveAEExtension();
             Attributes keys = context.getKeys();
-            Templates tpl = arcAE.getAttributeCoercionTemplates(
+            AttributesCoercion coercion = arcAE.getAttributesCoercion(
                     context.getServiceSOPClassUID(),
                     Dimse.C_FIND_RQ,
                     TransferCapability.Role.SCP,
                     context.getRemoteAET());
-            if (tpl != null) {
-                keys.addAll(
-                        SAXTransformer.transform(keys, tpl, false, false, new SetupTransformer() {
-                            
-                            @Override
-                            public void setup(Transformer transformer) {
-                                setParameters(transformer,context);
-                            }
-                        }));
+            if (coercion != null) {
+                keys.addAll(coercion.coerce(keys, coercionParams(context)));
             }
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
@@ -202,19 +194,13 @@ public class DefaultQueryService implements QueryService {
         try {
             ArchiveAEExtension arcAE = context.getArchiveAEExtension();
             Attributes attrs = match;
-            Templates tpl = arcAE.getAttributeCoercionTemplates(
+            AttributesCoercion coercion = arcAE.getAttributesCoercion(
                     context.getServiceSOPClassUID(),
                     Dimse.C_FIND_RSP,
                     TransferCapability.Role.SCP,
                     context.getRemoteAET());
-            if (tpl != null) {
-                attrs.addAll(SAXTransformer.transform(attrs, tpl, false, false, new SetupTransformer() {
-                    
-                    @Override
-                    public void setup(Transformer transformer) {
-                            setParameters(transformer,context);
-                    }
-                }));
+            if (coercion != null) {
+                attrs.addAll(coercion.coerce(attrs, coercionParams(context)));
             }
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
@@ -222,14 +208,14 @@ public class DefaultQueryService implements QueryService {
        //time zone support moved to decorator
     }
 
-    private void setParameters(Transformer transformer, QueryContext context) {
+    private Map<String, Object> coercionParams(QueryContext context) {
         Date date = new Date();
-        String currentDate = DateUtils.formatDA(null, date);
-        String currentTime = DateUtils.formatTM(null, date);
-        transformer.setParameter("date", currentDate);
-        transformer.setParameter("time", currentTime);
-        transformer.setParameter("calling", context.getRemoteAET());
-        transformer.setParameter("called", context.getArchiveAEExtension().getApplicationEntity().getAETitle());
+        Map<String, Object> params = new HashMap<String, Object>(8);
+        params.put("date", DateUtils.formatDA(null, date));
+        params.put("time", DateUtils.formatTM(null, date));
+        params.put("calling", context.getRemoteAET());
+        params.put("called", context.getArchiveAEExtension().getApplicationEntity().getAETitle());
+        return params;
     }
 
     @Override
@@ -49,6 +49,7 @@ import javax.persistence.PersistenceContext;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.util.StringUtils;
 import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.entity.AttributesCache;
 import org.dcm4chee.archive.entity.QInstance;
 import org.dcm4chee.archive.entity.QPatient;
 import org.dcm4chee.archive.entity.QSeries;
@@ -160,13 +161,8 @@ public class QueryServiceEJB {
         byte[] patientBytes =
                 result.get(QueryBuilder.patientAttributesBlob.encodedAttributes);
 
-        Attributes patientAttrs = new Attributes();
-        Attributes studyAttrs = new Attributes();
-        Attributes seriesAttrs = new Attributes();
-        Utils.decodeAttributes(patientAttrs, patientBytes);
-        Utils.decodeAttributes(studyAttrs, studyBytes);
-        Utils.decodeAttributes(seriesAttrs, seriesBytes);
-        Attributes attrs = Utils.mergeAndNormalize(patientAttrs, studyAttrs, seriesAttrs);
+        Attributes attrs = AttributesCache.getDefault().mergeAndNormalize(
+                patientBytes, studyBytes, seriesBytes);
         Utils.setStudyQueryAttributes(attrs, numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances, modalitiesInStudy,
                 sopClassesInStudy);
@@ -39,6 +39,7 @@
 package org.dcm4chee.archive.query.impl;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4chee.archive.entity.AttributesCache;
 import org.dcm4chee.archive.entity.QSeries;
 import org.dcm4chee.archive.entity.QSeriesQueryAttributes;
 import org.dcm4chee.archive.entity.QStudy;
@@ -181,11 +182,8 @@ class SeriesQuery extends AbstractQuery<Series> {
 
         byte[] studyByteAttributes = results.getBinary(10);
         byte[] patientByteAttributes = results.getBinary(11);
-        Attributes patientAttrs = new Attributes();
-        Attributes studyAttrs = new Attributes();
-        Utils.decodeAttributes(patientAttrs, patientByteAttributes);
-        Utils.decodeAttributes(studyAttrs, studyByteAttributes);
-        Attributes attrs = Utils.mergeAndNormalize(patientAttrs, studyAttrs);
+        Attributes attrs = AttributesCache.getDefault().mergeAndNormalize(
+                patientByteAttributes, studyByteAttributes);
         Utils.setStudyQueryAttributes(attrs,
                 numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances,
@@ -39,6 +39,7 @@
 package org.dcm4chee.archive.query.impl;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4chee.archive.entity.AttributesCache;
 import org.dcm4chee.archive.entity.QStudy;
 import org.dcm4chee.archive.entity.QStudyQueryAttributes;
 import org.dcm4chee.archive.entity.Study;
@@ -141,11 +142,8 @@ class StudyQuery extends AbstractQuery<Study> {
 
         byte[] studyByteAttributes = results.getBinary(7);
         byte[] patientByteAttributes = results.getBinary(8);
-        Attributes patientAttrs = new Attributes();
-        Attributes studyAttrs = new Attributes();
-        Utils.decodeAttributes(patientAttrs, patientByteAttributes);
-        Utils.decodeAttributes(studyAttrs, studyByteAttributes);
-        Attributes attrs = Utils.mergeAndNormalize(patientAttrs, studyAttrs);
+        Attributes attrs = AttributesCache.getDefault().mergeAndNormalize(
+                patientByteAttributes, studyByteAttributes);
         Utils.setStudyQueryAttributes(attrs,
                 numberOfStudyRelatedSeries,
                 numberOfStudyRelatedInstances,
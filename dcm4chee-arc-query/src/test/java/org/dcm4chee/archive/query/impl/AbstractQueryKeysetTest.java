@@ -0,0 +1,153 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.query.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4chee.archive.entity.QStudy;
+import org.junit.Test;
+
+import com.mysema.query.BooleanBuilder;
+import com.mysema.query.types.Constant;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.Operation;
+import com.mysema.query.types.Operator;
+import com.mysema.query.types.Ops;
+import com.mysema.query.types.OrderSpecifier;
+import com.mysema.query.types.Path;
+
+/**
+ * Evaluates the predicate built by {@link AbstractQuery#after} against rows
+ * sorted in keyset order, to verify that seeking after any row returns
+ * exactly the rows following it.
+ */
+public class AbstractQueryKeysetTest {
+
+    private static final OrderSpecifier<?>[] KEYSET = {
+        QStudy.study.studyDate.desc(),
+        QStudy.study.studyInstanceUID.asc(),
+        QStudy.study.pk.asc()
+    };
+
+    // sorted by studyDate desc, studyInstanceUID asc, pk asc
+    private static final Object[][] ROWS = {
+        { "20150102", "1.2", 7L },
+        { "20150101", "1.1", 3L },
+        { "20150101", "1.1", 5L },
+        { "20150101", "1.3", 1L },
+        { "20141231", "1.1", 2L },
+        { "20141231", "1.2", 4L },
+        { "20141231", "1.2", 6L },
+    };
+
+    @Test
+    public void testSeekAfterEachRow() {
+        for (int i = 0; i < ROWS.length; i++) {
+            Expression<?> after = AbstractQuery.after(KEYSET, ROWS[i]);
+            List<Object[]> matches = new ArrayList<Object[]>();
+            for (Object[] row : ROWS)
+                if (eval(after, toMap(row)))
+                    matches.add(row);
+            assertEquals("after " + Arrays.toString(ROWS[i]),
+                    Arrays.asList(ROWS).subList(i + 1, ROWS.length),
+                    matches);
+        }
+    }
+
+    @Test
+    public void testSinglePrimaryKey() {
+        OrderSpecifier<?>[] keyset = { QStudy.study.pk.asc() };
+        Expression<?> after = AbstractQuery.after(keyset, new Object[] { 4L });
+        Map<Path<?>, Object> row = new HashMap<Path<?>, Object>();
+        row.put(QStudy.study.pk, 4L);
+        assertEquals(false, eval(after, row));
+        row.put(QStudy.study.pk, 5L);
+        assertEquals(true, eval(after, row));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyTypeMismatch() {
+        AbstractQuery.after(KEYSET, new Object[] { "20150101", "1.1", "3" });
+    }
+
+    private static Map<Path<?>, Object> toMap(Object[] row) {
+        Map<Path<?>, Object> map = new HashMap<Path<?>, Object>();
+        for (int i = 0; i < KEYSET.length; i++)
+            map.put((Path<?>) KEYSET[i].getTarget(), row[i]);
+        return map;
+    }
+
+    private static boolean eval(Expression<?> expr, Map<Path<?>, Object> row) {
+        if (expr instanceof BooleanBuilder)
+            return eval(((BooleanBuilder) expr).getValue(), row);
+        Operation<?> op = (Operation<?>) expr;
+        Operator<?> operator = op.getOperator();
+        if (operator == Ops.AND)
+            return eval(op.getArg(0), row) && eval(op.getArg(1), row);
+        if (operator == Ops.OR)
+            return eval(op.getArg(0), row) || eval(op.getArg(1), row);
+        int cmp = compare(value(op.getArg(0), row), value(op.getArg(1), row));
+        if (operator == Ops.EQ)
+            return cmp == 0;
+        if (operator == Ops.GT)
+            return cmp > 0;
+        if (operator == Ops.LT)
+            return cmp < 0;
+        throw new AssertionError("Unexpected operator: " + operator);
+    }
+
+    private static Object value(Expression<?> expr, Map<Path<?>, Object> row) {
+        if (expr instanceof Constant)
+            return ((Constant<?>) expr).getConstant();
+        if (!row.containsKey(expr))
+            throw new AssertionError("Unexpected expression: " + expr);
+        return row.get(expr);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compare(Object o1, Object o2) {
+        return ((Comparable) o1).compareTo(o2);
+    }
+}
@@ -41,6 +41,7 @@ package org.dcm4chee.archive.retrieve;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
 
 import org.dcm4che3.data.Attributes;
@@ -68,4 +69,26 @@ public interface RetrieveService {
     
     List<ArchiveInstanceLocator> calculateMatches(String studyUID, String seriesUID,
             String objectUID, QueryParam queryParam, boolean withoutBulkData);
+
+    /**
+     * Like {@link #calculateMatches(String, String, String, QueryParam, boolean)},
+     * but queries the matches on demand in chunks of about {@code fetchSize}
+     * instances, while iterating over the returned locators.
+     */
+    Iterator<ArchiveInstanceLocator> scrollMatches(String studyUID,
+            String seriesUID, String objectUID, QueryParam queryParam,
+            boolean withoutBulkData, int fetchSize);
+
+    /**
+     * Returns the encoded frame offset index stored with the Location
+     * referenced by {@code locator}, or {@code null} if the Location was
+     * not indexed yet.
+     */
+    byte[] getFrameOffsets(ArchiveInstanceLocator locator);
+
+    /**
+     * Stores the encoded frame offset index with the Location referenced
+     * by {@code locator}.
+     */
+    void setFrameOffsets(ArchiveInstanceLocator locator, byte[] frameOffsets);
 }
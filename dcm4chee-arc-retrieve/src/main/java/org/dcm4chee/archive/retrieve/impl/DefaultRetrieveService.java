@@ -39,7 +39,12 @@
 package org.dcm4chee.archive.retrieve.impl;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -52,7 +57,6 @@ import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.QueryParam;
 import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
 import org.dcm4chee.archive.dto.ExternalLocationTuple;
-import org.dcm4chee.archive.entity.ExternalRetrieveLocation;
 import org.dcm4chee.archive.entity.QLocation;
 import org.dcm4chee.archive.entity.QInstance;
 import org.dcm4chee.archive.entity.QSeries;
@@ -98,10 +102,10 @@ public class DefaultRetrieveService implements RetrieveService {
     };
 
     @Inject
-    private Device device;
+    Device device;
 
     @Inject
-    private RetrieveServiceEJB ejb;
+    RetrieveServiceEJB ejb;
 
     public RetrieveContext createRetrieveContext(RetrieveService service,
             String sourceAET, ArchiveAEExtension arcAE) {
@@ -148,15 +152,56 @@ public class DefaultRetrieveService implements RetrieveService {
                 withoutBulkData);
     }
 
-    private List<ArchiveInstanceLocator> locate(List<Tuple> tuples, boolean withoutBulkData) {
+    @Override
+    public Iterator<ArchiveInstanceLocator> scrollMatches(String studyIUID,
+            String seriesIUID, String objectIUID, QueryParam queryParam,
+            boolean withoutBulkData, int fetchSize) {
+        return new ScrollingMatches(
+                studyIUID == null ? null : new String[]{studyIUID},
+                seriesIUID == null ? null : new String[]{seriesIUID},
+                objectIUID == null ? null : new String[]{objectIUID},
+                queryParam, withoutBulkData, fetchSize);
+    }
 
-        List<ArchiveInstanceLocator> locators = new ArrayList<ArchiveInstanceLocator>(tuples.size());
-        StorageDeviceExtension storageConf = device.getDeviceExtension(StorageDeviceExtension.class);
-        long instPk = -1;
-        long seriesPk = -1;
-        Attributes seriesAttrs = null;
-        ArchiveInstanceLocator locator = null;
+    @Override
+    public byte[] getFrameOffsets(ArchiveInstanceLocator locator) {
+        StorageSystem storageSystem = locator.getStorageSystem();
+        if (storageSystem == null)
+            return null;
+
+        return ejb.getFrameOffsets(locator.iuid,
+                storageSystem.getStorageSystemGroup().getGroupID(),
+                storageSystem.getStorageSystemID(),
+                locator.getFilePath(),
+                locator.getEntryName());
+    }
 
+    @Override
+    public void setFrameOffsets(ArchiveInstanceLocator locator,
+            byte[] frameOffsets) {
+        StorageSystem storageSystem = locator.getStorageSystem();
+        if (storageSystem == null)
+            return;
+
+        ejb.setFrameOffsets(locator.iuid,
+                storageSystem.getStorageSystemGroup().getGroupID(),
+                storageSystem.getStorageSystemID(),
+                locator.getFilePath(),
+                locator.getEntryName(),
+                frameOffsets);
+    }
+
+    /**
+     * Builds the locators of the instances of the passed rows. The merged
+     * Patient, Study and Series attributes and the External Retrieve
+     * Locations of instances without local Location are fetched for all
+     * rows at once.
+     */
+    private List<ArchiveInstanceLocator> locate(List<Tuple> tuples, boolean withoutBulkData) {
+
+        List<Tuple> selected = new ArrayList<Tuple>(tuples.size());
+        HashSet<Long> seriesPks = new HashSet<Long>();
+        HashSet<Long> externalInstPks = new HashSet<Long>();
         for (Tuple tuple : tuples) {
             Boolean b = tuple.get(QLocation.location.withoutBulkData);
             String retrieveAETs = tuple.get(QInstance.instance.retrieveAETs);
@@ -167,41 +212,134 @@ public class DefaultRetrieveService implements RetrieveService {
             {
                 continue;
             }
+            selected.add(tuple);
+            seriesPks.add(tuple.get(QSeries.series.pk));
+            if (tuple.get(QLocation.location.storageSystemGroupID) == null)
+                externalInstPks.add(tuple.get(QInstance.instance.pk));
+        }
 
-            long nextSeriesPk = tuple.get(QSeries.series.pk);
-            long nextInstPk = tuple.get(QInstance.instance.pk);
+        List<ArchiveInstanceLocator> locators = new ArrayList<ArchiveInstanceLocator>(selected.size());
+        if (selected.isEmpty())
+            return locators;
 
-            if (seriesPk != nextSeriesPk) {
-                seriesAttrs = ejb.getSeriesAttributes(nextSeriesPk);
-                seriesPk = nextSeriesPk;
-            }
+        StorageDeviceExtension storageConf = device.getDeviceExtension(StorageDeviceExtension.class);
+        Map<Long, Attributes> seriesAttrsByPk = ejb.getSeriesAttributes(seriesPks);
+        Map<Long, List<ExternalLocationTuple>> externalLocationsByInstPk =
+                externalInstPks.isEmpty()
+                    ? Collections.<Long, List<ExternalLocationTuple>>emptyMap()
+                    : ejb.getExternalLocations(externalInstPks);
+        long instPk = -1;
+        ArchiveInstanceLocator locator = null;
+
+        for (Tuple tuple : selected) {
+            long nextInstPk = tuple.get(QInstance.instance.pk);
             if (instPk != nextInstPk) {
                 if (locator != null)
                     locators.add(locator);
                 locator = null;
             }
             instPk = nextInstPk;
+            locator = updateLocator(storageConf, locator,
+                    seriesAttrsByPk.get(tuple.get(QSeries.series.pk)), tuple);
             if(tuple.get(QLocation.location.storageSystemGroupID) == null)
-                locator = augmentExternalLocations(updateLocator(storageConf, 
-                        locator, seriesAttrs, tuple));
-            else
-                locator = updateLocator(storageConf, locator, seriesAttrs, tuple);
+                augmentExternalLocations(locator,
+                        externalLocationsByInstPk.get(nextInstPk));
         }
         if (locator != null)
             locators.add(locator);
         return locators;
     }
 
-    private ArchiveInstanceLocator augmentExternalLocations(
-            ArchiveInstanceLocator updateLocator) {
-        ArrayList<ExternalRetrieveLocation> externalLocations =
-                (ArrayList<ExternalRetrieveLocation>) 
-                ejb.getExternalLocations(updateLocator.iuid);
-        for(ExternalRetrieveLocation loc : externalLocations)
-        updateLocator.getExternalLocators().add(new ExternalLocationTuple(
-                loc.getRetrieveDeviceName(), loc.getAvailability()));
-            //update external retrieveLocation 
-            return updateLocator;
+    /**
+     * Fetches the matching instances page-wise, continuing after the primary
+     * key of the last instance of the previous page. Because an instance may
+     * have several locations, the rows of the last instance of a full page
+     * are deferred to the next page, so no locator is split across pages.
+     */
+    private final class ScrollingMatches
+            implements Iterator<ArchiveInstanceLocator> {
+
+        private final String[] studyIUIDs;
+        private final String[] seriesIUIDs;
+        private final String[] objectIUIDs;
+        private final QueryParam queryParam;
+        private final boolean withoutBulkData;
+        private final int fetchSize;
+        private long lastInstPk = -1L;
+        private boolean lastPage;
+        private Iterator<ArchiveInstanceLocator> page =
+                Collections.emptyIterator();
+
+        ScrollingMatches(String[] studyIUIDs, String[] seriesIUIDs,
+                String[] objectIUIDs, QueryParam queryParam,
+                boolean withoutBulkData, int fetchSize) {
+            if (fetchSize <= 0)
+                throw new IllegalArgumentException("fetchSize: " + fetchSize);
+            this.studyIUIDs = studyIUIDs;
+            this.seriesIUIDs = seriesIUIDs;
+            this.objectIUIDs = objectIUIDs;
+            this.queryParam = queryParam;
+            this.withoutBulkData = withoutBulkData;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!page.hasNext() && !lastPage)
+                page = nextPage();
+            return page.hasNext();
+        }
+
+        @Override
+        public ArchiveInstanceLocator next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return page.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Iterator<ArchiveInstanceLocator> nextPage() {
+            int limit = fetchSize;
+            List<Tuple> tuples;
+            for (;;) {
+                tuples = ejb.query(SELECT, null, studyIUIDs, seriesIUIDs,
+                        objectIUIDs, queryParam, lastInstPk, limit);
+                if (tuples.size() < limit) {
+                    lastPage = true;
+                    break;
+                }
+                int end = tuples.size() - 1;
+                long pk = instPk(tuples.get(end));
+                while (end > 0 && instPk(tuples.get(end - 1)) == pk)
+                    end--;
+                if (end > 0) {
+                    tuples = tuples.subList(0, end);
+                    break;
+                }
+                // all rows belong to one instance - retry with larger page
+                limit *= 2;
+            }
+            if (tuples.isEmpty())
+                return Collections.emptyIterator();
+
+            lastInstPk = instPk(tuples.get(tuples.size() - 1));
+            return locate(tuples, withoutBulkData).iterator();
+        }
+    }
+
+    private static long instPk(Tuple tuple) {
+        return tuple.get(QInstance.instance.pk);
+    }
+
+    private static void augmentExternalLocations(
+            ArchiveInstanceLocator locator,
+            List<ExternalLocationTuple> externalLocations) {
+        if (externalLocations != null)
+            locator.getExternalLocators().addAll(externalLocations);
     }
 
     private static ArchiveInstanceLocator updateLocator(
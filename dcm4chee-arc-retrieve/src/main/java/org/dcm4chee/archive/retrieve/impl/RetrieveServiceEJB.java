@@ -38,7 +38,11 @@
 
 package org.dcm4chee.archive.retrieve.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
@@ -47,14 +51,16 @@ import javax.persistence.PersistenceContext;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.IDWithIssuer;
 import org.dcm4chee.archive.conf.QueryParam;
-import org.dcm4chee.archive.entity.ExternalRetrieveLocation;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.entity.FrameOffsets;
+import org.dcm4chee.archive.entity.Location;
 import org.dcm4chee.archive.entity.PatientStudySeriesAttributes;
+import org.dcm4chee.archive.entity.QExternalRetrieveLocation;
 import org.dcm4chee.archive.entity.QLocation;
 import org.dcm4chee.archive.entity.QInstance;
 import org.dcm4chee.archive.entity.QPatient;
 import org.dcm4chee.archive.entity.QSeries;
 import org.dcm4chee.archive.entity.QStudy;
-import org.dcm4chee.archive.entity.Series;
 import org.dcm4chee.archive.query.util.QueryBuilder;
 import org.hibernate.Session;
 
@@ -70,12 +76,37 @@ import com.mysema.query.types.Expression;
 @Stateless
 public class RetrieveServiceEJB {
 
+    /**
+     * Maximal number of primary keys passed in one IN predicate.
+     */
+    private static final int MAX_PKS_PER_QUERY = 1000;
+
+    private static final Expression<?>[] SERIES_ATTRIBUTES = {
+        QSeries.series.pk,
+        QueryBuilder.seriesAttributesBlob.encodedAttributes,
+        QueryBuilder.studyAttributesBlob.encodedAttributes,
+        QueryBuilder.patientAttributesBlob.encodedAttributes
+    };
+
     @PersistenceContext(unitName = "dcm4chee-arc")
     private EntityManager em;
 
     public List<Tuple> query(Expression<?>[] select,
             IDWithIssuer[] pids, String[] studyIUIDs, String[] seriesIUIDs,
             String[] objectIUIDs, QueryParam queryParam) {
+        return query(select, pids, studyIUIDs, seriesIUIDs, objectIUIDs,
+                queryParam, -1L, 0);
+    }
+
+    /**
+     * Returns at most {@code limit} rows of matching instances with a
+     * primary key greater than {@code afterInstancePk}, ordered by the
+     * primary key of the instance. {@code limit <= 0} returns all rows.
+     */
+    public List<Tuple> query(Expression<?>[] select,
+            IDWithIssuer[] pids, String[] studyIUIDs, String[] seriesIUIDs,
+            String[] objectIUIDs, QueryParam queryParam,
+            long afterInstancePk, int limit) {
 
         BooleanBuilder builder = new BooleanBuilder();
         builder.and(QueryBuilder.pids(pids, 
@@ -88,8 +119,10 @@ public class RetrieveServiceEJB {
                 objectIUIDs, false));
         builder.and(QueryBuilder.hideRejectedInstance(queryParam));
         builder.and(QueryBuilder.hideRejectionNote(queryParam));
+        if (afterInstancePk >= 0)
+            builder.and(QInstance.instance.pk.gt(afterInstancePk));
 
-        List<Tuple> query = new HibernateQuery(em.unwrap(Session.class))
+        HibernateQuery query = new HibernateQuery(em.unwrap(Session.class))
                 .from(QInstance.instance)
                 .leftJoin(QInstance.instance.locations, QLocation.location)
                 .innerJoin(QInstance.instance.attributesBlob,
@@ -98,24 +131,128 @@ public class RetrieveServiceEJB {
                 .innerJoin(QSeries.series.study, QStudy.study)
                 .innerJoin(QStudy.study.patient, QPatient.patient)
                 .orderBy(QInstance.instance.pk.asc())
-                .where(builder)
-                .list(select);
+                .where(builder);
+        if (limit > 0)
+            query.limit(limit);
 
-        return query;
+        return query.list(select);
     }
 
-    public Attributes getSeriesAttributes(Long seriesPk) {
-        PatientStudySeriesAttributes result = (PatientStudySeriesAttributes) em
-                .createNamedQuery(Series.PATIENT_STUDY_SERIES_ATTRIBUTES)
-                .setParameter(1, seriesPk).getSingleResult();
-        return result.getAttributes();
+    /**
+     * Returns the merged Patient, Study and Series attributes of the Series
+     * with the specified primary keys, mapped by the primary key of the
+     * Series.
+     */
+    public Map<Long, Attributes> getSeriesAttributes(
+            Collection<Long> seriesPks) {
+        HashMap<Long, Attributes> result = new HashMap<Long, Attributes>();
+        for (List<Long> pks : partition(seriesPks)) {
+            List<Tuple> tuples = new HibernateQuery(em.unwrap(Session.class))
+                    .from(QSeries.series)
+                    .innerJoin(QSeries.series.attributesBlob,
+                            QueryBuilder.seriesAttributesBlob)
+                    .innerJoin(QSeries.series.study, QStudy.study)
+                    .innerJoin(QStudy.study.attributesBlob,
+                            QueryBuilder.studyAttributesBlob)
+                    .innerJoin(QStudy.study.patient, QPatient.patient)
+                    .innerJoin(QPatient.patient.attributesBlob,
+                            QueryBuilder.patientAttributesBlob)
+                    .where(QSeries.series.pk.in(pks))
+                    .list(SERIES_ATTRIBUTES);
+            for (Tuple tuple : tuples) {
+                result.put(tuple.get(QSeries.series.pk),
+                        new PatientStudySeriesAttributes(
+                            tuple.get(QueryBuilder.seriesAttributesBlob.encodedAttributes),
+                            tuple.get(QueryBuilder.studyAttributesBlob.encodedAttributes),
+                            tuple.get(QueryBuilder.patientAttributesBlob.encodedAttributes))
+                        .getAttributes());
+            }
+        }
+        return result;
     }
 
-    public List<ExternalRetrieveLocation> getExternalLocations(String iuid) {
-        @SuppressWarnings("unchecked")
-        List<ExternalRetrieveLocation> result = em.createNamedQuery(
-                ExternalRetrieveLocation.FIND_EXT_LOCATIONS_BY_IUID)
-                .setParameter(1,iuid).getResultList();
+    /**
+     * Returns the External Retrieve Locations of the Instances with the
+     * specified primary keys, mapped by the primary key of the Instance.
+     */
+    public Map<Long, List<ExternalLocationTuple>> getExternalLocations(
+            Collection<Long> instancePks) {
+        QExternalRetrieveLocation extLocation =
+                QExternalRetrieveLocation.externalRetrieveLocation;
+        HashMap<Long, List<ExternalLocationTuple>> result =
+                new HashMap<Long, List<ExternalLocationTuple>>();
+        for (List<Long> pks : partition(instancePks)) {
+            List<Tuple> tuples = new HibernateQuery(em.unwrap(Session.class))
+                    .from(extLocation)
+                    .where(extLocation.instance.pk.in(pks))
+                    .list(extLocation.instance.pk,
+                            extLocation.retrieveDeviceName,
+                            extLocation.availability);
+            for (Tuple tuple : tuples) {
+                Long instPk = tuple.get(extLocation.instance.pk);
+                List<ExternalLocationTuple> list = result.get(instPk);
+                if (list == null)
+                    result.put(instPk,
+                            list = new ArrayList<ExternalLocationTuple>(1));
+                list.add(new ExternalLocationTuple(
+                        tuple.get(extLocation.retrieveDeviceName),
+                        tuple.get(extLocation.availability)));
+            }
+        }
         return result;
     }
+
+    public byte[] getFrameOffsets(String iuid, String groupID,
+            String systemID, String storagePath, String entryName) {
+        Long locationPk = findLocationPk(iuid, groupID, systemID,
+                storagePath, entryName);
+        if (locationPk == null)
+            return null;
+
+        FrameOffsets frameOffsets = em.find(FrameOffsets.class, locationPk);
+        return frameOffsets != null ? frameOffsets.getEncodedOffsets() : null;
+    }
+
+    public void setFrameOffsets(String iuid, String groupID,
+            String systemID, String storagePath, String entryName,
+            byte[] encodedOffsets) {
+        Long locationPk = findLocationPk(iuid, groupID, systemID,
+                storagePath, entryName);
+        if (locationPk == null)
+            return;
+
+        FrameOffsets frameOffsets = em.find(FrameOffsets.class, locationPk);
+        if (frameOffsets != null)
+            frameOffsets.setEncodedOffsets(encodedOffsets);
+        else
+            em.persist(new FrameOffsets(locationPk, encodedOffsets));
+    }
+
+    private Long findLocationPk(String iuid, String groupID,
+            String systemID, String storagePath, String entryName) {
+        List<Object[]> rows = em.createNamedQuery(
+                Location.FIND_PK_BY_SOP_IUID_AND_STORAGE_PATH, Object[].class)
+                .setParameter(1, iuid)
+                .setParameter(2, groupID)
+                .setParameter(3, systemID)
+                .setParameter(4, storagePath)
+                .getResultList();
+        for (Object[] row : rows) {
+            if (entryName == null
+                    ? row[1] == null
+                    : entryName.equals(row[1]))
+                return (Long) row[0];
+        }
+        return null;
+    }
+
+    private static List<List<Long>> partition(Collection<Long> pks) {
+        ArrayList<Long> list = new ArrayList<Long>(pks);
+        ArrayList<List<Long>> partitions = new ArrayList<List<Long>>(
+                (list.size() + MAX_PKS_PER_QUERY - 1) / MAX_PKS_PER_QUERY);
+        for (int i = 0; i < list.size(); i += MAX_PKS_PER_QUERY)
+            partitions.add(list.subList(i,
+                    Math.min(i + MAX_PKS_PER_QUERY, list.size())));
+        return partitions;
+    }
 }
@@ -0,0 +1,321 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.retrieve.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.IDWithIssuer;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.QueryParam;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.ExternalLocationTuple;
+import org.dcm4chee.archive.entity.QInstance;
+import org.dcm4chee.archive.entity.QLocation;
+import org.dcm4chee.archive.entity.QSeries;
+import org.dcm4chee.archive.entity.QStudy;
+import org.dcm4chee.archive.query.util.QueryBuilder;
+import org.dcm4chee.storage.conf.Availability;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mysema.query.Tuple;
+import com.mysema.query.types.Expression;
+import com.mysema.query.types.QTuple;
+
+public class DefaultRetrieveServiceTest {
+
+    private static final String STUDY_IUID = "1.2.3";
+    private static final int NUM_SERIES = 3;
+    private static final int NUM_INSTANCES_PER_SERIES = 200;
+
+    private static final QTuple ROW = new QTuple(
+            QLocation.location.storagePath,
+            QLocation.location.entryName,
+            QLocation.location.transferSyntaxUID,
+            QLocation.location.timeZone,
+            QLocation.location.storageSystemGroupID,
+            QLocation.location.storageSystemID,
+            QLocation.location.withoutBulkData,
+            QSeries.series.pk,
+            QInstance.instance.pk,
+            QInstance.instance.sopClassUID,
+            QInstance.instance.sopInstanceUID,
+            QInstance.instance.retrieveAETs,
+            QueryBuilder.instanceAttributesBlob.encodedAttributes,
+            QSeries.series.seriesInstanceUID,
+            QStudy.study.studyInstanceUID);
+
+    private RetrieveServiceEJB ejb;
+    private DefaultRetrieveService cut;
+
+    @Before
+    public void setUp() {
+        ejb = createMock(RetrieveServiceEJB.class);
+        cut = new DefaultRetrieveService();
+        cut.ejb = ejb;
+        cut.device = new Device("test");
+    }
+
+    @After
+    public void tearDown() {
+        verify(ejb);
+    }
+
+    @Test
+    public void testCalculateMatchesQueriesSeriesAndExternalLocationsOnce() {
+        QueryParam queryParam = new QueryParam();
+        List<Tuple> rows = new ArrayList<Tuple>();
+        Map<Long, Attributes> seriesAttrs = new HashMap<Long, Attributes>();
+        Map<Long, List<ExternalLocationTuple>> externalLocations =
+                new HashMap<Long, List<ExternalLocationTuple>>();
+        long instPk = 0;
+        for (long seriesPk = 1; seriesPk <= NUM_SERIES; seriesPk++) {
+            String seriesIUID = STUDY_IUID + '.' + seriesPk;
+            seriesAttrs.put(seriesPk, seriesAttrs(seriesIUID));
+            for (int i = 0; i < NUM_INSTANCES_PER_SERIES; i++) {
+                instPk++;
+                rows.add(externalOnlyRow(seriesPk, instPk, seriesIUID));
+                externalLocations.put(instPk, Collections.singletonList(
+                        new ExternalLocationTuple("EXT_DEVICE", Availability.NEARLINE)));
+            }
+        }
+        Capture<Collection<Long>> seriesPks = new Capture<Collection<Long>>();
+        Capture<Collection<Long>> instPks = new Capture<Collection<Long>>();
+        expect(ejb.query(anyObject(Expression[].class),
+                aryEq((IDWithIssuer[]) null),
+                aryEq(new String[] { STUDY_IUID }),
+                aryEq((String[]) null),
+                aryEq((String[]) null),
+                same(queryParam)))
+            .andReturn(rows);
+        expect(ejb.getSeriesAttributes(capture(seriesPks)))
+            .andReturn(seriesAttrs);
+        expect(ejb.getExternalLocations(capture(instPks)))
+            .andReturn(externalLocations);
+        replay(ejb);
+
+        List<ArchiveInstanceLocator> locators =
+                cut.calculateMatches(STUDY_IUID, null, null, queryParam, false);
+
+        assertEquals(NUM_SERIES, seriesPks.getValue().size());
+        assertEquals(NUM_SERIES * NUM_INSTANCES_PER_SERIES, instPks.getValue().size());
+        assertEquals(NUM_SERIES * NUM_INSTANCES_PER_SERIES, locators.size());
+        for (ArchiveInstanceLocator locator : locators) {
+            assertNull(locator.getStorageSystem());
+            assertEquals(1, locator.getExternalLocators().size());
+            assertEquals(locator.getSeriesInstanceUID(),
+                    locator.getObject().getString(Tag.SeriesInstanceUID));
+        }
+    }
+
+    @Test
+    public void testCalculateMatchesWithoutMatches() {
+        QueryParam queryParam = new QueryParam();
+        expect(ejb.query(anyObject(Expression[].class),
+                aryEq((IDWithIssuer[]) null),
+                aryEq(new String[] { STUDY_IUID }),
+                aryEq((String[]) null),
+                aryEq((String[]) null),
+                same(queryParam)))
+            .andReturn(Collections.<Tuple>emptyList());
+        replay(ejb);
+
+        assertTrue(cut.calculateMatches(STUDY_IUID, null, null, queryParam, false)
+                .isEmpty());
+    }
+
+    @Test
+    public void testScrollMatchesReturnsInstancesInOrderAcrossPages() {
+        QueryParam queryParam = new QueryParam();
+        // instances 3 and 4 have two rows each, instance 4 ends the 1st page
+        List<Tuple> rows = externalOnlyRows(1, 2, 3, 3, 4, 4, 5, 6, 7, 8);
+        AtomicInteger queries = expectScroll(queryParam, rows);
+        replay(ejb);
+
+        Iterator<ArchiveInstanceLocator> iter = cut.scrollMatches(
+                STUDY_IUID, null, null, queryParam, false, 5);
+        List<String> iuids = new ArrayList<String>();
+        while (iter.hasNext())
+            iuids.add(iter.next().iuid);
+
+        assertEquals(iuids(1, 2, 3, 4, 5, 6, 7, 8), iuids);
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    public void testScrollMatchesEnlargesPageForInstanceWithManyRows() {
+        QueryParam queryParam = new QueryParam();
+        List<Tuple> rows = externalOnlyRows(1, 1, 1, 1, 1, 2);
+        expectScroll(queryParam, rows);
+        replay(ejb);
+
+        Iterator<ArchiveInstanceLocator> iter = cut.scrollMatches(
+                STUDY_IUID, null, null, queryParam, false, 2);
+        List<String> iuids = new ArrayList<String>();
+        while (iter.hasNext())
+            iuids.add(iter.next().iuid);
+
+        assertEquals(iuids(1, 2), iuids);
+    }
+
+    @Test
+    public void testScrollMatchesQueriesOnlyConsumedPages() {
+        QueryParam queryParam = new QueryParam();
+        long[] instPks = new long[100];
+        for (int i = 0; i < instPks.length; i++)
+            instPks[i] = i + 1;
+        AtomicInteger queries =
+                expectScroll(queryParam, externalOnlyRows(instPks));
+        replay(ejb);
+
+        Iterator<ArchiveInstanceLocator> iter = cut.scrollMatches(
+                STUDY_IUID, null, null, queryParam, false, 10);
+        assertEquals(0, queries.get());
+        for (int i = 0; i < 3; i++)
+            iter.next();
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void testScrollMatchesWithoutMatches() {
+        QueryParam queryParam = new QueryParam();
+        AtomicInteger queries =
+                expectScroll(queryParam, Collections.<Tuple>emptyList());
+        replay(ejb);
+
+        Iterator<ArchiveInstanceLocator> iter = cut.scrollMatches(
+                STUDY_IUID, null, null, queryParam, false, 10);
+        assertFalse(iter.hasNext());
+        assertFalse(iter.hasNext());
+        assertEquals(1, queries.get());
+    }
+
+    /**
+     * Simulates the paged query of {@link RetrieveServiceEJB} on the
+     * specified rows, which are sorted by the primary key of the instance.
+     */
+    private AtomicInteger expectScroll(QueryParam queryParam,
+            final List<Tuple> rows) {
+        final AtomicInteger queries = new AtomicInteger();
+        expect(ejb.query(anyObject(Expression[].class),
+                aryEq((IDWithIssuer[]) null),
+                aryEq(new String[] { STUDY_IUID }),
+                aryEq((String[]) null),
+                aryEq((String[]) null),
+                same(queryParam),
+                anyLong(),
+                anyInt()))
+            .andAnswer(new IAnswer<List<Tuple>>() {
+                @Override
+                public List<Tuple> answer() {
+                    queries.incrementAndGet();
+                    Object[] args = EasyMock.getCurrentArguments();
+                    long afterInstPk = (Long) args[6];
+                    int limit = (Integer) args[7];
+                    List<Tuple> page = new ArrayList<Tuple>();
+                    for (Tuple row : rows)
+                        if (row.get(QInstance.instance.pk) > afterInstPk
+                                && page.size() < limit)
+                            page.add(row);
+                    return page;
+                }
+            }).anyTimes();
+        expect(ejb.getSeriesAttributes(EasyMock.<Collection<Long>>anyObject()))
+            .andReturn(Collections.singletonMap(1L,
+                    seriesAttrs(STUDY_IUID + ".1"))).anyTimes();
+        expect(ejb.getExternalLocations(EasyMock.<Collection<Long>>anyObject()))
+            .andReturn(Collections.<Long, List<ExternalLocationTuple>>emptyMap())
+            .anyTimes();
+        return queries;
+    }
+
+    private static List<Tuple> externalOnlyRows(long... instPks) {
+        List<Tuple> rows = new ArrayList<Tuple>(instPks.length);
+        for (long instPk : instPks)
+            rows.add(externalOnlyRow(1L, instPk, STUDY_IUID + ".1"));
+        return rows;
+    }
+
+    private static List<String> iuids(long... instPks) {
+        List<String> iuids = new ArrayList<String>(instPks.length);
+        for (long instPk : instPks)
+            iuids.add(STUDY_IUID + ".1." + instPk);
+        return iuids;
+    }
+
+    private static Attributes seriesAttrs(String seriesIUID) {
+        Attributes attrs = new Attributes(2);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_IUID);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, seriesIUID);
+        return attrs;
+    }
+
+    private static Tuple externalOnlyRow(long seriesPk, long instPk,
+            String seriesIUID) {
+        return ROW.newInstance(
+                null, null, null, null, null, null, null,
+                seriesPk,
+                instPk,
+                UID.CTImageStorage,
+                seriesIUID + '.' + instPk,
+                "EXT_AET",
+                null,
+                seriesIUID,
+                STUDY_IUID);
+    }
+}
@@ -38,6 +38,7 @@
 package org.dcm4chee.archive.impl;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -49,6 +50,8 @@ import javax.ejb.Startup;
 import javax.enterprise.event.Event;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.dcm4che3.conf.api.IApplicationEntityCache;
 import org.dcm4che3.net.Device;
@@ -62,10 +65,14 @@ import org.dcm4chee.archive.ArchiveService;
 import org.dcm4chee.archive.ArchiveServiceReloaded;
 import org.dcm4chee.archive.ArchiveServiceStarted;
 import org.dcm4chee.archive.ArchiveServiceStopped;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.dto.Participant;
+import org.dcm4chee.archive.entity.AttributesCache;
 import org.dcm4chee.archive.event.ConnectionEventSource;
 import org.dcm4chee.archive.event.LocalSource;
 import org.dcm4chee.archive.event.StartStopReloadEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -74,6 +81,9 @@ import org.dcm4chee.archive.event.StartStopReloadEvent;
 @Singleton
 @Startup
 public class ArchiveServiceImpl implements ArchiveService {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ArchiveServiceImpl.class);
     
     @Inject
     private ArchiveDeviceProducer deviceProducer;
@@ -150,6 +160,7 @@ public class ArchiveServiceImpl implements ArchiveService {
                 hl7ServiceRegistry.addHL7Service(service);
             }
             device.setDimseRQHandler(serviceRegistry);
+            registerAttributesCache();
             HL7DeviceExtension hl7Extension = 
                     device.getDeviceExtension(HL7DeviceExtension.class);
             if (hl7Extension != null) {
@@ -183,10 +194,32 @@ public class ArchiveServiceImpl implements ArchiveService {
         }
         shutdown(executor);
         shutdown(scheduledExecutor);
+        unregisterAttributesCache();
+    }
+
+    private void registerAttributesCache() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    AttributesCache.getDefault(),
+                    new ObjectName(AttributesCache.OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Failed to register {}", AttributesCache.OBJECT_NAME, e);
+        }
+    }
+
+    private void unregisterAttributesCache() {
+        try {
+            ObjectName name = new ObjectName(AttributesCache.OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister {}", AttributesCache.OBJECT_NAME, e);
+        }
     }
 
     @Override
     public void start(Participant source) throws Exception {
+        configureAttributesCache();
         device.bindConnections();
         running = true;
         archiveServiceStarted.fire(new StartStopReloadEvent(device, source));
@@ -205,10 +238,19 @@ public class ArchiveServiceImpl implements ArchiveService {
     public void reload(Participant source) throws Exception {
         aeCache.clear();
         deviceProducer.reloadConfiguration();
+        configureAttributesCache();
         device.rebindConnections();
         archiveServiceReloaded.fire(new StartStopReloadEvent(device, source));
     }
 
+    private void configureAttributesCache() {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        if (arcDev != null)
+            AttributesCache.getDefault().setMaxSize(
+                    arcDev.getAttributesCacheSize());
+    }
+
     @Override
     public Device getDevice() {
         return device;
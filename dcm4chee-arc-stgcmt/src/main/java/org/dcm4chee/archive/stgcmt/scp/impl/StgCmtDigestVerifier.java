@@ -0,0 +1,272 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.stgcmt.scp.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.util.BoundedExecutor;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mysema.query.Tuple;
+
+/**
+ * Verifies the digests of the files referenced by a Storage Commitment
+ * request concurrently, limited by
+ * {@link ArchiveDeviceExtension#getStgCmtVerifyThreads()} in total and by
+ * {@link ArchiveDeviceExtension#getStgCmtVerifyThreadsPerStorageSystem()}
+ * per Storage System. A verification task is only passed to the executor
+ * after it obtained a permit of its Storage System, so tasks for a Storage
+ * System saturated by concurrent Storage Commitment requests do not occupy
+ * threads while waiting. Files verified recently are not read again.
+ */
+@ApplicationScoped
+public class StgCmtDigestVerifier {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StgCmtDigestVerifier.class);
+
+    @Inject
+    RetrieveService storageRetrieveService;
+
+    @Inject
+    Device device;
+
+    private BoundedExecutor executor;
+
+    private final HashMap<String, BoundedExecutor> systemExecutors =
+            new HashMap<String, BoundedExecutor>();
+
+    private final LinkedHashMap<String, Boolean> verified =
+            new LinkedHashMap<String, Boolean>(256, 0.75f, true);
+
+    /**
+     * Removes matches from {@code matches}, whose file digest does not
+     * match the stored digest or whose file could not be read. The tuples
+     * are expected to contain the digest, the storage path, the Storage
+     * System ID and the Storage System Group ID at index 3 to 6.
+     */
+    public void verify(List<Tuple> matches) {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        StorageDeviceExtension storageConf =
+                device.getDeviceExtension(StorageDeviceExtension.class);
+        int cacheSize = arcDev.getStgCmtVerifiedCacheSize();
+        Map<String, Queue<Tuple>> queues = new HashMap<String, Queue<Tuple>>();
+        for (Tuple tuple : matches) {
+            if (cacheSize > 0 && isVerified(key(tuple)))
+                continue;
+
+            String systemKey = systemKey(tuple);
+            Queue<Tuple> queue = queues.get(systemKey);
+            if (queue == null)
+                queues.put(systemKey, queue = new ConcurrentLinkedQueue<Tuple>());
+            queue.add(tuple);
+        }
+        if (queues.isEmpty())
+            return;
+
+        Set<Tuple> failed = Collections.newSetFromMap(
+                new ConcurrentHashMap<Tuple, Boolean>());
+        int threadsPerSystem = Math.max(1,
+                arcDev.getStgCmtVerifyThreadsPerStorageSystem());
+        BoundedExecutor executor =
+                executor(Math.max(1, arcDev.getStgCmtVerifyThreads()));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        Map<BoundedExecutor, Queue<Tuple>> waiting =
+                new LinkedHashMap<BoundedExecutor, Queue<Tuple>>();
+        for (Map.Entry<String, Queue<Tuple>> entry : queues.entrySet()) {
+            Queue<Tuple> queue = entry.getValue();
+            BoundedExecutor systemExecutor = systemExecutor(entry.getKey(),
+                    executor, threadsPerSystem);
+            int started = 0;
+            for (int i = Math.min(threadsPerSystem, queue.size()); i > 0; i--) {
+                FutureTask<Void> task = new FutureTask<Void>(new Verifier(
+                        queue, storageConf, failed, cacheSize), null);
+                if (!systemExecutor.tryExecute(task))
+                    break;
+                futures.add(task);
+                started++;
+            }
+            if (started == 0)
+                waiting.put(systemExecutor, queue);
+        }
+        // Storage Systems saturated by concurrent requests get one worker
+        // as soon as one of their permits is released
+        for (Map.Entry<BoundedExecutor, Queue<Tuple>> entry : waiting.entrySet()) {
+            FutureTask<Void> task = new FutureTask<Void>(new Verifier(
+                    entry.getValue(), storageConf, failed, cacheSize), null);
+            entry.getKey().execute(task);
+            futures.add(task);
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                        "Interrupted while verifying digests", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        matches.removeAll(failed);
+    }
+
+    private final class Verifier implements Runnable {
+
+        private final Queue<Tuple> queue;
+        private final StorageDeviceExtension storageConf;
+        private final Set<Tuple> failed;
+        private final int cacheSize;
+
+        Verifier(Queue<Tuple> queue, StorageDeviceExtension storageConf,
+                Set<Tuple> failed, int cacheSize) {
+            this.queue = queue;
+            this.storageConf = storageConf;
+            this.failed = failed;
+            this.cacheSize = cacheSize;
+        }
+
+        @Override
+        public void run() {
+            Tuple tuple;
+            while ((tuple = queue.poll()) != null) {
+                if (verify(tuple)) {
+                    if (cacheSize > 0)
+                        addVerified(key(tuple), cacheSize);
+                } else {
+                    failed.add(tuple);
+                }
+            }
+        }
+
+        private boolean verify(Tuple tuple) {
+            String digest = tuple.get(3, String.class);
+            String filePath = tuple.get(4, String.class);
+            String storageSystemID = tuple.get(5, String.class);
+            String storageGroupID = tuple.get(6, String.class);
+            StorageSystem storageSystem = storageConf.getStorageSystem(
+                    storageGroupID, storageSystemID);
+            try {
+                RetrieveContext ctx = storageRetrieveService
+                        .createRetrieveContext(storageSystem);
+                if (storageRetrieveService.calculateDigestAndMatch(ctx,
+                        digest, filePath))
+                    return true;
+
+                LOG.warn("Digest of {} on Storage System {} does not match",
+                        filePath, storageSystemID);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to calculate digest of {} on Storage System {}:",
+                        filePath, storageSystemID, e);
+            }
+            return false;
+        }
+    }
+
+    private static String systemKey(Tuple tuple) {
+        return tuple.get(6, String.class) + '/' + tuple.get(5, String.class);
+    }
+
+    private static String key(Tuple tuple) {
+        return systemKey(tuple) + '/' + tuple.get(4, String.class)
+                + '/' + tuple.get(3, String.class);
+    }
+
+    private boolean isVerified(String key) {
+        synchronized (verified) {
+            return verified.get(key) != null;
+        }
+    }
+
+    private void addVerified(String key, int cacheSize) {
+        synchronized (verified) {
+            verified.put(key, Boolean.TRUE);
+            for (Iterator<String> iter = verified.keySet().iterator();
+                    verified.size() > cacheSize && iter.hasNext();) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    private synchronized BoundedExecutor systemExecutor(String systemKey,
+            BoundedExecutor executor, int threads) {
+        BoundedExecutor systemExecutor = systemExecutors.get(systemKey);
+        if (systemExecutor == null)
+            systemExecutors.put(systemKey,
+                    systemExecutor = new BoundedExecutor(executor, threads));
+        else if (systemExecutor.getMaxConcurrent() != threads)
+            systemExecutor.setMaxConcurrent(threads);
+        return systemExecutor;
+    }
+
+    private synchronized BoundedExecutor executor(int threads) {
+        if (executor == null)
+            executor = new BoundedExecutor(device.getExecutor(), threads);
+        else if (executor.getMaxConcurrent() != threads)
+            executor.setMaxConcurrent(threads);
+        return executor;
+    }
+}
@@ -40,7 +40,9 @@ package org.dcm4chee.archive.stgcmt.scp.impl;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Resource;
 import javax.enterprise.context.ApplicationScoped;
@@ -54,8 +56,6 @@ import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Queue;
 import javax.jms.Session;
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
 
 import org.dcm4che3.conf.api.IApplicationEntityCache;
 import org.dcm4che3.data.Attributes;
@@ -63,8 +63,6 @@ import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
-import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.io.SAXTransformer.SetupTransformer;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Device;
@@ -80,16 +78,13 @@ import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.util.DateUtils;
 import org.dcm4che3.util.UIDUtils;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.AttributesCoercion;
 import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
 import org.dcm4chee.archive.dto.ServiceQualifier;
 import org.dcm4chee.archive.dto.ServiceType;
 import org.dcm4chee.archive.entity.StoreVerifyDimse;
 import org.dcm4chee.archive.stgcmt.scp.CommitEvent;
 import org.dcm4chee.archive.stgcmt.scp.StgCmtService;
-import org.dcm4chee.storage.RetrieveContext;
-import org.dcm4chee.storage.conf.StorageDeviceExtension;
-import org.dcm4chee.storage.conf.StorageSystem;
-import org.dcm4chee.storage.service.RetrieveService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -116,7 +111,7 @@ public class StgCmtServiceImpl implements StgCmtService {
     private StgCmtEJB stgCmtEJB;
 
     @Inject
-    private RetrieveService storageRetrieveService;
+    private StgCmtDigestVerifier digestVerifier;
 
     @Inject
     private IApplicationEntityCache aeCache;
@@ -141,36 +136,8 @@ public class StgCmtServiceImpl implements StgCmtService {
     }
 
     private List<Tuple> checkForDigestAndAdjust(List<Tuple> foundMatches) {
-
-        for (java.util.Iterator<Tuple> iter = foundMatches.iterator(); iter
-                .hasNext();) {
-            Tuple tuple = iter.next();
-
-            String digest = tuple.get(3, String.class);
-            String filePath = tuple.get(4, String.class);
-            String storageSystemID = tuple.get(5, String.class);
-            String storageGroupID = tuple.get(6, String.class);
-            StorageDeviceExtension devExt = device
-                    .getDeviceExtension(StorageDeviceExtension.class);
-            StorageSystem storageSystem = devExt.getStorageSystem(
-                    storageGroupID, storageSystemID);
-            RetrieveContext ctx = storageRetrieveService
-                    .createRetrieveContext(storageSystem);
-            try {
-                if (!storageRetrieveService.calculateDigestAndMatch(ctx,
-                        digest, filePath)) {
-                    iter.remove();
-                }
-            } catch (IOException e) {
-                LOG.error(
-                        "Failed to calculate digest on storage commitment request"
-                                + ", no digest check is performed, {}", e);
-                return foundMatches;
-
-            }
-        }
+        digestVerifier.verify(foundMatches);
         return foundMatches;
-
     }
 
     public void scheduleNEventReport(String localAET, String remoteAET,
@@ -350,28 +317,18 @@ public class StgCmtServiceImpl implements StgCmtService {
             throws DicomServiceException {
         try {
             Attributes modified = new Attributes();
-            Templates tpl = remoteAET != null ? arcAE
-                    .getAttributeCoercionTemplates(
+            AttributesCoercion coercion = remoteAET != null ? arcAE
+                    .getAttributesCoercion(
                             attrs.getString(Tag.SOPClassUID),
                             Dimse.N_EVENT_REPORT_RQ, role, remoteAET) : null;
-            if (tpl != null) {
-                attrs.update(SAXTransformer.transform(attrs, tpl, false, false,
-                        new SetupTransformer() {
-
-                            @Override
-                            public void setup(Transformer transformer) {
-                                Date date = new Date();
-                                String currentDate = DateUtils.formatDA(null,
-                                        date);
-                                String currentTime = DateUtils.formatTM(null,
-                                        date);
-                                transformer.setParameter("date", currentDate);
-                                transformer.setParameter("time", currentTime);
-                                transformer.setParameter("calling", remoteAET);
-                                transformer.setParameter("called", arcAE
-                                        .getApplicationEntity().getAETitle());
-                            }
-                        }), modified);
+            if (coercion != null) {
+                Date date = new Date();
+                Map<String, Object> params = new HashMap<String, Object>(8);
+                params.put("date", DateUtils.formatDA(null, date));
+                params.put("time", DateUtils.formatTM(null, date));
+                params.put("calling", remoteAET);
+                params.put("called", arcAE.getApplicationEntity().getAETitle());
+                attrs.update(coercion.coerce(attrs, params), modified);
             }
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
@@ -0,0 +1,257 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.stgcmt.scp.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.storage.RetrieveContext;
+import org.dcm4chee.storage.conf.StorageDeviceExtension;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.RetrieveService;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mysema.query.Tuple;
+
+public class StgCmtDigestVerifierTest {
+
+    private static final String OK = "ok";
+    private static final String BAD = "bad";
+    private static final String UNREADABLE = "unreadable";
+
+    private ExecutorService pool;
+    private ArchiveDeviceExtension arcDev;
+    private RetrieveService retrieveService;
+    private StgCmtDigestVerifier verifier;
+
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> runningBySystem =
+            new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentHashMap<String, Integer> maxRunningBySystem =
+            new ConcurrentHashMap<String, Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newCachedThreadPool();
+        Device device = new Device("test");
+        device.setExecutor(pool);
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setStgCmtVerifyThreads(4);
+        arcDev.setStgCmtVerifyThreadsPerStorageSystem(1);
+        arcDev.setStgCmtVerifiedCacheSize(0);
+        device.addDeviceExtension(arcDev);
+        StorageDeviceExtension storageConf = new StorageDeviceExtension();
+        storageConf.addStorageSystemGroup(group("A"));
+        storageConf.addStorageSystemGroup(group("B"));
+        device.addDeviceExtension(storageConf);
+        retrieveService = createNiceMock(RetrieveService.class);
+        expect(retrieveService.calculateDigestAndMatch(
+                (RetrieveContext) anyObject(), anyObject(String.class),
+                anyObject(String.class)))
+            .andStubAnswer(new IAnswer<Boolean>() {
+                @Override
+                public Boolean answer() throws Throwable {
+                    Object[] args = EasyMock.getCurrentArguments();
+                    return calculateDigestAndMatch(
+                            (String) args[1], (String) args[2]);
+                }
+            });
+        replay(retrieveService);
+        verifier = new StgCmtDigestVerifier();
+        verifier.device = device;
+        verifier.storageRetrieveService = retrieveService;
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testRemovesFailedMatches() {
+        List<Tuple> matches = new ArrayList<Tuple>();
+        Tuple ok = tuple("A", "1", OK);
+        Tuple bad = tuple("A", "2", BAD);
+        Tuple unreadable = tuple("B", "3", UNREADABLE);
+        Tuple ok2 = tuple("B", "4", OK);
+        matches.add(ok);
+        matches.add(bad);
+        matches.add(unreadable);
+        matches.add(ok2);
+        verifier.verify(matches);
+        assertEquals(2, matches.size());
+        assertSame(ok, matches.get(0));
+        assertSame(ok2, matches.get(1));
+    }
+
+    @Test
+    public void testLimitsThreadsPerStorageSystem() {
+        arcDev.setStgCmtVerifyThreadsPerStorageSystem(2);
+        List<Tuple> matches = matches(8, "A", "B");
+        verifier.verify(matches);
+        assertEquals(16, matches.size());
+        assertEquals(2, maxRunningBySystem.get("A").intValue());
+        assertEquals(2, maxRunningBySystem.get("B").intValue());
+        assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void testLimitsTotalThreads() {
+        arcDev.setStgCmtVerifyThreads(3);
+        arcDev.setStgCmtVerifyThreadsPerStorageSystem(2);
+        verifier.verify(matches(8, "A", "B"));
+        assertTrue(maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testConcurrentRequestsShareStorageSystemLimit()
+            throws Exception {
+        arcDev.setStgCmtVerifyThreadsPerStorageSystem(1);
+        final List<Tuple> matches1 = matches(6, "A");
+        final List<Tuple> matches2 = matches(6, "A");
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                verifier.verify(matches1);
+            }
+        };
+        t.start();
+        verifier.verify(matches2);
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertEquals(6, matches1.size());
+        assertEquals(6, matches2.size());
+        assertEquals(1, maxRunningBySystem.get("A").intValue());
+        assertEquals(12, reads.get());
+    }
+
+    @Test
+    public void testSkipsRecentlyVerifiedFiles() {
+        arcDev.setStgCmtVerifiedCacheSize(10);
+        Tuple ok = tuple("A", "1", OK);
+        Tuple bad = tuple("A", "2", BAD);
+        List<Tuple> matches = new ArrayList<Tuple>();
+        matches.add(ok);
+        matches.add(bad);
+        verifier.verify(matches);
+        assertEquals(1, matches.size());
+        assertEquals(2, reads.get());
+        matches.add(tuple("A", "1", OK));
+        matches.add(tuple("A", "2", BAD));
+        verifier.verify(matches);
+        assertEquals(2, matches.size());
+        assertEquals(3, reads.get());
+    }
+
+    private boolean calculateDigestAndMatch(String digest, String filePath)
+            throws IOException {
+        reads.incrementAndGet();
+        String system = filePath.substring(0, filePath.indexOf('/'));
+        AtomicInteger count = runningBySystem.get(system);
+        if (count == null) {
+            runningBySystem.putIfAbsent(system, new AtomicInteger());
+            count = runningBySystem.get(system);
+        }
+        int n = count.incrementAndGet();
+        int total = running.incrementAndGet();
+        synchronized (this) {
+            Integer max = maxRunningBySystem.get(system);
+            if (max == null || max < n)
+                maxRunningBySystem.put(system, n);
+            if (maxRunning.get() < total)
+                maxRunning.set(total);
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+            count.decrementAndGet();
+        }
+        if (UNREADABLE.equals(digest))
+            throw new IOException("cannot read " + filePath);
+        return OK.equals(digest);
+    }
+
+    private static List<Tuple> matches(int n, String... groupIDs) {
+        List<Tuple> matches = new ArrayList<Tuple>();
+        for (String groupID : groupIDs)
+            for (int i = 0; i < n; i++)
+                matches.add(tuple(groupID, Integer.toString(i), OK));
+        return matches;
+    }
+
+    private static Tuple tuple(String groupID, String name, String digest) {
+        Tuple tuple = createNiceMock(Tuple.class);
+        expect(tuple.get(3, String.class)).andStubReturn(digest);
+        expect(tuple.get(4, String.class)).andStubReturn(groupID + '/' + name);
+        expect(tuple.get(5, String.class)).andStubReturn("fs");
+        expect(tuple.get(6, String.class)).andStubReturn(groupID);
+        replay(tuple);
+        return tuple;
+    }
+
+    private static StorageSystemGroup group(String groupID) {
+        StorageSystem system = new StorageSystem();
+        system.setStorageSystemID("fs");
+        StorageSystemGroup group = new StorageSystemGroup();
+        group.setGroupID(groupID);
+        group.addStorageSystem(system);
+        return group;
+    }
+}
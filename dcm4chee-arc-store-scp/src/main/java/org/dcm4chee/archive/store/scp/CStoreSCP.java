@@ -100,8 +100,12 @@ public class CStoreSCP extends BasicCStoreSCP {
                   rq.getString(Tag.AffectedSOPClassUID),
                   pc.getTransferSyntax());
             StoreContext context = storeService.createStoreContext(session);
-            storeService.writeSpoolFile(context, fmi, data);
-            storeService.parseSpoolFile(context);
+            if (session.getArchiveAEExtension().isStreamingStore()) {
+                storeService.writeStorageFile(context, fmi, data);
+            } else {
+                storeService.writeSpoolFile(context, fmi, data);
+                storeService.parseSpoolFile(context);
+            }
             storeService.store(context);
             Attributes coercedAttrs = context.getCoercedOriginalAttributes();
             if (!coercedAttrs.isEmpty() 
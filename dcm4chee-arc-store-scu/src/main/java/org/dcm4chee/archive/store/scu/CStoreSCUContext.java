@@ -67,15 +67,19 @@ public class CStoreSCUContext implements Serializable{
         this.setService(service);
     }
 
-    public Object getProperty(String key) {
+    /*
+     * Properties are accessed concurrently by read ahead threads and by
+     * the workers sending over additional associations.
+     */
+    public synchronized Object getProperty(String key) {
         return properties.get(key);
     }
 
-    public Object removeProperty(String key) {
+    public synchronized Object removeProperty(String key) {
         return properties.remove(key);
     }
 
-    public void setProperty(String key, Object value) {
+    public synchronized void setProperty(String key, Object value) {
         properties .put(key, value);
     }
 
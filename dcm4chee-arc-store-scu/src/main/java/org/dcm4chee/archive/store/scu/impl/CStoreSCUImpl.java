@@ -42,8 +42,15 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -86,6 +93,16 @@ public class CStoreSCUImpl extends BasicCStoreSCU<ArchiveInstanceLocator>
     private CStoreSCUContext context;
     private CStoreSCUService service;
     private boolean withoutBulkData;
+    private ReadAhead<ArchiveInstanceLocator, DataWriter> readAhead;
+
+    /**
+     * The instance which sub-operations are sent by this worker over an
+     * additional association, or {@code null}.
+     */
+    private final CStoreSCUImpl parent;
+
+    private final List<CStoreSCUImpl> workers =
+            new CopyOnWriteArrayList<CStoreSCUImpl>();
 
     /**
      * @param localAE
@@ -97,6 +114,63 @@ public class CStoreSCUImpl extends BasicCStoreSCU<ArchiveInstanceLocator>
         super();
         this.context = new CStoreSCUContext(localAE, remoteAE, service);
         this.service = storeSCUService;
+        this.parent = null;
+    }
+
+    /**
+     * Creates a worker, which shares the context and the observers of its
+     * parent, and which is canceled together with it. The worker collects
+     * completed, warning and failed sub-operations in its own lists, which
+     * are only accessed by its association, and which are merged into the
+     * lists of its parent, after all workers finished.
+     */
+    CStoreSCUImpl(CStoreSCUImpl parent) {
+        super();
+        this.context = parent.context;
+        this.service = parent.service;
+        this.withoutBulkData = parent.withoutBulkData;
+        this.parent = parent;
+    }
+
+    CStoreSCUImpl newWorker() {
+        CStoreSCUImpl worker = createWorker();
+        workers.add(worker);
+        // canceled before the worker was added
+        if (!isPending())
+            worker.cancelCStore();
+        return worker;
+    }
+
+    CStoreSCUImpl createWorker() {
+        return new CStoreSCUImpl(this);
+    }
+
+    boolean isPending() {
+        return status == Status.Pending;
+    }
+
+    @Override
+    public boolean cancelCStore() {
+        boolean pending = super.cancelCStore();
+        for (CStoreSCUImpl worker : workers)
+            worker.cancelCStore();
+        return pending;
+    }
+
+    /**
+     * Workers notify the observers of their parent. The sub-operation
+     * counts of the parent include the sub-operations of its workers after
+     * all workers finished.
+     */
+    @Override
+    public void notifyObservers(Object arg) {
+        if (parent == null) {
+            super.notifyObservers(arg);
+        } else {
+            clearChanged();
+            parent.setChanged();
+            parent.notifyObservers(arg);
+        }
     }
 
     public void setWithoutBulkData(boolean withoutBulkData) {
@@ -115,7 +189,7 @@ public class CStoreSCUImpl extends BasicCStoreSCU<ArchiveInstanceLocator>
         BasicCStoreSCUResp responseForLocalyAvailable = null;
 
         if(!localyAvailable.isEmpty())
-        responseForLocalyAvailable = super.cstore(
+        responseForLocalyAvailable = cstoreInParallel(
                 localyAvailable, storeas, priority);
         //initialize remaining response
         BasicCStoreSCUResp finalResponse = extendResponse(responseForLocalyAvailable);
@@ -152,12 +226,239 @@ public class CStoreSCUImpl extends BasicCStoreSCU<ArchiveInstanceLocator>
         return finalResponse;
     }
 
+    /**
+     * Splits large retrieves into contiguous chunks, which are sent over
+     * additional associations to the same destination in parallel, limited
+     * by the configured maximal number of parallel associations and minimal
+     * number of objects per association.
+     */
+    BasicCStoreSCUResp cstoreInParallel(
+            List<ArchiveInstanceLocator> instances, Association storeas,
+            int priority) {
+        ArchiveAEExtension arcAE = context.getArchiveAEExtension();
+        int n = Math.min(arcAE.getStoreSCUMaxParallelAssociations(),
+                instances.size()
+                    / Math.max(1, arcAE.getStoreSCUMinObjectsPerAssociation()));
+        List<Association> ass = openAssociations(storeas, n - 1);
+        if (ass.isEmpty())
+            return cstoreChunk(instances, storeas, priority);
+
+        nr_instances = instances.size();
+        int chunks = ass.size() + 1;
+        ArrayList<CStoreSCUImpl> scus = new ArrayList<CStoreSCUImpl>(chunks);
+        for (int i = 0; i < chunks; i++)
+            scus.add(newWorker());
+        Executor executor = context.getLocalAE().getDevice().getExecutor();
+        ArrayList<FutureTask<BasicCStoreSCUResp>> tasks =
+                new ArrayList<FutureTask<BasicCStoreSCUResp>>(ass.size());
+        for (int i = 1; i < chunks; i++) {
+            final List<ArchiveInstanceLocator> chunk = chunk(instances, i, chunks);
+            final Association as = ass.get(i - 1);
+            final int prio = priority;
+            final CStoreSCUImpl scu = scus.get(i);
+            FutureTask<BasicCStoreSCUResp> task = new FutureTask<BasicCStoreSCUResp>(
+                    new Callable<BasicCStoreSCUResp>() {
+                        @Override
+                        public BasicCStoreSCUResp call() {
+                            try {
+                                return scu.cstoreChunk(chunk, as, prio);
+                            } finally {
+                                release(as);
+                            }
+                        }
+                    });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                LOG.info("Executor rejected sending objects over additional association"
+                        + " - send them in retrieve thread");
+                task.run();
+            }
+        }
+        scus.get(0).cstoreChunk(chunk(instances, 0, chunks),
+                storeas, priority);
+        ArrayList<List<ArchiveInstanceLocator>> failedChunks =
+                new ArrayList<List<ArchiveInstanceLocator>>();
+        boolean interrupted = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            for (;;) {
+                try {
+                    tasks.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the workers stop after their current sub-operation
+                    if (!interrupted)
+                        cancelCStore();
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    LOG.warn("Failed to send objects over additional association:", e);
+                    failedChunks.add(chunk(instances, i + 1, chunks));
+                    break;
+                }
+            }
+        }
+        // the responses of all workers were received on completion of their tasks
+        for (CStoreSCUImpl scu : scus) {
+            completed.addAll(scu.completed);
+            warning.addAll(scu.warning);
+            failed.addAll(scu.failed);
+        }
+        failUnreported(failedChunks);
+        workers.clear();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (isPending()) {
+            if (failed.isEmpty())
+                status = Status.Success;
+            else
+                status = failed.size() == nr_instances
+                        ? Status.UnableToPerformSubOperations
+                        : Status.OneOrMoreFailures;
+        }
+        setChanged();
+        notifyObservers();
+        return makeResp();
+    }
+
+    private static List<ArchiveInstanceLocator> chunk(
+            List<ArchiveInstanceLocator> instances, int i, int chunks) {
+        return instances.subList(instances.size() * i / chunks,
+                instances.size() * (i + 1) / chunks);
+    }
+
+    /**
+     * Adds the objects of chunks, which sending failed, to the failed
+     * sub-operations, if no response was received for them.
+     */
+    private void failUnreported(List<List<ArchiveInstanceLocator>> chunks) {
+        if (chunks.isEmpty())
+            return;
+
+        HashSet<String> reported = new HashSet<String>();
+        addUIDs(reported, completed);
+        addUIDs(reported, warning);
+        addUIDs(reported, failed);
+        for (List<ArchiveInstanceLocator> chunk : chunks)
+            for (ArchiveInstanceLocator inst : chunk)
+                if (reported.add(inst.iuid))
+                    failed.add(inst);
+    }
+
+    private static void addUIDs(HashSet<String> uids,
+            List<ArchiveInstanceLocator> insts) {
+        for (ArchiveInstanceLocator inst : insts)
+            uids.add(inst.iuid);
+    }
+
+    private BasicCStoreSCUResp makeResp() {
+        ArrayList<String> failedUIDs = new ArrayList<String>(failed.size());
+        for (ArchiveInstanceLocator inst : failed)
+            failedUIDs.add(inst.iuid);
+        BasicCStoreSCUResp resp = new BasicCStoreSCUResp();
+        resp.setStatus(status);
+        resp.setCompleted(completed.size());
+        resp.setWarning(warning.size());
+        resp.setFailed(failedUIDs.size());
+        resp.setFailedUIDs(failedUIDs.toArray(new String[failedUIDs.size()]));
+        return resp;
+    }
+
+    /**
+     * Opens up to {@code n} additional associations to the destination of
+     * {@code storeas}.
+     */
+    List<Association> openAssociations(Association storeas, int n) {
+        ArrayList<Association> ass = new ArrayList<Association>(Math.max(0, n));
+        for (int i = 0; i < n; i++) {
+            try {
+                ass.add(context.getLocalAE().connect(context.getRemoteAE(),
+                        storeas.getAAssociateRQ()));
+            } catch (Exception e) {
+                LOG.info("Failed to open additional association to {}:",
+                        context.getRemoteAE().getAETitle(), e);
+                break;
+            }
+        }
+        return ass;
+    }
+
+    /**
+     * Sends {@code instances} over {@code storeas} and returns after all
+     * responses were received.
+     */
+    BasicCStoreSCUResp cstoreChunk(List<ArchiveInstanceLocator> instances,
+            Association storeas, int priority) {
+        BasicCStoreSCUResp resp = cstoreWithReadAhead(instances, storeas, priority);
+        try {
+            storeas.waitForOutstandingRSP();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return resp;
+    }
+
+    private BasicCStoreSCUResp cstoreWithReadAhead(
+            List<ArchiveInstanceLocator> instances, final Association storeas,
+            int priority) {
+        int depth = context.getArchiveAEExtension().getStoreSCUReadAhead();
+        if (depth <= 0)
+            return super.cstore(instances, storeas, priority);
+
+        readAhead = new ReadAhead<ArchiveInstanceLocator, DataWriter>(
+                context.getLocalAE().getDevice().getExecutor(),
+                new ReadAhead.Preparer<ArchiveInstanceLocator, DataWriter>() {
+
+                    @Override
+                    public String selectTransferSyntax(
+                            ArchiveInstanceLocator inst)
+                            throws UnsupportedStoreSCUException {
+                        return selectTransferSyntaxFor(storeas, inst);
+                    }
+
+                    @Override
+                    public DataWriter prepare(ArchiveInstanceLocator inst,
+                            String tsuid) throws IOException,
+                            UnsupportedStoreSCUException {
+                        return prepareDataWriter(inst, tsuid);
+                    }
+                },
+                instances.iterator(), depth);
+        try {
+            return super.cstore(instances, storeas, priority);
+        } finally {
+            readAhead.cancel();
+            readAhead = null;
+        }
+    }
+
+    void release(Association as) {
+        try {
+            as.waitForOutstandingRSP();
+            as.release();
+        } catch (Exception e) {
+            LOG.info("{}: Failed to release association:", as, e);
+        }
+    }
+
     @Override
     protected DataWriter createDataWriter(ArchiveInstanceLocator inst,
             String tsuid) throws IOException, UnsupportedStoreSCUException {
         if (inst == null || !(inst instanceof ArchiveInstanceLocator))
             throw new UnsupportedStoreSCUException("Unable to send instance");
 
+        return readAhead != null
+                ? readAhead.take(inst, tsuid)
+                : prepareDataWriter(inst, tsuid);
+    }
+
+    /**
+     * Invoked concurrently by read ahead threads of this instance and of
+     * its workers, which share the context.
+     */
+    private DataWriter prepareDataWriter(ArchiveInstanceLocator inst,
+            String tsuid) throws IOException, UnsupportedStoreSCUException {
         ArchiveAEExtension arcAEExt = context.getLocalAE().getAEExtension(
                 ArchiveAEExtension.class);
 
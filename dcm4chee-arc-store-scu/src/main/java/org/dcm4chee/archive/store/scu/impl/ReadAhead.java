@@ -0,0 +1,190 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scu.impl;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prepares the {@link org.dcm4che3.net.DataWriter}s of the next instances
+ * on an executor, while the current instance is sent. At most
+ * {@code depth} preparations are pending at any time.
+ * <p>
+ * Not thread-safe: {@link #take} and {@link #cancel} must be invoked by
+ * the thread sending the instances.
+ *
+ * @param <T> instance type
+ * @param <W> prepared data writer type
+ */
+class ReadAhead<T, W> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAhead.class);
+
+    /**
+     * Prepares instances. Invoked concurrently on the executor, so
+     * implementations must not modify state shared between instances
+     * without synchronization.
+     */
+    interface Preparer<T, W> {
+
+        String selectTransferSyntax(T inst) throws UnsupportedStoreSCUException;
+
+        W prepare(T inst, String tsuid)
+                throws IOException, UnsupportedStoreSCUException;
+    }
+
+    private final Executor executor;
+    private final Preparer<T, W> preparer;
+    private final Iterator<T> next;
+    private final int depth;
+    private final ArrayDeque<Prefetch> queue = new ArrayDeque<Prefetch>();
+
+    ReadAhead(Executor executor, Preparer<T, W> preparer, Iterator<T> next,
+            int depth) {
+        this.executor = executor;
+        this.preparer = preparer;
+        this.next = next;
+        this.depth = depth;
+        fill();
+    }
+
+    /**
+     * Returns the data writer prepared in advance for the instance, or
+     * prepares it in the calling thread, if the instance was not read ahead
+     * or with a different transfer syntax.
+     */
+    W take(T inst, String tsuid)
+            throws IOException, UnsupportedStoreSCUException {
+        Prefetch prefetch;
+        // skip instances, for which no DataWriter was requested
+        while ((prefetch = queue.poll()) != null && prefetch.inst != inst)
+            prefetch.cancel(false);
+        fill();
+        return prefetch != null
+                ? prefetch.get(tsuid)
+                : preparer.prepare(inst, tsuid);
+    }
+
+    void cancel() {
+        for (Prefetch prefetch : queue)
+            prefetch.cancel(false);
+        queue.clear();
+    }
+
+    int pending() {
+        return queue.size();
+    }
+
+    private void fill() {
+        while (queue.size() < depth && next.hasNext()) {
+            Prefetch prefetch = new Prefetch(next.next());
+            queue.add(prefetch);
+            try {
+                executor.execute(prefetch);
+            } catch (RejectedExecutionException e) {
+                LOG.info("Executor rejected read ahead - prepare {} in sending thread",
+                        prefetch.inst);
+                prefetch.run();
+            }
+        }
+    }
+
+    private final class Prepare implements Callable<W> {
+
+        final T inst;
+        volatile String tsuid;
+
+        Prepare(T inst) {
+            this.inst = inst;
+        }
+
+        @Override
+        public W call() throws Exception {
+            tsuid = preparer.selectTransferSyntax(inst);
+            return preparer.prepare(inst, tsuid);
+        }
+    }
+
+    private final class Prefetch extends FutureTask<W> {
+
+        final T inst;
+        final Prepare prepare;
+
+        Prefetch(T inst) {
+            this(new Prepare(inst));
+        }
+
+        private Prefetch(Prepare prepare) {
+            super(prepare);
+            this.inst = prepare.inst;
+            this.prepare = prepare;
+        }
+
+        W get(String tsuid) throws IOException, UnsupportedStoreSCUException {
+            W dataWriter;
+            try {
+                dataWriter = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof UnsupportedStoreSCUException)
+                    throw (UnsupportedStoreSCUException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+            return tsuid.equals(prepare.tsuid)
+                    ? dataWriter
+                    : preparer.prepare(inst, tsuid);
+        }
+    }
+}
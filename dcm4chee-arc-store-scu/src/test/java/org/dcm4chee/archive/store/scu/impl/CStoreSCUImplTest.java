@@ -0,0 +1,254 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scu.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.BasicCStoreSCUResp;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CStoreSCUImplTest {
+
+    private static final int WORKERS = 4;
+    private static final int INSTANCES = 10000;
+
+    private CStoreSCUImpl scu;
+    private final List<Object> notified = new ArrayList<Object>();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        scu = new CStoreSCUImpl(null, null, null, null);
+        scu.addObserver(new Observer() {
+
+            @Override
+            public void update(Observable o, Object arg) {
+                assertSame(scu, o);
+                notified.add(arg);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Test
+    public void testWorkerNotifiesObserversOfParent() {
+        CStoreSCUImpl worker = scu.newWorker();
+        worker.notifyObservers("progress");
+        assertEquals(1, notified.size());
+        assertEquals("progress", notified.get(0));
+        assertEquals(0, worker.countObservers());
+    }
+
+    @Test
+    public void testCancelCancelsWorkers() {
+        CStoreSCUImpl worker1 = scu.newWorker();
+        CStoreSCUImpl worker2 = scu.newWorker();
+        assertTrue(worker1.isPending());
+        assertTrue(scu.cancelCStore());
+        assertFalse(scu.isPending());
+        assertFalse(worker1.isPending());
+        assertFalse(worker2.isPending());
+    }
+
+    @Test
+    public void testWorkerCreatedAfterCancelIsCanceled() {
+        scu.cancelCStore();
+        assertFalse(scu.newWorker().isPending());
+    }
+
+    @Test
+    public void testCancelOfWorkerDoesNotCancelParent() {
+        CStoreSCUImpl worker1 = scu.newWorker();
+        CStoreSCUImpl worker2 = scu.newWorker();
+        worker1.cancelCStore();
+        assertTrue(scu.isPending());
+        assertTrue(worker2.isPending());
+    }
+
+    @Test
+    public void testMergesSubOperationsOfParallelWorkers() {
+        TestSCU parent = new TestSCU(localAE());
+        BasicCStoreSCUResp resp = parent.cstoreInParallel(instances(),
+                null, 0);
+
+        assertEquals(INSTANCES / 10 * 8, resp.getCompleted());
+        assertEquals(INSTANCES / 10, resp.getWarning());
+        assertEquals(INSTANCES / 10, resp.getFailed());
+        assertEquals(INSTANCES / 10, resp.getFailedUIDs().length);
+        assertEquals(Status.OneOrMoreFailures, resp.getStatus());
+        assertEquals(WORKERS,
+                new HashSet<Thread>(parent.chunkThreads).size());
+    }
+
+    @Test
+    public void testFailsUnreportedObjectsOfFailedWorker() {
+        TestSCU parent = new TestSCU(localAE());
+        parent.failChunkAfter = 10;
+        BasicCStoreSCUResp resp = parent.cstoreInParallel(instances(),
+                null, 0);
+
+        int chunk = INSTANCES / WORKERS;
+        int unreported = chunk - 10;
+        assertEquals(INSTANCES / 10 * 8 - chunk / 10 * 8 + 8,
+                resp.getCompleted());
+        assertEquals(INSTANCES / 10 - chunk / 10 + 1, resp.getWarning());
+        assertEquals(INSTANCES / 10 - chunk / 10 + 1 + unreported,
+                resp.getFailed());
+        assertEquals(resp.getFailed(),
+                new HashSet<String>(Arrays.asList(resp.getFailedUIDs())).size());
+    }
+
+    private ApplicationEntity localAE() {
+        executor = Executors.newFixedThreadPool(WORKERS);
+        Device device = new Device("test");
+        device.setExecutor(executor);
+        ApplicationEntity ae = new ApplicationEntity("LOCAL");
+        device.addApplicationEntity(ae);
+        ArchiveAEExtension arcAE = new ArchiveAEExtension();
+        arcAE.setStoreSCUMaxParallelAssociations(WORKERS);
+        arcAE.setStoreSCUMinObjectsPerAssociation(1);
+        ae.addAEExtension(arcAE);
+        return ae;
+    }
+
+    private static List<ArchiveInstanceLocator> instances() {
+        List<ArchiveInstanceLocator> insts =
+                new ArrayList<ArchiveInstanceLocator>(INSTANCES);
+        for (int i = 0; i < INSTANCES; i++)
+            insts.add(new ArchiveInstanceLocator.Builder(UID.CTImageStorage,
+                    "1.2.3." + i, UID.ExplicitVRLittleEndian).build());
+        return insts;
+    }
+
+    /**
+     * Reports every 10th object as failed and every 10th + 1 object with
+     * warning. If {@link #failChunkAfter} is set, the worker sending the
+     * third chunk fails after reporting that number of objects.
+     */
+    private static class TestSCU extends CStoreSCUImpl {
+
+        final TestSCU root;
+        final List<Thread> chunkThreads;
+        final CyclicBarrier start;
+        int failChunkAfter = -1;
+
+        TestSCU(ApplicationEntity localAE) {
+            super(localAE, null, null, null);
+            this.root = this;
+            this.chunkThreads = new ArrayList<Thread>();
+            this.start = new CyclicBarrier(WORKERS);
+        }
+
+        TestSCU(TestSCU parent) {
+            super(parent);
+            this.root = parent;
+            this.chunkThreads = null;
+            this.start = null;
+        }
+
+        @Override
+        CStoreSCUImpl createWorker() {
+            return new TestSCU(this);
+        }
+
+        @Override
+        List<Association> openAssociations(Association storeas, int n) {
+            return Arrays.asList(new Association[n]);
+        }
+
+        @Override
+        void release(Association as) {
+        }
+
+        @Override
+        BasicCStoreSCUResp cstoreChunk(List<ArchiveInstanceLocator> instances,
+                Association storeas, int priority) {
+            synchronized (root.chunkThreads) {
+                root.chunkThreads.add(Thread.currentThread());
+            }
+            // send all chunks concurrently
+            try {
+                root.start.await(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            boolean failChunk = root.failChunkAfter >= 0
+                    && instances.get(0).iuid.equals(
+                            "1.2.3." + INSTANCES / WORKERS * 2);
+            int n = 0;
+            for (ArchiveInstanceLocator inst : instances) {
+                if (failChunk && n++ == root.failChunkAfter)
+                    throw new IllegalStateException("Association aborted");
+                int i = Integer.parseInt(inst.iuid.substring(6));
+                if (i % 10 == 0)
+                    failed.add(inst);
+                else if (i % 10 == 1)
+                    warning.add(inst);
+                else
+                    completed.add(inst);
+            }
+            return null;
+        }
+    }
+}
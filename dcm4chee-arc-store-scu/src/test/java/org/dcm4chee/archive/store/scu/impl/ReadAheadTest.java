@@ -0,0 +1,243 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.scu.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+public class ReadAheadTest {
+
+    private static final String TSUID = "1.2.840.10008.1.2.1";
+    private static final String OTHER_TSUID = "1.2.840.10008.1.2";
+
+    /**
+     * Queues tasks until they are run by the test.
+     */
+    static class ManualExecutor implements Executor {
+
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        boolean reject;
+
+        @Override
+        public void execute(Runnable task) {
+            if (reject)
+                throw new RejectedExecutionException();
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    static class TestPreparer implements ReadAhead.Preparer<String, String> {
+
+        final List<String> prepared =
+                Collections.synchronizedList(new ArrayList<String>());
+        final List<String> threads =
+                Collections.synchronizedList(new ArrayList<String>());
+        volatile String failing;
+
+        @Override
+        public String selectTransferSyntax(String inst) {
+            return TSUID;
+        }
+
+        @Override
+        public String prepare(String inst, String tsuid) throws IOException {
+            prepared.add(inst);
+            threads.add(Thread.currentThread().getName());
+            if (inst.equals(failing))
+                throw new IOException("Failed to read " + inst);
+            return inst + '@' + tsuid;
+        }
+    }
+
+    private static List<String> instances(int n) {
+        ArrayList<String> list = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            list.add("inst" + i);
+        return list;
+    }
+
+    @Test
+    public void testKeepsDepthPreparationsPending() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        List<String> insts = instances(5);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 2);
+        assertEquals(2, executor.tasks.size());
+        executor.runAll();
+        assertEquals(Arrays.asList("inst0", "inst1"), preparer.prepared);
+        assertEquals("inst0@" + TSUID, readAhead.take(insts.get(0), TSUID));
+        assertEquals(2, readAhead.pending());
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals("inst1@" + TSUID, readAhead.take(insts.get(1), TSUID));
+        executor.runAll();
+        assertEquals("inst2@" + TSUID, readAhead.take(insts.get(2), TSUID));
+        executor.runAll();
+        assertEquals("inst3@" + TSUID, readAhead.take(insts.get(3), TSUID));
+        assertEquals(1, readAhead.pending());
+        executor.runAll();
+        assertEquals("inst4@" + TSUID, readAhead.take(insts.get(4), TSUID));
+        assertEquals(0, readAhead.pending());
+        assertEquals(insts, preparer.prepared);
+    }
+
+    @Test
+    public void testPreparesAgainForOtherTransferSyntax() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        List<String> insts = instances(1);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 1);
+        executor.runAll();
+        assertEquals("inst0@" + OTHER_TSUID,
+                readAhead.take(insts.get(0), OTHER_TSUID));
+        assertEquals(Arrays.asList("inst0", "inst0"), preparer.prepared);
+    }
+
+    @Test
+    public void testCancelsSkippedInstances() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        List<String> insts = instances(3);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 2);
+        Runnable inst0 = executor.tasks.removeFirst();
+        executor.runAll();
+        // no DataWriter requested for inst0, e.g. no Transfer Syntax accepted
+        assertEquals("inst1@" + TSUID, readAhead.take(insts.get(1), TSUID));
+        inst0.run();
+        executor.runAll();
+        assertEquals("inst2@" + TSUID, readAhead.take(insts.get(2), TSUID));
+        assertEquals(Arrays.asList("inst1", "inst2"), preparer.prepared);
+    }
+
+    @Test
+    public void testCancelledPreparationsAreNotRun() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        List<String> insts = instances(3);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 2);
+        readAhead.cancel();
+        assertEquals(0, readAhead.pending());
+        executor.runAll();
+        assertEquals(Collections.emptyList(), preparer.prepared);
+    }
+
+    @Test
+    public void testPreparesUnknownInstanceInSendingThread() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, instances(2).iterator(), 2);
+        assertEquals("other@" + TSUID, readAhead.take("other", TSUID));
+        assertEquals(Arrays.asList("other"), preparer.prepared);
+        assertEquals(0, readAhead.pending());
+    }
+
+    @Test
+    public void testPropagatesIOException() {
+        ManualExecutor executor = new ManualExecutor();
+        TestPreparer preparer = new TestPreparer();
+        preparer.failing = "inst0";
+        List<String> insts = instances(2);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 2);
+        executor.runAll();
+        try {
+            readAhead.take(insts.get(0), TSUID);
+            fail("IOException expected");
+        } catch (IOException e) {
+            assertEquals("Failed to read inst0", e.getMessage());
+        } catch (UnsupportedStoreSCUException e) {
+            fail(e.toString());
+        }
+    }
+
+    @Test
+    public void testPreparesInSendingThreadIfRejected() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        executor.reject = true;
+        TestPreparer preparer = new TestPreparer();
+        List<String> insts = instances(2);
+        ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                executor, preparer, insts.iterator(), 1);
+        assertEquals(Arrays.asList("inst0"), preparer.prepared);
+        assertEquals("inst0@" + TSUID, readAhead.take(insts.get(0), TSUID));
+        assertEquals("inst1@" + TSUID, readAhead.take(insts.get(1), TSUID));
+        assertEquals(Arrays.asList(Thread.currentThread().getName(),
+                Thread.currentThread().getName()), preparer.threads);
+    }
+
+    @Test
+    public void testPreparesConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TestPreparer preparer = new TestPreparer();
+            List<String> insts = instances(200);
+            ReadAhead<String, String> readAhead = new ReadAhead<String, String>(
+                    executor, preparer, insts.iterator(), 4);
+            for (String inst : insts)
+                assertEquals(inst + '@' + TSUID, readAhead.take(inst, TSUID));
+            assertEquals(insts.size(), preparer.prepared.size());
+            assertFalse(preparer.threads.contains(Thread.currentThread().getName()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
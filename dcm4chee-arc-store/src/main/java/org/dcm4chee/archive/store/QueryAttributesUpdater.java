@@ -0,0 +1,335 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+import org.dcm4che3.data.Code;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.QueryRetrieveView;
+import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.SeriesQueryAttributes;
+import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.entity.StudyQueryAttributes;
+
+/**
+ * Maintains already calculated {@link SeriesQueryAttributes} and
+ * {@link StudyQueryAttributes} on storage, rejection, restore and deletion
+ * of Instances, so they do not have to be recalculated from all Instances of
+ * the Study by the next query. Only the query attributes of views, in which
+ * the Instance becomes visible or invisible, are updated. Query attributes of
+ * a view, which cannot be updated incrementally, are removed and recalculated
+ * on demand by the query service.
+ * <p>
+ * On removal of an Instance from a view, the Number of Instances and Series
+ * are decremented. Whether the SOP Class of the Instance and the Modality of
+ * its Series remain in the Study, and whether the Retrieve AE Titles common to
+ * all Instances and the worst Availability are still determined by the
+ * remaining Instances, is decided by looking for another Instance visible in
+ * the view with the same value. Only if that is not found among the first
+ * {@value #MAX_CANDIDATES} candidates, or if the Retrieve AE Titles or the
+ * Availability may change, the query attributes of that view are removed.
+ * <p>
+ * The query attributes are re-read with a pessimistic write lock before
+ * they are updated, so concurrent transactions storing Instances of the
+ * same Study or Series apply their increments one after the other instead
+ * of overwriting each other. Rows are always locked in the same order -
+ * Study before Series - to avoid deadlocks between such transactions.
+ * Query attributes removed by a concurrent transaction fail the refresh,
+ * so the object is persisted again by the retry of
+ * {@link org.dcm4chee.archive.store.impl.StoreServiceImpl#updateDB(StoreContext)}.
+ */
+public class QueryAttributesUpdater {
+
+    private static final int MAX_CANDIDATES = 10;
+
+    private static final String SELECT_CODES_OF_OTHER_INSTANCES =
+            "SELECT rc, cn FROM Instance i"
+            + " LEFT JOIN i.rejectionNoteCode rc"
+            + " LEFT JOIN i.conceptNameCode cn"
+            + " WHERE i.pk <> ?1 AND ";
+
+    private static final String WITH_RETRIEVE_AETS_AND_AVAILABILITY =
+            " AND i.retrieveAETs = ?3 AND i.availability = ?4";
+
+    private static final String OF_SERIES_WITH_RETRIEVE_AETS_AND_AVAILABILITY =
+            "i.series = ?2" + WITH_RETRIEVE_AETS_AND_AVAILABILITY;
+
+    private static final String OF_STUDY_WITH_RETRIEVE_AETS_AND_AVAILABILITY =
+            "i.series.study = ?2" + WITH_RETRIEVE_AETS_AND_AVAILABILITY;
+
+    private static final String OF_STUDY_WITH_SOP_CLASS =
+            "i.series.study = ?2 AND i.sopClassUID = ?3";
+
+    private static final String OF_OTHER_SERIES_OF_STUDY_WITH_MODALITY =
+            "i.series.study = ?2 AND i.series <> ?3 AND i.series.modality = ?4";
+
+    private QueryAttributesUpdater() {}
+
+    /**
+     * Adds a received Instance to the query attributes of the views in which
+     * it is visible.
+     */
+    public static void addInstance(EntityManager em,
+            ArchiveDeviceExtension arcDev, Instance inst) {
+        update(em, arcDev, inst, false, null, true);
+    }
+
+    /**
+     * Sets the Rejection Note Code of an Instance and adds it to or removes
+     * it from the query attributes of the views in which its visibility
+     * changes by that.
+     *
+     * @param rejectionCode rejection code, or {@code null} to restore a
+     *        rejected Instance
+     */
+    public static void rejectInstance(EntityManager em,
+            ArchiveDeviceExtension arcDev, Instance inst,
+            org.dcm4chee.archive.entity.Code rejectionCode) {
+        Code prevRejectionCode = inst.getRejectionNoteCode();
+        inst.setRejectionNoteCode(rejectionCode);
+        update(em, arcDev, inst, true, prevRejectionCode, true);
+    }
+
+    /**
+     * Removes an Instance, which is about to be deleted, from the query
+     * attributes of the views in which it is visible.
+     */
+    public static void removeInstance(EntityManager em,
+            ArchiveDeviceExtension arcDev, Instance inst) {
+        update(em, arcDev, inst, true, inst.getRejectionNoteCode(), false);
+    }
+
+    private static void update(EntityManager em, ArchiveDeviceExtension arcDev,
+            Instance inst, boolean existed, Code prevRejectionCode,
+            boolean exists) {
+        Series series = inst.getSeries();
+        Study study = series.getStudy();
+        Collection<SeriesQueryAttributes> seriesQueryAttrs =
+                series.getQueryAttributes();
+        Collection<StudyQueryAttributes> studyQueryAttrs =
+                study.getQueryAttributes();
+        lock(em, studyQueryAttrs);
+        lock(em, seriesQueryAttrs);
+        if (studyQueryAttrs != null)
+            for (Iterator<StudyQueryAttributes> iter =
+                    studyQueryAttrs.iterator(); iter.hasNext();) {
+                StudyQueryAttributes studyAttrs = iter.next();
+                QueryRetrieveView view =
+                        arcDev.getQueryRetrieveView(studyAttrs.getViewID());
+                SeriesQueryAttributes seriesAttrs =
+                        find(seriesQueryAttrs, studyAttrs.getViewID());
+                if (view == null || seriesAttrs == null) {
+                    // cannot decide if first or last visible Instance of the Series
+                    iter.remove();
+                    continue;
+                }
+                boolean wasVisible = existed && isVisible(view,
+                        prevRejectionCode, inst.getConceptNameCode());
+                boolean visible = exists && isVisible(view, inst);
+                if (visible && !wasVisible)
+                    studyAttrs.addInstance(inst,
+                            seriesAttrs.getNumberOfInstances() == 0);
+                else if (wasVisible && !visible && !removeInstance(
+                        em, view, studyAttrs, seriesAttrs, inst))
+                    iter.remove();
+            }
+        if (seriesQueryAttrs != null)
+            for (Iterator<SeriesQueryAttributes> iter =
+                    seriesQueryAttrs.iterator(); iter.hasNext();) {
+                SeriesQueryAttributes seriesAttrs = iter.next();
+                QueryRetrieveView view =
+                        arcDev.getQueryRetrieveView(seriesAttrs.getViewID());
+                if (view == null) {
+                    iter.remove();
+                    continue;
+                }
+                boolean wasVisible = existed && isVisible(view,
+                        prevRejectionCode, inst.getConceptNameCode());
+                boolean visible = exists && isVisible(view, inst);
+                if (visible && !wasVisible)
+                    seriesAttrs.addInstance(inst);
+                else if (wasVisible && !visible
+                        && !removeInstance(em, view, seriesAttrs, inst))
+                    iter.remove();
+            }
+    }
+
+    private static boolean removeInstance(EntityManager em,
+            QueryRetrieveView view, StudyQueryAttributes studyAttrs,
+            SeriesQueryAttributes seriesAttrs, Instance inst) {
+        int numberOfInstances = studyAttrs.getNumberOfInstances();
+        if (numberOfInstances <= 0)
+            return false;
+
+        if (numberOfInstances == 1) {
+            studyAttrs.removeInstance(inst, true, true, true);
+            return true;
+        }
+
+        Series series = inst.getSeries();
+        Study study = series.getStudy();
+        if (existsOther(em, view, inst,
+                OF_STUDY_WITH_RETRIEVE_AETS_AND_AVAILABILITY, study,
+                studyAttrs.getRawRetrieveAETs(),
+                studyAttrs.getAvailability()) != Boolean.TRUE)
+            return false;
+
+        boolean lastOfSeries = seriesAttrs.getNumberOfInstances() == 1;
+        Boolean otherOfModality = Boolean.TRUE;
+        if (lastOfSeries && series.getModality() != null)
+            otherOfModality = existsOther(em, view, inst,
+                    OF_OTHER_SERIES_OF_STUDY_WITH_MODALITY, study, series,
+                    series.getModality());
+        if (otherOfModality == null)
+            return false;
+
+        Boolean otherOfSOPClass = existsOther(em, view, inst,
+                OF_STUDY_WITH_SOP_CLASS, study, inst.getSopClassUID());
+        if (otherOfSOPClass == null)
+            return false;
+
+        studyAttrs.removeInstance(inst, lastOfSeries, !otherOfModality,
+                !otherOfSOPClass);
+        return true;
+    }
+
+    private static boolean removeInstance(EntityManager em,
+            QueryRetrieveView view, SeriesQueryAttributes seriesAttrs,
+            Instance inst) {
+        int numberOfInstances = seriesAttrs.getNumberOfInstances();
+        if (numberOfInstances <= 0)
+            return false;
+
+        if (numberOfInstances > 1 && existsOther(em, view, inst,
+                OF_SERIES_WITH_RETRIEVE_AETS_AND_AVAILABILITY,
+                inst.getSeries(), seriesAttrs.getRawRetrieveAETs(),
+                seriesAttrs.getAvailability()) != Boolean.TRUE)
+            return false;
+
+        seriesAttrs.removeInstance();
+        return true;
+    }
+
+    /**
+     * Looks for another Instance visible in the specified view matching the
+     * specified condition. Returns {@code TRUE} if one is found,
+     * {@code FALSE} if there is none, or {@code null} if none of the first
+     * {@value #MAX_CANDIDATES} matching Instances is visible.
+     */
+    private static Boolean existsOther(EntityManager em,
+            QueryRetrieveView view, Instance inst, String condition,
+            Object... params) {
+        StringBuilder jpql = new StringBuilder(SELECT_CODES_OF_OTHER_INSTANCES)
+                .append(condition);
+        if (view.getShowInstancesRejectedByCodes().length == 0)
+            // same restriction as by isVisible(view, rejectionCode, ...)
+            jpql.append(view.isHideNotRejectedInstances()
+                    ? " AND i.rejectionNoteCode IS NOT NULL"
+                    : " AND i.rejectionNoteCode IS NULL");
+        Query query = em.createQuery(jpql.toString())
+                .setParameter(1, inst.getPk())
+                .setMaxResults(MAX_CANDIDATES);
+        for (int i = 0; i < params.length; i++)
+            query.setParameter(i + 2, params[i]);
+        List<?> results = query.getResultList();
+        for (Object result : results) {
+            Object[] codes = (Object[]) result;
+            if (isVisible(view, (Code) codes[0], (Code) codes[1]))
+                return Boolean.TRUE;
+        }
+        return results.size() < MAX_CANDIDATES ? Boolean.FALSE : null;
+    }
+
+    private static void lock(EntityManager em, Collection<?> queryAttrs) {
+        if (queryAttrs != null)
+            for (Object attrs : queryAttrs)
+                em.refresh(attrs, LockModeType.PESSIMISTIC_WRITE);
+    }
+
+    private static SeriesQueryAttributes find(
+            Collection<SeriesQueryAttributes> queryAttrs, String viewID) {
+        if (queryAttrs != null)
+            for (SeriesQueryAttributes attrs : queryAttrs)
+                if (viewID.equals(attrs.getViewID()))
+                    return attrs;
+        return null;
+    }
+
+    static boolean isVisible(QueryRetrieveView view, Instance inst) {
+        return isVisible(view, inst.getRejectionNoteCode(),
+                inst.getConceptNameCode());
+    }
+
+    /**
+     * Evaluates the restrictions of QueryBuilder.hideRejectedInstance() and
+     * QueryBuilder.hideRejectionNote() applied by the query service on
+     * calculation of query attributes for the specified view.
+     */
+    static boolean isVisible(QueryRetrieveView view, Code rejectionCode,
+            Code conceptNameCode) {
+        Code[] showRejectedBy = view.getShowInstancesRejectedByCodes();
+        boolean visible;
+        if (rejectionCode == null)
+            visible = !view.isHideNotRejectedInstances();
+        else
+            visible = showRejectedBy.length == 0
+                    ? view.isHideNotRejectedInstances()
+                    : contains(showRejectedBy, rejectionCode);
+        if (!visible)
+            return false;
+
+        return conceptNameCode == null || !contains(
+                view.getHideRejectionNotesWithCodes(), conceptNameCode);
+    }
+
+    private static boolean contains(Code[] codes, Code code) {
+        for (Code other : codes)
+            if (code.equalsIgnoreMeaning(other))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of the group commit of received objects, enabled by
+ * {@link org.dcm4chee.archive.conf.ArchiveDeviceExtension#getUpdateDbGroupCommitSize()}.
+ * Exposed by JMX as {@value #OBJECT_NAME}.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@LocalBean
+public class StoreGroupCommitMetrics implements StoreGroupCommitMetricsMXBean {
+
+    public static final String OBJECT_NAME =
+            "org.dcm4chee.archive:type=StoreGroupCommitMetrics";
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StoreGroupCommitMetrics.class);
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong committedObjects = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong fallbackObjects = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong commitTime = new AtomicLong();
+
+    @PostConstruct
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Failed to register {}", OBJECT_NAME, e);
+        }
+    }
+
+    @PreDestroy
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister {}", OBJECT_NAME, e);
+        }
+    }
+
+    public void onCommit(int batchSize, long nanos) {
+        batches.incrementAndGet();
+        committedObjects.addAndGet(batchSize);
+        commitTime.addAndGet(nanos);
+        long max;
+        while ((max = maxBatchSize.get()) < batchSize
+                && !maxBatchSize.compareAndSet(max, batchSize))
+            ;
+    }
+
+    public void onFailure(int batchSize) {
+        failedBatches.incrementAndGet();
+        fallbackObjects.addAndGet(batchSize);
+    }
+
+    /**
+     * Returns the number of successfully committed batches.
+     */
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns the number of objects persisted by successfully committed
+     * batches.
+     */
+    @Override
+    public long getCommittedObjects() {
+        return committedObjects.get();
+    }
+
+    /**
+     * Returns the number of failed batches, whose objects were persisted
+     * one by one.
+     */
+    @Override
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    @Override
+    public long getFallbackObjects() {
+        return fallbackObjects.get();
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long n = batches.get();
+        return n > 0 ? (double) committedObjects.get() / n : 0;
+    }
+
+    /**
+     * Returns the average duration of a successful batch transaction in ms.
+     */
+    @Override
+    public double getAverageCommitTime() {
+        long n = batches.get();
+        return n > 0 ? commitTime.get() / (n * 1000000.) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "StoreGroupCommitMetrics[batches=" + getBatches()
+                + ", objects=" + getCommittedObjects()
+                + ", avgSize=" + getAverageBatchSize()
+                + ", maxSize=" + getMaxBatchSize()
+                + ", avgCommitTime=" + getAverageCommitTime()
+                + "ms, failedBatches=" + getFailedBatches()
+                + ", fallbackObjects=" + getFallbackObjects()
+                + "]";
+    }
+}
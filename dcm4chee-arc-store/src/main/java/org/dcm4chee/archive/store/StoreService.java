@@ -81,6 +81,17 @@ public interface StoreService {
 
     void parseSpoolFile(StoreContext context) throws DicomServiceException;
 
+    /**
+     * Parses the data set header from <code>data</code> while it is received
+     * and writes the object directly to its final location on the Storage
+     * System of the session, without spooling it to the spool directory.
+     * Sets the transfer syntax, the attributes - without Pixel Data and
+     * subsequent attributes -, the storage path, the digest and the size of
+     * the object in the store context.
+     */
+    void writeStorageFile(StoreContext context, Attributes fmi, InputStream data)
+            throws DicomServiceException;
+
     void onClose(StoreSession session);
 
     void store(StoreContext context) throws DicomServiceException;
@@ -53,6 +53,10 @@ public class DelegatingStoreService extends DelegatingServiceImpl<StoreService>
         getNextDecorator().parseSpoolFile(context);
     }
 
+    public void writeStorageFile(StoreContext context, Attributes fmi, InputStream data) throws DicomServiceException {
+        getNextDecorator().writeStorageFile(context, fmi, data);
+    }
+
     public void onClose(StoreSession session) {
         getNextDecorator().onClose(session);
     }
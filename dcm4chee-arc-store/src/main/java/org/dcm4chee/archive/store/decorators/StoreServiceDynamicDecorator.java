@@ -61,6 +61,10 @@ public abstract class StoreServiceDynamicDecorator extends DynamicDecoratorWrapp
         wrapWithDynamicDecorators(delegate).parseSpoolFile(context);
     }
 
+    public void writeStorageFile(StoreContext context, Attributes fmi, InputStream data) throws DicomServiceException {
+        wrapWithDynamicDecorators(delegate).writeStorageFile(context, fmi, data);
+    }
+
     public void onClose(StoreSession session) {
         wrapWithDynamicDecorators(delegate).onClose(session);
     }
@@ -0,0 +1,90 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.dcm4chee.archive.store.impl;
+
+import javax.persistence.EntityManager;
+
+import org.dcm4chee.archive.store.StoreSession;
+
+/**
+ * Remembers the primary key of the Series and Study resolved for the last
+ * object received in a {@link StoreSession}, so following objects of the
+ * same Series can load the entity by its primary key instead of looking
+ * it up by its UID. The entities are still updated with the attributes of
+ * each received object.
+ */
+class ResolvedEntity {
+
+    static final String SERIES = ResolvedEntity.class.getName() + ".Series";
+    static final String STUDY = ResolvedEntity.class.getName() + ".Study";
+
+    private final long pk;
+    private final String uid;
+
+    private ResolvedEntity(long pk, String uid) {
+        this.pk = pk;
+        this.uid = uid;
+    }
+
+    /**
+     * Returns the entity cached under <code>key</code> in the store session,
+     * if it was resolved for the same UID and still exists, otherwise
+     * <code>null</code>.
+     */
+    static <T> T find(EntityManager em, StoreSession session, String key,
+            Class<T> entityClass, String uid) {
+        ResolvedEntity cached = (ResolvedEntity) session.getProperty(key);
+        if (cached == null || !cached.uid.equals(uid))
+            return null;
+
+        return em.find(entityClass, cached.pk);
+    }
+
+    static void put(StoreSession session, String key, long pk, String uid) {
+        session.setProperty(key, new ResolvedEntity(pk, uid));
+    }
+
+    /**
+     * Invalidates cached entities, e.g. after a failed database update
+     * which may have rolled back their creation or update.
+     */
+    static void clear(StoreSession session) {
+        session.removeProperty(SERIES);
+        session.removeProperty(STUDY);
+    }
+}
@@ -0,0 +1,236 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.entity.Location;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreGroupCommitMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects received objects from concurrent associations and persists
+ * them in one database transaction.
+ * <p>
+ * The first object of a batch waits up to
+ * {@link ArchiveDeviceExtension#getUpdateDbGroupCommitDelay()} ms for
+ * further objects, until
+ * {@link ArchiveDeviceExtension#getUpdateDbGroupCommitSize()} objects are
+ * collected, and then commits the batch on behalf of all of them. It only
+ * waits as long as other objects are in progress, which may join the
+ * batch, so a single object is committed without delay. The threads of
+ * the other objects block until the batch was committed, so the C-STORE
+ * response is not sent before the object is persisted.
+ */
+@ApplicationScoped
+public class StoreGroupCommit {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StoreGroupCommit.class);
+
+    @Inject
+    StoreServiceEJB storeServiceEJB;
+
+    @Inject
+    StoreGroupCommitMetrics metrics;
+
+    private final Object lock = new Object();
+
+    private final AtomicInteger inProgress = new AtomicInteger();
+
+    private Batch pending;
+
+    private static class Batch {
+        final List<StoreContext> contexts = new ArrayList<StoreContext>();
+        final long deadline;
+        boolean done;
+        boolean failed;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * State of a {@link StoreContext} modified by
+     * {@link StoreServiceEJB#updateDB(List)}, restored if the batch failed,
+     * so the object can be persisted again by its own transaction.
+     */
+    private static class ContextState {
+        final StoreAction storeAction;
+        final Instance instance;
+        final Location fileRef;
+
+        ContextState(StoreContext context) {
+            storeAction = context.getStoreAction();
+            instance = context.getInstance();
+            fileRef = context.getFileRef();
+        }
+
+        void restore(StoreContext context) {
+            context.setStoreAction(storeAction);
+            context.setInstance(instance);
+            context.setFileRef(fileRef);
+        }
+    }
+
+    /**
+     * Marks the begin of the processing of a received object, which may
+     * join a pending batch.
+     */
+    public void enter() {
+        inProgress.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of the processing of a received object, so a pending
+     * batch does not wait for it any more.
+     */
+    public void exit() {
+        inProgress.decrementAndGet();
+        synchronized (lock) {
+            if (pending != null)
+                lock.notifyAll();
+        }
+    }
+
+    /**
+     * Persists the received object together with objects received
+     * concurrently on other associations.
+     *
+     * @return <code>true</code> if the object was persisted,
+     *         <code>false</code> if group commit is disabled or the
+     *         batch failed, so the object has to be persisted by its own
+     *         transaction
+     */
+    public boolean updateDB(StoreContext context, ArchiveDeviceExtension dE) {
+        int maxSize = dE.getUpdateDbGroupCommitSize();
+        if (maxSize < 2)
+            return false;
+
+        Batch batch;
+        boolean leader;
+        synchronized (lock) {
+            leader = pending == null;
+            if (leader)
+                pending = new Batch(System.currentTimeMillis()
+                        + dE.getUpdateDbGroupCommitDelay());
+            batch = pending;
+            batch.contexts.add(context);
+            if (batch.contexts.size() >= maxSize) {
+                pending = null;
+                lock.notifyAll();
+            }
+        }
+        if (leader)
+            commit(batch);
+        else
+            awaitCommit(batch);
+
+        if (batch.failed)
+            ResolvedEntity.clear(context.getStoreSession());
+        return !batch.failed;
+    }
+
+    private void commit(Batch batch) {
+        synchronized (lock) {
+            long remaining;
+            try {
+                while (pending == batch
+                        && inProgress.get() > batch.contexts.size()
+                        && (remaining = batch.deadline
+                                - System.currentTimeMillis()) > 0)
+                    lock.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (pending == batch)
+                pending = null;
+        }
+        int size = batch.contexts.size();
+        List<ContextState> states = new ArrayList<ContextState>(size);
+        for (StoreContext context : batch.contexts)
+            states.add(new ContextState(context));
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            storeServiceEJB.updateDB(batch.contexts);
+            metrics.onCommit(size, System.nanoTime() - start);
+            failed = false;
+            LOG.debug("Committed batch of {} objects - {}", size, metrics);
+        } catch (Exception e) {
+            metrics.onFailure(size);
+            LOG.warn("Failed to commit batch of {} objects "
+                    + "- persist objects one by one", size, e);
+            for (int i = 0; i < size; i++)
+                states.get(i).restore(batch.contexts.get(i));
+        } finally {
+            synchronized (batch) {
+                batch.failed = failed;
+                batch.done = true;
+                batch.notifyAll();
+            }
+        }
+    }
+
+    private void awaitCommit(Batch batch) {
+        boolean interrupted = false;
+        synchronized (batch) {
+            while (!batch.done)
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    // the object is part of the batch - wait for its outcome
+                    interrupted = true;
+                }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -38,6 +38,10 @@
 
 package org.dcm4chee.archive.store.impl;
 
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -55,9 +59,28 @@ public class StoreServiceEJB {
     @PersistenceContext(unitName="dcm4chee-arc")
     private EntityManager em;
 
+    @Resource
+    private SessionContext ejbContext;
+
     public void updateDB(StoreContext context)
             throws DicomServiceException {
         context.getStoreSession().getStoreService().updateDB(em, context);
      }
 
+    /**
+     * Persists several received objects in one transaction, which is rolled
+     * back if any of them fails.
+     */
+    public void updateDB(List<StoreContext> contexts)
+            throws DicomServiceException {
+        try {
+            for (StoreContext context : contexts)
+                context.getStoreSession().getStoreService()
+                        .updateDB(em, context);
+        } catch (DicomServiceException e) {
+            ejbContext.setRollbackOnly();
+            throw e;
+        }
+    }
+
 }
@@ -53,15 +53,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Event;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
@@ -71,8 +71,6 @@ import org.dcm4che3.io.BulkDataDescriptor;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che3.io.DicomOutputStream;
-import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.io.SAXTransformer.SetupTransformer;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.PDVInputStream;
@@ -88,6 +86,7 @@ import org.dcm4chee.archive.code.CodeService;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
 import org.dcm4chee.archive.conf.AttributeFilter;
+import org.dcm4chee.archive.conf.AttributesCoercion;
 import org.dcm4chee.archive.conf.Entity;
 import org.dcm4chee.archive.conf.StoreAction;
 import org.dcm4chee.archive.conf.StoreParam;
@@ -106,6 +105,8 @@ import org.dcm4chee.archive.filemgmt.FileMgmt;
 import org.dcm4chee.archive.issuer.IssuerService;
 import org.dcm4chee.archive.patient.PatientSelectorFactory;
 import org.dcm4chee.archive.patient.PatientService;
+import org.dcm4chee.archive.store.QueryAttributesUpdater;
+import org.dcm4chee.archive.store.RecordingInputStream;
 import org.dcm4chee.archive.store.StoreContext;
 import org.dcm4chee.archive.store.StoreService;
 import org.dcm4chee.archive.store.StoreSession;
@@ -132,7 +133,7 @@ public class StoreServiceImpl implements StoreService {
     private FileMgmt locationManager;
 
     @Inject
-    private StorageService storageService;
+    StorageService storageService;
 
     @Inject
     private RetrieveService retrieveService;
@@ -149,6 +150,9 @@ public class StoreServiceImpl implements StoreService {
     @Inject
     private StoreServiceEJB storeServiceEJB;
 
+    @Inject
+    private StoreGroupCommit storeGroupCommit;
+
     @Inject
     private Event<StoreContext> storeEvent;
 
@@ -326,6 +330,116 @@ public class StoreServiceImpl implements StoreService {
         } catch (IOException e) {
             throw new DicomServiceException(DATA_SET_NOT_PARSEABLE);
         }
+        StoreSession session = context.getStoreSession();
+        MessageDigest digest = session.getMessageDigest();
+        if (digest != null && session.getArchiveAEExtension()
+                .isCheckNonDBAttributesOnStorage()) {
+            // the spool file is moved unmodified to the storage system,
+            // so there is no need to read it again from there in updateDB
+            Attributes ds = context.getAttributes();
+            try {
+                context.setNoDBAttsDigest(
+                        noDBAttsDigest(ds, getStoreFilters(ds), digest));
+            } catch (IOException e) {
+                throw new DicomServiceException(Status.UnableToProcess, e);
+            }
+        }
+    }
+
+    @Override
+    public void writeStorageFile(StoreContext context, Attributes fmi,
+            InputStream data) throws DicomServiceException {
+        StoreSession session = context.getStoreSession();
+        String tsuid = fmi.getString(Tag.TransferSyntaxUID);
+        RecordingInputStream in = new RecordingInputStream(data);
+        try {
+            // parse attributes up to Pixel Data - the parsed bytes are
+            // recorded and written to the storage system below
+            @SuppressWarnings("resource")
+            DicomInputStream din = new DicomInputStream(in, tsuid);
+            din.setIncludeBulkData(IncludeBulkData.NO);
+            context.setAttributes(din.readDataset(-1, Tag.PixelData));
+            context.setTransferSyntax(tsuid);
+        } catch (IOException e) {
+            skipAll(session, data);
+            throw new DicomServiceException(DATA_SET_NOT_PARSEABLE);
+        }
+
+        StorageContext storageContext = storageService
+                .createStorageContext(session.getStorageSystem());
+        context.setStorageContext(storageContext);
+        String origStoragePath = context.calcStoragePath();
+        String storagePath = origStoragePath;
+        int copies = 1;
+        OutputStream out;
+        for (;;) {
+            try {
+                out = storageService.openOutputStream(storageContext,
+                        storagePath);
+                break;
+            } catch (ObjectAlreadyExistsException e) {
+                storagePath = origStoragePath + '.' + copies++;
+            } catch (IOException e) {
+                skipAll(session, data);
+                throw new DicomServiceException(Status.UnableToProcess, e);
+            }
+        }
+        context.setStoragePath(storagePath);
+
+        MessageDigest digest = session.getMessageDigest();
+        try {
+            try {
+                if (digest != null) {
+                    digest.reset();
+                    out = new DigestOutputStream(out, digest);
+                }
+                out = new BufferedOutputStream(out);
+                @SuppressWarnings("resource")
+                DicomOutputStream dout = new DicomOutputStream(out,
+                        UID.ExplicitVRLittleEndian);
+                dout.writeFileMetaInformation(fmi);
+                out = dout;
+                in.writeRecordTo(out);
+                if (data instanceof PDVInputStream) {
+                    ((PDVInputStream) data).copyTo(out);
+                } else {
+                    StreamUtils.copy(data, out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            skipAll(session, data);
+            deleteFinalFile(context);
+            context.setStoragePath(null);
+            throw new DicomServiceException(Status.UnableToProcess, e);
+        }
+        LOG.info("{}: M-WRITE {}", session, storagePath);
+        context.setFinalFileSize(storageContext.getFileSize());
+        if (digest != null) {
+            String digestString = TagUtils.toHexString(digest.digest());
+            context.setSpoolFileDigest(digestString);
+            context.setFinalFileDigest(digestString);
+        }
+    }
+
+    /**
+     * Consumes the rest of the received data set after a failure, so the
+     * next PDU of the association is not read as part of this object.
+     */
+    private static void skipAll(StoreSession session, InputStream data) {
+        try {
+            if (data instanceof PDVInputStream) {
+                ((PDVInputStream) data).skipAll();
+            } else {
+                byte[] buf = new byte[8192];
+                while (data.read(buf) >= 0) {
+                    // discard
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("{}: Failed to skip remaining data: {}", session, e);
+        }
     }
 
     @Override
@@ -372,6 +486,7 @@ public class StoreServiceImpl implements StoreService {
     public void store(StoreContext context) throws DicomServiceException {
         StoreSession session = context.getStoreSession();
         StoreService service = session.getStoreService();
+        storeGroupCommit.enter();
         try {
             service.storeMetaData(context);
             service.processFile(context);
@@ -382,6 +497,7 @@ public class StoreServiceImpl implements StoreService {
             context.setThrowable(e);
             throw e;
         } finally {
+            storeGroupCommit.exit();
             service.fireStoreEvent(context);
             service.cleanup(context);
         }
@@ -406,20 +522,14 @@ public class StoreServiceImpl implements StoreService {
         Attributes attrs = context.getAttributes();
         try {
             Attributes modified = context.getCoercedOriginalAttributes();
-            Templates tpl = session.getRemoteAET() != null ? arcAE
-                    .getAttributeCoercionTemplates(
+            AttributesCoercion coercion = session.getRemoteAET() != null
+                    ? arcAE.getAttributesCoercion(
                             attrs.getString(Tag.SOPClassUID), Dimse.C_STORE_RQ,
                             TransferCapability.Role.SCP, session.getRemoteAET())
                     : null;
-            if (tpl != null) {
-                attrs.update(SAXTransformer.transform(attrs, tpl, false, false,
-                        new SetupTransformer() {
-
-                            @Override
-                            public void setup(Transformer transformer) {
-                                setParameters(transformer, session);
-                            }
-                        }), modified);
+            if (coercion != null) {
+                attrs.update(coercion.coerce(attrs, coercionParams(session)),
+                        modified);
             }
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
@@ -428,18 +538,23 @@ public class StoreServiceImpl implements StoreService {
 
     }
 
-    private void setParameters(Transformer tr, StoreSession session) {
+    private Map<String, Object> coercionParams(StoreSession session) {
         Date date = new Date();
-        String currentDate = DateUtils.formatDA(null, date);
-        String currentTime = DateUtils.formatTM(null, date);
-        tr.setParameter("date", currentDate);
-        tr.setParameter("time", currentTime);
-        tr.setParameter("calling", session.getRemoteAET());
-        tr.setParameter("called", session.getLocalAET());
+        Map<String, Object> params = new HashMap<String, Object>(8);
+        params.put("date", DateUtils.formatDA(null, date));
+        params.put("time", DateUtils.formatTM(null, date));
+        params.put("calling", session.getRemoteAET());
+        params.put("called", session.getLocalAET());
+        return params;
     }
 
     @Override
     public void processFile(StoreContext context) throws DicomServiceException {
+        if (context.getSpoolFile() == null
+                && context.getStoragePath() != null) {
+            // already written by writeStorageFile
+            return;
+        }
         try {
             StoreSession session = context.getStoreSession();
             StorageContext storageContext = storageService
@@ -473,12 +588,18 @@ public class StoreServiceImpl implements StoreService {
         ArchiveDeviceExtension dE = context.getStoreSession().getDevice()
                 .getDeviceExtension(ArchiveDeviceExtension.class);
 
-        try {
-            String nodbAttrsDigest = noDBAttsDigest(context.getStoragePath(),
-                    context.getStoreSession());
-            context.setNoDBAttsDigest(nodbAttrsDigest);
-        } catch (IOException e1) {
-            throw new DicomServiceException(Status.UnableToProcess, e1);
+        if (context.getNoDBAttsDigest() == null)
+            try {
+                String nodbAttrsDigest = noDBAttsDigest(
+                        context.getStoragePath(), context.getStoreSession());
+                context.setNoDBAttsDigest(nodbAttrsDigest);
+            } catch (IOException e1) {
+                throw new DicomServiceException(Status.UnableToProcess, e1);
+            }
+
+        if (storeGroupCommit.updateDB(context, dE)) {
+            updateAttributes(context);
+            return;
         }
 
         for (int i = 0; i <= dE.getUpdateDbRetries(); i++) {
@@ -489,6 +610,7 @@ public class StoreServiceImpl implements StoreService {
                 storeServiceEJB.updateDB(context);
                 break;
             } catch (RuntimeException e) {
+                ResolvedEntity.clear(context.getStoreSession());
                 if (i >= dE.getUpdateDbRetries()) // last try failed
                     throw new DicomServiceException(Status.UnableToProcess, e);
                 else
@@ -526,6 +648,17 @@ public class StoreServiceImpl implements StoreService {
             }
             context.setFileRef(location);
         }
+        if (context.getStoreAction() == StoreAction.STORE
+                || context.getStoreAction() == StoreAction.REPLACE)
+            QueryAttributesUpdater.addInstance(em,
+                    device.getDeviceExtension(ArchiveDeviceExtension.class),
+                    instance);
+    }
+
+    private static void clearQueryAttributes(Instance inst) {
+        Series series = inst.getSeries();
+        series.clearQueryAttributes();
+        series.getStudy().clearQueryAttributes();
     }
 
     private void updateRetrieveAETs(StoreSession session, Instance instance) {
@@ -671,6 +804,9 @@ public class StoreServiceImpl implements StoreService {
                     }
                     iter.remove();
                 }
+                QueryAttributesUpdater.removeInstance(em,
+                        device.getDeviceExtension(ArchiveDeviceExtension.class),
+                        inst);
                 em.remove(inst);
             }
         } catch (NoResultException e) {
@@ -698,19 +834,37 @@ public class StoreServiceImpl implements StoreService {
         StoreSession session = context.getStoreSession();
         StoreService service = session.getStoreService();
         Attributes attrs = context.getAttributes();
+        String seriesIUID = attrs.getString(Tag.SeriesInstanceUID);
+        String studyIUID = attrs.getString(Tag.StudyInstanceUID);
+        Series series = ResolvedEntity.find(em, session, ResolvedEntity.SERIES,
+                Series.class, seriesIUID);
+        if (series != null && !series.getStudy().getStudyInstanceUID()
+                .equals(studyIUID)) {
+            LOG.info("{}: {} moved to other Study - ignore cached entity",
+                    session, series);
+            series = null;
+        }
         try {
-            Series series = em
-                    .createNamedQuery(Series.FIND_BY_SERIES_INSTANCE_UID_EAGER,
-                            Series.class)
-                    .setParameter(1, attrs.getString(Tag.SeriesInstanceUID))
-                    .getSingleResult();
+            if (series != null) {
+                LOG.debug("{}: Use cached {}", session, series);
+            } else {
+                series = em
+                        .createNamedQuery(Series.FIND_BY_SERIES_INSTANCE_UID_EAGER,
+                                Series.class)
+                        .setParameter(1, seriesIUID)
+                        .getSingleResult();
+            }
             service.updateSeries(em, context, series);
-            return series;
         } catch (NoResultException e) {
-            return service.createSeries(em, context);
+            series = service.createSeries(em, context);
+        } catch (DicomServiceException e) {
+            throw e;
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
         }
+        ResolvedEntity.put(session, ResolvedEntity.SERIES, series.getPk(),
+                seriesIUID);
+        return series;
     }
 
     @Override
@@ -719,19 +873,30 @@ public class StoreServiceImpl implements StoreService {
         StoreSession session = context.getStoreSession();
         StoreService service = session.getStoreService();
         Attributes attrs = context.getAttributes();
+        String studyIUID = attrs.getString(Tag.StudyInstanceUID);
+        Study study = ResolvedEntity.find(em, session, ResolvedEntity.STUDY,
+                Study.class, studyIUID);
         try {
-            Study study = em
-                    .createNamedQuery(Study.FIND_BY_STUDY_INSTANCE_UID_EAGER,
-                            Study.class)
-                    .setParameter(1, attrs.getString(Tag.StudyInstanceUID))
-                    .getSingleResult();
+            if (study != null) {
+                LOG.debug("{}: Use cached {}", session, study);
+            } else {
+                study = em
+                        .createNamedQuery(Study.FIND_BY_STUDY_INSTANCE_UID_EAGER,
+                                Study.class)
+                        .setParameter(1, studyIUID)
+                        .getSingleResult();
+            }
             service.updateStudy(em, context, study);
-            return study;
         } catch (NoResultException e) {
-            return service.createStudy(em, context);
+            study = service.createStudy(em, context);
+        } catch (DicomServiceException e) {
+            throw e;
         } catch (Exception e) {
             throw new DicomServiceException(Status.UnableToProcess, e);
         }
+        ResolvedEntity.put(session, ResolvedEntity.STUDY, study.getPk(),
+                studyIUID);
+        return study;
     }
 
     @Override
@@ -810,7 +975,10 @@ public class StoreServiceImpl implements StoreService {
         Attributes data = context.getAttributes();
         StoreParam storeParam = session.getStoreParam();
         Instance inst = new Instance();
-        inst.setSeries(service.findOrCreateSeries(em, context));
+        Series series = service.findOrCreateSeries(em, context);
+        series.setRejected(false);
+        series.getStudy().setRejected(false);
+        inst.setSeries(series);
         inst.setConceptNameCode(singleCode(data, Tag.ConceptNameCodeSequence));
         inst.setVerifyingObservers(createVerifyingObservers(
                 data.getSequence(Tag.VerifyingObserverSequence),
@@ -868,13 +1036,12 @@ public class StoreServiceImpl implements StoreService {
         StoreService service = session.getStoreService();
         Attributes data = context.getAttributes();
         StoreParam storeParam = session.getStoreParam();
-        study.clearQueryAttributes();
         AttributeFilter studyFilter = storeParam
                 .getAttributeFilter(Entity.Study);
         Attributes studyAttrs = study.getAttributes();
         Attributes modified = new Attributes();
         // check if trashed
-        if (isRejected(study)) {
+        if (study.isRejected()) {
             em.remove(study.getAttributesBlob());
             study.setAttributes(new Attributes(data), studyFilter,
                     storeParam.getFuzzyStr());
@@ -915,16 +1082,17 @@ public class StoreServiceImpl implements StoreService {
         StoreService service = session.getStoreService();
         Attributes data = context.getAttributes();
         StoreParam storeParam = session.getStoreParam();
-        series.clearQueryAttributes();
         Attributes seriesAttrs = series.getAttributes();
         AttributeFilter seriesFilter = storeParam
                 .getAttributeFilter(Entity.Series);
         Attributes modified = new Attributes();
         // check if trashed
-        if (isRejected(series)) {
+        if (series.isRejected()) {
             em.remove(series.getAttributesBlob());
             series.setAttributes(new Attributes(data), seriesFilter,
                     storeParam.getFuzzyStr());
+            // Modalities in Study may be changed
+            series.getStudy().clearQueryAttributes();
         } else {
             if (!context.isFetch()
                     && !session.getLocalAET().equalsIgnoreCase(
@@ -935,6 +1103,7 @@ public class StoreServiceImpl implements StoreService {
                             seriesFilter.getCompleteSelection(data))) {
                 series.setAttributes(seriesAttrs, seriesFilter,
                         storeParam.getFuzzyStr());
+                series.getStudy().clearQueryAttributes();
                 LOG.info("{}: Update {}:\n{}\nmodified:\n{}", session, series,
                         seriesAttrs, modified);
             }
@@ -964,6 +1133,7 @@ public class StoreServiceImpl implements StoreService {
             LOG.info("{}: {}:\n{}\nmodified:\n{}", session, inst, instAttrs,
                     modified);
         }
+        clearQueryAttributes(inst);
         service.updateSeries(em, context, inst.getSeries());
     }
 
@@ -1138,27 +1308,12 @@ public class StoreServiceImpl implements StoreService {
         return list;
     }
 
-    private boolean isRejected(Study study) {
-        for (Series series : study.getSeries()) {
-            if (!isRejected(series))
-                return false;
-        }
-        return true;
-    }
-
-    private boolean isRejected(Series series) {
-        for (Instance inst : series.getInstances()) {
-            if (inst.getRejectionNoteCode() == null) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Given a reference to a stored object, retrieves it and calculates the
      * digest of all the attributes (including bulk data), not stored in the
-     * database. This step is optionally skipped by configuration.
+     * database. This step is optionally skipped by configuration. Only used
+     * if the digest was not already calculated from the parsed spool file,
+     * or if the stored object differs from it.
      */
     private String noDBAttsDigest(String path, StoreSession session)
             throws IOException {
@@ -1175,13 +1330,23 @@ public class StoreServiceImpl implements StoreService {
             Attributes attrs = dstream.readDataset(-1, -1);
             dstream.close();
 
-            // selects attributes non stored in the db
-            Attributes noDBAtts = new Attributes();
-            noDBAtts.addNotSelected(attrs, getStoreFilters(attrs));
-
-            return Utils.digestAttributes(noDBAtts, session.getMessageDigest());
+            return noDBAttsDigest(attrs, getStoreFilters(attrs),
+                    session.getMessageDigest());
         } else
             return null;
     }
 
+    /**
+     * Calculates the digest of all the attributes (including bulk data) not
+     * selected by the specified store filters.
+     */
+    static String noDBAttsDigest(Attributes attrs, int[] storeFilters,
+            MessageDigest digest) throws IOException {
+        // selects attributes non stored in the db
+        Attributes noDBAtts = new Attributes();
+        noDBAtts.addNotSelected(attrs, storeFilters);
+
+        return Utils.digestAttributes(noDBAtts, digest);
+    }
+
 }
@@ -0,0 +1,282 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.QueryRetrieveView;
+import org.dcm4chee.archive.entity.Code;
+import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.SeriesQueryAttributes;
+import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.entity.StudyQueryAttributes;
+import org.dcm4chee.storage.conf.Availability;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the incremental maintenance of query attributes by
+ * {@link QueryAttributesUpdater} on rejection and deletion of Instances.
+ */
+public class QueryAttributesUpdaterTest {
+
+    private static final String REGULAR_USE = "regularUse";
+    private static final String TRASH = "trashView";
+    private static final String CT_IMAGE = "1.2.840.10008.5.1.4.1.1.2";
+    private static final String SC_IMAGE = "1.2.840.10008.5.1.4.1.1.7";
+    private static final Code REJECTED_FOR_QUALITY =
+            new Code("113001", "DCM", null, "Rejected for Quality Reasons");
+
+    private static final List<Object[]> NONE = Collections.emptyList();
+    private static final List<Object[]> VISIBLE_IN_REGULAR_USE =
+            Collections.singletonList(new Object[2]);
+
+    private ArchiveDeviceExtension arcDev;
+    private List<StudyQueryAttributes> studyQueryAttrs;
+    private List<SeriesQueryAttributes> seriesQueryAttrs;
+    private Series series;
+    private Instance inst;
+    private Capture<String> jpql;
+
+    @Before
+    public void setUp() throws Exception {
+        QueryRetrieveView regularUse = new QueryRetrieveView();
+        regularUse.setViewID(REGULAR_USE);
+        QueryRetrieveView trash = new QueryRetrieveView();
+        trash.setViewID(TRASH);
+        trash.setShowInstancesRejectedByCodes(REJECTED_FOR_QUALITY);
+        trash.setHideNotRejectedInstances(true);
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setQueryRetrieveViews(regularUse, trash);
+
+        studyQueryAttrs = new ArrayList<StudyQueryAttributes>();
+        seriesQueryAttrs = new ArrayList<SeriesQueryAttributes>();
+        Study study = new Study();
+        Field field = Study.class.getDeclaredField("queryAttributes");
+        field.setAccessible(true);
+        field.set(study, studyQueryAttrs);
+        series = createNiceMock(Series.class);
+        expect(series.getStudy()).andStubReturn(study);
+        expect(series.getModality()).andStubReturn("CT");
+        expect(series.getQueryAttributes()).andStubReturn(seriesQueryAttrs);
+        replay(series);
+        inst = new Instance() {
+            @Override
+            public long getPk() {
+                return 1L;
+            }
+
+            @Override
+            public String getSopClassUID() {
+                return CT_IMAGE;
+            }
+        };
+        inst.setSeries(series);
+        inst.setRetrieveAETs("AET");
+        inst.setAvailability(Availability.ONLINE);
+        jpql = new Capture<String>(CaptureType.ALL);
+    }
+
+    @Test
+    public void testRejectMovesInstanceFromRegularUseToTrash() {
+        StudyQueryAttributes regularStudy = studyAttrs(REGULAR_USE, 3, 2,
+                "CT\\MR", CT_IMAGE + "\\" + SC_IMAGE);
+        SeriesQueryAttributes regularSeries = seriesAttrs(REGULAR_USE, 2);
+        StudyQueryAttributes trashStudy = studyAttrs(TRASH, 0, 0, null, null);
+        SeriesQueryAttributes trashSeries = seriesAttrs(TRASH, 0);
+        EntityManager em = entityManager(
+                VISIBLE_IN_REGULAR_USE, // same Retrieve AETs in Study
+                NONE,                   // no other CT Image
+                VISIBLE_IN_REGULAR_USE  // same Retrieve AETs in Series
+                );
+
+        QueryAttributesUpdater.rejectInstance(em, arcDev, inst,
+                REJECTED_FOR_QUALITY);
+        verify(em);
+
+        assertSame(REJECTED_FOR_QUALITY, inst.getRejectionNoteCode());
+        assertEquals(Arrays.asList(regularStudy, trashStudy), studyQueryAttrs);
+        assertEquals(Arrays.asList(regularSeries, trashSeries), seriesQueryAttrs);
+        assertEquals(2, regularStudy.getNumberOfInstances());
+        assertEquals(2, regularStudy.getNumberOfSeries());
+        assertEquals("CT\\MR", regularStudy.getRawModalitiesInStudy());
+        assertEquals(SC_IMAGE, regularStudy.getRawSOPClassesInStudy());
+        assertEquals("AET", regularStudy.getRawRetrieveAETs());
+        assertEquals(1, regularSeries.getNumberOfInstances());
+        assertEquals(1, trashStudy.getNumberOfInstances());
+        assertEquals(1, trashStudy.getNumberOfSeries());
+        assertEquals("CT", trashStudy.getRawModalitiesInStudy());
+        assertEquals(CT_IMAGE, trashStudy.getRawSOPClassesInStudy());
+        assertEquals(1, trashSeries.getNumberOfInstances());
+        for (String s : jpql.getValues())
+            assertTrue(s, s.endsWith(" AND i.rejectionNoteCode IS NULL"));
+    }
+
+    @Test
+    public void testDeleteLastInstanceOfSeriesRemovesModality() {
+        StudyQueryAttributes regularStudy = studyAttrs(REGULAR_USE, 2, 2,
+                "CT\\MR", CT_IMAGE);
+        SeriesQueryAttributes regularSeries = seriesAttrs(REGULAR_USE, 1);
+        EntityManager em = entityManager(
+                VISIBLE_IN_REGULAR_USE, // same Retrieve AETs in Study
+                NONE,                   // no other CT Series
+                VISIBLE_IN_REGULAR_USE  // other CT Image
+                );
+
+        QueryAttributesUpdater.removeInstance(em, arcDev, inst);
+        verify(em);
+
+        assertEquals(Arrays.asList(regularStudy), studyQueryAttrs);
+        assertEquals(Arrays.asList(regularSeries), seriesQueryAttrs);
+        assertEquals(1, regularStudy.getNumberOfInstances());
+        assertEquals(1, regularStudy.getNumberOfSeries());
+        assertEquals("MR", regularStudy.getRawModalitiesInStudy());
+        assertEquals(CT_IMAGE, regularStudy.getRawSOPClassesInStudy());
+        assertEquals(0, regularSeries.getNumberOfInstances());
+        assertNull(regularSeries.getRawRetrieveAETs());
+        assertNull(regularSeries.getAvailability());
+    }
+
+    @Test
+    public void testDeleteRejectedInstanceOnlyUpdatesTrash() {
+        inst.setRejectionNoteCode(REJECTED_FOR_QUALITY);
+        StudyQueryAttributes regularStudy = studyAttrs(REGULAR_USE, 2, 1,
+                "MR", SC_IMAGE);
+        SeriesQueryAttributes regularSeries = seriesAttrs(REGULAR_USE, 0);
+        StudyQueryAttributes trashStudy = studyAttrs(TRASH, 1, 1,
+                "CT", CT_IMAGE);
+        SeriesQueryAttributes trashSeries = seriesAttrs(TRASH, 1);
+        EntityManager em = entityManager();
+
+        QueryAttributesUpdater.removeInstance(em, arcDev, inst);
+        verify(em);
+
+        assertEquals(Arrays.asList(regularStudy, trashStudy), studyQueryAttrs);
+        assertEquals(Arrays.asList(regularSeries, trashSeries), seriesQueryAttrs);
+        assertEquals(2, regularStudy.getNumberOfInstances());
+        assertEquals("MR", regularStudy.getRawModalitiesInStudy());
+        assertEquals(0, trashStudy.getNumberOfInstances());
+        assertEquals(0, trashStudy.getNumberOfSeries());
+        assertNull(trashStudy.getRawModalitiesInStudy());
+        assertNull(trashStudy.getRawSOPClassesInStudy());
+        assertNull(trashStudy.getRawRetrieveAETs());
+        assertEquals(0, trashSeries.getNumberOfInstances());
+    }
+
+    @Test
+    public void testUndecidedViewIsLeftToRecalculation() {
+        studyAttrs(REGULAR_USE, 3, 1, "CT", CT_IMAGE);
+        seriesAttrs(REGULAR_USE, 3);
+        List<Object[]> rejected = new ArrayList<Object[]>();
+        for (int i = 0; i < 10; i++)
+            rejected.add(new Object[] { REJECTED_FOR_QUALITY, null });
+        EntityManager em = entityManager(
+                NONE,    // Retrieve AETs of Study may change
+                rejected // no visible Instance among candidates
+                );
+
+        QueryAttributesUpdater.removeInstance(em, arcDev, inst);
+        verify(em);
+
+        assertTrue(studyQueryAttrs.isEmpty());
+        assertTrue(seriesQueryAttrs.isEmpty());
+    }
+
+    private EntityManager entityManager(List<?>... results) {
+        EntityManager em = createMock(EntityManager.class);
+        em.refresh(anyObject(), eq(LockModeType.PESSIMISTIC_WRITE));
+        expectLastCall().anyTimes();
+        for (List<?> result : results) {
+            Query query = createMock(Query.class);
+            expect(query.setParameter(anyInt(), anyObject()))
+                    .andReturn(query).anyTimes();
+            expect(query.setMaxResults(anyInt())).andReturn(query);
+            expect(query.getResultList()).andReturn(result);
+            replay(query);
+            expect(em.createQuery(capture(jpql))).andReturn(query);
+        }
+        replay(em);
+        return em;
+    }
+
+    private StudyQueryAttributes studyAttrs(String viewID,
+            int numberOfInstances, int numberOfSeries, String mods,
+            String cuids) {
+        StudyQueryAttributes attrs = new StudyQueryAttributes();
+        attrs.setViewID(viewID);
+        attrs.setNumberOfInstances(numberOfInstances);
+        attrs.setNumberOfSeries(numberOfSeries);
+        if (numberOfInstances > 0) {
+            attrs.setModalitiesInStudy(mods.split("\\\\"));
+            attrs.setSOPClassesInStudy(cuids.split("\\\\"));
+            attrs.setRetrieveAETs("AET");
+            attrs.setAvailability(Availability.ONLINE);
+        }
+        studyQueryAttrs.add(attrs);
+        return attrs;
+    }
+
+    private SeriesQueryAttributes seriesAttrs(String viewID,
+            int numberOfInstances) {
+        SeriesQueryAttributes attrs = new SeriesQueryAttributes();
+        attrs.setViewID(viewID);
+        attrs.setNumberOfInstances(numberOfInstances);
+        if (numberOfInstances > 0) {
+            attrs.setRetrieveAETs("AET");
+            attrs.setAvailability(Availability.ONLINE);
+        }
+        seriesQueryAttrs.add(attrs);
+        return attrs;
+    }
+}
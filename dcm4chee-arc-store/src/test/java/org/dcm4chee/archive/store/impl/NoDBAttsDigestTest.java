@@ -0,0 +1,185 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.store.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that the digest of the attributes not stored in the database
+ * calculated from the parsed spool file matches the digest calculated
+ * from the stored object read from the storage system.
+ */
+public class NoDBAttsDigestTest {
+
+    private static final int[] STORE_FILTERS = {
+        Tag.SOPClassUID,
+        Tag.SOPInstanceUID,
+        Tag.StudyDate,
+        Tag.Modality,
+        Tag.PatientName,
+        Tag.PatientID,
+        Tag.StudyInstanceUID,
+        Tag.SeriesInstanceUID,
+        Tag.InstanceNumber,
+    };
+
+    private MessageDigest digest;
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        digest = MessageDigest.getInstance("MD5");
+        file = Files.createTempFile("spool", ".dcm");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testImplicitVRLittleEndian() throws Exception {
+        assertSameDigest(UID.ImplicitVRLittleEndian);
+    }
+
+    @Test
+    public void testExplicitVRLittleEndian() throws Exception {
+        assertSameDigest(UID.ExplicitVRLittleEndian);
+    }
+
+    @Test
+    public void testModifiedNonDBAttribute() throws Exception {
+        Attributes attrs = image();
+        write(attrs, UID.ExplicitVRLittleEndian);
+        String digest1 = digestOfParsedSpoolFile();
+        attrs.setString(Tag.ImageComments, VR.LT, "modified");
+        write(attrs, UID.ExplicitVRLittleEndian);
+        assertFalse(digest1.equals(digestOfParsedSpoolFile()));
+    }
+
+    private void assertSameDigest(String tsuid) throws IOException {
+        write(image(), tsuid);
+        assertEquals(digestOfStoredObject(), digestOfParsedSpoolFile());
+    }
+
+    /**
+     * As calculated by {@code StoreServiceImpl.parseSpoolFile}.
+     */
+    private String digestOfParsedSpoolFile() throws IOException {
+        try (DicomInputStream in = new DicomInputStream(file.toFile())) {
+            in.setIncludeBulkData(IncludeBulkData.URI);
+            in.readFileMetaInformation();
+            Attributes ds = in.readDataset(-1, -1);
+            return StoreServiceImpl.noDBAttsDigest(ds, STORE_FILTERS, digest);
+        }
+    }
+
+    /**
+     * As calculated by {@code StoreServiceImpl.updateDB} from the stream
+     * provided by the storage system.
+     */
+    private String digestOfStoredObject() throws IOException {
+        try (InputStream stream = Files.newInputStream(file)) {
+            DicomInputStream dstream = new DicomInputStream(stream);
+            dstream.setIncludeBulkData(IncludeBulkData.URI);
+            Attributes attrs = dstream.readDataset(-1, -1);
+            dstream.close();
+            return StoreServiceImpl.noDBAttsDigest(attrs, STORE_FILTERS, digest);
+        }
+    }
+
+    private void write(Attributes attrs, String tsuid) throws IOException {
+        try (DicomOutputStream out = new DicomOutputStream(file.toFile())) {
+            out.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+        }
+    }
+
+    private static Attributes image() {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4.1.1");
+        attrs.setString(Tag.StudyDate, VR.DA, "20150101");
+        attrs.setString(Tag.Modality, VR.CS, "CT");
+        attrs.setString(Tag.PatientName, VR.PN, "Mueller^Hans");
+        attrs.setString(Tag.PatientID, VR.LO, "P1");
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3.4");
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4.1");
+        attrs.setString(Tag.InstanceNumber, VR.IS, "1");
+        attrs.setString(Tag.ImageComments, VR.LT, "original");
+        Attributes item = new Attributes();
+        item.setString(Tag.CodeValue, VR.SH, "T-D1100");
+        item.setString(Tag.CodingSchemeDesignator, VR.SH, "SRT");
+        item.setString(Tag.CodeMeaning, VR.LO, "Head");
+        attrs.newSequence(Tag.AnatomicRegionSequence, 1).add(item);
+        attrs.setString(0x00990010, VR.LO, "PRIVATE");
+        attrs.setBytes(0x00991001, VR.OB, new byte[] { 1, 2, 3, 4 });
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.Rows, VR.US, 64);
+        attrs.setInt(Tag.Columns, VR.US, 64);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 16);
+        attrs.setInt(Tag.BitsStored, VR.US, 12);
+        attrs.setInt(Tag.HighBit, VR.US, 11);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        byte[] pixelData = new byte[64 * 64 * 2];
+        for (int i = 0; i < pixelData.length; i++)
+            pixelData[i] = (byte) (i * 31);
+        attrs.setBytes(Tag.PixelData, VR.OW, pixelData);
+        return attrs;
+    }
+}
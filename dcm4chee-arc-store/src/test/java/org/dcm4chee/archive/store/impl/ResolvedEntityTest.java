@@ -0,0 +1,283 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.TypedQuery;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.Study;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreSession;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the Series and Study cached by {@link ResolvedEntity} in
+ * {@link StoreServiceImpl#findOrCreateSeries} and
+ * {@link StoreServiceImpl#findOrCreateStudy}.
+ */
+public class ResolvedEntityTest {
+
+    private static final String STUDY_IUID = "1.2.3.4";
+    private static final String SERIES_IUID = "1.2.3.4.1";
+    private static final long STUDY_PK = 7;
+    private static final long SERIES_PK = 11;
+
+    private RecordingStoreService service;
+    private StoreSession session;
+    private Study study;
+    private Series series;
+
+    @Before
+    public void setUp() {
+        service = new RecordingStoreService();
+        session = new StoreSessionImpl(service);
+        study = study(STUDY_PK, STUDY_IUID);
+        series = series(SERIES_PK, study);
+    }
+
+    @Test
+    public void testMissLooksUpSeries() throws Exception {
+        EntityManager em = createMock(EntityManager.class);
+        expectLookup(em, series);
+        replay(em);
+        assertSame(series, service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+        assertEquals(1, service.updatedSeries.size());
+    }
+
+    @Test
+    public void testHitLoadsSeriesByPkAndUpdatesIt() throws Exception {
+        resolve(series);
+        EntityManager em = createMock(EntityManager.class);
+        expect(em.find(Series.class, SERIES_PK)).andReturn(series);
+        replay(em);
+        StoreContext context = context(SERIES_IUID);
+        assertSame(series, service.findOrCreateSeries(em, context));
+        verify(em);
+        // the attributes of each object are still applied by the
+        // decorated StoreService
+        assertEquals(2, service.updatedSeries.size());
+        assertSame(context, service.updatedSeries.get(1));
+    }
+
+    @Test
+    public void testCreatedSeriesIsCached() throws Exception {
+        service.createdSeries = series;
+        EntityManager em = createMock(EntityManager.class);
+        expectLookup(em, null);
+        replay(em);
+        assertSame(series, service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+        assertTrue(service.updatedSeries.isEmpty());
+
+        em = createMock(EntityManager.class);
+        expect(em.find(Series.class, SERIES_PK)).andReturn(series);
+        replay(em);
+        assertSame(series, service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+    }
+
+    @Test
+    public void testEvictedSeriesIsLookedUpAgain() throws Exception {
+        resolve(series);
+        ResolvedEntity.clear(session);
+        EntityManager em = createMock(EntityManager.class);
+        expectLookup(em, series);
+        replay(em);
+        assertSame(series, service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+    }
+
+    @Test
+    public void testOtherSeriesIsLookedUp() throws Exception {
+        resolve(series);
+        Series other = series(SERIES_PK + 1, study);
+        EntityManager em = createMock(EntityManager.class);
+        expectLookup(em, other);
+        replay(em);
+        assertSame(other,
+                service.findOrCreateSeries(em, context(SERIES_IUID + ".2")));
+        verify(em);
+    }
+
+    @Test
+    public void testDeletedSeriesIsCreatedAgain() throws Exception {
+        resolve(series);
+        service.createdSeries = series(SERIES_PK + 1, study);
+        EntityManager em = createMock(EntityManager.class);
+        expect(em.find(Series.class, SERIES_PK)).andReturn(null);
+        expectLookup(em, null);
+        replay(em);
+        assertSame(service.createdSeries,
+                service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+    }
+
+    @Test
+    public void testSeriesMovedToOtherStudyIsLookedUpAgain() throws Exception {
+        resolve(series);
+        Series moved = series(SERIES_PK, study(STUDY_PK + 1, "1.2.3.5"));
+        Series found = series(SERIES_PK + 1, study);
+        EntityManager em = createMock(EntityManager.class);
+        expect(em.find(Series.class, SERIES_PK)).andReturn(moved);
+        expectLookup(em, found);
+        replay(em);
+        assertSame(found, service.findOrCreateSeries(em, context(SERIES_IUID)));
+        verify(em);
+        assertSame(found, service.updatedSeriesEntities.get(1));
+    }
+
+    @Test
+    public void testHitLoadsStudyByPkAndUpdatesIt() throws Exception {
+        EntityManager em = createMock(EntityManager.class);
+        expect(em.createNamedQuery(Study.FIND_BY_STUDY_INSTANCE_UID_EAGER,
+                Study.class)).andReturn(query(Study.class, study));
+        replay(em);
+        assertSame(study, service.findOrCreateStudy(em, context(SERIES_IUID)));
+        verify(em);
+
+        em = createMock(EntityManager.class);
+        expect(em.find(Study.class, STUDY_PK)).andReturn(study);
+        replay(em);
+        assertSame(study, service.findOrCreateStudy(em, context(SERIES_IUID)));
+        verify(em);
+        assertEquals(2, service.updatedStudies);
+    }
+
+    /**
+     * Resolves the Series for a first received object by its UID.
+     */
+    private void resolve(Series series) throws Exception {
+        EntityManager em = createMock(EntityManager.class);
+        expectLookup(em, series);
+        replay(em);
+        service.findOrCreateSeries(em, context(SERIES_IUID));
+    }
+
+    /**
+     * Expects the lookup of the Series by its UID, which finds
+     * <code>found</code> or - if <code>null</code> - no Series.
+     */
+    private static void expectLookup(EntityManager em, Series found) {
+        expect(em.createNamedQuery(Series.FIND_BY_SERIES_INSTANCE_UID_EAGER,
+                Series.class)).andReturn(query(Series.class, found));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> TypedQuery<T> query(Class<T> entityClass, T result) {
+        TypedQuery<T> query = createNiceMock(TypedQuery.class);
+        expect(query.setParameter(anyInt(), anyObject())).andStubReturn(query);
+        if (result != null)
+            expect(query.getSingleResult()).andReturn(result);
+        else
+            expect(query.getSingleResult())
+                    .andThrow(new NoResultException());
+        replay(query);
+        return query;
+    }
+
+    private static Study study(long pk, String studyIUID) {
+        Study study = createNiceMock(Study.class);
+        expect(study.getPk()).andStubReturn(pk);
+        expect(study.getStudyInstanceUID()).andStubReturn(studyIUID);
+        replay(study);
+        return study;
+    }
+
+    private static Series series(long pk, Study study) {
+        Series series = createNiceMock(Series.class);
+        expect(series.getPk()).andStubReturn(pk);
+        expect(series.getStudy()).andStubReturn(study);
+        replay(series);
+        return series;
+    }
+
+    private StoreContext context(String seriesIUID) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_IUID);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, seriesIUID);
+        StoreContext context = new StoreContextImpl(session);
+        context.setAttributes(attrs);
+        return context;
+    }
+
+    /**
+     * Records updates and creations instead of applying them, like a
+     * decorator of the StoreService would observe them.
+     */
+    private static class RecordingStoreService extends StoreServiceImpl {
+
+        final List<StoreContext> updatedSeries = new ArrayList<StoreContext>();
+        final List<Series> updatedSeriesEntities = new ArrayList<Series>();
+        int updatedStudies;
+        Series createdSeries;
+
+        @Override
+        public void updateSeries(EntityManager em, StoreContext context,
+                Series series) throws DicomServiceException {
+            updatedSeries.add(context);
+            updatedSeriesEntities.add(series);
+        }
+
+        @Override
+        public Series createSeries(EntityManager em, StoreContext context)
+                throws DicomServiceException {
+            return createdSeries;
+        }
+
+        @Override
+        public void updateStudy(EntityManager em, StoreContext context,
+                Study study) throws DicomServiceException {
+            updatedStudies++;
+        }
+    }
+}
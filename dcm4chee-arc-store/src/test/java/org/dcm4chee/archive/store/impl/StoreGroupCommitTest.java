@@ -0,0 +1,193 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.entity.Instance;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreGroupCommitMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests batching, commit delay and failure handling of
+ * {@link StoreGroupCommit}.
+ */
+public class StoreGroupCommitTest {
+
+    private static final int DELAY = 10000;
+
+    private BatchRecorder ejb;
+    private StoreGroupCommit cut;
+    private ArchiveDeviceExtension dE;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        ejb = new BatchRecorder();
+        cut = new StoreGroupCommit();
+        cut.storeServiceEJB = ejb;
+        cut.metrics = new StoreGroupCommitMetrics();
+        dE = new ArchiveDeviceExtension();
+        dE.setUpdateDbGroupCommitSize(4);
+        dE.setUpdateDbGroupCommitDelay(DELAY);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testDisabled() {
+        dE.setUpdateDbGroupCommitSize(0);
+        assertFalse(cut.updateDB(newContext(), dE));
+        assertTrue(ejb.batchSizes.isEmpty());
+    }
+
+    @Test
+    public void testSingleObjectCommitsWithoutDelay() {
+        long start = System.currentTimeMillis();
+        cut.enter();
+        try {
+            assertTrue(cut.updateDB(newContext(), dE));
+        } finally {
+            cut.exit();
+        }
+        assertTrue(System.currentTimeMillis() - start < DELAY / 2);
+        assertEquals(Collections.singletonList(1), ejb.batchSizes);
+    }
+
+    @Test
+    public void testConcurrentObjectsCommittedInOneBatch() throws Exception {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 4; i++)
+            cut.enter();
+        for (int i = 0; i < 4; i++)
+            results.add(executor.submit(store()));
+        for (Future<Boolean> result : results)
+            assertTrue(result.get(DELAY / 2, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(4), ejb.batchSizes);
+        assertEquals(1, cut.metrics.getBatches());
+        assertEquals(4, cut.metrics.getCommittedObjects());
+    }
+
+    @Test
+    public void testStopsWaitingIfOtherObjectsCompleted() throws Exception {
+        cut.enter();
+        cut.enter();
+        Future<Boolean> result = executor.submit(store());
+        // the other object completes without joining the batch
+        Thread.sleep(100);
+        cut.exit();
+        assertTrue(result.get(DELAY / 2, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(1), ejb.batchSizes);
+    }
+
+    @Test
+    public void testRestoresContextsOfFailedBatch() {
+        ejb.fail = true;
+        StoreContext context = newContext();
+        context.setStoreAction(StoreAction.IGNORE);
+        cut.enter();
+        try {
+            assertFalse(cut.updateDB(context, dE));
+        } finally {
+            cut.exit();
+        }
+        assertEquals(StoreAction.IGNORE, context.getStoreAction());
+        assertNull(context.getInstance());
+        assertNull(context.getFileRef());
+        assertEquals(1, cut.metrics.getFailedBatches());
+        assertEquals(1, cut.metrics.getFallbackObjects());
+    }
+
+    private Callable<Boolean> store() {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    return cut.updateDB(newContext(), dE);
+                } finally {
+                    cut.exit();
+                }
+            }
+        };
+    }
+
+    private static StoreContext newContext() {
+        return new StoreContextImpl(new StoreSessionImpl(null));
+    }
+
+    private static class BatchRecorder extends StoreServiceEJB {
+
+        final List<Integer> batchSizes =
+                Collections.synchronizedList(new ArrayList<Integer>());
+
+        volatile boolean fail;
+
+        @Override
+        public void updateDB(List<StoreContext> contexts)
+                throws DicomServiceException {
+            batchSizes.add(contexts.size());
+            for (StoreContext context : contexts) {
+                context.setStoreAction(StoreAction.STORE);
+                context.setInstance(new Instance());
+            }
+            if (fail)
+                throw new DicomServiceException(Status.UnableToProcess);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.impl;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.util.TagUtils;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.storage.StorageContext;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.dcm4chee.storage.service.StorageService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the single-pass streaming ingest of
+ * {@link StoreServiceImpl#writeStorageFile}.
+ */
+public class WriteStorageFileTest {
+
+    private static final String IUID = "1.2.3.4.1.1";
+
+    private StorageSystem storageSystem;
+    private StorageService storageService;
+    private StorageContext storageContext;
+    private StoreSession session;
+    private MessageDigest digest;
+    private StoreServiceImpl cut;
+
+    @Before
+    public void setUp() throws Exception {
+        StorageSystemGroup grp = new StorageSystemGroup();
+        grp.setGroupID("test_grp");
+        grp.setStorageFilePathFormat("{0020000D}/{00080018}");
+        storageSystem = new StorageSystem();
+        storageSystem.setStorageSystemID("test_ss");
+        grp.addStorageSystem(storageSystem);
+        digest = MessageDigest.getInstance("MD5");
+        storageService = createMock(StorageService.class);
+        storageContext = createNiceMock(StorageContext.class);
+        session = createNiceMock(StoreSession.class);
+        expect(session.getStorageSystem()).andStubReturn(storageSystem);
+        expect(session.getMessageDigest()).andStubReturn(digest);
+        expect(storageService.createStorageContext(storageSystem))
+                .andReturn(storageContext);
+        replay(storageContext, session);
+        cut = new StoreServiceImpl();
+        cut.storageService = storageService;
+    }
+
+    @After
+    public void tearDown() {
+        verify(storageService);
+    }
+
+    @Test
+    public void testWritesObjectAsReceived() throws Exception {
+        assertWritesObjectAsReceived(image(true));
+    }
+
+    @Test
+    public void testWritesObjectWithoutPixelData() throws Exception {
+        assertWritesObjectAsReceived(image(false));
+    }
+
+    @Test
+    public void testDeletesObjectOnWriteFailure() throws Exception {
+        Attributes attrs = image(true);
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        expect(storageService.openOutputStream(storageContext,
+                "1.2.3.4/" + IUID)).andReturn(out);
+        storageService.deleteObject(storageContext, "1.2.3.4/" + IUID);
+        replay(storageService);
+        StoreContext context = new StoreContextImpl(session);
+        ByteArrayInputStream data = received(attrs);
+        try {
+            cut.writeStorageFile(context, fmi(attrs), data);
+            fail("DicomServiceException expected");
+        } catch (DicomServiceException e) {
+            assertNull(context.getStoragePath());
+            assertEquals(0, data.available());
+        }
+    }
+
+    @Test(expected = DicomServiceException.class)
+    public void testUnparseableDataSet() throws Exception {
+        replay(storageService);
+        cut.writeStorageFile(new StoreContextImpl(session),
+                fmi(image(true)),
+                new ByteArrayInputStream(new byte[] { 8, 0, 0x16, 0, 0x7f }));
+    }
+
+    @Test
+    public void testSkipsRemainingDataOfUnparseableDataSet() throws Exception {
+        replay(storageService);
+        // not deflated, so inflating fails on the first block header,
+        // leaving most of the data unread by the parser
+        ByteArrayInputStream data = new ByteArrayInputStream(new byte[0x10000]);
+        try {
+            cut.writeStorageFile(new StoreContextImpl(session),
+                    image(true).createFileMetaInformation(
+                            UID.DeflatedExplicitVRLittleEndian),
+                    data);
+            fail("DicomServiceException expected");
+        } catch (DicomServiceException e) {
+            assertEquals(0, data.available());
+        }
+    }
+
+    private void assertWritesObjectAsReceived(Attributes attrs)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        expect(storageService.openOutputStream(storageContext,
+                "1.2.3.4/" + IUID)).andReturn(out);
+        replay(storageService);
+        StoreContext context = new StoreContextImpl(session);
+        Attributes fmi = fmi(attrs);
+        cut.writeStorageFile(context, fmi, received(attrs));
+
+        assertEquals("1.2.3.4/" + IUID, context.getStoragePath());
+        assertEquals(UID.ExplicitVRLittleEndian, context.getTransferSyntax());
+        Attributes parsed = context.getAttributes();
+        assertEquals(IUID, parsed.getString(Tag.SOPInstanceUID));
+        assertFalse(parsed.contains(Tag.PixelData));
+
+        byte[] stored = out.toByteArray();
+        assertEquals(TagUtils.toHexString(
+                MessageDigest.getInstance("MD5").digest(stored)),
+                context.getFinalFileDigest());
+        assertEquals(context.getFinalFileDigest(),
+                context.getSpoolFileDigest());
+        try (DicomInputStream in = new DicomInputStream(
+                new ByteArrayInputStream(stored))) {
+            assertEquals(fmi, in.readFileMetaInformation());
+            assertEquals(attrs, in.readDataset(-1, -1));
+        }
+    }
+
+    private static Attributes fmi(Attributes attrs) {
+        return attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian);
+    }
+
+    private static ByteArrayInputStream received(Attributes attrs)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (DicomOutputStream out = new DicomOutputStream(bout,
+                UID.ExplicitVRLittleEndian)) {
+            out.writeDataset(null, attrs);
+        }
+        return new ByteArrayInputStream(bout.toByteArray());
+    }
+
+    private static Attributes image(boolean withPixelData) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, IUID);
+        attrs.setString(Tag.PatientID, VR.LO, "P1");
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3.4");
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.3.4.1");
+        attrs.setInt(Tag.Rows, VR.US, 64);
+        attrs.setInt(Tag.Columns, VR.US, 64);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 16);
+        if (withPixelData) {
+            byte[] pixelData = new byte[64 * 64 * 2];
+            for (int i = 0; i < pixelData.length; i++)
+                pixelData[i] = (byte) (i * 31);
+            attrs.setBytes(Tag.PixelData, VR.OW, pixelData);
+            // trailing attribute after Pixel Data
+            attrs.setBytes(Tag.DataSetTrailingPadding, VR.OB, new byte[4]);
+        }
+        return attrs;
+    }
+}
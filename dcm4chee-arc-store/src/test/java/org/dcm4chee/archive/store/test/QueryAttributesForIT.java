@@ -0,0 +1,270 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.store.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4chee.archive.conf.ArchiveAEExtension;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.QueryRetrieveView;
+import org.dcm4chee.archive.conf.StoreParam;
+import org.dcm4chee.archive.dto.GenericParticipant;
+import org.dcm4chee.archive.entity.Code;
+import org.dcm4chee.archive.entity.Series;
+import org.dcm4chee.archive.entity.SeriesQueryAttributes;
+import org.dcm4chee.archive.entity.StudyQueryAttributes;
+import org.dcm4chee.archive.store.StoreContext;
+import org.dcm4chee.archive.store.StoreService;
+import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.storage.conf.Availability;
+import org.dcm4chee.storage.conf.StorageSystem;
+import org.dcm4chee.storage.conf.StorageSystemGroup;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Stores two Instances of the same Series concurrently and verifies that
+ * both increments of the already calculated query attributes survive.
+ * {@link ConcurrentStoreServiceDecorator} holds each transaction open before
+ * its commit, so without locking both transactions would read the same
+ * counts and the second commit would overwrite the first.
+ */
+@RunWith(Arquillian.class)
+public class QueryAttributesForIT extends BaseStoreIT {
+
+    private static final String SOURCE_AET = "SOURCE_AET";
+    private static final String RETRIEVE_AET = "RETRIEVE_AET";
+    private static final String VIEW_ID = "QUERY_ATTRS_TEST";
+    private static final Logger log = Logger
+            .getLogger(QueryAttributesForIT.class);
+
+    private static final String INSTANCE1 = "testdata/concurrent-1.xml";
+    private static final String SERIES_IUID = "1.2.40.0.13.1.1.99.20110607.1";
+    private static final long THREAD_WAIT = 30000L;
+
+    private static final String[] PIDS = new String[]{"STORE_SERVICE_TEST"};
+    private static final String[] ISSUERS = new String[]{"DCM4CHEE_TESTDATA"};
+
+    @Inject
+    StoreService storeService;
+
+    @Inject
+    SemaphoreHolder semaphores;
+
+    @Inject
+    private Device device;
+
+    private QueryRetrieveView[] prevViews;
+
+    @Deployment
+    public static WebArchive createDeployment() {
+        WebArchive war = ShrinkWrap.create(WebArchive.class, "test.war");
+        JavaArchive[] archs = Maven.resolver().loadPomFromFile("testpom.xml")
+                .importRuntimeAndTestDependencies().resolve()
+                .withoutTransitivity().as(JavaArchive.class);
+        for (JavaArchive a : archs) {
+            a.addAsManifestResource(new File(
+                    "src/test/resources/testdata/beans.xml"), "beans.xml");
+            war.addAsLibrary(a);
+        }
+
+        JavaArchive jar = ShrinkWrap.create(JavaArchive.class, "test.jar");
+        jar.addClass(BaseStoreIT.class);
+        jar.addClass(QueryAttributesForIT.class);
+        jar.addClass(ParamFactory.class);
+        jar.addClass(ConcurrentStoreServiceDecorator.class);
+        jar.addClass(SemaphoreHolder.class);
+        jar.addClass(SemaphoreHolderImpl.class);
+
+        jar.addAsResource(INSTANCE1);
+        jar.addAsManifestResource(new File(
+                "src/test/resources/testdata/beans.xml"), "beans.xml");
+
+        war.addAsLibrary(jar);
+        return war;
+    }
+
+    @Before
+    public void setup() throws Exception {
+        ArchiveDeviceExtension arcDev =
+                device.getDeviceExtension(ArchiveDeviceExtension.class);
+        prevViews = arcDev.getQueryRetrieveViews();
+        QueryRetrieveView view = new QueryRetrieveView();
+        view.setViewID(VIEW_ID);
+        QueryRetrieveView[] views =
+                Arrays.copyOf(prevViews, prevViews.length + 1);
+        views[prevViews.length] = view;
+        arcDev.setQueryRetrieveViews(views);
+
+        log.info("store first instance");
+        semaphores.getDone().release();
+        storeService.updateDB(createStoreContext("1"));
+        drainPermits();
+
+        utx.begin();
+        Series series = em.createNamedQuery(
+                Series.FIND_BY_SERIES_INSTANCE_UID, Series.class)
+                .setParameter(1, SERIES_IUID)
+                .getSingleResult();
+        StudyQueryAttributes studyAttrs = new StudyQueryAttributes();
+        studyAttrs.setViewID(VIEW_ID);
+        studyAttrs.setNumberOfInstances(1);
+        studyAttrs.setNumberOfSeries(1);
+        studyAttrs.setRetrieveAETs(RETRIEVE_AET);
+        studyAttrs.setAvailability(Availability.ONLINE);
+        studyAttrs.setStudy(series.getStudy());
+        em.persist(studyAttrs);
+        SeriesQueryAttributes seriesAttrs = new SeriesQueryAttributes();
+        seriesAttrs.setViewID(VIEW_ID);
+        seriesAttrs.setNumberOfInstances(1);
+        seriesAttrs.setRetrieveAETs(RETRIEVE_AET);
+        seriesAttrs.setAvailability(Availability.ONLINE);
+        seriesAttrs.setSeries(series);
+        em.persist(seriesAttrs);
+        utx.commit();
+        em.clear();
+    }
+
+    @After
+    public void terminate() throws Exception {
+        device.getDeviceExtension(ArchiveDeviceExtension.class)
+                .setQueryRetrieveViews(prevViews);
+        utx.begin();
+        super.clearTestData(PIDS, ISSUERS, new Code[0]);
+        utx.commit();
+        em.clear();
+        drainPermits();
+    }
+
+    @Test
+    public void testConcurrentIncrement() throws Exception {
+        Thread t1 = callUpdateOnThread("2");
+        Thread t2 = callUpdateOnThread("3");
+        t1.start();
+        t2.start();
+        t1.join(THREAD_WAIT);
+        t2.join(THREAD_WAIT);
+
+        SeriesQueryAttributes seriesAttrs = em.createQuery(
+                "SELECT a FROM SeriesQueryAttributes a"
+                + " WHERE a.viewID = ?1 AND a.series.seriesInstanceUID = ?2",
+                SeriesQueryAttributes.class)
+                .setParameter(1, VIEW_ID)
+                .setParameter(2, SERIES_IUID)
+                .getSingleResult();
+        StudyQueryAttributes studyAttrs = em.createQuery(
+                "SELECT a FROM StudyQueryAttributes a"
+                + " WHERE a.viewID = ?1 AND a.study = ?2",
+                StudyQueryAttributes.class)
+                .setParameter(1, VIEW_ID)
+                .setParameter(2, seriesAttrs.getSeries().getStudy())
+                .getSingleResult();
+        assertEquals(3, seriesAttrs.getNumberOfInstances());
+        assertEquals(3, studyAttrs.getNumberOfInstances());
+        assertEquals(1, studyAttrs.getNumberOfSeries());
+    }
+
+    private void drainPermits() {
+        semaphores.getReady().drainPermits();
+        semaphores.getDone().drainPermits();
+    }
+
+    private StoreContext createStoreContext(String instNo) throws Exception {
+        StoreParam storeParam = ParamFactory.createStoreParam();
+
+        StoreSession session = storeService.createStoreSession(storeService);
+        session.setStoreParam(storeParam);
+        StorageSystem storageSystem = new StorageSystem();
+        StorageSystemGroup grp = new StorageSystemGroup();
+        grp.setGroupID("test_grp");
+        grp.addStorageSystem(storageSystem);
+        session.setStorageSystem(storageSystem);
+        session.setSource(new GenericParticipant("localhost", "testidentity"));
+        session.setRemoteAET(SOURCE_AET);
+        session.setArchiveAEExtension(device.getApplicationEntity("DCM4CHEE")
+                .getAEExtension(ArchiveAEExtension.class));
+
+        Attributes attrs = load(INSTANCE1);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI,
+                SERIES_IUID + '.' + instNo);
+        StoreContext storeContext = storeService.createStoreContext(session);
+        storeContext.setAttributes(attrs);
+        return storeContext;
+    }
+
+    private Attributes load(String name) throws Exception {
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        return SAXReader.parse(cl.getResource(name).toString());
+    }
+
+    private Thread callUpdateOnThread(final String instNo) {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    storeService.updateDB(createStoreContext(instNo));
+                } catch (DicomServiceException e) {
+                    log.error(getId() + ": Failed to store instance", e);
+                } catch (Exception e) {
+                    log.error(getId() + ": Error in concurrent store thread", e);
+                }
+            }
+        };
+    }
+}
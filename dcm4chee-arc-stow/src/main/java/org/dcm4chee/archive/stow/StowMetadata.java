@@ -0,0 +1,167 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.stow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.ws.rs.core.MediaType;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Attributes.Visitor;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.SAXReader;
+import org.dcm4che3.json.JSONReader;
+import org.dcm4che3.ws.rs.MediaTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * Parses the spooled DICOM JSON or DICOM XML metadata parts of a STOW-RS
+ * request and resolves their bulk data URIs to the spooled bulk data
+ * parts, as done by {@link StowRS} before each object is stored.
+ */
+public class StowMetadata {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(StowMetadata.class);
+
+    public static final class BulkdataPath {
+        final Path path;
+        final MediaType mediaType;
+
+        public BulkdataPath(Path path, MediaType mediaType) {
+            this.path = path;
+            this.mediaType = mediaType;
+        }
+    }
+
+    public static Attributes parseJSON(Path path) throws IOException {
+        Attributes attrs = new Attributes();
+        InputStream in = Files.newInputStream(path);
+        try {
+            new JSONReader(Json.createParser(new InputStreamReader(in, "UTF-8")))
+                    .readDataset(attrs);
+        } finally {
+            in.close();
+        }
+        return attrs;
+    }
+
+    public static Attributes parseXML(Path path)
+            throws ParserConfigurationException, SAXException, IOException {
+        return SAXReader.parse(path.toUri().toString());
+    }
+
+    /**
+     * Replaces the bulk data URIs of {@code attrs} by the spooled bulk data
+     * parts. Sets the Transfer Syntax of {@code fmi} according to the media
+     * type of compressed Pixel Data.
+     *
+     * @return {@code false} if a bulk data part is missing or has an
+     *         invalid media type
+     */
+    public static boolean resolveBulkdata(final Object session,
+            final Attributes fmi, Attributes attrs,
+            final Map<String, BulkdataPath> bulkdata) {
+        try {
+            return attrs.accept(new Visitor() {
+                @Override
+                public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+                    if (!(value instanceof BulkData))
+                        return true;
+
+                    String uri = ((BulkData) value).uri;
+                    BulkdataPath bulkdataPath = bulkdata.get(uri);
+                    if (bulkdataPath == null) {
+                        LOG.info("{}: Missing Bulkdata {}", session, uri);
+                        return false;
+                    }
+
+                    Path path = bulkdataPath.path;
+                    BulkData bd = new BulkData(
+                            path.toUri().toString(),
+                            0, (int) path.toFile().length(),
+                            attrs.bigEndian());
+
+                    MediaType mediaType = bulkdataPath.mediaType;
+                    if (mediaType.isCompatible(
+                            MediaType.APPLICATION_OCTET_STREAM_TYPE)||
+                            mediaType.isCompatible(
+                                    MediaTypes.APPLICATION_PDF_TYPE)) {
+                        attrs.setValue(tag, vr, bd);
+                        return true;
+                    }
+
+                    if (!(attrs.isRoot() && tag == Tag.PixelData)) {
+                        LOG.info("{}: Invalid Mediatype of Bulkdata - {}",
+                                session, mediaType);
+                        return false;
+                    }
+
+                    try {
+                        fmi.setString(Tag.TransferSyntaxUID, VR.UI,
+                                MediaTypes.transferSyntaxOf(mediaType));
+                    } catch (IllegalArgumentException e) {
+                        LOG.info("{}: Invalid Mediatype of Bulkdata - {}",
+                                session, mediaType);
+                        return false;
+                    }
+
+                    Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 2);
+                    frags.add(null);
+                    frags.add(bd);
+                    return true;
+                }
+            }, true);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
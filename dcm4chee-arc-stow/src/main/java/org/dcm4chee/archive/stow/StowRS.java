@@ -38,11 +38,10 @@
 
 package org.dcm4chee.archive.stow;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -53,7 +52,6 @@ import java.util.zip.ZipInputStream;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
-import javax.json.Json;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.HeaderParam;
@@ -71,22 +69,16 @@ import javax.ws.rs.core.UriInfo;
 import javax.xml.transform.stream.StreamResult;
 
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Attributes.Visitor;
-import org.dcm4che3.data.BulkData;
-import org.dcm4che3.data.Fragments;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
-import org.dcm4che3.io.SAXReader;
 import org.dcm4che3.io.SAXTransformer;
-import org.dcm4che3.json.JSONReader;
 import org.dcm4che3.mime.MultipartInputStream;
 import org.dcm4che3.mime.MultipartParser;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.TransferCapability;
 import org.dcm4che3.net.service.DicomServiceException;
-import org.dcm4che3.util.SafeClose;
 import org.dcm4che3.ws.rs.MediaTypes;
 import org.dcm4chee.archive.conf.ArchiveAEExtension;
 import org.dcm4chee.archive.rs.HostAECache;
@@ -95,6 +87,7 @@ import org.dcm4chee.archive.rs.MetaDataPathTSTuple;
 import org.dcm4chee.archive.store.StoreContext;
 import org.dcm4chee.archive.store.StoreService;
 import org.dcm4chee.archive.store.StoreSession;
+import org.dcm4chee.archive.stow.StowMetadata.BulkdataPath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -440,32 +433,16 @@ public class StowRS {
     }
 
     public  Attributes parseJSON(String fname) throws Exception {
-        Attributes attrs = new Attributes();
-        parseJSON(fname, attrs);
-        return attrs;
+        return StowMetadata.parseJSON(Paths.get(fname));
     }
 
-    private  JSONReader parseJSON(String fname, Attributes attrs)
-            throws IOException {
-        InputStream in =new FileInputStream(
-                fname);
-        try {
-            JSONReader reader = new JSONReader(
-                    Json.createParser(new InputStreamReader(in, "UTF-8")));
-            reader.readDataset(attrs);
-            return reader;
-        } finally {
-            if (in != System.in)
-                SafeClose.close(in);
-        }
-    }
     private void storeMetadataAndBulkdata(StoreSession session,
             MetaDataPathTSTuple part) {
         Attributes ds = null;
         if(creatorType == CreatorType.JSON_BULKDATA)
         {
             try {
-                ds = parseJSON(part.getPath().toFile().getPath());
+                ds = StowMetadata.parseJSON(part.getPath());
             } catch (Exception e) {
                 storageFailed(NOT_PARSEABLE_IUID, NOT_PARSEABLE_CUID,
                         METADATA_NOT_PARSEABLE);
@@ -475,7 +452,7 @@ public class StowRS {
         else
         {
             try {
-                ds = SAXReader.parse(part.getPath().toUri().toString());
+                ds = StowMetadata.parseXML(part.getPath());
             } catch (Exception e) {
                 storageFailed(NOT_PARSEABLE_IUID, NOT_PARSEABLE_CUID,
                         METADATA_NOT_PARSEABLE);
@@ -486,7 +463,7 @@ public class StowRS {
         String iuid = ds.getString(Tag.SOPInstanceUID);
         String cuid = ds.getString(Tag.SOPClassUID);
         Attributes fmi = ds.createFileMetaInformation(part.getTransferSyntax());
-        if (!resolveBulkdata(session, fmi, ds)) {
+        if (!StowMetadata.resolveBulkdata(session, fmi, ds, bulkdata)) {
             storageFailed(iuid, cuid, MISSING_BULKDATA);
             return;
         }
@@ -547,71 +524,4 @@ public class StowRS {
 
         failedSOPSequence.add(sopRef);
     }
-
-    private boolean resolveBulkdata(final StoreSession session,
-            final Attributes fmi, Attributes attrs) {
-        try {
-            return attrs.accept(new Visitor() {
-                @Override
-                public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
-                    if (!(value instanceof BulkData))
-                        return true;
-
-                    String uri = ((BulkData) value).uri;
-                    BulkdataPath bulkdataPath = bulkdata.get(uri);
-                    if (bulkdataPath == null) {
-                        LOG.info("{}: Missing Bulkdata {}", session, uri);
-                        return false;
-                    }
-
-                    java.nio.file.Path path = bulkdataPath.path;
-                    BulkData bd = new BulkData(
-                            path.toUri().toString(),
-                            0, (int) path.toFile().length(),
-                            attrs.bigEndian());
-
-                    MediaType mediaType = bulkdataPath.mediaType;
-                    if (mediaType.isCompatible(
-                            MediaType.APPLICATION_OCTET_STREAM_TYPE)||
-                            mediaType.isCompatible(
-                                    MediaTypes.APPLICATION_PDF_TYPE)) {
-                        attrs.setValue(tag, vr, bd);
-                        return true;
-                    }
-                    
-                    if (!(attrs.isRoot() && tag == Tag.PixelData)) {
-                        LOG.info("{}: Invalid Mediatype of Bulkdata - {}",
-                                session, mediaType);
-                        return false;
-                    }
-
-                    try {
-                        fmi.setString(Tag.TransferSyntaxUID, VR.UI,
-                                MediaTypes.transferSyntaxOf(mediaType));
-                    } catch (IllegalArgumentException e) {
-                        LOG.info("{}: Invalid Mediatype of Bulkdata - {}",
-                                session, mediaType);
-                        return false;
-                    }
-
-                    Fragments frags = attrs.newFragments(Tag.PixelData, VR.OB, 2);
-                    frags.add(null);
-                    frags.add(bd);
-                    return true;
-                }
-            }, true);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static final class BulkdataPath {
-        final java.nio.file.Path path;
-        final MediaType mediaType;
-        BulkdataPath(java.nio.file.Path path, MediaType mediaType) {
-            super();
-            this.path = path;
-            this.mediaType = mediaType;
-        }
-    }
 }
@@ -77,7 +77,9 @@ public class WadoClientServiceImpl implements WadoClientService {
     @Inject
     private StoreService storeService;
 
-    private InstanceAvailableCallback callBack;
+    // fetches may run concurrently, each in its own thread
+    private final ThreadLocal<InstanceAvailableCallback> callBack =
+            new ThreadLocal<InstanceAvailableCallback>();
 
     @Inject
     private IApplicationEntityCache aeCache;
@@ -125,7 +127,9 @@ public class WadoClientServiceImpl implements WadoClientService {
             }
             LOG.debug("Fetched and Stored instance from remote AE {}"
                     , context.getStoreSession().getRemoteAET());
-            getCallBack().onInstanceAvailable(createArchiveInstanceLocator(context));
+            InstanceAvailableCallback callBack = getCallBack();
+            if (callBack != null)
+                callBack.onInstanceAvailable(createArchiveInstanceLocator(context));
             return true;
         } catch (Exception x) {
             LOG.error("Failed to store RejectionNote!", x);
@@ -162,11 +166,14 @@ public class WadoClientServiceImpl implements WadoClientService {
 
     @Override
     public InstanceAvailableCallback getCallBack() {
-        return callBack;
+        return callBack.get();
     }
 
     protected void setCallBack(InstanceAvailableCallback callBack) {
-        this.callBack = callBack;
+        if (callBack != null)
+            this.callBack.set(callBack);
+        else
+            this.callBack.remove();
     }
 
     private WadoClient createClient() {
@@ -213,6 +220,8 @@ public class WadoClientServiceImpl implements WadoClientService {
             LOG.error("Error fetching Study {}, from AE {}"
                     + " check baseurl configuration for WadoRS",
                     studyInstanceUID, remoteAE.getAETitle());
+        } finally {
+            setCallBack(null);
         }
         return null;
     }
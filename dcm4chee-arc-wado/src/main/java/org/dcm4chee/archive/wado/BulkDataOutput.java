@@ -45,6 +45,7 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.dcm4che3.data.BulkData;
+import org.dcm4che3.util.ByteUtils;
 import org.dcm4che3.util.SafeClose;
 import org.dcm4che3.util.StreamUtils;
 
@@ -54,10 +55,23 @@ import org.dcm4che3.util.StreamUtils;
  */
 public class BulkDataOutput implements StreamingOutput {
 
+    private static final int BUFFER_SIZE = 65536;
+
     private final BulkData bulkData;
+    private final int swapWordSize;
 
     public BulkDataOutput(BulkData bulkData) {
+        this(bulkData, 0);
+    }
+
+    /**
+     * @param swapWordSize size of big endian words to swap to little endian:
+     *            2 or 4, or 0 to not swap
+     */
+    public BulkDataOutput(BulkData bulkData, int swapWordSize) {
+        checkSwapWordSize(swapWordSize);
         this.bulkData = bulkData;
+        this.swapWordSize = swapWordSize;
     }
 
     @Override
@@ -65,10 +79,42 @@ public class BulkDataOutput implements StreamingOutput {
             WebApplicationException {
         InputStream in = bulkData.openStream();
         try {
-            StreamUtils.copy(in, out, bulkData.length());
+            if (swapWordSize != 0)
+                copySwapped(in, out, bulkData.length(), swapWordSize);
+            else
+                StreamUtils.copy(in, out, bulkData.length());
         } finally {
             SafeClose.close(in);
         }
     }
 
+    private static void copySwapped(InputStream in, OutputStream out,
+            int length, int wordSize) throws IOException {
+        byte[] b = new byte[Math.min(length, BUFFER_SIZE)];
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(remaining, b.length);
+            StreamUtils.readFully(in, b, 0, n);
+            swapWords(b, n, wordSize);
+            out.write(b, 0, n);
+            remaining -= n;
+        }
+    }
+
+    static void checkSwapWordSize(int wordSize) {
+        if (wordSize != 0 && wordSize != 2 && wordSize != 4)
+            throw new IllegalArgumentException("swapWordSize: " + wordSize);
+    }
+
+    /**
+     * Swaps the 16-bit or 32-bit words in the first {@code len} bytes of
+     * {@code b}. Trailing bytes of an incomplete word are left unchanged.
+     */
+    static void swapWords(byte[] b, int len, int wordSize) {
+        if (wordSize == 4)
+            ByteUtils.swapInts(b, 0, len & ~3);
+        else
+            ByteUtils.swapShorts(b, 0, len & ~1);
+    }
+
 }
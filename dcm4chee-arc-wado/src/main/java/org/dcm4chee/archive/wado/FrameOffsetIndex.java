@@ -0,0 +1,231 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+
+/**
+ * Byte offsets and lengths of the frames of the Pixel Data of a stored
+ * object, which allows to read single frames without parsing the file.
+ * Native Pixel Data with more than 8 Bits Allocated encoded big endian is
+ * flagged to have its 16-bit or 32-bit words swapped on output.
+ */
+public class FrameOffsetIndex {
+
+    private static final int VERSION = 3;
+
+    private final String transferSyntaxUID;
+    private final boolean encapsulated;
+    private final int swapWordSize;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private FrameOffsetIndex(String transferSyntaxUID, boolean encapsulated,
+            int swapWordSize, long[] offsets, int[] lengths) {
+        this.transferSyntaxUID = transferSyntaxUID;
+        this.encapsulated = encapsulated;
+        this.swapWordSize = swapWordSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Creates the index from the dataset read with
+     * {@code IncludeBulkData.URI}. Returns {@code null}, if the frames can't
+     * be located by offset and length: no Pixel Data, Pixel Data with less
+     * than 8 Bits Allocated, big endian Pixel Data with other than 8, 16 or
+     * 32 Bits Allocated, or encapsulated Pixel Data with more than one
+     * fragment per frame.
+     */
+    public static FrameOffsetIndex valueOf(String tsuid, Attributes ds) {
+        Object pixeldata = ds.getValue(Tag.PixelData);
+        int frames = ds.getInt(Tag.NumberOfFrames, 1);
+        long[] offsets = new long[frames];
+        int[] lengths = new int[frames];
+        if (pixeldata instanceof Fragments) {
+            Fragments fragments = (Fragments) pixeldata;
+            if (fragments.size() != frames + 1)
+                return null;
+
+            for (int i = 0; i < frames; i++) {
+                Object fragment = fragments.get(i + 1);
+                if (!(fragment instanceof BulkData))
+                    return null;
+
+                BulkData bulkData = (BulkData) fragment;
+                offsets[i] = bulkData.offset();
+                lengths[i] = bulkData.length();
+            }
+            return new FrameOffsetIndex(tsuid, true, 0, offsets, lengths);
+        }
+        if (pixeldata instanceof BulkData) {
+            BulkData bulkData = (BulkData) pixeldata;
+            int bitsAllocated = ds.getInt(Tag.BitsAllocated, 8);
+            if ((bitsAllocated & 7) != 0)
+                return null;
+
+            int swapWordSize = swapWordSize(bulkData.bigEndian(), bitsAllocated);
+            if (swapWordSize != 0 && swapWordSize != 2 && swapWordSize != 4)
+                return null;
+
+            int frameLength = ds.getInt(Tag.Rows, 0)
+                    * ds.getInt(Tag.Columns, 0)
+                    * ds.getInt(Tag.SamplesPerPixel, 0)
+                    * (bitsAllocated >>> 3);
+            if (frameLength <= 0
+                    || (long) frameLength * frames > bulkData.length())
+                return null;
+
+            for (int i = 0; i < frames; i++) {
+                offsets[i] = bulkData.offset() + (long) i * frameLength;
+                lengths[i] = frameLength;
+            }
+            return new FrameOffsetIndex(tsuid, false, swapWordSize,
+                    offsets, lengths);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the size in bytes of the words of native Pixel Data, which have
+     * to be swapped to little endian on output, or 0 if the Pixel Data is
+     * encoded little endian or has not more than 8 Bits Allocated.
+     */
+    public static int swapWordSize(boolean bigEndian, int bitsAllocated) {
+        return bigEndian && bitsAllocated > 8 ? bitsAllocated >>> 3 : 0;
+    }
+
+    /**
+     * Decodes an index encoded by {@link #toByteArray()}. Returns
+     * {@code null}, if {@code b} is {@code null} or was encoded by an
+     * other version.
+     */
+    public static FrameOffsetIndex valueOf(byte[] b) {
+        if (b == null)
+            return null;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+        try {
+            if (in.readUnsignedByte() != VERSION)
+                return null;
+
+            String tsuid = in.readUTF();
+            boolean encapsulated = in.readBoolean();
+            int swapWordSize = in.readUnsignedByte();
+            int frames = in.readInt();
+            long[] offsets = new long[frames];
+            int[] lengths = new int[frames];
+            for (int i = 0; i < frames; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+            }
+            return new FrameOffsetIndex(tsuid, encapsulated, swapWordSize,
+                    offsets, lengths);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupted frame offset index", e);
+        }
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bout =
+                new ByteArrayOutputStream(17 + offsets.length * 12);
+        DataOutputStream out = new DataOutputStream(bout);
+        try {
+            out.writeByte(VERSION);
+            out.writeUTF(transferSyntaxUID);
+            out.writeBoolean(encapsulated);
+            out.writeByte(swapWordSize);
+            out.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bout.toByteArray();
+    }
+
+    public String getTransferSyntaxUID() {
+        return transferSyntaxUID;
+    }
+
+    public boolean isEncapsulated() {
+        return encapsulated;
+    }
+
+    /**
+     * Returns the size in bytes of the big endian words of the frames, which
+     * have to be swapped to little endian on output: 2 or 4, or 0 if the
+     * frames need not to be swapped.
+     */
+    public int getSwapWordSize() {
+        return swapWordSize;
+    }
+
+    public int getNumberOfFrames() {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the byte offset of the frame with the specified number,
+     * starting with 1.
+     */
+    public long getOffset(int frame) {
+        return offsets[frame - 1];
+    }
+
+    /**
+     * Returns the length in bytes of the frame with the specified number,
+     * starting with 1.
+     */
+    public int getLength(int frame) {
+        return lengths[frame - 1];
+    }
+}
@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.wado;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.dcm4che3.util.SafeClose;
+
+/**
+ * Streams one frame located by a {@link FrameOffsetIndex} from the file
+ * using positional reads. Big endian 16-bit or 32-bit words are swapped to
+ * little endian, if requested.
+ */
+public class FrameOutput implements StreamingOutput {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final long offset;
+    private final int length;
+    private final int swapWordSize;
+
+    public FrameOutput(File file, long offset, int length) {
+        this(file, offset, length, 0);
+    }
+
+    /**
+     * @param swapWordSize size of big endian words to swap to little endian:
+     *            2 or 4, or 0 to not swap
+     */
+    public FrameOutput(File file, long offset, int length, int swapWordSize) {
+        BulkDataOutput.checkSwapWordSize(swapWordSize);
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.swapWordSize = swapWordSize;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException,
+            WebApplicationException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try {
+            if (swapWordSize != 0)
+                writeSwapped(channel, out);
+            else
+                transferTo(channel, out);
+        } finally {
+            SafeClose.close(channel);
+        }
+    }
+
+    private void transferTo(FileChannel channel, OutputStream out)
+            throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = offset;
+        long remaining = length;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0)
+                throw new EOFException();
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private void writeSwapped(FileChannel channel, OutputStream out)
+            throws IOException {
+        // BUFFER_SIZE is a multiple of 4, so each chunk holds whole words
+        byte[] b = new byte[Math.min(length, BUFFER_SIZE)];
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        long position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            buf.clear();
+            buf.limit(Math.min(remaining, b.length));
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position);
+                if (read < 0)
+                    throw new EOFException();
+                position += read;
+            }
+            int n = buf.position();
+            BulkDataOutput.swapWords(b, n, swapWordSize);
+            out.write(b, 0, n);
+            remaining -= n;
+        }
+    }
+
+}
@@ -0,0 +1,268 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2016
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the parts of a WADO-RS response to the client as soon as they are
+ * available - as body parts of a multipart/related message or as entries
+ * of a ZIP file - and terminates the response with a status part, listing
+ * the instances which could not be sent.
+ */
+abstract class PartStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartStream.class);
+
+    protected final ClientOutputStream out;
+
+    PartStream(OutputStream out) {
+        this.out = new ClientOutputStream(out);
+    }
+
+    static PartStream multipartRelated(OutputStream out, String boundary) {
+        return new MultipartRelated(out, boundary);
+    }
+
+    static PartStream zip(OutputStream out) {
+        return new Zip(out);
+    }
+
+    /**
+     * Writes the part and flushes it to the client.
+     * 
+     * @return {@code false} if the entity failed to provide its content
+     * @throws IOException if writing to the client failed
+     */
+    boolean writePart(StreamingOutput entity,
+            MultivaluedMap<String, Object> headers) throws IOException {
+        boolean success = true;
+        beginPart(headers);
+        try {
+            entity.write(partOutputStream());
+        } catch (IOException | RuntimeException e) {
+            if (out.failed)
+                throw e;
+            LOG.info("Failed to write part {}:", headers, e);
+            success = false;
+        }
+        endPart();
+        out.flush();
+        return success;
+    }
+
+    /**
+     * Writes the status part and terminates the response.
+     */
+    abstract void finish(Attributes status) throws IOException;
+
+    abstract void beginPart(MultivaluedMap<String, Object> headers)
+            throws IOException;
+
+    abstract OutputStream partOutputStream();
+
+    abstract void endPart() throws IOException;
+
+    static void writeJSON(OutputStream out, Attributes status) {
+        JsonGenerator gen = Json.createGenerator(out);
+        gen.writeStartArray();
+        new JSONWriter(gen).write(status);
+        gen.writeEnd();
+        gen.flush();
+    }
+
+    private static final class MultipartRelated extends PartStream {
+
+        private static final byte[] CRLF = { '\r', '\n' };
+        private static final byte[] DASHES = { '-', '-' };
+
+        private final byte[] boundary;
+
+        MultipartRelated(OutputStream out, String boundary) {
+            super(out);
+            this.boundary = boundary.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        void beginPart(MultivaluedMap<String, Object> headers)
+                throws IOException {
+            out.write(DASHES);
+            out.write(boundary);
+            out.write(CRLF);
+            for (Map.Entry<String, List<Object>> header : headers.entrySet())
+                for (Object value : header.getValue()) {
+                    out.write((header.getKey() + ": " + value)
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.write(CRLF);
+                }
+            out.write(CRLF);
+        }
+
+        @Override
+        OutputStream partOutputStream() {
+            return out;
+        }
+
+        @Override
+        void endPart() throws IOException {
+            out.write(CRLF);
+        }
+
+        @Override
+        void finish(Attributes status) throws IOException {
+            out.write(DASHES);
+            out.write(boundary);
+            out.write(CRLF);
+            out.write("Content-Type: application/json"
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF);
+            out.write(CRLF);
+            writeJSON(out, status);
+            out.write(CRLF);
+            out.write(DASHES);
+            out.write(boundary);
+            out.write(DASHES);
+            out.write(CRLF);
+            out.flush();
+        }
+    }
+
+    private static final class Zip extends PartStream {
+
+        private final ZipOutputStream zout;
+        private int count;
+
+        Zip(OutputStream out) {
+            super(out);
+            this.zout = new ZipOutputStream(this.out);
+        }
+
+        @Override
+        void beginPart(MultivaluedMap<String, Object> headers)
+                throws IOException {
+            zout.putNextEntry(new ZipEntry(++count + ".dcm"));
+        }
+
+        @Override
+        OutputStream partOutputStream() {
+            return zout;
+        }
+
+        @Override
+        void endPart() throws IOException {
+            zout.closeEntry();
+            zout.flush();
+        }
+
+        @Override
+        void finish(Attributes status) throws IOException {
+            zout.putNextEntry(new ZipEntry("status.json"));
+            writeJSON(zout, status);
+            zout.closeEntry();
+            zout.finish();
+            out.flush();
+        }
+    }
+
+    /**
+     * Records failures writing to the client, to distinguish them from
+     * failures reading the content of a part.
+     */
+    static final class ClientOutputStream extends FilterOutputStream {
+
+        private boolean failed;
+
+        ClientOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closed by the RESTful runtime
+            flush();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+
+package org.dcm4chee.archive.wado;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.TransactionPhase;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.util.StringUtils;
+import org.dcm4che3.util.TagUtils;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.dto.QCEventInstance;
+import org.dcm4chee.archive.dto.Service;
+import org.dcm4chee.archive.dto.ServiceType;
+import org.dcm4chee.archive.entity.QCUpdateHistory.QCUpdateScope;
+import org.dcm4chee.archive.qc.QCEvent;
+import org.dcm4chee.archive.store.StoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk cache of images rendered by WADO-URI, enabled by
+ * {@link ArchiveDeviceExtension#getWadoRenderedImageCacheDirectory()}.
+ * Least recently used images are evicted if the configured size is
+ * exceeded. Images of instances modified by QC or replaced by a store, and
+ * images rendered with a stored Presentation State, are invalidated. The
+ * index is held in memory, so cached images of a previous run are
+ * discarded. Only files named like cached images are deleted from the
+ * configured directory.
+ */
+@ApplicationScoped
+public class RenderedImageCache {
+
+    private static final Logger LOG =
+            LoggerFactory.getLogger(RenderedImageCache.class);
+
+    private static final int LOG_STATISTICS_INTERVAL = 1000;
+
+    private static final Pattern SUBDIR_NAME = Pattern.compile("[0-9A-Fa-f]{2}");
+    private static final Pattern FILE_NAME =
+            Pattern.compile("[0-9A-Fa-f]{40}((\\.[0-9]+)?\\.tmp)?");
+
+    @Inject
+    Device device;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+    private Path directory;
+    private long size;
+
+    // incremented by each invalidation, so images rendered concurrently
+    // from already invalidated data are not inserted afterwards
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static final class Entry {
+        final Path path;
+        final String studyIUID;
+        final String seriesIUID;
+        final String sopIUID;
+        final String presentationUID;
+        final long size;
+
+        Entry(Path path, ArchiveInstanceLocator inst, String presentationUID,
+                long size) {
+            this.path = path;
+            this.studyIUID = inst.getStudyInstanceUID();
+            this.seriesIUID = inst.getSeriesInstanceUID();
+            this.sopIUID = inst.iuid;
+            this.presentationUID = presentationUID;
+            this.size = size;
+        }
+
+        boolean matches(Set<String> uids) {
+            return uids.contains(sopIUID)
+                    || uids.contains(seriesIUID)
+                    || uids.contains(studyIUID)
+                    || presentationUID != null && uids.contains(presentationUID);
+        }
+    }
+
+    /**
+     * Returns an output, which streams the cached image rendered with the
+     * parameters encoded in {@code key}, or, if not cached yet, invokes
+     * {@code render} and stores its output in the cache. Returns
+     * {@code render}, if the cache is disabled.
+     *
+     * @param presentationUID SOP Instance UID of the Presentation State
+     *        applied by {@code render} or {@code null}
+     */
+    public StreamingOutput cache(final ArchiveInstanceLocator inst,
+            final String presentationUID, final String key,
+            final StreamingOutput render) {
+        final Path dir = directory();
+        if (dir == null)
+            return render;
+
+        return new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream out) throws IOException,
+                    WebApplicationException {
+                String name = hash(key);
+                long gen = generation();
+                Path path = lookup(dir, name);
+                if (path != null) {
+                    try {
+                        Files.copy(path, out);
+                        return;
+                    } catch (NoSuchFileException e) {
+                        LOG.debug("Cached image {} evicted concurrently", path);
+                    }
+                }
+                path = dir.resolve(name.substring(0, 2)).resolve(name);
+                Path tmp;
+                OutputStream tmpOut;
+                try {
+                    Files.createDirectories(path.getParent());
+                    // unique for each render, so concurrent misses of one
+                    // image do not write into the same file
+                    tmp = Files.createTempFile(path.getParent(), name + ".", ".tmp");
+                    tmpOut = Files.newOutputStream(tmp);
+                } catch (IOException e) {
+                    LOG.info("Failed to create temporary file for {}:", path, e);
+                    render.write(out);
+                    return;
+                }
+                try {
+                    try {
+                        render.write(tmpOut);
+                    } finally {
+                        tmpOut.close();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(tmp);
+                    throw e;
+                }
+                try {
+                    Files.copy(tmp, out);
+                } finally {
+                    put(dir, name, path, tmp, inst, presentationUID, gen);
+                }
+            }
+        };
+    }
+
+    private synchronized Path lookup(Path dir, String name) {
+        Entry entry = dir.equals(directory) ? entries.get(name) : null;
+        long n = entry != null ? hits.incrementAndGet() : misses.incrementAndGet();
+        if (n % LOG_STATISTICS_INTERVAL == 0)
+            LOG.info("{}", this);
+        return entry != null ? entry.path : null;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private void put(Path dir, String name, Path path, Path tmp,
+            ArchiveInstanceLocator inst, String presentationUID, long gen) {
+        List<Path> evicted = new ArrayList<Path>();
+        synchronized (this) {
+            if (!dir.equals(directory) || gen != generation) {
+                LOG.debug("Discard image {} rendered before invalidation", path);
+                evicted.add(tmp);
+            } else try {
+                Entry entry = new Entry(path, inst, presentationUID,
+                        Files.size(tmp));
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Entry prev = entries.put(name, entry);
+                if (prev != null)
+                    size -= prev.size;
+                size += entry.size;
+                long maxSize = arcDev().getWadoRenderedImageCacheMaxSize() * 1024L * 1024L;
+                for (Iterator<Entry> iter = entries.values().iterator();
+                        size > maxSize && iter.hasNext();) {
+                    Entry eldest = iter.next();
+                    iter.remove();
+                    size -= eldest.size;
+                    evicted.add(eldest.path);
+                    evictions.incrementAndGet();
+                }
+            } catch (IOException e) {
+                LOG.info("Failed to store rendered image to {}:", path, e);
+                evicted.add(tmp);
+            }
+        }
+        delete(evicted);
+    }
+
+    public void onStoreInstance(@Observes StoreContext storeContext) {
+        StoreAction action = storeContext.getStoreAction();
+        Attributes attrs = storeContext.getAttributes();
+        if (action != StoreAction.REPLACE
+                && !(action == StoreAction.STORE && isPresentationState(attrs)))
+            return;
+
+        HashSet<String> uids = new HashSet<String>();
+        addUID(uids, attrs.getString(Tag.SOPInstanceUID));
+        invalidate(uids);
+    }
+
+    private static boolean isPresentationState(Attributes attrs) {
+        // Presentation State Identification Module
+        return attrs.containsValue(Tag.PresentationCreationDate);
+    }
+
+    public void onQC(@Observes(during = TransactionPhase.AFTER_SUCCESS)
+            @Service(ServiceType.QCDURINGTRANSACTION) QCEvent event) {
+        HashSet<String> uids = new HashSet<String>();
+        if (event.getSource() == null && event.getTarget() == null) {
+            String scope = event.getUpdateScope();
+            Attributes attrs = event.getUpdateAttributes();
+            if (attrs == null || QCUpdateScope.PATIENT.toString().equals(scope)) {
+                clear();
+                return;
+            }
+            addUID(uids, attrs.getString(
+                    QCUpdateScope.INSTANCE.toString().equals(scope) ? Tag.SOPInstanceUID
+                    : QCUpdateScope.SERIES.toString().equals(scope) ? Tag.SeriesInstanceUID
+                    : Tag.StudyInstanceUID));
+        } else {
+            addUIDs(uids, event.getSource());
+            addUIDs(uids, event.getTarget());
+        }
+        invalidate(uids);
+    }
+
+    private static void addUIDs(Set<String> uids,
+            Collection<QCEventInstance> insts) {
+        if (insts != null)
+            for (QCEventInstance inst : insts) {
+                addUID(uids, inst.getSopInstanceUID());
+                addUID(uids, inst.getSeriesInstanceUID());
+                addUID(uids, inst.getStudyInstanceUID());
+            }
+    }
+
+    private static void addUID(Set<String> uids, String uid) {
+        if (uid != null)
+            uids.add(uid);
+    }
+
+    /**
+     * Removes cached images of instances, series or studies with one of the
+     * specified UIDs, or rendered with a Presentation State with one of the
+     * specified UIDs.
+     */
+    public void invalidate(Set<String> uids) {
+        if (uids.isEmpty())
+            return;
+
+        List<Path> invalidated = new ArrayList<Path>();
+        synchronized (this) {
+            generation++;
+            for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext();) {
+                Entry entry = iter.next();
+                if (entry.matches(uids)) {
+                    iter.remove();
+                    size -= entry.size;
+                    invalidated.add(entry.path);
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+        delete(invalidated);
+    }
+
+    /**
+     * Removes all cached images.
+     */
+    public void clear() {
+        List<Path> removed = new ArrayList<Path>();
+        synchronized (this) {
+            generation++;
+            for (Entry entry : entries.values())
+                removed.add(entry.path);
+            invalidations.addAndGet(entries.size());
+            entries.clear();
+            size = 0;
+        }
+        delete(removed);
+    }
+
+    private synchronized Path directory() {
+        ArchiveDeviceExtension arcDev = arcDev();
+        String dirPath = arcDev != null
+                ? arcDev.getWadoRenderedImageCacheDirectory()
+                : null;
+        if (dirPath == null || arcDev.getWadoRenderedImageCacheMaxSize() <= 0) {
+            if (directory != null)
+                reset(null);
+            return null;
+        }
+        Path dir = Paths.get(StringUtils.replaceSystemProperties(dirPath));
+        if (!dir.equals(directory))
+            reset(dir);
+        return directory;
+    }
+
+    private void reset(Path dir) {
+        entries.clear();
+        size = 0;
+        generation++;
+        directory = dir;
+        if (dir != null) {
+            LOG.info("Discard previously cached images in {}", dir);
+            deleteCachedImages(dir);
+        }
+    }
+
+    /**
+     * Deletes files named like cached images from sub-directories named like
+     * created by the cache, so other content of the configured directory is
+     * left untouched.
+     */
+    private static void deleteCachedImages(Path dir) {
+        if (!Files.isDirectory(dir))
+            return;
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path subdir : ds)
+                if (Files.isDirectory(subdir)
+                        && matches(SUBDIR_NAME, subdir)
+                        && deleteCachedImageFiles(subdir))
+                    deleteIfEmpty(subdir);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete cached images in {}:", dir, e);
+        }
+    }
+
+    private static boolean deleteCachedImageFiles(Path subdir) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(subdir)) {
+            for (Path path : ds)
+                if (matches(FILE_NAME, path) && Files.isRegularFile(path))
+                    Files.deleteIfExists(path);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Failed to delete cached images in {}:", subdir, e);
+            return false;
+        }
+    }
+
+    private static void deleteIfEmpty(Path dir) throws IOException {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException e) {
+            LOG.debug("Keep non-empty directory {}", dir);
+        }
+    }
+
+    private static boolean matches(Pattern pattern, Path path) {
+        return pattern.matcher(path.getFileName().toString()).matches();
+    }
+
+    private static void delete(List<Path> paths) {
+        for (Path path : paths)
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.info("Failed to delete cached image {}:", path, e);
+            }
+    }
+
+    private ArchiveDeviceExtension arcDev() {
+        return device.getDeviceExtension(ArchiveDeviceExtension.class);
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return TagUtils.toHexString(
+                    digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of requests served from the cache.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long n = h + misses.get();
+        return n > 0 ? (double) h / n : 0;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached images in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderedImageCache[hits=" + getHits()
+                + ", misses=" + getMisses()
+                + ", hitRatio=" + getHitRatio()
+                + ", count=" + getCount()
+                + ", size=" + getSize()
+                + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations()
+                + "]";
+    }
+}
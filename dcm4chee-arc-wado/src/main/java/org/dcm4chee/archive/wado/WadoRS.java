@@ -40,14 +40,18 @@ package org.dcm4chee.archive.wado;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.enterprise.event.Event;
 import javax.inject.Inject;
@@ -72,8 +76,10 @@ import javax.ws.rs.core.UriInfo;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.BulkData;
 import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
 import org.dcm4che3.imageio.codec.Decompressor;
 import org.dcm4che3.imageio.codec.ImageReaderFactory;
 import org.dcm4che3.io.DicomInputStream;
@@ -122,12 +128,19 @@ public class WadoRS extends Wado {
     @Inject
     private FetchForwardService fetchForwardService;
 
+    @Inject
+    private FrameOffsetIndexCache frameOffsetIndexCache;
+
     private static final int STATUS_OK = 200;
     private static final int STATUS_PARTIAL_CONTENT = 206;
     private static final int STATUS_NOT_ACCEPTABLE = 406;
     private static final String CONTENT_TYPE = "Content-Type";
     private static final String CONTENT_ID = "Content-ID";
     private static final String CONTENT_LOCATION = "Content-Location";
+    private static final int[] AUDIT_ATTRS = {
+        Tag.PatientID,
+        Tag.StudyInstanceUID
+    };
 
     private static final Logger LOG = LoggerFactory.getLogger(WadoRS.class);
 
@@ -331,10 +344,7 @@ public class WadoRS extends Wado {
             throws DicomServiceException  {
         init("retrieveStudy");
 
-        List<ArchiveInstanceLocator> instances = retrieveService
-                .calculateMatches(studyInstanceUID, "*", "*", queryParam, false);
-
-        return retrieve(instances);
+        return retrieve(studyInstanceUID, "*", "*");
     }
 
     @GET
@@ -345,11 +355,7 @@ public class WadoRS extends Wado {
             throws DicomServiceException {
         init("retrieveSeries");
 
-        List<ArchiveInstanceLocator> instances = retrieveService
-                .calculateMatches(studyInstanceUID, seriesInstanceUID, "*",
-                        queryParam, false);
-
-        return retrieve(instances);
+        return retrieve(studyInstanceUID, seriesInstanceUID, "*");
     }
 
     @GET
@@ -361,11 +367,7 @@ public class WadoRS extends Wado {
             throws DicomServiceException {
         init("retrieveInstance");
 
-        List<ArchiveInstanceLocator> instances = retrieveService
-                .calculateMatches(studyInstanceUID, seriesInstanceUID,
-                        sopInstanceUID, queryParam, false);
-
-        return retrieve(instances);
+        return retrieve(studyInstanceUID, seriesInstanceUID, sopInstanceUID);
     }
 
     @GET
@@ -455,6 +457,47 @@ public class WadoRS extends Wado {
         return retrieveMetadata(instances);
     }
 
+    private Response retrieve(String studyInstanceUID,
+            String seriesInstanceUID, String sopInstanceUID)
+            throws DicomServiceException {
+        int fetchSize = arcAE.getWadoRSFetchSize();
+        if (fetchSize > 0)
+            return retrieve(retrieveService.scrollMatches(studyInstanceUID,
+                    seriesInstanceUID, sopInstanceUID, queryParam, false,
+                    fetchSize));
+
+        return retrieve(retrieveService.calculateMatches(studyInstanceUID,
+                seriesInstanceUID, sopInstanceUID, queryParam, false));
+    }
+
+    /**
+     * Returns a response, which writes the matching instances while
+     * iterating over them, so the first part is sent without waiting for the
+     * query of all matches. Instances which cannot be sent are listed in a
+     * trailing status part.
+     */
+    private Response retrieve(Iterator<ArchiveInstanceLocator> matches) {
+        if (!matches.hasNext())
+            throw new WebApplicationException(Status.NOT_FOUND);
+
+        if (acceptDicom || acceptBulkdata) {
+            String boundary = UUID.randomUUID().toString();
+            Map<String, String> params = new HashMap<String, String>(4);
+            params.put("type", acceptedBulkdataMediaTypes.isEmpty()
+                    ? MediaTypes.APPLICATION_DICOM_TYPE.toString()
+                    : MediaType.APPLICATION_OCTET_STREAM);
+            params.put("boundary", boundary);
+            return Response.ok(new StreamingRetrieve(matches, boundary))
+                    .type(new MediaType("multipart", "related", params))
+                    .build();
+        }
+        if (!acceptZip && !acceptAll)
+            throw new WebApplicationException(Status.NOT_ACCEPTABLE);
+
+        return Response.ok(new StreamingRetrieve(matches, null))
+                .type(MediaTypes.APPLICATION_ZIP_TYPE).build();
+    }
+
     private Response retrieve(List<ArchiveInstanceLocator> refs)
             throws DicomServiceException {
 
@@ -623,7 +666,9 @@ public class WadoRS extends Wado {
 
         ArrayList<ArchiveInstanceLocator> failedToFetchForward = new ArrayList<ArchiveInstanceLocator>();
         if(!locations.isEmpty()) {
-            status.add(addPixelDataTo(fileURI, output, frames));
+            status.add(frames.length > 0
+                    ? addFramesTo(inst, output, frames)
+                    : addPixelDataTo(fileURI, output, frames));
         }
         if(!external.isEmpty()) {
             FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
@@ -732,6 +777,177 @@ public class WadoRS extends Wado {
 
     }
 
+    private boolean checkSuppressionCriteria(ArchiveInstanceLocator ref) {
+        if (arcAE.getRetrieveSuppressionCriteria()
+                .isCheckTransferCapabilities()
+                && storescuService.eliminateUnSupportedSOPClasses(ref,
+                        context) == null)
+            return false;
+
+        if (context.getRemoteAE() == null)
+            return true;
+
+        String supressionCriteriaTemplateURI = arcAE
+                .getRetrieveSuppressionCriteria().getSuppressionCriteriaMap()
+                .get(context.getRemoteAE().getAETitle());
+        return supressionCriteriaTemplateURI == null
+                || storescuService.applySuppressionCriteria(ref,
+                        getFileAttributes(ref), supressionCriteriaTemplateURI,
+                        context) != null;
+    }
+
+    /**
+     * Only keeps the attributes of the locator referenced by the audit
+     * message, so the locators of already sent instances do not retain
+     * their complete attributes until the retrieve is completed.
+     */
+    private static ArchiveInstanceLocator releaseAttributes(
+            ArchiveInstanceLocator ref) {
+        ref.setObject(new Attributes((Attributes) ref.getObject(),
+                AUDIT_ATTRS));
+        ref.setFallbackLocator(null);
+        return ref;
+    }
+
+    /**
+     * Writes the matching instances to the response while iterating over
+     * them, as multipart/related message, or as ZIP file, if no boundary is
+     * specified.
+     */
+    private final class StreamingRetrieve implements StreamingOutput {
+
+        private final Iterator<ArchiveInstanceLocator> matches;
+        private final String boundary;
+        private final List<ArchiveInstanceLocator> insts =
+                new ArrayList<ArchiveInstanceLocator>();
+        private final List<ArchiveInstanceLocator> completed =
+                new ArrayList<ArchiveInstanceLocator>();
+        private final List<ArchiveInstanceLocator> failed =
+                new ArrayList<ArchiveInstanceLocator>();
+        private PartStream parts;
+        private IOException clientFailure;
+
+        StreamingRetrieve(Iterator<ArchiveInstanceLocator> matches,
+                String boundary) {
+            this.matches = matches;
+            this.boundary = boundary;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException,
+                WebApplicationException {
+            parts = boundary != null
+                    ? PartStream.multipartRelated(out, boundary)
+                    : PartStream.zip(out);
+            List<ArchiveInstanceLocator> external =
+                    new ArrayList<ArchiveInstanceLocator>();
+            try {
+                while (matches.hasNext()) {
+                    ArchiveInstanceLocator ref = matches.next();
+                    insts.add(ref);
+                    if (!checkSuppressionCriteria(ref))
+                        failed.add(releaseAttributes(ref));
+                    else if (ref.getStorageSystem() == null)
+                        external.add(ref);
+                    else
+                        writeInstance(ref);
+                }
+                if (!external.isEmpty())
+                    fetchForward(external);
+                parts.finish(status());
+            } finally {
+                retrieveEvent.fire(new RetrieveAfterSendEvent(
+                        new GenericParticipant(request.getRemoteAddr(),
+                                request.getRemoteUser()),
+                        new GenericParticipant(request.getLocalAddr(), null),
+                        new GenericParticipant(request.getRemoteAddr(),
+                                request.getRemoteUser()),
+                        device, insts, completed,
+                        Collections.<ArchiveInstanceLocator>emptyList(),
+                        failed));
+            }
+        }
+
+        private synchronized void writeInstance(ArchiveInstanceLocator ref)
+                throws IOException {
+            MultipartRelatedOutput output = new MultipartRelatedOutput();
+            boolean success;
+            try {
+                if (boundary == null) {
+                    addPart(output, new DicomObjectOutput(ref,
+                            (Attributes) ref.getObject(), ref.tsuid, context,
+                            storescuService),
+                            MediaTypes.APPLICATION_DICOM_TYPE, null, ref.iuid);
+                    success = true;
+                } else if (acceptedBulkdataMediaTypes.isEmpty()) {
+                    success = addDicomObjectTo(ref, output);
+                } else {
+                    success = addPixelDataTo(ref.uri, output) == STATUS_OK;
+                }
+            } catch (WebApplicationException e) {
+                LOG.info("{}: Failed to retrieve Instance[uid={}]:",
+                        method, ref.iuid, e);
+                success = false;
+            }
+            for (OutputPart part : output.getParts())
+                success = parts.writePart((StreamingOutput) part.getEntity(),
+                        part.getHeaders()) && success;
+            (success ? completed : failed).add(releaseAttributes(ref));
+        }
+
+        private void fetchForward(List<ArchiveInstanceLocator> external)
+                throws IOException {
+            FetchForwardCallBack fetchCallBack = new FetchForwardCallBack() {
+                @Override
+                public void onFetch(
+                        Collection<ArchiveInstanceLocator> instances,
+                        BasicCStoreSCUResp resp) {
+                    onFetched(instances);
+                }
+            };
+            for (ArchiveInstanceLocator ref : fetchForwardService.fetchForward(
+                    aetitle, external, fetchCallBack, fetchCallBack))
+                failed.add(releaseAttributes(ref));
+            synchronized (this) {
+                if (clientFailure != null)
+                    throw clientFailure;
+            }
+        }
+
+        private synchronized void onFetched(
+                Collection<ArchiveInstanceLocator> instances) {
+            for (ArchiveInstanceLocator ref : instances) {
+                if (clientFailure != null)
+                    return;
+                try {
+                    writeInstance(ref);
+                } catch (IOException e) {
+                    clientFailure = e;
+                }
+            }
+        }
+
+        private Attributes status() {
+            Attributes status = new Attributes(3);
+            status.setInt(Tag.NumberOfCompletedSuboperations, VR.US,
+                    completed.size());
+            status.setInt(Tag.NumberOfFailedSuboperations, VR.US,
+                    failed.size());
+            if (!failed.isEmpty()) {
+                Sequence seq = status.newSequence(Tag.FailedSOPSequence,
+                        failed.size());
+                for (ArchiveInstanceLocator ref : failed) {
+                    Attributes item = new Attributes(2);
+                    item.setString(Tag.ReferencedSOPClassUID, VR.UI, ref.cuid);
+                    item.setString(Tag.ReferencedSOPInstanceUID, VR.UI,
+                            ref.iuid);
+                    seq.add(item);
+                }
+            }
+            return status;
+        }
+    }
+
     private boolean addDicomObjectTo(ArchiveInstanceLocator ref,
             MultipartRelatedOutput output) {
         String tsuid = selectDicomTransferSyntaxes(ref);
@@ -746,11 +962,81 @@ public class WadoRS extends Wado {
         return true;
     }
 
+    /**
+     * Adds the requested frames, located by the frame offset index of the
+     * instance, without parsing the file. The index is taken from the
+     * {@link FrameOffsetIndexCache}, or else loaded from the database, or
+     * else built and stored on first access.
+     */
+    private int addFramesTo(ArchiveInstanceLocator inst,
+            MultipartRelatedOutput output, int... frameList) {
+        File file;
+        try {
+            file = new File(new URI(inst.uri));
+        } catch (URISyntaxException e) {
+            throw new WebApplicationException(e);
+        }
+        if (!file.isFile())
+            throw new WebApplicationException(Status.NOT_FOUND);
+
+        FrameOffsetIndex index = frameOffsetIndexCache.get(file);
+        if (index == null) {
+            index = loadFrameOffsetIndex(inst);
+            if (index == null)
+                return addPixelDataTo(inst.uri, inst, output, frameList);
+
+            frameOffsetIndexCache.put(file, index);
+        }
+
+        MediaType mediaType = selectBulkdataMediaTypeForTransferSyntax(
+                index.getTransferSyntaxUID());
+        if (mediaType == null) {
+            LOG.info(
+                    "{}: Failed to retrieve Pixel Data of Instance[uid={}]: Requested Transfer Syntax not supported",
+                    method, inst.iuid);
+            return STATUS_NOT_ACCEPTABLE;
+        }
+
+        if (isMultiframeMediaType(mediaType)) {
+            LOG.info(
+                    "{}: Failed to retrieve Frame Pixel Data of Instance[uid={}]: Not supported for Content-Type={}",
+                    new Object[] { method, inst.iuid, mediaType });
+            return STATUS_NOT_ACCEPTABLE;
+        }
+
+        if (index.isEncapsulated()
+                && mediaType == MediaType.APPLICATION_OCTET_STREAM_TYPE)
+            // decompression requires the parsed dataset
+            return addPixelDataTo(inst.uri, output, frameList);
+
+        int[] adjustedFrameList = adjustFrameList(inst.iuid, frameList,
+                index.getNumberOfFrames());
+        String bulkDataURI = toBulkDataURI(inst.uri);
+        for (int frame : adjustedFrameList) {
+            addPart(output,
+                    new FrameOutput(file, index.getOffset(frame),
+                            index.getLength(frame), index.getSwapWordSize()),
+                    mediaType, bulkDataURI + "/frames/" + frame, inst.iuid);
+        }
+        return adjustedFrameList.length < frameList.length ? STATUS_PARTIAL_CONTENT
+                : STATUS_OK;
+    }
+
     private int addPixelDataTo(String fileURI, MultipartRelatedOutput output,
             int... frameList) {
+        return addPixelDataTo(fileURI, null, output, frameList);
+    }
+
+    /**
+     * Adds the Pixel Data parsed from the file. Stores the frame offset
+     * index of {@code indexed}, if not {@code null}.
+     */
+    private int addPixelDataTo(String fileURI, ArchiveInstanceLocator indexed,
+            MultipartRelatedOutput output, int... frameList) {
         DicomInputStream dis = null;
         try {
-            dis = new DicomInputStream(new File(new URI(fileURI)));
+            File file = new File(new URI(fileURI));
+            dis = new DicomInputStream(file);
             dis.setIncludeBulkData(IncludeBulkData.URI);
             Attributes fmi = dis.readFileMetaInformation();
             String iuid = fmi.getString(Tag.MediaStorageSOPInstanceUID);
@@ -779,6 +1065,10 @@ public class WadoRS extends Wado {
                 return STATUS_NOT_ACCEPTABLE;
             }
 
+            if (indexed != null)
+                storeFrameOffsetIndex(indexed, file, dis.getTransferSyntax(),
+                        ds);
+
             int frames = ds.getInt(Tag.NumberOfFrames, 1);
             int[] adjustedFrameList = adjustFrameList(iuid, frameList, frames);
 
@@ -812,6 +1102,32 @@ public class WadoRS extends Wado {
         }
     }
 
+    private FrameOffsetIndex loadFrameOffsetIndex(ArchiveInstanceLocator inst) {
+        try {
+            return FrameOffsetIndex.valueOf(
+                    retrieveService.getFrameOffsets(inst));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("{}: Ignore frame offset index of Instance[uid={}]:",
+                    new Object[] { method, inst.iuid, e });
+            return null;
+        }
+    }
+
+    private void storeFrameOffsetIndex(ArchiveInstanceLocator inst,
+            File file, String tsuid, Attributes ds) {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(tsuid, ds);
+        if (index == null)
+            return;
+
+        frameOffsetIndexCache.put(file, index);
+        try {
+            retrieveService.setFrameOffsets(inst, index.toByteArray());
+        } catch (Exception e) {
+            LOG.warn("{}: Failed to store frame offset index of Instance[uid={}]:",
+                    new Object[] { method, inst.iuid, e });
+        }
+    }
+
     private int[] adjustFrameList(String iuid, int[] frameList, int frames) {
         int n = 0;
         for (int i = 0; i < frameList.length; i++) {
@@ -901,21 +1217,23 @@ public class WadoRS extends Wado {
     private void addUncompressedPixelDataTo(BulkData bulkData, Attributes ds,
             int[] adjustedFrameList, MultipartRelatedOutput output,
             String bulkDataURI, String iuid) {
+        int bitsAllocated = ds.getInt(Tag.BitsAllocated, 8);
+        int swapWordSize = FrameOffsetIndex.swapWordSize(
+                bulkData.bigEndian(), bitsAllocated);
         if (adjustedFrameList.length == 0) {
-            addPart(output, new BulkDataOutput(bulkData),
+            addPart(output, new BulkDataOutput(bulkData, swapWordSize),
                     MediaType.APPLICATION_OCTET_STREAM_TYPE, bulkDataURI, iuid);
         } else {
             int rows = ds.getInt(Tag.Rows, 0);
             int cols = ds.getInt(Tag.Columns, 0);
             int samples = ds.getInt(Tag.SamplesPerPixel, 0);
-            int bitsAllocated = ds.getInt(Tag.BitsAllocated, 8);
             int frameLength = rows * cols * samples * (bitsAllocated >>> 3);
             for (int frame : adjustedFrameList) {
                 addPart(output,
                         new BulkDataOutput(new BulkData(bulkData
                                 .uriWithoutQuery(), bulkData.offset()
                                 + (frame - 1) * frameLength, frameLength, ds
-                                .bigEndian())),
+                                .bigEndian()), swapWordSize),
                         MediaType.APPLICATION_OCTET_STREAM_TYPE, bulkDataURI
                                 + "/frames/" + frame, iuid);
             }
@@ -262,6 +262,9 @@ public class WadoURI extends Wado {
     @Inject
     private FetchForwardService fetchForwardService;
 
+    @Inject
+    private RenderedImageCache renderedImageCache;
+
     @GET
     public Response retrieve() throws WebApplicationException {
 
@@ -535,7 +538,8 @@ public class WadoURI extends Wado {
 
     private Response retrieveJPEG(final ArchiveInstanceLocator ref, final Attributes attrs) {
 
-        return Response.ok(new StreamingOutput() {
+        return Response.ok(renderedImageCache.cache(ref, presentationUID,
+                renderedImageKey("JPEG", ref), new StreamingOutput() {
 
             @Override
             public void write(OutputStream out) throws IOException,
@@ -543,12 +547,13 @@ public class WadoURI extends Wado {
                 BufferedImage bi = getBufferedImage(ref, attrs);
                 writeImage("JPEG", bi, new OutputStreamAdapter(out));
             }
-        }, MediaTypes.IMAGE_JPEG_TYPE).build();
+        }), MediaTypes.IMAGE_JPEG_TYPE).build();
     }
 
     private Response retrievePNG(final ArchiveInstanceLocator ref, final Attributes attrs) {
 
-        return Response.ok(new StreamingOutput() {
+        return Response.ok(renderedImageCache.cache(ref, presentationUID,
+                renderedImageKey("PNG", ref), new StreamingOutput() {
 
             @Override
             public void write(OutputStream out) throws IOException,
@@ -556,7 +561,42 @@ public class WadoURI extends Wado {
                 BufferedImage bi = getBufferedImage(ref, attrs);
                 writeImage("PNG", bi, new OutputStreamAdapter(out));
             }
-        }, MediaTypes.IMAGE_PNG_TYPE).build();
+        }), MediaTypes.IMAGE_PNG_TYPE).build();
+    }
+
+    /**
+     * Returns the key of the rendered image in the {@link RenderedImageCache},
+     * composed of all request parameters which affect the rendering and of
+     * the Location rendered from, which changes if the Location is replaced,
+     * e.g. by deferred lossy compression.
+     */
+    private String renderedImageKey(String format, ArchiveInstanceLocator ref) {
+        StringBuilder sb = new StringBuilder(128)
+            .append(format).append('/')
+            .append(ref.iuid).append('/')
+            .append(ref.tsuid).append('/')
+            .append(ref.getFilePath()).append('/')
+            .append(ref.getEntryName()).append('/')
+            .append(frameNumber).append('/')
+            .append(rows).append('x').append(columns).append('/');
+        if (region != null)
+            sb.append(region.left).append(',')
+              .append(region.top).append(',')
+              .append(region.right).append(',')
+              .append(region.bottom);
+        sb.append('/')
+            .append(windowCenter).append(',').append(windowWidth).append('/')
+            .append(imageQuality).append('/')
+            .append(isOverlays()).append('/');
+        if (presentationUID != null)
+            sb.append(presentationSeriesUID).append('/').append(presentationUID);
+        return sb.toString();
+    }
+
+    private boolean isOverlays() {
+        return request.getQueryString().contains("overlays")
+                ? overlays
+                : arcAE.isWadoOverlayRendering();
     }
 
     private void writeImage(String format, BufferedImage bi, ImageOutputStream ios)
@@ -598,7 +638,8 @@ public class WadoURI extends Wado {
             final Attributes attrs) {
 
         final MediaType mediaType = MediaTypes.IMAGE_GIF_TYPE;
-        return Response.ok(new StreamingOutput() {
+        return Response.ok(renderedImageCache.cache(ref, presentationUID,
+                renderedImageKey("GIF", ref), new StreamingOutput() {
 
             @Override
             public void write(OutputStream out) throws IOException,
@@ -624,7 +665,7 @@ public class WadoURI extends Wado {
                     
                 }
             }
-        }, mediaType).build();
+        }), mediaType).build();
     }
 
     private List<BufferedImage> getBufferedImages(ArchiveInstanceLocator ref, Attributes attrs) throws IOException {
@@ -782,10 +823,8 @@ public class WadoURI extends Wado {
     private void init(DicomImageReadParam param)
             throws WebApplicationException, IOException {
         
-        if(!request.getQueryString().contains("overlays"))
-        overlays = arcAE.isWadoOverlayRendering();
         //set overlay activation mask
-        param.setOverlayActivationMask(overlays?0xf:0x0);
+        param.setOverlayActivationMask(isOverlays()?0xf:0x0);
         param.setWindowCenter(windowCenter);
         param.setWindowWidth(windowWidth);
         if (presentationUID != null) {
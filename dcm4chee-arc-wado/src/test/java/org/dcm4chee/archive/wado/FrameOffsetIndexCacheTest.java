@@ -0,0 +1,110 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameOffsetIndexCacheTest {
+
+    private File file;
+    private FrameOffsetIndexCache cache;
+    private FrameOffsetIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("frame", ".dcm").toFile();
+        Files.write(file.toPath(), new byte[100]);
+        cache = new FrameOffsetIndexCache();
+        Attributes ds = new Attributes();
+        ds.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        ds.setInt(Tag.Rows, VR.US, 2);
+        ds.setInt(Tag.Columns, VR.US, 2);
+        ds.setInt(Tag.BitsAllocated, VR.US, 8);
+        ds.setValue(Tag.PixelData, VR.OB,
+                new BulkData(file.toURI().toString(), 10, 4, false));
+        index = FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian, ds);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    public void testGet() {
+        assertNull(cache.get(file));
+        cache.put(file, index);
+        assertSame(index, cache.get(file));
+    }
+
+    @Test
+    public void testModifiedFileIsNotCached() throws Exception {
+        cache.put(file, index);
+        Files.write(file.toPath(), new byte[200]);
+        assertNull(cache.get(file));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        cache.put(file, index);
+        for (int i = 0; i < FrameOffsetIndexCache.MAX_SIZE; i++)
+            cache.put(new File(file.getParentFile(), "other" + i), index);
+        assertNull(cache.get(file));
+    }
+
+    @Test
+    public void testClear() {
+        cache.put(file, index);
+        cache.clear();
+        assertNull(cache.get(file));
+    }
+}
@@ -0,0 +1,208 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+
+public class FrameOffsetIndexTest {
+
+    private static final String URI = "file:/test.dcm";
+
+    @Test
+    public void testNativeLittleEndian() {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.ExplicitVRLittleEndian,
+                image(false, 16, 3, new BulkData(URI, 1000, 3 * 24, false)));
+        assertFalse(index.isEncapsulated());
+        assertEquals(0, index.getSwapWordSize());
+        assertEquals(UID.ExplicitVRLittleEndian, index.getTransferSyntaxUID());
+        assertEquals(3, index.getNumberOfFrames());
+        assertEquals(1000, index.getOffset(1));
+        assertEquals(1024, index.getOffset(2));
+        assertEquals(1048, index.getOffset(3));
+        assertEquals(24, index.getLength(3));
+    }
+
+    @Test
+    public void testNativeBigEndianSwapsWords() {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.ExplicitVRBigEndianRetired,
+                image(true, 16, 2, new BulkData(URI, 1000, 2 * 24, true)));
+        assertEquals(2, index.getSwapWordSize());
+        assertEquals(1024, index.getOffset(2));
+    }
+
+    @Test
+    public void testNativeBigEndian32BitSwapsWords() {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.ExplicitVRBigEndianRetired,
+                image(true, 32, 2, new BulkData(URI, 1000, 2 * 48, true)));
+        assertEquals(4, index.getSwapWordSize());
+        assertEquals(48, index.getLength(1));
+        assertEquals(1048, index.getOffset(2));
+    }
+
+    @Test
+    public void testNativeBigEndian24Bit() {
+        assertNull(FrameOffsetIndex.valueOf(UID.ExplicitVRBigEndianRetired,
+                image(true, 24, 1, new BulkData(URI, 1000, 36, true))));
+    }
+
+    @Test
+    public void testNativeBigEndian8BitDoesNotSwap() {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.ExplicitVRBigEndianRetired,
+                image(true, 8, 2, new BulkData(URI, 1000, 2 * 12, true)));
+        assertEquals(0, index.getSwapWordSize());
+        assertEquals(12, index.getLength(1));
+    }
+
+    @Test
+    public void testNativeLessThan8BitsAllocated() {
+        assertNull(FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian,
+                image(false, 1, 1, new BulkData(URI, 1000, 6, false))));
+    }
+
+    @Test
+    public void testNativeTruncatedPixelData() {
+        assertNull(FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian,
+                image(false, 16, 3, new BulkData(URI, 1000, 2 * 24, false))));
+    }
+
+    @Test
+    public void testEncapsulated() {
+        Fragments fragments = new Fragments(VR.OB, false, 3);
+        fragments.add(new byte[0]);
+        fragments.add(new BulkData(URI, 2000, 100, false));
+        fragments.add(new BulkData(URI, 2108, 80, false));
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.JPEGLossless, image(false, 16, 2, fragments));
+        assertTrue(index.isEncapsulated());
+        assertEquals(0, index.getSwapWordSize());
+        assertEquals(2, index.getNumberOfFrames());
+        assertEquals(2000, index.getOffset(1));
+        assertEquals(100, index.getLength(1));
+        assertEquals(2108, index.getOffset(2));
+        assertEquals(80, index.getLength(2));
+    }
+
+    @Test
+    public void testEncapsulatedSeveralFragmentsPerFrame() {
+        Fragments fragments = new Fragments(VR.OB, false, 3);
+        fragments.add(new byte[0]);
+        fragments.add(new BulkData(URI, 2000, 100, false));
+        fragments.add(new BulkData(URI, 2108, 80, false));
+        assertNull(FrameOffsetIndex.valueOf(UID.JPEGLossless,
+                image(false, 16, 1, fragments)));
+    }
+
+    @Test
+    public void testNoPixelData() {
+        Attributes ds = new Attributes();
+        ds.setInt(Tag.NumberOfFrames, VR.IS, 2);
+        assertNull(FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian, ds));
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        FrameOffsetIndex index = FrameOffsetIndex.valueOf(
+                UID.ExplicitVRBigEndianRetired,
+                image(true, 32, 3, new BulkData(URI, 1L << 32, 3 * 48, true)));
+        FrameOffsetIndex decoded = FrameOffsetIndex.valueOf(index.toByteArray());
+        assertEquals(UID.ExplicitVRBigEndianRetired,
+                decoded.getTransferSyntaxUID());
+        assertFalse(decoded.isEncapsulated());
+        assertEquals(4, decoded.getSwapWordSize());
+        assertEquals(3, decoded.getNumberOfFrames());
+        for (int frame = 1; frame <= 3; frame++) {
+            assertEquals(index.getOffset(frame), decoded.getOffset(frame));
+            assertEquals(index.getLength(frame), decoded.getLength(frame));
+        }
+        assertArrayEquals(index.toByteArray(), decoded.toByteArray());
+    }
+
+    @Test
+    public void testDecodeNull() {
+        assertNull(FrameOffsetIndex.valueOf((byte[]) null));
+    }
+
+    @Test
+    public void testDecodeOtherVersion() {
+        byte[] b = FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian,
+                image(false, 16, 1, new BulkData(URI, 1000, 24, false)))
+                .toByteArray();
+        b[0] = 1;
+        assertNull(FrameOffsetIndex.valueOf(b));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeTruncated() {
+        byte[] b = FrameOffsetIndex.valueOf(UID.ExplicitVRLittleEndian,
+                image(false, 16, 2, new BulkData(URI, 1000, 48, false)))
+                .toByteArray();
+        FrameOffsetIndex.valueOf(Arrays.copyOf(b, b.length - 1));
+    }
+
+    private static Attributes image(boolean bigEndian, int bitsAllocated,
+            int frames, Object pixelData) {
+        Attributes ds = new Attributes(bigEndian, 8);
+        ds.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        ds.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        ds.setInt(Tag.Rows, VR.US, 3);
+        ds.setInt(Tag.Columns, VR.US, 4);
+        ds.setInt(Tag.BitsAllocated, VR.US, bitsAllocated);
+        ds.setValue(Tag.PixelData, bitsAllocated > 8 ? VR.OW : VR.OB,
+                pixelData);
+        return ds;
+    }
+}
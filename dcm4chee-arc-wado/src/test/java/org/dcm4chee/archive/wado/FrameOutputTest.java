@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameOutputTest {
+
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[200000];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) i;
+        file = Files.createTempFile("frame", ".dcm").toFile();
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        assertArrayEquals(copy(100, 1000), write(100, 1000, 0));
+    }
+
+    @Test
+    public void testWriteSwapped() throws IOException {
+        assertArrayEquals(swap(copy(100, 1000), 2), write(100, 1000, 2));
+    }
+
+    @Test
+    public void testWriteSwappedLargerThanBuffer() throws IOException {
+        assertArrayEquals(swap(copy(1, 150000), 2), write(1, 150000, 2));
+    }
+
+    @Test
+    public void testWriteSwapped32Bit() throws IOException {
+        byte[] expected = swap(copy(100, 1000), 4);
+        assertArrayEquals(new byte[] { 103, 102, 101, 100 },
+                Arrays.copyOf(expected, 4));
+        assertArrayEquals(expected, write(100, 1000, 4));
+    }
+
+    @Test
+    public void testWriteSwapped32BitLargerThanBuffer() throws IOException {
+        assertArrayEquals(swap(copy(2, 150000), 4), write(2, 150000, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSwapWordSize() {
+        new FrameOutput(file, 0, 24, 3);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testWriteBeyondEndOfFile() throws IOException {
+        write(content.length - 10, 20, 0);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testWriteSwappedBeyondEndOfFile() throws IOException {
+        write(content.length - 10, 20, 2);
+    }
+
+    private byte[] write(long offset, int length, int swapWordSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameOutput(file, offset, length, swapWordSize).write(out);
+        return out.toByteArray();
+    }
+
+    private byte[] copy(int offset, int length) {
+        byte[] b = new byte[length];
+        System.arraycopy(content, offset, b, 0, length);
+        return b;
+    }
+
+    private static byte[] swap(byte[] b, int wordSize) {
+        for (int i = 0; i + wordSize <= b.length; i += wordSize) {
+            for (int j = 0, k = wordSize - 1; j < k; j++, k--) {
+                byte tmp = b[i + j];
+                b[i + j] = b[i + k];
+                b[i + k] = tmp;
+            }
+        }
+        return b;
+    }
+}
@@ -0,0 +1,191 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.dcm4che3.util.StreamUtils;
+import org.junit.Test;
+
+public class PartStreamTest {
+
+    private static final String BOUNDARY = "TEST-BOUNDARY";
+
+    @Test
+    public void testMultipartPartsInOrder() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PartStream parts = PartStream.multipartRelated(bout, BOUNDARY);
+        assertTrue(parts.writePart(content("A"), headers("1")));
+        assertTrue(parts.writePart(content("B"), headers("2")));
+        assertTrue(parts.writePart(content("C"), headers("3")));
+
+        assertEquals(part("1", "A") + part("2", "B") + part("3", "C"),
+                new String(bout.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testEachPartIsFlushed() throws IOException {
+        CountingOutputStream client = new CountingOutputStream(-1);
+        PartStream parts = PartStream.multipartRelated(client, BOUNDARY);
+        parts.writePart(content("A"), headers("1"));
+        assertEquals(part("1", "A").length(), client.flushedCount);
+        parts.writePart(content("B"), headers("2"));
+        assertEquals((part("1", "A") + part("2", "B")).length(),
+                client.flushedCount);
+    }
+
+    @Test
+    public void testContinueAfterContentFailure() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PartStream parts = PartStream.multipartRelated(bout, BOUNDARY);
+        assertTrue(parts.writePart(content("A"), headers("1")));
+        assertFalse(parts.writePart(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                throw new IOException("Failed to read content");
+            }
+        }, headers("2")));
+        assertTrue(parts.writePart(content("C"), headers("3")));
+
+        assertEquals(part("1", "A") + part("2", "") + part("3", "C"),
+                new String(bout.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testAbortOnClientFailure() throws IOException {
+        CountingOutputStream client =
+                new CountingOutputStream(part("1", "A").length() + 10);
+        PartStream parts = PartStream.multipartRelated(client, BOUNDARY);
+        assertTrue(parts.writePart(content("A"), headers("1")));
+        try {
+            parts.writePart(content("BBBBBBBBBBBBBBBBBBBBBBBB"), headers("2"));
+            fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testZipEntriesInOrder() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PartStream parts = PartStream.zip(bout);
+        assertTrue(parts.writePart(content("A"), headers("1")));
+        assertTrue(parts.writePart(content("B"), headers("2")));
+
+        ZipInputStream zin = new ZipInputStream(
+                new ByteArrayInputStream(bout.toByteArray()));
+        assertEntry(zin, "1.dcm", "A");
+        assertEntry(zin, "2.dcm", "B");
+        assertNull(zin.getNextEntry());
+    }
+
+    private static void assertEntry(ZipInputStream zin, String name,
+            String content) throws IOException {
+        ZipEntry entry = zin.getNextEntry();
+        assertEquals(name, entry.getName());
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        StreamUtils.copy(zin, bout);
+        assertArrayEquals(content.getBytes(StandardCharsets.US_ASCII),
+                bout.toByteArray());
+    }
+
+    private static StreamingOutput content(final String s) {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(s.getBytes(StandardCharsets.US_ASCII));
+            }
+        };
+    }
+
+    private static MultivaluedMap<String, Object> headers(String id) {
+        MultivaluedMap<String, Object> headers =
+                new MultivaluedHashMap<String, Object>();
+        headers.add("Content-ID", id);
+        return headers;
+    }
+
+    private static String part(String id, String content) {
+        return "--" + BOUNDARY + "\r\nContent-ID: " + id + "\r\n\r\n"
+                + content + "\r\n";
+    }
+
+    /**
+     * Counts written and flushed bytes and fails after {@code failAfter}
+     * bytes, if not negative.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final int failAfter;
+        private int count;
+        private int flushedCount;
+
+        CountingOutputStream(int failAfter) {
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (failAfter >= 0 && count >= failAfter)
+                throw new IOException("Connection reset by peer");
+            count++;
+        }
+
+        @Override
+        public void flush() {
+            flushedCount = count;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011-2014
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4chee.archive.wado;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Device;
+import org.dcm4chee.archive.conf.ArchiveDeviceExtension;
+import org.dcm4chee.archive.conf.StoreAction;
+import org.dcm4chee.archive.dto.ArchiveInstanceLocator;
+import org.dcm4chee.archive.store.StoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderedImageCacheTest {
+
+    private static final String STUDY_IUID = "1.2.3";
+    private static final String SERIES_IUID = "1.2.3.4";
+    private static final String SOP_IUID = "1.2.3.4.5";
+    private static final String PS_IUID = "1.2.3.9.1";
+    private static final String HASH =
+            "0123456789ABCDEF0123456789ABCDEF01234567";
+
+    private Path dir;
+    private ArchiveDeviceExtension arcDev;
+    private RenderedImageCache cache;
+    private ArchiveInstanceLocator inst;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("rendered");
+        arcDev = new ArchiveDeviceExtension();
+        arcDev.setWadoRenderedImageCacheDirectory(dir.toString());
+        arcDev.setWadoRenderedImageCacheMaxSize(1);
+        Device device = new Device("test");
+        device.addDeviceExtension(arcDev);
+        cache = new RenderedImageCache();
+        cache.device = device;
+        inst = new ArchiveInstanceLocator.Builder(UID.CTImageStorage,
+                SOP_IUID, UID.ExplicitVRLittleEndian)
+                .seriesInstanceUID(SERIES_IUID)
+                .studyInstanceUID(STUDY_IUID)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                    IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void testCachesRenderedImage() throws Exception {
+        Render render = new Render(1000);
+        byte[] first = write(cache.cache(inst, null, "a", render));
+        byte[] second = write(cache.cache(inst, null, "a", render));
+        assertArrayEquals(render.content, first);
+        assertArrayEquals(render.content, second);
+        assertEquals(1, render.count.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getCount());
+        assertEquals(1000, cache.getSize());
+        assertEquals(1, cachedFiles().size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        arcDev.setWadoRenderedImageCacheDirectory(null);
+        Render render = new Render(1000);
+        assertTrue(render == cache.cache(inst, null, "a", render));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        Render render = new Render(1000);
+        write(cache.cache(inst, null, "a", render));
+        cache.invalidate(Collections.singleton(SERIES_IUID));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getInvalidations());
+        assertTrue(cachedFiles().isEmpty());
+        write(cache.cache(inst, null, "a", render));
+        assertEquals(2, render.count.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        Render render = new Render(400 * 1024);
+        write(cache.cache(inst, null, "a", render));
+        write(cache.cache(inst, null, "b", render));
+        write(cache.cache(inst, null, "a", render));
+        write(cache.cache(inst, null, "c", render));
+        assertEquals(3, render.count.get());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getCount());
+        assertEquals(2, cachedFiles().size());
+        write(cache.cache(inst, null, "a", render));
+        assertEquals(3, render.count.get());
+        write(cache.cache(inst, null, "b", render));
+        assertEquals(4, render.count.get());
+    }
+
+    @Test
+    public void testReplaceInvalidates() throws Exception {
+        write(cache.cache(inst, null, "a", new Render(1000)));
+        cache.onStoreInstance(storeContext(StoreAction.REPLACE,
+                attrs(SOP_IUID, false)));
+        assertEquals(0, cache.getCount());
+        assertTrue(cachedFiles().isEmpty());
+    }
+
+    @Test
+    public void testStoreOfOtherImageDoesNotInvalidate() throws Exception {
+        write(cache.cache(inst, null, "a", new Render(1000)));
+        cache.onStoreInstance(storeContext(StoreAction.STORE,
+                attrs("1.2.3.4.6", false)));
+        assertEquals(1, cache.getCount());
+        assertEquals(0, cache.getInvalidations());
+    }
+
+    @Test
+    public void testStoreOfPresentationStateInvalidates() throws Exception {
+        write(cache.cache(inst, null, "a", new Render(1000)));
+        write(cache.cache(inst, PS_IUID, "a/ps", new Render(1000)));
+        assertEquals(2, cache.getCount());
+        cache.onStoreInstance(storeContext(StoreAction.STORE,
+                attrs(PS_IUID, true)));
+        assertEquals(1, cache.getCount());
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(1, cachedFiles().size());
+    }
+
+    @Test
+    public void testRenderRacingWithInvalidationIsNotCached()
+            throws Exception {
+        Render render = new Render(1000) {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                super.write(out);
+                // instance modified while rendering
+                cache.invalidate(Collections.singleton(SOP_IUID));
+            }
+        };
+        assertArrayEquals(render.content,
+                write(cache.cache(inst, null, "a", render)));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertTrue(cachedFiles().isEmpty());
+        write(cache.cache(inst, null, "a", render));
+        assertEquals(2, render.count.get());
+    }
+
+    @Test
+    public void testConcurrentMissesDoNotShareTemporaryFile()
+            throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final StreamingOutput render = new StreamingOutput() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public void write(OutputStream out) throws IOException {
+                byte[] half = new byte[1000];
+                Arrays.fill(half, (byte) ('0' + count.incrementAndGet()));
+                out.write(half);
+                out.flush();
+                try {
+                    // both renders write interleaved
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                out.write(half);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 2; i++)
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return write(cache.cache(inst, null, "a", render));
+                    }
+                }));
+            for (Future<byte[]> result : results)
+                assertUniform(result.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, cache.getCount());
+        assertEquals(2000, cache.getSize());
+        assertEquals(1, cachedFiles().size());
+        assertUniform(Files.readAllBytes(cachedFiles().get(0)));
+    }
+
+    private static void assertUniform(byte[] content) {
+        assertEquals(2000, content.length);
+        for (byte b : content)
+            assertEquals(content[0], b);
+    }
+
+    @Test
+    public void testDiscardsOnlyCachedImages() throws Exception {
+        Path own = Files.createDirectories(dir.resolve("AB"));
+        Path ownOnly = Files.createDirectories(dir.resolve("CD"));
+        Path other = Files.createDirectories(dir.resolve("other"));
+        Files.write(own.resolve(HASH), new byte[1]);
+        Files.write(own.resolve(HASH + ".tmp"), new byte[1]);
+        Files.write(own.resolve(HASH + ".1234567890.tmp"), new byte[1]);
+        Files.write(own.resolve("foreign.txt"), new byte[1]);
+        Files.write(ownOnly.resolve(HASH), new byte[1]);
+        Files.write(other.resolve(HASH), new byte[1]);
+        Files.write(dir.resolve(HASH), new byte[1]);
+        Files.write(dir.resolve("foreign.txt"), new byte[1]);
+
+        write(cache.cache(inst, null, "a", new Render(1000)));
+
+        assertFalse(Files.exists(own.resolve(HASH)));
+        assertFalse(Files.exists(own.resolve(HASH + ".tmp")));
+        assertFalse(Files.exists(own.resolve(HASH + ".1234567890.tmp")));
+        assertTrue(Files.exists(own.resolve("foreign.txt")));
+        assertFalse(Files.exists(ownOnly));
+        assertTrue(Files.exists(other.resolve(HASH)));
+        assertTrue(Files.exists(dir.resolve(HASH)));
+        assertTrue(Files.exists(dir.resolve("foreign.txt")));
+    }
+
+    private static StoreContext storeContext(StoreAction action,
+            Attributes attrs) {
+        StoreContext ctx = createNiceMock(StoreContext.class);
+        expect(ctx.getStoreAction()).andStubReturn(action);
+        expect(ctx.getAttributes()).andStubReturn(attrs);
+        replay(ctx);
+        return ctx;
+    }
+
+    private static Attributes attrs(String iuid, boolean presentationState) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        if (presentationState)
+            attrs.setString(Tag.PresentationCreationDate, VR.DA, "20141001");
+        return attrs;
+    }
+
+    private static byte[] write(StreamingOutput output) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+        return out.toByteArray();
+    }
+
+    private List<Path> cachedFiles() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir)) {
+            for (Path subdir : subdirs)
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(subdir)) {
+                    for (Path file : ds)
+                        files.add(file);
+                }
+        }
+        return files;
+    }
+
+    private static class Render implements StreamingOutput {
+        final byte[] content;
+        final AtomicInteger count = new AtomicInteger();
+
+        Render(int size) {
+            content = new byte[size];
+            Arrays.fill(content, (byte) 'x');
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException,
+                WebApplicationException {
+            count.incrementAndGet();
+            out.write(content);
+        }
+    }
+}